@@ -0,0 +1,329 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.xmlunit.builder;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import org.xmlunit.XMLUnitException;
+import org.xmlunit.diff.Diff;
+
+/**
+ * Compares many pairs of documents using a shared {@link DiffConfig}.
+ *
+ * <p>Each pair is a {@link Map.Entry} with the control document as
+ * key and the test document as value, both may be of all kinds of
+ * types supported by {@link Input#from(Object)}. The results are
+ * passed to a {@link Listener} as soon as they are available so they
+ * never have to be kept in memory all at once.</p>
+ *
+ * <p>By default all pairs are compared on the calling thread. If an
+ * {@link Executor} has been specified the comparisons are performed
+ * as tasks of the executor while the calling thread only reads pairs
+ * and waits for the comparisons to finish. At most {@link
+ * #withMaxInFlight maxInFlight} pairs are being compared - or wait
+ * for being compared - at any time.</p>
+ *
+ * <p><b>Example Usage:</b></p>
+ *
+ * <pre>
+ * DiffConfig config = DiffBuilder.config().ignoreWhitespace().compile();
+ * BatchDiff.Summary summary = BatchDiff.using(config)
+ *     .withExecutor(executorService)
+ *     .compare(pairs, new BatchDiff.Listener&lt;Map.Entry&lt;File, File&gt;&gt;() {
+ *         public void compared(Map.Entry&lt;File, File&gt; pair, Diff diff) { ... }
+ *         public void failed(Map.Entry&lt;File, File&gt; pair, RuntimeException ex) { ... }
+ *     });
+ * </pre>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public final class BatchDiff {
+
+    private final DiffConfig config;
+    private Executor executor;
+    private int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+
+    private BatchDiff(DiffConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Creates a BatchDiff that compares all pairs using the given
+     * configuration.
+     *
+     * @param config the configuration to use for all pairs
+     * @return a new BatchDiff
+     */
+    public static BatchDiff using(DiffConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("config must not be null");
+        }
+        return new BatchDiff(config);
+    }
+
+    /**
+     * Performs the comparisons as tasks of the given executor.
+     *
+     * <p>The configuration, the {@link Listener} and the executor
+     * itself are used by multiple threads in this case, see {@link
+     * DiffConfig} for details.</p>
+     *
+     * @param executor the executor to use, {@code null} - the
+     * default - compares all pairs on the calling thread.
+     * @return this
+     */
+    public BatchDiff withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of pairs that have been handed to the
+     * executor but not been compared, yet.
+     *
+     * <p>Only used if an {@link Executor} has been set.</p>
+     *
+     * @param maxInFlight the maximum number of pairs, defaults to
+     * twice the number of available processors
+     * @return this
+     */
+    public BatchDiff withMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Compares all pairs and passes the results on to the listener.
+     *
+     * @param pairs the pairs to compare, keys are control and values
+     * are test documents
+     * @param listener receives the results
+     * @param <P> type of the pairs
+     * @return summary of the results of all pairs
+     * @throws XMLUnitException if the listener has thrown an
+     * exception or error or the calling thread has been interrupted.
+     * No more pairs are handed to the executor in either case.
+     */
+    public <P extends Map.Entry<?, ?>> Summary compare(Iterable<P> pairs,
+                                                       Listener<? super P> listener) {
+        if (pairs == null) {
+            throw new IllegalArgumentException("pairs must not be null");
+        }
+        return compare(pairs.iterator(), listener);
+    }
+
+    /**
+     * Compares all pairs and passes the results on to the listener.
+     *
+     * @param pairs the pairs to compare, keys are control and values
+     * are test documents
+     * @param listener receives the results
+     * @param <P> type of the pairs
+     * @return summary of the results of all pairs
+     * @throws XMLUnitException if the listener has thrown an
+     * exception or error or the calling thread has been interrupted.
+     * No more pairs are handed to the executor in either case.
+     */
+    public <P extends Map.Entry<?, ?>> Summary compare(Iterator<P> pairs,
+                                                       Listener<? super P> listener) {
+        if (pairs == null) {
+            throw new IllegalArgumentException("pairs must not be null");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        Run<P> run = new Run<P>(listener);
+        if (executor == null) {
+            while (pairs.hasNext() && run.listenerFailure == null) {
+                run.compare(pairs.next());
+            }
+        } else {
+            runOnExecutor(pairs, run);
+        }
+        if (run.listenerFailure != null) {
+            throw new XMLUnitException("Listener failed", run.listenerFailure);
+        }
+        return run.summary;
+    }
+
+    private <P extends Map.Entry<?, ?>> void runOnExecutor(Iterator<P> pairs, final Run<P> run) {
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        try {
+            try {
+                while (pairs.hasNext() && !run.hasListenerFailed()) {
+                    inFlight.acquire();
+                    try {
+                        final P pair = pairs.next();
+                        executor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        run.compare(pair);
+                                    } finally {
+                                        inFlight.release();
+                                    }
+                                }
+                            });
+                    } catch (RuntimeException ex) {
+                        inFlight.release();
+                        throw ex;
+                    }
+                }
+            } finally {
+                // wait for all pairs that have been handed to the
+                // executor
+                inFlight.acquire(maxInFlight);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new XMLUnitException("Interrupted while comparing pairs", ex);
+        }
+    }
+
+    /**
+     * State of a single invocation of {@link #compare}.
+     */
+    private final class Run<P extends Map.Entry<?, ?>> {
+        private final Listener<? super P> listener;
+        private final Summary summary = new Summary();
+        // guarded by this
+        private Throwable listenerFailure;
+
+        private Run(Listener<? super P> listener) {
+            this.listener = listener;
+        }
+
+        private void compare(P pair) {
+            Diff diff = null;
+            RuntimeException failure = null;
+            try {
+                diff = config.compare(pair.getKey(), pair.getValue());
+            } catch (RuntimeException ex) {
+                failure = ex;
+            } catch (Throwable t) {
+                // Errors thrown on an executor thread would get lost
+                failure = new XMLUnitException("Comparison failed", t);
+            }
+            // the listener doesn't need to be thread-safe
+            synchronized (this) {
+                if (listenerFailure != null) {
+                    return;
+                }
+                try {
+                    if (failure != null) {
+                        summary.failures++;
+                        listener.failed(pair, failure);
+                    } else if (diff.hasDifferences()) {
+                        summary.pairsWithDifferences++;
+                        listener.compared(pair, diff);
+                    } else {
+                        summary.pairsWithoutDifferences++;
+                        listener.compared(pair, diff);
+                    }
+                } catch (Throwable t) {
+                    listenerFailure = t;
+                }
+            }
+        }
+
+        private synchronized boolean hasListenerFailed() {
+            return listenerFailure != null;
+        }
+    }
+
+    /**
+     * Receives the results of a {@link BatchDiff}.
+     *
+     * <p>Methods are invoked in the order comparisons finish, which
+     * may be different from the order of the pairs if an {@link
+     * Executor} is used. The methods are never invoked concurrently,
+     * but may be invoked by different threads.</p>
+     *
+     * @param <P> type of the pairs
+     */
+    public interface Listener<P> {
+        /**
+         * Invoked after a pair has been compared.
+         * @param pair the pair
+         * @param diff result of the comparison
+         */
+        void compared(P pair, Diff diff);
+
+        /**
+         * Invoked if a pair couldn't be compared, for example because
+         * one of the documents is not well-formed.
+         * @param pair the pair
+         * @param ex the exception thrown by the comparison - an
+         * {@link XMLUnitException} wrapping it if the comparison has
+         * thrown an {@link Error}
+         */
+        void failed(P pair, RuntimeException ex);
+    }
+
+    /**
+     * Aggregated results of a {@link BatchDiff}.
+     */
+    public static final class Summary {
+        private int pairsWithDifferences;
+        private int pairsWithoutDifferences;
+        private int failures;
+
+        private Summary() {
+        }
+
+        /**
+         * Number of pairs that have been compared or failed.
+         * @return number of pairs
+         */
+        public int getPairs() {
+            return pairsWithDifferences + pairsWithoutDifferences + failures;
+        }
+
+        /**
+         * Number of pairs whose {@link Diff} has differences.
+         * @return number of pairs with differences
+         */
+        public int getPairsWithDifferences() {
+            return pairsWithDifferences;
+        }
+
+        /**
+         * Number of pairs whose {@link Diff} has no differences.
+         * @return number of pairs without differences
+         */
+        public int getPairsWithoutDifferences() {
+            return pairsWithoutDifferences;
+        }
+
+        /**
+         * Number of pairs that couldn't be compared.
+         * @return number of failed comparisons
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return getPairs() + " pairs, " + pairsWithDifferences + " with differences, "
+                + pairsWithoutDifferences + " without differences, " + failures + " failed";
+        }
+    }
+}
@@ -16,18 +16,25 @@
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Node;
+import org.xmlunit.diff.AbstractDifferenceEngine;
 import org.xmlunit.diff.Comparison;
 import org.xmlunit.diff.ComparisonController;
 import org.xmlunit.diff.ComparisonControllers;
 import org.xmlunit.diff.ComparisonFormatter;
 import org.xmlunit.diff.ComparisonListener;
 import org.xmlunit.diff.ComparisonResult;
+import org.xmlunit.diff.ComparisonType;
 import org.xmlunit.diff.DOMDifferenceEngine;
 import org.xmlunit.diff.Diff;
 import org.xmlunit.diff.Difference;
+import org.xmlunit.diff.DifferenceEngine;
 import org.xmlunit.diff.DifferenceEvaluator;
 import org.xmlunit.diff.DifferenceEvaluators;
+import org.xmlunit.diff.ElementSelector;
+import org.xmlunit.diff.LCSNodeMatcher;
 import org.xmlunit.diff.NodeMatcher;
+import org.xmlunit.diff.StreamingDifferenceEngine;
+import org.xmlunit.input.CombinedNormalizedSource;
 import org.xmlunit.input.CommentLessSource;
 import org.xmlunit.input.ElementContentWhitespaceStrippedSource;
 import org.xmlunit.input.WhitespaceNormalizedSource;
@@ -41,8 +48,12 @@
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * DiffBuilder to create a {@link Diff} instance.
@@ -63,10 +74,10 @@
  */
 public class DiffBuilder implements DifferenceEngineConfigurer<DiffBuilder> {
 
-    private static final ComparisonResult[] CHECK_FOR_SIMILAR = new ComparisonResult[] {
+    static final ComparisonResult[] CHECK_FOR_SIMILAR = new ComparisonResult[] {
         ComparisonResult.DIFFERENT};
 
-    private static final ComparisonResult[] CHECK_FOR_IDENTICAL = new ComparisonResult[] {
+    static final ComparisonResult[] CHECK_FOR_IDENTICAL = new ComparisonResult[] {
         ComparisonResult.SIMILAR, ComparisonResult.DIFFERENT};
 
     private final Source controlSource;
@@ -75,6 +86,8 @@ public class DiffBuilder implements DifferenceEngineConfigurer<DiffBuilder> {
 
     private NodeMatcher nodeMatcher;
 
+    private boolean ignoreChildNodeListSequence;
+
     private ComparisonController comparisonController = ComparisonControllers.Default;
 
     private DifferenceEvaluator differenceEvaluator = DifferenceEvaluators.Default;
@@ -104,6 +117,16 @@ public class DiffBuilder implements DifferenceEngineConfigurer<DiffBuilder> {
 
     private DocumentBuilderFactory documentBuilderFactory;
 
+    private boolean useStreamingEngine;
+
+    private ForkJoinPool forkJoinPool;
+
+    private boolean skipIdenticalSubtrees;
+
+    private boolean iterativeTraversal;
+
+    private Executor parsingExecutor;
+
     /**
      * Create a DiffBuilder instance.
      *
@@ -124,6 +147,20 @@ public static DiffBuilder compare(final Object control) {
         return new DiffBuilder(controlSource);
     }
 
+    /**
+     * Create a DiffBuilder without any documents that is only used
+     * to {@link #compile} a {@link DiffConfig}.
+     *
+     * <p>Invoking {@link #build}, {@link #isIdentical} or {@link
+     * #isSimilar} on the returned builder fails.</p>
+     *
+     * @return a new builder
+     * @since XMLUnit 2.11.0
+     */
+    public static DiffBuilder config() {
+        return new DiffBuilder(null);
+    }
+
     /**
      * Set the Test-Source from all kind of types supported by {@link Input#from(Object)}.
      *
@@ -179,11 +216,13 @@ public DiffBuilder ignoreElementContentWhitespace() {
     /**
      * Will remove all comment-Tags "&lt;!-- Comment --&gt;" from test- and control-XML before comparing.
      *
-     * <p>Comments are ignored by applying an XSLT transformation on
-     * the source which may reduce the effect of {@link
-     * #withDocumentBuilderFactory}. If you need more control over the
-     * transformation build the {@code Source} using a transformation
-     * yourself, using {@link CommentLessSource#STYLE}.</p>
+     * <p>Comments are removed from a DOM copy of the source together
+     * with all other normalizations that have been requested, see
+     * {@link CombinedNormalizedSource}. Prior to XMLUnit 2.11.0 an
+     * XSLT transformation has been applied to the source, if you need
+     * this use {@link #ignoreCommentsUsingXSLTVersion} or build the
+     * {@code Source} using a transformation yourself, using {@link
+     * CommentLessSource#STYLE}.</p>
      * @return this
      */
     public DiffBuilder ignoreComments() {
@@ -198,6 +237,9 @@ public DiffBuilder ignoreComments() {
      * #withDocumentBuilderFactory}. This uses the {@link
      * CommentLessSource} constructor with two arguments using {@code
      * xsltVersion} as second argument.</p>
+     *
+     * <p>No transformation is applied when using {@link
+     * #withStreamingEngine}, {@code xsltVersion} is ignored then.</p>
      * @param xsltVersion use this version for the stylesheet
      * @return this
      * @since XMLUnit 2.5.0
@@ -223,6 +265,34 @@ public DiffBuilder ignoreCommentsUsingXSLTVersion(String xsltVersion) {
     @Override
     public DiffBuilder withNodeMatcher(final NodeMatcher nodeMatcher) {
         this.nodeMatcher = nodeMatcher;
+        ignoreChildNodeListSequence = false;
+        return this;
+    }
+
+    /**
+     * Matches siblings in document order using a {@link
+     * LCSNodeMatcher} with the given {@link ElementSelector}.
+     *
+     * <p>As the pairs found by {@link LCSNodeMatcher} never cross
+     * each other, the {@link ComparisonType#CHILD_NODELIST_SEQUENCE}
+     * differences caused by inserted or removed siblings carry no
+     * information. They are downgraded to {@link
+     * ComparisonResult#EQUAL} after the configured {@link
+     * DifferenceEvaluator} has been applied.</p>
+     *
+     * <p>This overwrites any {@link NodeMatcher} set via {@link
+     * #withNodeMatcher}. Invoking {@link #withNodeMatcher} later
+     * replaces the {@link LCSNodeMatcher} and stops the downgrade of
+     * {@link ComparisonType#CHILD_NODELIST_SEQUENCE}
+     * differences.</p>
+     *
+     * @param elementSelector the ElementSelector to use
+     * @return this
+     * @since XMLUnit 2.11.0
+     */
+    public DiffBuilder withLCSNodeMatcher(final ElementSelector elementSelector) {
+        nodeMatcher = new LCSNodeMatcher(elementSelector);
+        ignoreChildNodeListSequence = true;
         return this;
     }
 
@@ -397,6 +467,9 @@ public DiffBuilder withComparisonFormatter(ComparisonFormatter formatter) {
      * and test not already are {@link
      * javax.xml.transform.dom.DOMSource}s.</p>
      *
+     * <p>The factory is not used at all when using {@link
+     * #withStreamingEngine}.</p>
+     *
      * @param f the DocumentBuilderFactory to use
      * @return this
      * @since XMLUnit 2.2.0
@@ -406,21 +479,257 @@ public DiffBuilder withDocumentBuilderFactory(DocumentBuilderFactory f) {
         return this;
     }
 
+    /**
+     * Compare the documents using a {@link StreamingDifferenceEngine}
+     * which reads control and test in lockstep and never builds a DOM
+     * tree for either of them.
+     *
+     * <p>The streaming engine always matches siblings in document
+     * order, using it together with {@link #withNodeMatcher}, {@link
+     * #withParallelComparison}, {@link #skipIdenticalSubtrees},
+     * {@link #withIterativeTraversal} or {@link
+     * #withConcurrentParsing} is not supported.</p>
+     *
+     * <p>{@link #ignoreWhitespace}, {@link #normalizeWhitespace},
+     * {@link #ignoreElementContentWhitespace} and the {@code
+     * ignoreComments} variants are applied to the events while they
+     * are read, the XSLT version passed to {@link
+     * #ignoreCommentsUsingXSLTVersion} is irrelevant in this
+     * case.</p>
+     *
+     * @return this
+     * @since XMLUnit 2.11.0
+     */
+    public DiffBuilder withStreamingEngine() {
+        useStreamingEngine = true;
+        return this;
+    }
+
+    /**
+     * Compare the children of elements in parallel using the given
+     * {@link ForkJoinPool}.
+     *
+     * <p>Differences are still reported in document order. The
+     * {@link NodeMatcher}, {@link DifferenceEvaluator} and filters
+     * must be thread-safe when using this option, see {@link
+     * DOMDifferenceEngine#setForkJoinPool} for details.</p>
+     *
+     * <p>This can't be combined with {@link #withStreamingEngine}.</p>
+     *
+     * @param pool the pool to use
+     * @return this
+     * @since XMLUnit 2.11.0
+     */
+    public DiffBuilder withParallelComparison(ForkJoinPool pool) {
+        forkJoinPool = pool;
+        return this;
+    }
+
+    /**
+     * Skip the comparison of subtrees that are identical in control
+     * and test.
+     *
+     * <p>Structural hashes of all subtrees are computed before the
+     * comparison starts and matched nodes with identical subtrees are
+     * not compared any further. This has no effect if any comparison
+     * listener has been registered, see {@link
+     * DOMDifferenceEngine#setSkipIdenticalSubtrees} for details.</p>
+     *
+     * <p>This can't be combined with {@link #withStreamingEngine}.</p>
+     *
+     * @return this
+     * @since XMLUnit 2.11.0
+     */
+    public DiffBuilder skipIdenticalSubtrees() {
+        skipIdenticalSubtrees = true;
+        return this;
+    }
+
+    /**
+     * Traverse the documents using an explicit stack rather than
+     * recursion.
+     *
+     * <p>Use this when comparing documents that are nested so deeply
+     * that the default recursive traversal runs into a {@link
+     * StackOverflowError}. The same differences are found in the same
+     * order, see {@link DOMDifferenceEngine#setIterativeTraversal}
+     * for details.</p>
+     *
+     * <p>This can't be combined with {@link #withStreamingEngine}.</p>
+     *
+     * @return this
+     * @since XMLUnit 2.11.0
+     */
+    public DiffBuilder withIterativeTraversal() {
+        iterativeTraversal = true;
+        return this;
+    }
+
+    /**
+     * Parse control and test documents concurrently.
+     *
+     * <p>The control document is parsed by a task of the given
+     * executor while the test document is parsed on the thread
+     * performing the comparison. This only happens if neither
+     * document is already a DOM node, see {@link
+     * DOMDifferenceEngine#setParsingExecutor} for details.</p>
+     *
+     * <p>This can't be combined with {@link #withStreamingEngine}.</p>
+     *
+     * @param executor the executor to use
+     * @return this
+     * @since XMLUnit 2.11.0
+     */
+    public DiffBuilder withConcurrentParsing(Executor executor) {
+        parsingExecutor = executor;
+        return this;
+    }
+
     /**
      * Compare the Test-XML {@link #withTest(Object)} with the Control-XML {@link #compare(Object)} and return the
      * collected differences in a {@link Diff} object.
      * @return the collected differences
      */
     public Diff build() {
+        return diff(controlSource, testSource);
+    }
 
-        final DOMDifferenceEngine d = documentBuilderFactory != null
-            ? new DOMDifferenceEngine(documentBuilderFactory) : new DOMDifferenceEngine();
+    /**
+     * Freezes the current configuration of this builder into an
+     * immutable {@link DiffConfig} that can be used to compare many
+     * pairs of documents - even from different threads at the same
+     * time.
+     *
+     * <p>The control and test documents of this builder are not part
+     * of the configuration. Changes made to this builder after
+     * {@code compile} has been invoked don't affect the returned
+     * configuration.</p>
+     *
+     * @return the compiled configuration
+     * @throws IllegalStateException if the configuration is
+     * inconsistent, for example if {@link #withStreamingEngine} has
+     * been combined with a custom {@link NodeMatcher} or any of the
+     * options that only apply to {@link DOMDifferenceEngine}.
+     * @since XMLUnit 2.11.0
+     */
+    public DiffConfig compile() {
+        checkEngineConfiguration();
+        DiffBuilder copy = new DiffBuilder(null);
+        copy.nodeMatcher = nodeMatcher;
+        copy.ignoreChildNodeListSequence = ignoreChildNodeListSequence;
+        copy.comparisonController = comparisonController;
+        copy.differenceEvaluator = differenceEvaluator;
+        copy.comparisonListeners = new ArrayList<ComparisonListener>(comparisonListeners);
+        copy.differenceListeners = new ArrayList<ComparisonListener>(differenceListeners);
+        copy.comparisonResultsToCheck = comparisonResultsToCheck;
+        copy.namespaceContext = namespaceContext == null
+            ? null : new LinkedHashMap<String, String>(namespaceContext);
+        copy.attributeFilter = attributeFilter;
+        copy.nodeFilter = nodeFilter;
+        copy.formatter = formatter;
+        copy.ignoreWhitespace = ignoreWhitespace;
+        copy.normalizeWhitespace = normalizeWhitespace;
+        copy.ignoreECW = ignoreECW;
+        copy.ignoreComments = ignoreComments;
+        copy.ignoreCommentVersion = ignoreCommentVersion;
+        copy.documentBuilderFactory = documentBuilderFactory;
+        copy.useStreamingEngine = useStreamingEngine;
+        copy.forkJoinPool = forkJoinPool;
+        copy.skipIdenticalSubtrees = skipIdenticalSubtrees;
+        copy.iterativeTraversal = iterativeTraversal;
+        copy.parsingExecutor = parsingExecutor;
+        return new DiffConfig(copy);
+    }
+
+    /**
+     * Compares two documents using the configuration of this
+     * builder.
+     *
+     * <p>package private to support {@link DiffConfig}.</p>
+     */
+    Diff diff(Source control, Source test) {
+        final AbstractDifferenceEngine d = createEngine();
         final CollectResultsListener collectResultsListener = new CollectResultsListener(comparisonResultsToCheck);
         d.addDifferenceListener(collectResultsListener);
+        configure(d);
+        d.compare(wrap(control), wrap(test));
+
+        return formatter == null
+            ? new Diff(control, test, collectResultsListener.getDifferences())
+            : new Diff(control, test, formatter,
+                       collectResultsListener.getDifferences());
+    }
+
+    /**
+     * Compare the Test-XML {@link #withTest(Object)} with the
+     * Control-XML {@link #compare(Object)} and return whether they
+     * are identical.
+     *
+     * <p>Gives the same answer as {@code
+     * checkForIdentical().build().hasDifferences()} would - negated -
+     * but stops at the first difference. Unless comparison or
+     * difference listeners have been registered and as long as the
+     * {@link DifferenceEvaluator} is one of {@link
+     * DifferenceEvaluators#Default} or {@link
+     * DifferenceEvaluators#Accept} this doesn't create any {@link
+     * org.xmlunit.diff.Comparison} objects at all, see {@link
+     * DOMDifferenceEngine#hasDifferences}.</p>
+     *
+     * <p>This ignores {@link #checkForSimilar} and {@link
+     * #checkForIdentical}.</p>
+     *
+     * @return whether test and control are identical
+     * @since XMLUnit 2.11.0
+     */
+    public boolean isIdentical() {
+        return !hasDifferences(controlSource, testSource, CHECK_FOR_IDENTICAL);
+    }
+
+    /**
+     * Compare the Test-XML {@link #withTest(Object)} with the
+     * Control-XML {@link #compare(Object)} and return whether they
+     * are similar.
+     *
+     * <p>Gives the same answer as {@code
+     * checkForSimilar().build().hasDifferences()} would - negated -
+     * but stops at the first difference. Unless comparison or
+     * difference listeners have been registered and as long as the
+     * {@link DifferenceEvaluator} is one of {@link
+     * DifferenceEvaluators#Default} or {@link
+     * DifferenceEvaluators#Accept} this doesn't create any {@link
+     * org.xmlunit.diff.Comparison} objects at all, see {@link
+     * DOMDifferenceEngine#hasDifferences}.</p>
+     *
+     * <p>This ignores {@link #checkForSimilar} and {@link
+     * #checkForIdentical}.</p>
+     *
+     * @return whether test and control are similar
+     * @since XMLUnit 2.11.0
+     */
+    public boolean isSimilar() {
+        return !hasDifferences(controlSource, testSource, CHECK_FOR_SIMILAR);
+    }
+
+    /**
+     * Whether two documents have differences with one of the given
+     * outcomes using the configuration of this builder.
+     *
+     * <p>package private to support {@link DiffConfig}.</p>
+     */
+    boolean hasDifferences(Source control, Source test, ComparisonResult... outcomes) {
+        final AbstractDifferenceEngine d = createEngine();
+        configure(d);
+        return d.hasDifferences(wrap(control), wrap(test), outcomes);
+    }
+
+    private void configure(DifferenceEngine d) {
         if (nodeMatcher != null) {
             d.setNodeMatcher(nodeMatcher);
         }
-        d.setDifferenceEvaluator(differenceEvaluator);
+        d.setDifferenceEvaluator(ignoreChildNodeListSequence
+            ? DifferenceEvaluators.chain(differenceEvaluator,
+                DifferenceEvaluators.downgradeDifferencesToEqual(ComparisonType.CHILD_NODELIST_SEQUENCE))
+            : differenceEvaluator);
         d.setComparisonController(comparisonController);
         for (ComparisonListener comparisonListener : comparisonListeners) {
             d.addComparisonListener(comparisonListener);
@@ -437,15 +746,87 @@ public Diff build() {
         if (nodeFilter != null) {
             d.setNodeFilter(nodeFilter);
         }
-        d.compare(wrap(controlSource), wrap(testSource));
+    }
 
-        return formatter == null
-            ? new Diff(controlSource, testSource, collectResultsListener.getDifferences())
-            : new Diff(controlSource, testSource, formatter,
-                       collectResultsListener.getDifferences());
+    private void checkEngineConfiguration() {
+        if (!useStreamingEngine) {
+            return;
+        }
+        if (nodeMatcher != null) {
+            throw new IllegalStateException("the streaming engine doesn't support"
+                                            + " a custom NodeMatcher");
+        }
+        if (forkJoinPool != null) {
+            throw new IllegalStateException("the streaming engine doesn't support"
+                                            + " parallel comparison");
+        }
+        if (skipIdenticalSubtrees) {
+            throw new IllegalStateException("the streaming engine doesn't support"
+                                            + " skipping identical subtrees");
+        }
+        if (iterativeTraversal) {
+            throw new IllegalStateException("the streaming engine doesn't support"
+                                            + " iterative traversal");
+        }
+        if (parsingExecutor != null) {
+            throw new IllegalStateException("the streaming engine doesn't support"
+                                            + " concurrent parsing");
+        }
+    }
+
+    private AbstractDifferenceEngine createEngine() {
+        checkEngineConfiguration();
+        if (useStreamingEngine) {
+            StreamingDifferenceEngine s = new StreamingDifferenceEngine();
+            s.setNormalizations(normalizations());
+            return s;
+        }
+        DOMDifferenceEngine d = documentBuilderFactory != null
+            ? new DOMDifferenceEngine(documentBuilderFactory) : new DOMDifferenceEngine();
+        d.setForkJoinPool(forkJoinPool);
+        d.setSkipIdenticalSubtrees(skipIdenticalSubtrees);
+        d.setIterativeTraversal(iterativeTraversal);
+        d.setParsingExecutor(parsingExecutor);
+        return d;
     }
 
     private Source wrap(final Source source) {
+        if (useStreamingEngine) {
+            // StreamingDifferenceEngine normalizes while reading
+            return source;
+        }
+        if (ignoreCommentVersion != null) {
+            return wrapUsingXSLT(source);
+        }
+        Set<CombinedNormalizedSource.Normalization> normalizations = normalizations();
+        return normalizations.isEmpty() ? source
+            : new CombinedNormalizedSource(source, normalizations, documentBuilderFactory);
+    }
+
+    private Set<CombinedNormalizedSource.Normalization> normalizations() {
+        Set<CombinedNormalizedSource.Normalization> normalizations =
+            EnumSet.noneOf(CombinedNormalizedSource.Normalization.class);
+        if (ignoreWhitespace) {
+            normalizations.add(CombinedNormalizedSource.Normalization.STRIP_WHITESPACE);
+        }
+        if (normalizeWhitespace) {
+            normalizations.add(CombinedNormalizedSource.Normalization.NORMALIZE_WHITESPACE);
+        }
+        if (ignoreComments) {
+            normalizations.add(CombinedNormalizedSource.Normalization.STRIP_COMMENTS);
+        }
+        if (ignoreECW) {
+            normalizations.add(CombinedNormalizedSource.Normalization.STRIP_ELEMENT_CONTENT_WHITESPACE);
+        }
+        return normalizations;
+    }
+
+    /**
+     * Chains the individual normalizing sources, only used if an
+     * explicit XSLT version has been requested for stripping
+     * comments.
+     */
+    private Source wrapUsingXSLT(final Source source) {
         Source newSource = source;
         if (ignoreWhitespace) {
             newSource = documentBuilderFactory != null
@@ -457,11 +838,7 @@ private Source wrap(final Source source) {
                 ? new WhitespaceNormalizedSource(newSource, documentBuilderFactory)
                 : new WhitespaceNormalizedSource(newSource);
         }
-        if (ignoreComments) {
-            newSource = ignoreCommentVersion == null
-                ? new CommentLessSource(newSource)
-                : new CommentLessSource(newSource, ignoreCommentVersion);
-        }
+        newSource = new CommentLessSource(newSource, ignoreCommentVersion);
         if (ignoreECW) {
             newSource = documentBuilderFactory != null
                 ? new ElementContentWhitespaceStrippedSource(newSource, documentBuilderFactory)
@@ -0,0 +1,120 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.xmlunit.builder;
+
+import javax.xml.transform.Source;
+import org.xmlunit.diff.Diff;
+
+/**
+ * Immutable configuration of a comparison created by {@link
+ * DiffBuilder#compile}.
+ *
+ * <p>Each invocation of {@link #compare}, {@link #isIdentical} or
+ * {@link #isSimilar} uses a difference engine of its own, so a single
+ * instance can be shared between threads. The default {@link
+ * javax.xml.parsers.DocumentBuilderFactory} and the {@link
+ * javax.xml.parsers.DocumentBuilder}s are created once per thread
+ * rather than once per comparison.</p>
+ *
+ * <p>All configured collaborators - the {@link
+ * org.xmlunit.diff.NodeMatcher}, {@link
+ * org.xmlunit.diff.DifferenceEvaluator}, {@link
+ * org.xmlunit.diff.ComparisonController}, filters, listeners,
+ * formatter - are shared between all comparisons and must be
+ * thread-safe if the configuration is used by multiple threads
+ * concurrently. This is true for all implementations provided by
+ * XMLUnit itself.</p>
+ *
+ * <p>A custom {@code DocumentBuilderFactory} is shared as well, but
+ * is only used to create {@code DocumentBuilder}s which happens while
+ * holding the lock of the factory, see {@link
+ * org.xmlunit.util.Convert#newDocumentBuilder}. It must not be
+ * reconfigured while the configuration is in use.</p>
+ *
+ * <p><b>Example Usage:</b></p>
+ *
+ * <pre>
+ * DiffConfig config = DiffBuilder.config()
+ *     .ignoreWhitespace()
+ *     .checkForSimilar()
+ *     .compile();
+ * Diff myDiff = config.compare(controlXml, testXml);
+ * </pre>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public final class DiffConfig {
+
+    // private copy that is never modified
+    private final DiffBuilder builder;
+
+    DiffConfig(DiffBuilder builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * Compares two documents and returns the collected differences.
+     *
+     * @param control the expected reference document, all kind of
+     * types supported by {@link Input#from(Object)} are valid
+     * @param test the test document which is compared with the
+     * control document, all kind of types supported by {@link
+     * Input#from(Object)} are valid
+     * @return the collected differences
+     */
+    public Diff compare(Object control, Object test) {
+        return builder.diff(getSource(control), getSource(test));
+    }
+
+    /**
+     * Compares two documents and returns whether they are identical.
+     *
+     * <p>Like {@link DiffBuilder#isIdentical} this stops at the
+     * first difference.</p>
+     *
+     * @param control the expected reference document, all kind of
+     * types supported by {@link Input#from(Object)} are valid
+     * @param test the test document which is compared with the
+     * control document, all kind of types supported by {@link
+     * Input#from(Object)} are valid
+     * @return whether test and control are identical
+     */
+    public boolean isIdentical(Object control, Object test) {
+        return !builder.hasDifferences(getSource(control), getSource(test),
+                                       DiffBuilder.CHECK_FOR_IDENTICAL);
+    }
+
+    /**
+     * Compares two documents and returns whether they are similar.
+     *
+     * <p>Like {@link DiffBuilder#isSimilar} this stops at the first
+     * difference.</p>
+     *
+     * @param control the expected reference document, all kind of
+     * types supported by {@link Input#from(Object)} are valid
+     * @param test the test document which is compared with the
+     * control document, all kind of types supported by {@link
+     * Input#from(Object)} are valid
+     * @return whether test and control are similar
+     */
+    public boolean isSimilar(Object control, Object test) {
+        return !builder.hasDifferences(getSource(control), getSource(test),
+                                       DiffBuilder.CHECK_FOR_SIMILAR);
+    }
+
+    private static Source getSource(Object object) {
+        return Input.from(object).build();
+    }
+}
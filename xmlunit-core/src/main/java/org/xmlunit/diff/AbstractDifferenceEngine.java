@@ -13,8 +13,12 @@
 */
 package org.xmlunit.diff;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
+import javax.xml.transform.Source;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Node;
 import org.xmlunit.util.Predicate;
@@ -166,6 +170,76 @@ protected Predicate<Node> getNodeFilter() {
         return nodeFilter;
     }
 
+    /**
+     * Determines whether comparing control and test yields at least
+     * one comparison with one of the given outcomes.
+     *
+     * <p>Gives the same answer as {@link #compare} together with a
+     * difference listener that collects the comparisons with the
+     * given outcomes, but stops as soon as the first such comparison
+     * has been found. Registered listeners are notified of all
+     * comparisons performed up to this point.</p>
+     *
+     * <p>The configured {@link ComparisonController} is replaced
+     * while the comparison is running.</p>
+     *
+     * @param control the control document
+     * @param test the test document
+     * @param outcomes the outcomes that count as differences,
+     * typically {@link ComparisonResult#DIFFERENT} - plus {@link
+     * ComparisonResult#SIMILAR} if looking for identical documents.
+     * @return whether a comparison with one of the given outcomes
+     * has been found
+     *
+     * @since XMLUnit 2.11.0
+     */
+    public boolean hasDifferences(Source control, Source test,
+                                  ComparisonResult... outcomes) {
+        final Set<ComparisonResult> reported = outcomesToReport(outcomes);
+        final ComparisonController original = getComparisonController();
+        final boolean[] found = new boolean[1];
+        setComparisonController(new ComparisonController() {
+                @Override
+                public boolean stopDiffing(Difference difference) {
+                    if (reported.contains(difference.getResult())) {
+                        found[0] = true;
+                        return true;
+                    }
+                    return original.stopDiffing(difference);
+                }
+            });
+        try {
+            compare(control, test);
+        } finally {
+            setComparisonController(original);
+        }
+        return found[0];
+    }
+
+    /**
+     * Validates the outcomes passed to {@link #hasDifferences}.
+     */
+    static Set<ComparisonResult> outcomesToReport(ComparisonResult... outcomes) {
+        if (outcomes == null || outcomes.length == 0) {
+            throw new IllegalArgumentException("outcomes must not be empty");
+        }
+        Set<ComparisonResult> reported = EnumSet.copyOf(Arrays.asList(outcomes));
+        if (reported.contains(ComparisonResult.EQUAL)) {
+            throw new IllegalArgumentException("outcomes must not contain EQUAL");
+        }
+        return reported;
+    }
+
+    /**
+     * Whether any listener has been registered at all.
+     *
+     * <p>package private to support engines that can avoid work
+     * when nobody is interested in individual comparisons.</p>
+     */
+    final boolean hasListeners() {
+        return listeners.hasListeners();
+    }
+
     /**
      * Compares the detail values for object equality, lets the
      * difference evaluator and comparison controller evaluate the
@@ -185,11 +259,37 @@ protected final ComparisonState compare(Comparison comp) {
             equal ? ComparisonResult.EQUAL : ComparisonResult.DIFFERENT;
         ComparisonResult altered =
             getDifferenceEvaluator().evaluate(comp, initial);
-        listeners.fireComparisonPerformed(comp, altered);
-        return altered != ComparisonResult.EQUAL
-            && getComparisonController().stopDiffing(new Difference(comp, altered))
-            ? new FinishedComparisonState(altered)
-            : new OngoingComparisonState(altered);
+        return replay(comp, altered);
+    }
+
+    /**
+     * Notifies all listeners of a comparison that has already been
+     * evaluated and lets the comparison controller decide whether to
+     * stop.
+     *
+     * <p>package private to support engines that evaluate
+     * comparisons on different threads.</p>
+     *
+     * @param comp the comparison performed
+     * @param outcome the outcome as returned by the difference evaluator
+     */
+    final ComparisonState replay(Comparison comp, ComparisonResult outcome) {
+        listeners.fireComparisonPerformed(comp, outcome);
+        return outcome != ComparisonResult.EQUAL
+            && getComparisonController().stopDiffing(new Difference(comp, outcome))
+            ? new FinishedComparisonState(outcome)
+            : new OngoingComparisonState(outcome);
+    }
+
+    /**
+     * Whether any listener has been registered that wants to be
+     * notified of comparisons with outcome {@link ComparisonResult#EQUAL}.
+     *
+     * <p>package private to support engines that can avoid work
+     * when nobody is interested in matches.</p>
+     */
+    final boolean hasComparisonOrMatchListeners() {
+        return listeners.hasComparisonOrMatchListeners();
     }
 
     /**
@@ -239,6 +339,26 @@ protected ComparisonState(boolean finished, ComparisonResult result) {
             this.result = result;
         }
 
+        /**
+         * Whether the comparison should be stopped.
+         *
+         * <p>package private to support engines that need to know
+         * when to stop consuming their input.</p>
+         */
+        boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * The current result.
+         *
+         * <p>package private to support engines that evaluate
+         * comparisons on different threads.</p>
+         */
+        ComparisonResult getResult() {
+            return result;
+        }
+
         /**
          * Combines the current state with a different comparison.
          * @param newStateProducer may be invoked to produce the next ConditionState
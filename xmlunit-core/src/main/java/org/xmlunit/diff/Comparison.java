@@ -15,9 +15,6 @@
 
 import org.w3c.dom.Node;
 
-import static org.xmlunit.diff.AbstractDifferenceEngine.getParentXPath;
-import static org.xmlunit.diff.AbstractDifferenceEngine.getXPath;
-
 /**
  * Details of a single comparison XMLUnit has performed.
  */
@@ -29,15 +26,31 @@ public class Comparison {
      */
     public static class Detail {
         private final Node target;
-        private final String xpath;
         private final Object value;
-        private final String parentXPath;
+        // XPaths are resolved lazily if the Detail has been created
+        // from XPathContext.Paths
+        private final XPathContext.Path xpathSource, parentXPathSource;
+        private String xpath;
+        private String parentXPath;
 
         private Detail(Node n, String x, Object v, String parentX) {
             target = n;
             xpath = x;
             value = v;
             parentXPath = parentX;
+            xpathSource = parentXPathSource = null;
+        }
+
+        private Detail(Node n, XPathContext.Path x, Object v, XPathContext.Path parentX) {
+            target = n;
+            xpathSource = x;
+            value = v;
+            parentXPathSource = parentX;
+        }
+
+        private Detail(Node n, XPathContext ctx, Object v) {
+            this(n, ctx == null ? null : ctx.getCurrentPath(), v,
+                 ctx == null ? null : ctx.getCurrentPath().getParent());
         }
 
         /**
@@ -49,7 +62,12 @@ private Detail(Node n, String x, Object v, String parentX) {
          * XPath leading to the target.
          * @return XPath leading to the target
          */
-        public String getXPath() { return xpath; }
+        public String getXPath() {
+            if (xpath == null && xpathSource != null) {
+                xpath = xpathSource.getXPath();
+            }
+            return xpath;
+        }
         /**
          * The value for comparison found at the current target.
          * @return the value for comparison found at the current target
@@ -61,6 +79,9 @@ private Detail(Node n, String x, Object v, String parentX) {
          * @return XPath leading to the target's parent
          */
         public String getParentXPath() {
+            if (parentXPath == null && parentXPathSource != null) {
+                parentXPath = parentXPathSource.getXPath();
+            }
             return parentXPath;
         }
     }
@@ -104,9 +125,46 @@ public Comparison(ComparisonType t,
     public Comparison(ComparisonType t,
                       XPathContext controlContext, Node controlTarget, Object controlValue,
                       XPathContext testContext, Node testTarget,Object testValue) {
-        this (t,
-              controlTarget, getXPath(controlContext), controlValue, getParentXPath(controlContext),
-              testTarget, getXPath(testContext), testValue, getParentXPath(testContext));
+        type = t;
+        control = new Detail(controlTarget, controlContext, controlValue);
+        test = new Detail(testTarget, testContext, testValue);
+    }
+
+    /**
+     * Creates a comparison of a node that is only present on one
+     * side.
+     *
+     * <p>The details of the missing side have no target, XPath or
+     * value, their parent XPath is the XPath of the context passed in.</p>
+     *
+     * <p>package private to support {@link DOMDifferenceEngine}.</p>
+     *
+     * @param t the type of comparison
+     * @param controlContext the context of the control node, or of
+     * the control node's parent if control is null
+     * @param control the control node or null
+     * @param controlValue the value from the control node
+     * @param testContext the context of the test node, or of the test
+     * node's parent if test is null
+     * @param test the test node or null
+     * @param testValue the value from the test node
+     */
+    static Comparison ofUnmatchedNode(ComparisonType t,
+                                      XPathContext controlContext, Node control, Object controlValue,
+                                      XPathContext testContext, Node test, Object testValue) {
+        return new Comparison(t,
+                              control == null
+                              ? new Detail(null, null, null, controlContext.getCurrentPath())
+                              : new Detail(control, controlContext, controlValue),
+                              test == null
+                              ? new Detail(null, null, null, testContext.getCurrentPath())
+                              : new Detail(test, testContext, testValue));
+    }
+
+    private Comparison(ComparisonType t, Detail control, Detail test) {
+        type = t;
+        this.control = control;
+        this.test = test;
     }
 
     /**
@@ -70,6 +70,21 @@ public void fireComparisonPerformed(Comparison comparison,
         }
     }
 
+    /**
+     * Whether any listener has been registered that is notified of
+     * comparisons with outcome {@link ComparisonResult#EQUAL}.
+     */
+    boolean hasComparisonOrMatchListeners() {
+        return !compListeners.isEmpty() || !matchListeners.isEmpty();
+    }
+
+    /**
+     * Whether any listener has been registered at all.
+     */
+    boolean hasListeners() {
+        return hasComparisonOrMatchListeners() || !diffListeners.isEmpty();
+    }
+
     private static void fire(Comparison comparison, ComparisonResult outcome,
                              List<ComparisonListener> listeners) {
         if (!listeners.isEmpty()) {
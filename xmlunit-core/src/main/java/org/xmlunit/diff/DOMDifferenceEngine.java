@@ -14,24 +14,38 @@
 
 package org.xmlunit.diff;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
 import org.xmlunit.XMLUnitException;
 import org.xmlunit.util.Convert;
-import org.xmlunit.util.DocumentBuilderFactoryConfigurer;
 import org.xmlunit.util.IterableNodeList;
 import org.xmlunit.util.Linqy;
 import org.xmlunit.util.Mapper;
 import org.xmlunit.util.Nodes;
+import org.xmlunit.util.Predicate;
 import org.w3c.dom.Attr;
 import org.w3c.dom.CharacterData;
 import org.w3c.dom.Document;
@@ -39,6 +53,7 @@
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.w3c.dom.ProcessingInstruction;
 
 /**
@@ -55,13 +70,31 @@ public final class DOMDifferenceEngine extends AbstractDifferenceEngine {
             public QName apply(Node n) { return Nodes.getQName(n); }
         };
 
+    /**
+     * Default for the minimum number of matched children an element
+     * must have before they are compared in parallel.
+     *
+     * @since XMLUnit 2.11.0
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 16;
+
+    // null means the default factory of the thread doing the parsing
     private DocumentBuilderFactory documentBuilderFactory;
+    private ForkJoinPool forkJoinPool;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private AtomicBoolean cancelled = new AtomicBoolean();
+    private boolean skipIdenticalSubtrees;
+    private boolean iterativeTraversal;
+    private Executor parsingExecutor;
+    // only set while comparing with skipIdenticalSubtrees enabled
+    private SubtreeHasher hasher;
+    // only set for engines comparing subtrees in parallel mode
+    private Recording recording;
 
     /**
      * Creates a new DOMDifferenceEngine using the default {@link DocumentBuilderFactory}.
      */
     public DOMDifferenceEngine() {
-        this(DocumentBuilderFactoryConfigurer.Default.configure(DocumentBuilderFactory.newInstance()));
     }
 
     /**
@@ -83,6 +116,168 @@ public DOMDifferenceEngine(final DocumentBuilderFactory f) {
         documentBuilderFactory = f;
     }
 
+    /**
+     * Creates an engine that compares a subtree on behalf of parent
+     * and records all comparisons rather than notifying parent's
+     * listeners.
+     */
+    private DOMDifferenceEngine(final DOMDifferenceEngine parent, final Recording recording) {
+        documentBuilderFactory = parent.documentBuilderFactory;
+        setNodeMatcher(parent.getNodeMatcher());
+        setDifferenceEvaluator(parent.getDifferenceEvaluator());
+        setNamespaceContext(parent.getNamespaceContext());
+        setAttributeFilter(parent.getAttributeFilter());
+        setNodeFilter(parent.getNodeFilter());
+        addComparisonListener(recording);
+        forkJoinPool = parent.forkJoinPool;
+        parallelThreshold = parent.parallelThreshold;
+        iterativeTraversal = parent.iterativeTraversal;
+        hasher = parent.hasher;
+        this.recording = recording;
+        final AtomicBoolean c = parent.cancelled;
+        cancelled = c;
+        // the parent's controller is consulted when the recorded
+        // comparisons are replayed, here we only need to stop once
+        // the parent has stopped
+        setComparisonController(new ComparisonController() {
+                @Override
+                public boolean stopDiffing(Difference difference) {
+                    return c.get();
+                }
+            });
+    }
+
+    /**
+     * Sets the {@link ForkJoinPool} to use when comparing the
+     * children of elements in parallel.
+     *
+     * <p>Once the {@link NodeMatcher} has paired the children of a
+     * node with at least {@link #setParallelThreshold threshold}
+     * matched children the subtrees of all pairs are compared as
+     * separate tasks of the pool. The comparisons performed are
+     * recorded and passed on to the listeners and the {@link
+     * ComparisonController} on the thread that invoked {@link
+     * #compare} in document order, so listeners see the same
+     * sequence of comparisons as in sequential mode.</p>
+     *
+     * <p>The {@link NodeMatcher}, {@link DifferenceEvaluator}, node
+     * filter and attribute filter are invoked from the pool's
+     * threads and must be thread-safe when this mode is used.</p>
+     *
+     * <p>DOM implementations are not required to be thread-safe, not
+     * even for read access. Xerces - the JDK's default - creates the
+     * nodes of documents parsed with deferred node expansion when
+     * they are first accessed and caches positions inside of child
+     * lists. Before the pool is used the engine visits every node of
+     * control and test on the calling thread, which fully expands
+     * the documents, so different threads may read different parts
+     * of them afterwards. Components invoked from the pool's threads
+     * must not modify the documents and should only access the nodes
+     * they are passed, their attributes and their descendants.</p>
+     *
+     * @param pool the pool to use, {@code null} - the default -
+     * compares all nodes on the calling thread.
+     *
+     * @since XMLUnit 2.11.0
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        forkJoinPool = pool;
+    }
+
+    /**
+     * Sets the minimum number of matched children a node must have
+     * before they are compared in parallel.
+     *
+     * <p>Only used if a {@link ForkJoinPool} has been set.</p>
+     *
+     * @param threshold the minimum number of matched children,
+     * defaults to {@link #DEFAULT_PARALLEL_THRESHOLD}
+     *
+     * @since XMLUnit 2.11.0
+     */
+    public void setParallelThreshold(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive");
+        }
+        parallelThreshold = threshold;
+    }
+
+    /**
+     * Whether to skip the comparison of subtrees that are identical.
+     *
+     * <p>If enabled the engine computes a structural hash of every
+     * subtree of control and test before comparing them. The hash
+     * respects the configured node and attribute filters - and the
+     * whitespace handling as that is applied to the {@link Source}s
+     * before they reach the engine. When two matched nodes have the
+     * same hash and turn out to be identical, the whole subtree is
+     * skipped without performing any comparisons for it.</p>
+     *
+     * <p>Subtrees are never skipped if any comparison or match
+     * listener has been registered as these would expect to be
+     * notified about all comparisons.</p>
+     *
+     * <p>This assumes the {@link DifferenceEvaluator} doesn't turn
+     * comparisons of equal values into differences and the {@link
+     * NodeMatcher} pairs the children of identical nodes in
+     * order - which is true for the defaults.</p>
+     *
+     * @param skip whether to skip identical subtrees, defaults to false
+     *
+     * @since XMLUnit 2.11.0
+     */
+    public void setSkipIdenticalSubtrees(boolean skip) {
+        skipIdenticalSubtrees = skip;
+    }
+
+    /**
+     * Whether to traverse the documents using an explicit stack
+     * rather than recursion.
+     *
+     * <p>By default the engine recurses into the children of each
+     * node, which needs several frames of the Java stack per level of
+     * the documents and may lead to a {@link StackOverflowError} for
+     * very deep documents. If enabled the child lists still to be
+     * compared are kept on a stack on the heap instead and documents
+     * of arbitrary depth can be compared.</p>
+     *
+     * <p>The same comparisons are performed in the same order as in
+     * recursive mode.</p>
+     *
+     * @param iterative whether to use an explicit stack, defaults to
+     * false
+     *
+     * @since XMLUnit 2.11.0
+     */
+    public void setIterativeTraversal(boolean iterative) {
+        iterativeTraversal = iterative;
+    }
+
+    /**
+     * Sets the {@link Executor} to use when parsing the control and
+     * test documents concurrently.
+     *
+     * <p>If neither of the {@link Source}s passed to {@link #compare}
+     * is a {@link DOMSource} the control document is parsed by a
+     * task of the executor while the test document is parsed on the
+     * calling thread. Each side uses a {@link DocumentBuilder} of its
+     * own.</p>
+     *
+     * <p>If parsing fails the cause of the exception thrown says
+     * whether the control or the test document could not be
+     * parsed. If both of them fail the control side is
+     * reported.</p>
+     *
+     * @param executor the executor to use, {@code null} - the
+     * default - parses both documents one after the other on the
+     * calling thread.
+     *
+     * @since XMLUnit 2.11.0
+     */
+    public void setParsingExecutor(Executor executor) {
+        parsingExecutor = executor;
+    }
+
     /**
      * Sets the {@link DocumentBuilderFactory} to use when creating a
      * {@link Document} from the {@link Source}s to compare.
@@ -111,15 +306,170 @@ public void compare(Source control, Source test) {
         if (test == null) {
             throw new IllegalArgumentException("test must not be null");
         }
+        cancelled = new AtomicBoolean();
+        DiffScope previousScope = DiffScope.enter();
         try {
-            Node controlNode = Convert.toNode(control, documentBuilderFactory);
-            Node testNode = Convert.toNode(test, documentBuilderFactory);
+            Node[] nodes = toNodes(control, test);
+            Node controlNode = nodes[0];
+            Node testNode = nodes[1];
+            if (forkJoinPool != null) {
+                expand(controlNode);
+                expand(testNode);
+            }
+            if (skipIdenticalSubtrees && !hasComparisonOrMatchListeners()) {
+                hasher = new SubtreeHasher(getNodeFilter(), getAttributeFilter());
+                hasher.hash(controlNode);
+                hasher.hash(testNode);
+            }
             compareNodes(controlNode, xpathContextFor(controlNode),
                          testNode, xpathContextFor(testNode));
         } catch (Exception ex) {
             throw new XMLUnitException("Caught exception during comparison",
                                        ex);
+        } finally {
+            hasher = null;
+            DiffScope.restore(previousScope);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If no listeners have been registered, the {@link
+     * DifferenceEvaluator} is {@link DifferenceEvaluators#Default} or
+     * {@link DifferenceEvaluators#Accept} and the {@link
+     * ComparisonController} can't stop the comparison before a
+     * difference with one of the given outcomes has been found, this
+     * uses a specialized traversal that performs the same
+     * comparisons without creating {@link Comparison} objects or
+     * XPaths. Otherwise it falls back to {@link #compare}.</p>
+     *
+     * <p>The fast traversal ignores the {@link #setForkJoinPool
+     * ForkJoinPool} and always runs on the calling thread.</p>
+     */
+    @Override
+    public boolean hasDifferences(Source control, Source test,
+                                  ComparisonResult... outcomes) {
+        if (control == null) {
+            throw new IllegalArgumentException("control must not be null");
+        }
+        if (test == null) {
+            throw new IllegalArgumentException("test must not be null");
+        }
+        Set<ComparisonResult> reported = outcomesToReport(outcomes);
+        if (!canFindDifferencesWithoutComparisons(reported)) {
+            return super.hasDifferences(control, test, outcomes);
+        }
+        DiffScope previousScope = DiffScope.enter();
+        try {
+            Node[] nodes = toNodes(control, test);
+            return new DifferenceFinder(reported).differ(nodes[0], nodes[1]);
+        } catch (Exception ex) {
+            throw new XMLUnitException("Caught exception during comparison",
+                                       ex);
+        } finally {
+            DiffScope.restore(previousScope);
+        }
+    }
+
+    /**
+     * Converts control and test to DOM nodes, parsing them
+     * concurrently if an executor has been set and both of them need
+     * to be parsed.
+     *
+     * @return an array holding the control and test nodes
+     */
+    private Node[] toNodes(final Source control, Source test) {
+        if (parsingExecutor == null || control instanceof DOMSource
+            || test instanceof DOMSource) {
+            return new Node[] { toNode(control), toNode(test) };
+        }
+        // DocumentBuilderFactory is not thread-safe, create the
+        // builder for the control document on this thread unless the
+        // executor's thread can use a default factory of its own
+        final DocumentBuilder controlBuilder = documentBuilderFactory == null ? null
+            : Convert.newDocumentBuilder(documentBuilderFactory);
+        FutureTask<Document> controlTask = new FutureTask<Document>(new Callable<Document>() {
+                @Override
+                public Document call() {
+                    return controlBuilder == null ? Convert.toDocument(control)
+                        : Convert.toDocument(control, controlBuilder);
+                }
+            });
+        parsingExecutor.execute(controlTask);
+
+        Document testDocument = null;
+        RuntimeException testFailure = null;
+        try {
+            testDocument = (Document) toNode(test);
+        } catch (RuntimeException ex) {
+            testFailure = ex;
+        }
+        Document controlDocument;
+        try {
+            controlDocument = controlTask.get();
+        } catch (ExecutionException ex) {
+            throw new XMLUnitException("Failed to parse control document", ex.getCause());
+        } catch (InterruptedException ex) {
+            controlTask.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new XMLUnitException("Interrupted while parsing control document", ex);
+        }
+        if (testFailure != null) {
+            throw new XMLUnitException("Failed to parse test document", testFailure);
         }
+        return new Node[] { controlDocument, testDocument };
+    }
+
+    /**
+     * Reads every node below and including the given one so a DOM
+     * implementation that creates nodes lazily has created all of
+     * them before the nodes are accessed from different threads.
+     */
+    private static void expand(Node root) {
+        Deque<Node> stack = new ArrayDeque<Node>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            n.getNodeValue();
+            n.getNamespaceURI();
+            n.getLocalName();
+            n.getNextSibling();
+            NamedNodeMap attributes = n.getAttributes();
+            if (attributes != null) {
+                // the children of attributes may be created lazily as well
+                for (int i = attributes.getLength() - 1; i >= 0; i--) {
+                    stack.push(attributes.item(i));
+                }
+            }
+            NodeList children = n.getChildNodes();
+            for (int i = children.getLength() - 1; i >= 0; i--) {
+                stack.push(children.item(i));
+            }
+        }
+    }
+
+    /**
+     * Converts a source to a DOM node using the configured factory or
+     * the default factory of the current thread.
+     */
+    private Node toNode(Source s) {
+        return documentBuilderFactory == null ? Convert.toNode(s)
+            : Convert.toNode(s, documentBuilderFactory);
+    }
+
+    private boolean canFindDifferencesWithoutComparisons(Set<ComparisonResult> reported) {
+        DifferenceEvaluator evaluator = getDifferenceEvaluator();
+        ComparisonController controller = getComparisonController();
+        return !hasListeners()
+            && (evaluator == DifferenceEvaluators.Default
+                || evaluator == DifferenceEvaluators.Accept)
+            && (controller == ComparisonControllers.Default
+                || controller == ComparisonControllers.StopWhenDifferent
+                && reported.contains(ComparisonResult.DIFFERENT)
+                || controller == ComparisonControllers.StopWhenSimilar
+                && reported.contains(ComparisonResult.DIFFERENT)
+                && reported.contains(ComparisonResult.SIMILAR));
     }
 
     private XPathContext xpathContextFor(Node n) {
@@ -140,14 +490,38 @@ private XPathContext xpathContextFor(Node n) {
      */
     ComparisonState compareNodes(final Node control, final XPathContext controlContext,
                                  final Node test, final XPathContext testContext) {
-        final Iterable<Node> allControlChildren =
-            new IterableNodeList(Nodes.getChildNodes(control));
-        final Iterable<Node> controlChildren =
-            Linqy.filter(allControlChildren, getNodeFilter());
-        final Iterable<Node> allTestChildren =
-            new IterableNodeList(Nodes.getChildNodes(test));
-        final Iterable<Node> testChildren =
-            Linqy.filter(allTestChildren, getNodeFilter());
+        final boolean compareChildren = control.getNodeType() != Node.ATTRIBUTE_NODE;
+        if (compareChildren && iterativeTraversal) {
+            return compareNodesIteratively(control, controlContext, test, testContext);
+        }
+        final ChildNodes controlChildren =
+            compareChildren ? new ChildNodes(control, getNodeFilter()) : null;
+        final ChildNodes testChildren =
+            compareChildren ? new ChildNodes(test, getNodeFilter()) : null;
+        return compareNodeProperties(control, controlContext, controlChildren,
+                                     test, testContext, testChildren)
+            // and finally recurse into children
+            .andIfTrueThen(compareChildren,
+                           compareChildren(controlContext, controlChildren,
+                                           testContext, testChildren));
+    }
+
+    /**
+     * Performs all comparisons of two nodes except for the ones of
+     * their children.
+     *
+     * @param controlChildren children of control, null if they are
+     * not going to be compared
+     * @param testChildren children of test, null if they are not
+     * going to be compared
+     */
+    private ComparisonState compareNodeProperties(final Node control,
+                                                  final XPathContext controlContext,
+                                                  final ChildNodes controlChildren,
+                                                  final Node test,
+                                                  final XPathContext testContext,
+                                                  final ChildNodes testChildren) {
+        final boolean compareChildren = controlChildren != null;
         return compare(new Comparison(ComparisonType.NODE_TYPE,
                                       controlContext, control, control.getNodeType(),
                                       testContext, test, test.getNodeType()))
@@ -157,26 +531,132 @@ ComparisonState compareNodes(final Node control, final XPathContext controlConte
             .andThen(new Comparison(ComparisonType.NAMESPACE_PREFIX,
                                     controlContext, control, control.getPrefix(),
                                     testContext, test, test.getPrefix()))
-            .andIfTrueThen(control.getNodeType() != Node.ATTRIBUTE_NODE,
-                           new Comparison(ComparisonType.CHILD_NODELIST_LENGTH,
-                                          controlContext, control,
-                                          Linqy.count(controlChildren),
-                                          testContext, test, Linqy.count(testChildren)))
+            .andIfTrueThen(compareChildren, new DeferredComparison() {
+                    @Override
+                    public ComparisonState apply() {
+                        return compare(new Comparison(ComparisonType.CHILD_NODELIST_LENGTH,
+                                                      controlContext, control,
+                                                      controlChildren.size,
+                                                      testContext, test, testChildren.size));
+                    }
+                })
             .andThen(new DeferredComparison() {
                     @Override
                     public ComparisonState apply() {
                         return nodeTypeSpecificComparison(control, controlContext,
                                                           test, testContext);
                     }
-                })
-            // and finally recurse into children
-            .andIfTrueThen(control.getNodeType() != Node.ATTRIBUTE_NODE,
-                           compareChildren(controlContext,
-                                           allControlChildren,
-                                           controlChildren,
-                                           testContext,
-                                           allTestChildren,
-                                           testChildren));
+                });
+    }
+
+    /**
+     * Compares two nodes that are not attributes like the recursive
+     * variant of {@link #compareNodes} does, but keeps the child
+     * lists still to be compared on an explicit stack.
+     *
+     * <p>The contexts are navigated to the children currently being
+     * compared and back again.</p>
+     */
+    private ComparisonState compareNodesIteratively(final Node control,
+                                                    final XPathContext controlContext,
+                                                    final Node test,
+                                                    final XPathContext testContext) {
+        ChildNodes controlChildren = new ChildNodes(control, getNodeFilter());
+        ChildNodes testChildren = new ChildNodes(test, getNodeFilter());
+        ComparisonState state = compareNodeProperties(control, controlContext, controlChildren,
+                                                      test, testContext, testChildren);
+        if (state.isFinished()) {
+            return state;
+        }
+        Deque<ChildFrame> stack = new ArrayDeque<ChildFrame>();
+        state = pushChildren(stack, controlChildren, controlContext, testChildren, testContext);
+        // number of levels the contexts have been navigated down
+        int depth = 0;
+        try {
+            while (!state.isFinished() && !stack.isEmpty()) {
+                ChildFrame frame = stack.peek();
+                if (frame.next < frame.matches.matched) {
+                    MatchedPair pair = frame.nextPair();
+                    controlContext.navigateToChild(pair.controlIndexForXpath);
+                    testContext.navigateToChild(pair.testIndexForXpath);
+                    depth++;
+                    state = compare(new Comparison(ComparisonType.CHILD_NODELIST_SEQUENCE,
+                                                   controlContext, pair.control,
+                                                   Integer.valueOf(pair.controlIndex),
+                                                   testContext, pair.test,
+                                                   Integer.valueOf(pair.testIndex)));
+                    if (state.isFinished()) {
+                        break;
+                    }
+                    if (hasher != null && hasher.identical(pair.control, pair.test)) {
+                        state = new OngoingComparisonState();
+                    } else {
+                        controlChildren = new ChildNodes(pair.control, getNodeFilter());
+                        testChildren = new ChildNodes(pair.test, getNodeFilter());
+                        state = compareNodeProperties(pair.control, controlContext,
+                                                      controlChildren,
+                                                      pair.test, testContext,
+                                                      testChildren);
+                        if (!state.isFinished()) {
+                            state = pushChildren(stack, controlChildren, controlContext,
+                                                 testChildren, testContext);
+                        }
+                        // stay at the child until its children have been compared
+                        continue;
+                    }
+                } else {
+                    state = new OngoingComparisonState()
+                        .andThen(new UnmatchedControlNodes(frame.controlChildren, controlContext,
+                                                           frame.matches.controlSeen,
+                                                           testContext))
+                        .andThen(new UnmatchedTestNodes(frame.testChildren, testContext,
+                                                        frame.matches.testSeen,
+                                                        controlContext));
+                    stack.pop();
+                    if (stack.isEmpty()) {
+                        break;
+                    }
+                }
+                testContext.navigateToParent();
+                controlContext.navigateToParent();
+                depth--;
+            }
+        } finally {
+            for (; depth > 0; depth--) {
+                testContext.navigateToParent();
+                controlContext.navigateToParent();
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Matches the children of the nodes the contexts currently point
+     * to and pushes them to the stack of the iterative traversal.
+     *
+     * <p>If the children are compared in parallel this happens
+     * immediately and an exhausted frame is pushed so only the
+     * unmatched children remain to be compared.</p>
+     */
+    private ComparisonState pushChildren(Deque<ChildFrame> stack,
+                                         ChildNodes controlChildren,
+                                         XPathContext controlContext,
+                                         ChildNodes testChildren,
+                                         XPathContext testContext) {
+        controlContext.setChildNodes(controlChildren.all);
+        testContext.setChildNodes(testChildren.all);
+        ChildFrame frame = new ChildFrame(controlChildren, testChildren,
+                                          matchChildren(controlChildren, testChildren));
+        stack.push(frame);
+        final int matched = frame.matches.matched;
+        if (forkJoinPool == null || matched < parallelThreshold) {
+            return new OngoingComparisonState();
+        }
+        List<MatchedPair> pairs = new ArrayList<MatchedPair>(matched);
+        while (frame.next < matched) {
+            pairs.add(frame.nextPair());
+        }
+        return compareMatchedPairsInParallel(pairs, controlContext, testContext);
     }
 
     /**
@@ -237,20 +717,16 @@ private ComparisonState nodeTypeSpecificComparison(Node control,
     }
 
     private DeferredComparison compareChildren(final XPathContext controlContext,
-                                               final Iterable<Node> allControlChildren,
-                                               final Iterable<Node> controlChildren,
+                                               final ChildNodes controlChildren,
                                                final XPathContext testContext,
-                                               final Iterable<Node> allTestChildren,
-                                               final Iterable<Node> testChildren) {
+                                               final ChildNodes testChildren) {
         return new DeferredComparison() {
             @Override
             public ComparisonState apply() {
-                controlContext
-                    .setChildren(Linqy.map(allControlChildren, ElementSelectors.TO_NODE_INFO));
-                testContext
-                    .setChildren(Linqy.map(allTestChildren, ElementSelectors.TO_NODE_INFO));
-                return compareNodeLists(allControlChildren, controlChildren, controlContext,
-                                        allTestChildren, testChildren, testContext);
+                controlContext.setChildNodes(controlChildren.all);
+                testContext.setChildNodes(testChildren.all);
+                return compareNodeLists(controlChildren, controlContext,
+                                        testChildren, testContext);
             }
         };
     }
@@ -368,11 +844,13 @@ private ComparisonState compareElementAttributes(final Element control,
                                                      final XPathContext controlContext,
                                                      final Element test,
                                                      final XPathContext testContext) {
-        final Attributes controlAttributes = splitAttributes(control.getAttributes());
+        final Attributes controlAttributes = splitAttributes(control.getAttributes(),
+                                                             getAttributeFilter());
         controlContext
             .addAttributes(Linqy.map(controlAttributes.remainingAttributes,
                                      QNAME_MAPPER));
-        final Attributes testAttributes = splitAttributes(test.getAttributes());
+        final Attributes testAttributes = splitAttributes(test.getAttributes(),
+                                                          getAttributeFilter());
         testContext
             .addAttributes(Linqy.map(testAttributes.remainingAttributes,
                                      QNAME_MAPPER));
@@ -540,78 +1018,366 @@ private ComparisonState compareProcessingInstructions(ProcessingInstruction cont
      * <p>Also performs CHILD_LOOKUP comparisons for each node that
      * couldn't be matched to one of the "other" list.</p>
      */
-    private ComparisonState compareNodeLists(Iterable<Node> allControlChildren,
-                                             Iterable<Node> controlSeq,
+    private ComparisonState compareNodeLists(final ChildNodes controlChildren,
                                              final XPathContext controlContext,
-                                             Iterable<Node> allTestChildren,
-                                             Iterable<Node> testSeq,
+                                             final ChildNodes testChildren,
                                              final XPathContext testContext) {
         ComparisonState chain = new OngoingComparisonState();
 
-        Iterable<Map.Entry<Node, Node>> matches =
-            getNodeMatcher().match(controlSeq, testSeq);
-        List<Node> controlList = Linqy.asList(controlSeq);
-        List<Node> testList = Linqy.asList(testSeq);
+        final MatchedChildren m = matchChildren(controlChildren, testChildren);
+        final int matched = m.matched;
+        final int[] controlIndexes = m.controlIndexes;
+        final int[] testIndexes = m.testIndexes;
+
+        if (forkJoinPool != null && matched >= parallelThreshold) {
+            List<MatchedPair> pairs = new ArrayList<MatchedPair>(matched);
+            for (int i = 0; i < matched; i++) {
+                pairs.add(new MatchedPair(controlChildren, controlIndexes[i],
+                                          testChildren, testIndexes[i]));
+            }
+            chain = compareMatchedPairsInParallel(pairs, controlContext, testContext);
+        } else {
+            for (int i = 0; i < matched; i++) {
+                MatchedPair pair = new MatchedPair(controlChildren, controlIndexes[i],
+                                                   testChildren, testIndexes[i]);
+                controlContext.navigateToChild(pair.controlIndexForXpath);
+                testContext.navigateToChild(pair.testIndexForXpath);
+                try {
+                    chain = chain.andThen(compareMatchedPair(pair, controlContext,
+                                                             testContext));
+                } finally {
+                    testContext.navigateToParent();
+                    controlContext.navigateToParent();
+                }
+            }
+        }
 
-        final Map<Node, Integer> controlListForXpathIndex = index(allControlChildren);
-        final Map<Node, Integer> testListForXpathIndex = index(allTestChildren);
-        final Map<Node, Integer> controlListIndex = index(controlList);
-        final Map<Node, Integer> testListIndex = index(testList);
+        return chain.andThen(new UnmatchedControlNodes(controlChildren, controlContext,
+                                                       m.controlSeen, testContext))
+            .andThen(new UnmatchedTestNodes(testChildren, testContext,
+                                            m.testSeen, controlContext));
+    }
+
+    /**
+     * Uses the NodeMatcher to pair the children of control and test
+     * and looks up the indexes of all matched nodes.
+     */
+    private MatchedChildren matchChildren(ChildNodes controlChildren, ChildNodes testChildren) {
+        Iterable<Map.Entry<Node, Node>> matches =
+            getNodeMatcher().match(controlChildren.asList(), testChildren.asList());
 
-        Set<Node> seen = new HashSet<Node>();
+        MatchedChildren m = new MatchedChildren(controlChildren.size, testChildren.size);
         for (Map.Entry<Node, Node> pair : matches) {
-            final Node control = pair.getKey();
-            seen.add(control);
-            final Node test = pair.getValue();
-            seen.add(test);
-            Integer controlIndexForXpath = controlListForXpathIndex.get(control);
-            Integer testIndexForXpath = testListForXpathIndex.get(test);
-            Integer controlIndex = controlListIndex.get(control);
-            Integer testIndex = testListIndex.get(test);
-            if (controlIndexForXpath == null || testIndexForXpath == null
-                || controlIndex == null || testIndex == null) {
+            int controlHint = -1;
+            int testHint = -1;
+            if (pair instanceof DefaultNodeMatcher.IndexedMatch) {
+                DefaultNodeMatcher.IndexedMatch im = (DefaultNodeMatcher.IndexedMatch) pair;
+                controlHint = im.getControlIndex();
+                testHint = im.getTestIndex();
+            }
+            int controlIndex = controlChildren.indexOf(pair.getKey(), controlHint);
+            int testIndex = testChildren.indexOf(pair.getValue(), testHint);
+            if (controlIndex < 0 || testIndex < 0) {
                 throw new NullPointerException("failed to look up index for pair " + pair);
             }
+            m.add(controlIndex, testIndex);
+        }
+        return m;
+    }
 
-            controlContext.navigateToChild(controlIndexForXpath);
-            testContext.navigateToChild(testIndexForXpath);
-            try {
-                chain =
-                    chain.andThen(new Comparison(ComparisonType.CHILD_NODELIST_SEQUENCE,
-                                                 controlContext, control, Integer.valueOf(controlIndex),
-                                                 testContext, test, Integer.valueOf(testIndex)))
+    /**
+     * Compares the position of two matched nodes and then the nodes
+     * themselves.
+     *
+     * <p>The contexts must have been navigated to the nodes.</p>
+     */
+    private DeferredComparison compareMatchedPair(final MatchedPair pair,
+                                                  final XPathContext controlContext,
+                                                  final XPathContext testContext) {
+        return new DeferredComparison() {
+            @Override
+            public ComparisonState apply() {
+                return compare(new Comparison(ComparisonType.CHILD_NODELIST_SEQUENCE,
+                                              controlContext, pair.control,
+                                              Integer.valueOf(pair.controlIndex),
+                                              testContext, pair.test,
+                                              Integer.valueOf(pair.testIndex)))
                     .andThen(new DeferredComparison() {
                             @Override
                             public ComparisonState apply() {
-                                return compareNodes(control, controlContext,
-                                                    test, testContext);
+                                if (hasher != null
+                                    && hasher.identical(pair.control, pair.test)) {
+                                    return new OngoingComparisonState();
+                                }
+                                return compareNodes(pair.control, controlContext,
+                                                    pair.test, testContext);
                             }
                         });
+            }
+        };
+    }
+
+    /**
+     * Compares all matched pairs on the configured {@link
+     * ForkJoinPool} and passes the recorded comparisons on to the
+     * listeners in document order.
+     */
+    private ComparisonState compareMatchedPairsInParallel(List<MatchedPair> pairs,
+                                                          XPathContext controlContext,
+                                                          XPathContext testContext) {
+        final boolean recordMatches = recording != null
+            ? recording.recordMatches : hasComparisonOrMatchListeners();
+        final boolean inPool = ForkJoinTask.getPool() == forkJoinPool;
+        List<SubtreeComparison> tasks = new ArrayList<SubtreeComparison>(pairs.size());
+        for (MatchedPair pair : pairs) {
+            controlContext.navigateToChild(pair.controlIndexForXpath);
+            testContext.navigateToChild(pair.testIndexForXpath);
+            try {
+                SubtreeComparison task =
+                    new SubtreeComparison(pair, controlContext.copyOfCurrentPath(),
+                                          testContext.copyOfCurrentPath(), recordMatches);
+                if (inPool) {
+                    task.fork();
+                } else {
+                    forkJoinPool.execute(task);
+                }
+                tasks.add(task);
             } finally {
                 testContext.navigateToParent();
                 controlContext.navigateToParent();
             }
         }
 
-        return chain.andThen(new UnmatchedControlNodes(controlListForXpathIndex, controlList,
-                controlContext, seen, testContext))
-            .andThen(new UnmatchedTestNodes(testListForXpathIndex, testList,
-                testContext, seen, controlContext));
+        ComparisonState chain = new OngoingComparisonState();
+        int replayed = 0;
+        try {
+            for (SubtreeComparison task : tasks) {
+                Recording r = task.join();
+                replayed++;
+                final int count = r.comparisons.size();
+                for (int i = 0; i < count; i++) {
+                    chain = replay(r.comparisons.get(i), r.outcomes.get(i));
+                    if (chain.isFinished()) {
+                        cancelled.set(true);
+                        return chain;
+                    }
+                }
+                chain = new OngoingComparisonState(r.result);
+            }
+            return chain;
+        } finally {
+            for (int i = replayed; i < tasks.size(); i++) {
+                tasks.get(i).cancel(false);
+            }
+        }
+    }
+
+    private static final class MatchedPair {
+        private final Node control, test;
+        private final int controlIndexForXpath, testIndexForXpath;
+        private final int controlIndex, testIndex;
+
+        private MatchedPair(ChildNodes controlChildren, int controlIndex,
+                            ChildNodes testChildren, int testIndex) {
+            control = controlChildren.filtered[controlIndex];
+            controlIndexForXpath = controlChildren.xpathIndexes[controlIndex];
+            this.controlIndex = controlIndex;
+            test = testChildren.filtered[testIndex];
+            testIndexForXpath = testChildren.xpathIndexes[testIndex];
+            this.testIndex = testIndex;
+        }
+    }
+
+    /**
+     * Indexes of matched children plus the sets of indexes that have
+     * been matched at all.
+     */
+    private static final class MatchedChildren {
+        private final BitSet controlSeen;
+        private final BitSet testSeen;
+        private int[] controlIndexes;
+        private int[] testIndexes;
+        private int matched;
+
+        private MatchedChildren(int controlSize, int testSize) {
+            controlSeen = new BitSet(controlSize);
+            testSeen = new BitSet(testSize);
+            controlIndexes = new int[Math.min(controlSize, testSize)];
+            testIndexes = new int[controlIndexes.length];
+        }
+
+        private void add(int controlIndex, int testIndex) {
+            controlSeen.set(controlIndex);
+            testSeen.set(testIndex);
+            if (matched == controlIndexes.length) {
+                controlIndexes = Arrays.copyOf(controlIndexes, 2 * matched + 1);
+                testIndexes = Arrays.copyOf(testIndexes, 2 * matched + 1);
+            }
+            controlIndexes[matched] = controlIndex;
+            testIndexes[matched++] = testIndex;
+        }
+    }
+
+    /**
+     * Matched children of a pair of nodes and the position of the
+     * next pair to compare.
+     */
+    private static final class ChildFrame {
+        private final ChildNodes controlChildren;
+        private final ChildNodes testChildren;
+        private final MatchedChildren matches;
+        private int next;
+
+        private ChildFrame(ChildNodes controlChildren, ChildNodes testChildren,
+                           MatchedChildren matches) {
+            this.controlChildren = controlChildren;
+            this.testChildren = testChildren;
+            this.matches = matches;
+        }
+
+        private MatchedPair nextPair() {
+            MatchedPair pair = new MatchedPair(controlChildren, matches.controlIndexes[next],
+                                               testChildren, matches.testIndexes[next]);
+            next++;
+            return pair;
+        }
+    }
+
+    /**
+     * The children of a node.
+     *
+     * <p>Keeps the children accepted by the node filter in an array
+     * together with their positions among all children, which is
+     * needed to navigate the {@link XPathContext}.</p>
+     */
+    private static final class ChildNodes {
+        private final Iterable<Node> all;
+        private final Node[] filtered;
+        private final int[] xpathIndexes;
+        private final int size;
+        // position where the next lookup of a node without hint starts
+        private int cursor;
+        // only created if a NodeMatcher returns nodes out of order
+        private Map<Node, Integer> fallbackIndex;
+
+        private ChildNodes(Node parent, Predicate<Node> filter) {
+            NodeList children = Nodes.getChildNodes(parent);
+            all = new IterableNodeList(children);
+            final int length = children.getLength();
+            Node[] accepted = new Node[length];
+            int[] indexes = new int[length];
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                Node n = children.item(i);
+                if (filter.test(n)) {
+                    accepted[count] = n;
+                    indexes[count++] = i;
+                }
+            }
+            filtered = count == length ? accepted : Arrays.copyOf(accepted, count);
+            xpathIndexes = indexes;
+            size = count;
+        }
+
+        private List<Node> asList() {
+            return Arrays.asList(filtered);
+        }
+
+        /**
+         * Finds the index of n inside the list of accepted children.
+         * @param hint the index the NodeMatcher claims n has, -1 if unknown
+         * @return the index or -1 if n is not an accepted child
+         */
+        private int indexOf(Node n, int hint) {
+            if (hint >= 0 && hint < size && filtered[hint] == n) {
+                cursor = hint + 1;
+                return hint;
+            }
+            if (cursor < size && filtered[cursor] == n) {
+                return cursor++;
+            }
+            if (fallbackIndex == null) {
+                fallbackIndex = new IdentityHashMap<Node, Integer>();
+                for (int i = 0; i < size; i++) {
+                    fallbackIndex.put(filtered[i], Integer.valueOf(i));
+                }
+            }
+            Integer index = fallbackIndex.get(n);
+            return index == null ? -1 : index.intValue();
+        }
+    }
+
+    /**
+     * Compares a matched pair of nodes using a separate engine that
+     * records the comparisons rather than passing them on to the
+     * listeners.
+     */
+    private final class SubtreeComparison extends RecursiveTask<Recording> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient MatchedPair pair;
+        private final transient XPathContext controlContext, testContext;
+        private final boolean recordMatches;
+        private final transient DiffScope scope;
+
+        private SubtreeComparison(MatchedPair pair, XPathContext controlContext,
+                                  XPathContext testContext, boolean recordMatches) {
+            this.pair = pair;
+            this.controlContext = controlContext;
+            this.testContext = testContext;
+            this.recordMatches = recordMatches;
+            scope = DiffScope.current();
+        }
+
+        @Override
+        protected Recording compute() {
+            DiffScope previousScope = DiffScope.enter(scope);
+            try {
+                Recording r = new Recording(recordMatches);
+                DOMDifferenceEngine engine = new DOMDifferenceEngine(DOMDifferenceEngine.this, r);
+                r.result = new OngoingComparisonState()
+                    .andThen(engine.compareMatchedPair(pair, controlContext, testContext))
+                    .getResult();
+                return r;
+            } finally {
+                DiffScope.restore(previousScope);
+            }
+        }
+    }
+
+    /**
+     * Collects the comparisons performed by an engine working on a
+     * subtree.
+     */
+    private static final class Recording implements ComparisonListener {
+        private final boolean recordMatches;
+        private final List<Comparison> comparisons = new ArrayList<Comparison>();
+        private final List<ComparisonResult> outcomes = new ArrayList<ComparisonResult>();
+        private ComparisonResult result;
+
+        private Recording(boolean recordMatches) {
+            this.recordMatches = recordMatches;
+        }
+
+        @Override
+        public void comparisonPerformed(Comparison comparison, ComparisonResult outcome) {
+            if (recordMatches || outcome != ComparisonResult.EQUAL) {
+                comparisons.add(comparison);
+                outcomes.add(outcome);
+            }
+        }
     }
 
     private class UnmatchedControlNodes implements DeferredComparison {
-        private final Map<Node, Integer> controlListForXpathIndex;
-        private final List<Node> controlList;
+        private final ChildNodes controlChildren;
         private final XPathContext controlContext;
-        private final Set<Node> seen;
+        private final BitSet seen;
         private final XPathContext testContext;
 
-        private UnmatchedControlNodes(Map<Node, Integer> controlListForXpathIndex,
-                                      List<Node> controlList,
+        private UnmatchedControlNodes(ChildNodes controlChildren,
                                       XPathContext controlContext,
-                                      Set<Node> seen, XPathContext testContext) {
-            this.controlListForXpathIndex = controlListForXpathIndex;
-            this.controlList = controlList;
+                                      BitSet seen, XPathContext testContext) {
+            this.controlChildren = controlChildren;
             this.controlContext = controlContext;
             this.seen = seen;
             this.testContext = testContext;
@@ -620,20 +1386,18 @@ private UnmatchedControlNodes(Map<Node, Integer> controlListForXpathIndex,
         @Override
         public ComparisonState apply() {
             ComparisonState chain = new OngoingComparisonState();
-            final int controlSize = controlList.size();
-            for (int i = 0; i < controlSize; i++) {
-                if (!seen.contains(controlList.get(i))) {
-                    controlContext.navigateToChild(controlListForXpathIndex.get(controlList.get(i)));
-                    try {
-                        chain =
-                            chain.andThen(new Comparison(ComparisonType.CHILD_LOOKUP,
-                                                         controlList.get(i),
-                                                         getXPath(controlContext),
-                                                         Nodes.getQName(controlList.get(i)), getParentXPath(controlContext),
-                                                         null, null, null, getXPath(testContext)));
-                    } finally {
-                        controlContext.navigateToParent();
-                    }
+            for (int i = seen.nextClearBit(0); i < controlChildren.size;
+                 i = seen.nextClearBit(i + 1)) {
+                Node control = controlChildren.filtered[i];
+                controlContext.navigateToChild(controlChildren.xpathIndexes[i]);
+                try {
+                    chain =
+                        chain.andThen(Comparison.ofUnmatchedNode(ComparisonType.CHILD_LOOKUP,
+                                                                 controlContext, control,
+                                                                 Nodes.getQName(control),
+                                                                 testContext, null, null));
+                } finally {
+                    controlContext.navigateToParent();
                 }
             }
             return chain;
@@ -641,17 +1405,14 @@ public ComparisonState apply() {
     }
 
     private class UnmatchedTestNodes implements DeferredComparison {
-        private final Map<Node, Integer> testListForXpathIndex;
-        private final List<Node> testList;
+        private final ChildNodes testChildren;
         private final XPathContext testContext;
-        private final Set<Node> seen;
+        private final BitSet seen;
         private final XPathContext controlContext;
 
-        private UnmatchedTestNodes(Map<Node, Integer> testListForXpathIndex,
-                                   List<Node> testList, XPathContext testContext,
-                                   Set<Node> seen, XPathContext controlContext) {
-            this.testListForXpathIndex = testListForXpathIndex;
-            this.testList = testList;
+        private UnmatchedTestNodes(ChildNodes testChildren, XPathContext testContext,
+                                   BitSet seen, XPathContext controlContext) {
+            this.testChildren = testChildren;
             this.testContext = testContext;
             this.seen = seen;
             this.controlContext = controlContext;
@@ -660,20 +1421,18 @@ private UnmatchedTestNodes(Map<Node, Integer> testListForXpathIndex,
         @Override
         public ComparisonState apply() {
             ComparisonState chain = new OngoingComparisonState();
-            final int testSize = testList.size();
-            for (int i = 0; i < testSize; i++) {
-                if (!seen.contains(testList.get(i))) {
-                    testContext.navigateToChild(testListForXpathIndex.get(testList.get(i)));
-                    try {
-                        chain =
-                            chain.andThen(new Comparison(ComparisonType.CHILD_LOOKUP,
-                                                         null, null, null, getXPath(controlContext),
-                                                         testList.get(i),
-                                                         getXPath(testContext),
-                                                         Nodes.getQName(testList.get(i)), getParentXPath(testContext)));
-                    } finally {
-                        testContext.navigateToParent();
-                    }
+            for (int i = seen.nextClearBit(0); i < testChildren.size;
+                 i = seen.nextClearBit(i + 1)) {
+                Node test = testChildren.filtered[i];
+                testContext.navigateToChild(testChildren.xpathIndexes[i]);
+                try {
+                    chain =
+                        chain.andThen(Comparison.ofUnmatchedNode(ComparisonType.CHILD_LOOKUP,
+                                                                 controlContext, null, null,
+                                                                 testContext, test,
+                                                                 Nodes.getQName(test)));
+                } finally {
+                    testContext.navigateToParent();
                 }
             }
             return chain;
@@ -761,9 +1520,267 @@ public ComparisonState apply() {
     }
 
     /**
-     * Separates XML namespace related attributes from "normal" attributes.xb
+     * Performs the same comparisons as {@link #compareNodes} but
+     * only determines whether any of them has one of the reported
+     * outcomes.
+     *
+     * <p>Values are compared directly rather than via {@link
+     * Comparison} objects, so this must only be used with the
+     * built-in {@link DifferenceEvaluators#Default} or {@link
+     * DifferenceEvaluators#Accept} evaluators which never turn a
+     * difference into {@link ComparisonResult#EQUAL}.</p>
+     */
+    private final class DifferenceFinder {
+        private final Set<ComparisonResult> reported;
+        private final boolean useDefaultEvaluator;
+
+        private DifferenceFinder(Set<ComparisonResult> reported) {
+            this.reported = reported;
+            useDefaultEvaluator = getDifferenceEvaluator() == DifferenceEvaluators.Default;
+        }
+
+        private boolean differ(Node control, Node test) {
+            if (control.getNodeType() == Node.ATTRIBUTE_NODE) {
+                return propertiesDiffer(control, null, test, null);
+            }
+            ChildNodes controlChildren = new ChildNodes(control, getNodeFilter());
+            ChildNodes testChildren = new ChildNodes(test, getNodeFilter());
+            if (propertiesDiffer(control, controlChildren, test, testChildren)) {
+                return true;
+            }
+            // descend into the children using an explicit stack so
+            // arbitrarily deep documents don't overflow the Java stack
+            Deque<ChildFrame> stack = new ArrayDeque<ChildFrame>();
+            stack.push(new ChildFrame(controlChildren, testChildren,
+                                      matchChildren(controlChildren, testChildren)));
+            while (!stack.isEmpty()) {
+                ChildFrame frame = stack.peek();
+                if (frame.next < frame.matches.matched) {
+                    MatchedPair pair = frame.nextPair();
+                    if (isReported(ComparisonType.CHILD_NODELIST_SEQUENCE,
+                                   pair.controlIndex, pair.testIndex)) {
+                        return true;
+                    }
+                    controlChildren = new ChildNodes(pair.control, getNodeFilter());
+                    testChildren = new ChildNodes(pair.test, getNodeFilter());
+                    if (propertiesDiffer(pair.control, controlChildren,
+                                         pair.test, testChildren)) {
+                        return true;
+                    }
+                    stack.push(new ChildFrame(controlChildren, testChildren,
+                                              matchChildren(controlChildren, testChildren)));
+                } else {
+                    if (unmatchedChildrenReported(frame)) {
+                        return true;
+                    }
+                    stack.pop();
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Whether any comparison of the two nodes except the ones of
+         * their children has a reported outcome.
+         *
+         * @param controlChildren null for attributes
+         */
+        private boolean propertiesDiffer(Node control, ChildNodes controlChildren,
+                                         Node test, ChildNodes testChildren) {
+            return isReported(ComparisonType.NODE_TYPE, Short.valueOf(control.getNodeType()),
+                              Short.valueOf(test.getNodeType()))
+                || isReported(ComparisonType.NAMESPACE_URI, control.getNamespaceURI(),
+                              test.getNamespaceURI())
+                || isReported(ComparisonType.NAMESPACE_PREFIX, control.getPrefix(),
+                              test.getPrefix())
+                || controlChildren != null
+                && isReported(ComparisonType.CHILD_NODELIST_LENGTH,
+                              controlChildren.size, testChildren.size)
+                || nodeTypeSpecificDifferences(control, test);
+        }
+
+        private boolean nodeTypeSpecificDifferences(Node control, Node test) {
+            switch (control.getNodeType()) {
+            case Node.CDATA_SECTION_NODE:
+            case Node.COMMENT_NODE:
+            case Node.TEXT_NODE:
+                return test instanceof CharacterData
+                    && isReported(ComparisonType.TEXT_VALUE,
+                                  ((CharacterData) control).getData(),
+                                  ((CharacterData) test).getData());
+            case Node.DOCUMENT_NODE:
+                return test instanceof Document
+                    && documentsDiffer((Document) control, (Document) test);
+            case Node.ELEMENT_NODE:
+                return test instanceof Element
+                    && elementsDiffer((Element) control, (Element) test);
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                if (test instanceof ProcessingInstruction) {
+                    ProcessingInstruction c = (ProcessingInstruction) control;
+                    ProcessingInstruction t = (ProcessingInstruction) test;
+                    return isReported(ComparisonType.PROCESSING_INSTRUCTION_TARGET,
+                                      c.getTarget(), t.getTarget())
+                        || isReported(ComparisonType.PROCESSING_INSTRUCTION_DATA,
+                                      c.getData(), t.getData());
+                }
+                return false;
+            case Node.DOCUMENT_TYPE_NODE:
+                if (test instanceof DocumentType) {
+                    DocumentType c = (DocumentType) control;
+                    DocumentType t = (DocumentType) test;
+                    return isReported(ComparisonType.DOCTYPE_NAME, c.getName(), t.getName())
+                        || isReported(ComparisonType.DOCTYPE_PUBLIC_ID,
+                                      c.getPublicId(), t.getPublicId())
+                        || isReported(ComparisonType.DOCTYPE_SYSTEM_ID,
+                                      c.getSystemId(), t.getSystemId());
+                }
+                return false;
+            case Node.ATTRIBUTE_NODE:
+                return test instanceof Attr
+                    && attributeValuesDiffer((Attr) control, (Attr) test);
+            default:
+                return false;
+            }
+        }
+
+        private boolean documentsDiffer(Document control, Document test) {
+            DocumentType controlDt = filterNode(control.getDoctype());
+            DocumentType testDt = filterNode(test.getDoctype());
+            return isReported(ComparisonType.HAS_DOCTYPE_DECLARATION,
+                              Boolean.valueOf(controlDt != null),
+                              Boolean.valueOf(testDt != null))
+                || controlDt != null && testDt != null && differ(controlDt, testDt)
+                || isReported(ComparisonType.XML_VERSION,
+                              control.getXmlVersion(), test.getXmlVersion())
+                || isReported(ComparisonType.XML_STANDALONE,
+                              Boolean.valueOf(control.getXmlStandalone()),
+                              Boolean.valueOf(test.getXmlStandalone()))
+                || isReported(ComparisonType.XML_ENCODING,
+                              control.getXmlEncoding(), test.getXmlEncoding());
+        }
+
+        private boolean elementsDiffer(Element control, Element test) {
+            if (isReported(ComparisonType.ELEMENT_TAG_NAME,
+                           Nodes.getQName(control).getLocalPart(),
+                           Nodes.getQName(test).getLocalPart())) {
+                return true;
+            }
+            Attributes controlAttributes = splitAttributes(control.getAttributes(),
+                                                           getAttributeFilter());
+            Attributes testAttributes = splitAttributes(test.getAttributes(),
+                                                        getAttributeFilter());
+            if (isReported(ComparisonType.ELEMENT_NUM_ATTRIBUTES,
+                           controlAttributes.remainingAttributes.size(),
+                           testAttributes.remainingAttributes.size())
+                || xsiTypesDiffer(controlAttributes.type, testAttributes.type)
+                || isReported(ComparisonType.SCHEMA_LOCATION,
+                              valueOf(controlAttributes.schemaLocation),
+                              valueOf(testAttributes.schemaLocation))
+                || isReported(ComparisonType.NO_NAMESPACE_SCHEMA_LOCATION,
+                              valueOf(controlAttributes.noNamespaceSchemaLocation),
+                              valueOf(testAttributes.noNamespaceSchemaLocation))) {
+                return true;
+            }
+            Set<Attr> foundTestAttributes = new HashSet<Attr>();
+            for (Attr controlAttr : controlAttributes.remainingAttributes) {
+                Attr testAttr = findMatchingAttr(testAttributes.remainingAttributes,
+                                                 controlAttr);
+                if (isReported(ComparisonType.ATTR_NAME_LOOKUP, Nodes.getQName(controlAttr),
+                               testAttr != null ? Nodes.getQName(testAttr) : null)) {
+                    return true;
+                }
+                if (testAttr != null) {
+                    if (differ(controlAttr, testAttr)) {
+                        return true;
+                    }
+                    foundTestAttributes.add(testAttr);
+                }
+            }
+            for (Attr testAttr : testAttributes.remainingAttributes) {
+                if (!foundTestAttributes.contains(testAttr)
+                    && isReported(ComparisonType.ATTR_NAME_LOOKUP, null,
+                                  Nodes.getQName(testAttr))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean xsiTypesDiffer(Attr control, Attr test) {
+            if (control == null && test == null) {
+                return false;
+            }
+            if (isReported(ComparisonType.ATTR_NAME_LOOKUP,
+                           control != null ? Nodes.getQName(control) : null,
+                           test != null ? Nodes.getQName(test) : null)) {
+                return true;
+            }
+            return control != null && test != null
+                && (isReported(ComparisonType.ATTR_VALUE_EXPLICITLY_SPECIFIED,
+                               Boolean.valueOf(control.getSpecified()),
+                               Boolean.valueOf(test.getSpecified()))
+                    || isReported(ComparisonType.ATTR_VALUE,
+                                  valueAsQName(control), valueAsQName(test)));
+        }
+
+        private boolean attributeValuesDiffer(Attr control, Attr test) {
+            return isReported(ComparisonType.ATTR_VALUE_EXPLICITLY_SPECIFIED,
+                              Boolean.valueOf(control.getSpecified()),
+                              Boolean.valueOf(test.getSpecified()))
+                || isReported(ComparisonType.ATTR_VALUE, control.getValue(), test.getValue());
+        }
+
+        private boolean unmatchedChildrenReported(ChildFrame frame) {
+            MatchedChildren m = frame.matches;
+            for (int i = m.controlSeen.nextClearBit(0); i < frame.controlChildren.size;
+                 i = m.controlSeen.nextClearBit(i + 1)) {
+                if (isReported(ComparisonType.CHILD_LOOKUP,
+                               Nodes.getQName(frame.controlChildren.filtered[i]), null)) {
+                    return true;
+                }
+            }
+            for (int i = m.testSeen.nextClearBit(0); i < frame.testChildren.size;
+                 i = m.testSeen.nextClearBit(i + 1)) {
+                if (isReported(ComparisonType.CHILD_LOOKUP,
+                               null, Nodes.getQName(frame.testChildren.filtered[i]))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isReported(ComparisonType type, int controlValue, int testValue) {
+            return controlValue != testValue
+                && isReportedDifference(type, Integer.valueOf(controlValue),
+                                        Integer.valueOf(testValue));
+        }
+
+        private boolean isReported(ComparisonType type, Object controlValue, Object testValue) {
+            boolean equal = controlValue == null
+                ? testValue == null : controlValue.equals(testValue);
+            return !equal && isReportedDifference(type, controlValue, testValue);
+        }
+
+        private boolean isReportedDifference(ComparisonType type, Object controlValue,
+                                             Object testValue) {
+            ComparisonResult outcome = useDefaultEvaluator
+                ? DifferenceEvaluators.evaluateDifference(type, controlValue, testValue)
+                : ComparisonResult.DIFFERENT;
+            return reported.contains(outcome);
+        }
+    }
+
+    private static String valueOf(Attr a) {
+        return a != null ? a.getValue() : null;
+    }
+
+    /**
+     * Separates XML namespace related attributes from "normal" attributes.
+     *
+     * <p>package private so it can be shared with {@link StreamingDifferenceEngine}.</p>
      */
-    private Attributes splitAttributes(final NamedNodeMap map) {
+    static Attributes splitAttributes(final NamedNodeMap map,
+                                      final Predicate<Attr> attributeFilter) {
         Attr sLoc = (Attr) map.getNamedItemNS(XMLConstants
                                               .W3C_XML_SCHEMA_INSTANCE_NS_URI,
                                               "schemaLocation");
@@ -779,14 +1796,14 @@ private Attributes splitAttributes(final NamedNodeMap map) {
             Attr a = (Attr) map.item(i);
             if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(a.getNamespaceURI())
                 && a != sLoc && a != nNsLoc && a != type
-                && getAttributeFilter().test(a)) {
+                && attributeFilter.test(a)) {
                 rest.add(a);
             }
         }
         return new Attributes(sLoc, nNsLoc, type, rest);
     }
 
-    private static QName valueAsQName(Attr attribute) {
+    static QName valueAsQName(Attr attribute) {
         if (attribute == null) {
             return null;
         }
@@ -808,11 +1825,11 @@ private static QName valueAsQName(Attr attribute) {
         return new QName(attribute.lookupNamespaceURI(pieces[0]), pieces[1]);
     }
 
-    private static class Attributes {
-        private final Attr schemaLocation;
-        private final Attr noNamespaceSchemaLocation;
-        private final Attr type;
-        private final List<Attr> remainingAttributes;
+    static class Attributes {
+        final Attr schemaLocation;
+        final Attr noNamespaceSchemaLocation;
+        final Attr type;
+        final List<Attr> remainingAttributes;
         private Attributes(Attr schemaLocation, Attr noNamespaceSchemaLocation,
                            Attr type, List<Attr> remainingAttributes) {
             this.schemaLocation = schemaLocation;
@@ -826,7 +1843,7 @@ private Attributes(Attr schemaLocation, Attr noNamespaceSchemaLocation,
      * Find the attribute with the same namespace and local name as a
      * given attribute in a list of attributes.
      */
-    private static Attr findMatchingAttr(final List<Attr> attrs,
+    static Attr findMatchingAttr(final List<Attr> attrs,
                                          final Attr attrToMatch) {
         final boolean hasNs = attrToMatch.getNamespaceURI() != null;
         final String nsToMatch = attrToMatch.getNamespaceURI();
@@ -846,13 +1863,4 @@ private static Attr findMatchingAttr(final List<Attr> attrs,
         }
         return null;
     }
-
-    private static Map<Node, Integer> index(final Iterable<Node> nodes) {
-        Map<Node, Integer> indices = new HashMap<Node, Integer>();
-        int idx = 0;
-        for (Node n : nodes) {
-            indices.put(n, idx++);
-        }
-        return Collections.unmodifiableMap(indices);
-    }
 }
@@ -13,11 +13,14 @@
 */
 package org.xmlunit.diff;
 
-import java.util.HashSet;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import org.xmlunit.util.Linqy;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -92,67 +95,32 @@ public DefaultNodeMatcher(NodeTypeMatcher ntm, ElementSelector... es) {
     @Override
     public Iterable<Map.Entry<Node, Node>> match(Iterable<Node> controlNodes,
                                                  Iterable<Node> testNodes) {
-        Map<Node, Node> matches = new LinkedHashMap<Node, Node>();
-        List<Node> controlList = Linqy.asList(controlNodes);
-        List<Node> testList = Linqy.asList(testNodes);
-        final int testSize = testList.size();
-        Set<Integer> unmatchedTestIndexes = new HashSet<Integer>();
-        for (int i = 0; i < testSize; i++) {
-            unmatchedTestIndexes.add(Integer.valueOf(i));
-        }
+        List<Node> controlList = Linqy.randomAccessList(controlNodes);
+        List<Node> testList = Linqy.randomAccessList(testNodes);
         final int controlSize = controlList.size();
-        Set<Integer> unmatchedControlIndexes = new HashSet<Integer>();
-        for (int i = 0; i < controlSize; i++) {
-            unmatchedControlIndexes.add(Integer.valueOf(i));
-        }
+        List<Map.Entry<Node, Node>> matches =
+            new ArrayList<Map.Entry<Node, Node>>(Math.min(controlSize, testList.size()));
+        BitSet matchedControlIndexes = new BitSet(controlSize);
+        TestNodeIndex testIndex = new TestNodeIndex(testList);
 
         for (ElementSelector e : elementSelectors) {
+            testIndex.useSelector(e);
             Match lastMatch = new Match(null, -1);
             for (int i = 0; i < controlSize; i++) {
-                if (!unmatchedControlIndexes.contains(Integer.valueOf(i))) {
+                if (matchedControlIndexes.get(i)) {
                     continue;
                 }
                 Node control = controlList.get(i);
-                Match testMatch = findMatchingNode(control, testList,
-                    lastMatch.index, unmatchedTestIndexes, e);
+                Match testMatch = testIndex.findMatchingNode(control, lastMatch.index, e);
                 if (testMatch != null) {
-                    unmatchedControlIndexes.remove(Integer.valueOf(i));
-                    unmatchedTestIndexes.remove(testMatch.index);
-                    matches.put(control, testMatch.node);
+                    matchedControlIndexes.set(i);
+                    testIndex.markMatched(testMatch.index);
+                    matches.add(new IndexedMatch(control, i, testMatch.node,
+                                                 testMatch.index));
                 }
             }
         }
-        return matches.entrySet();
-    }
-
-    private Match findMatchingNode(final Node searchFor,
-                                   final List<Node> searchIn,
-                                   final int indexOfLastMatch,
-                                   final Set<Integer> availableIndexes,
-                                   final ElementSelector e) {
-        final int searchSize = searchIn.size();
-        Match m = searchIn(searchFor, searchIn,
-                           availableIndexes,
-                           indexOfLastMatch + 1, searchSize, e);
-        return m != null ? m : searchIn(searchFor, searchIn,
-                                        availableIndexes,
-                                        0, indexOfLastMatch, e);
-    }
-
-    private Match searchIn(final Node searchFor,
-                           final List<Node> searchIn,
-                           final Set<Integer> availableIndexes,
-                           final int fromInclusive, final int toExclusive,
-                           final ElementSelector e) {
-        for (int i = fromInclusive; i < toExclusive; i++) {
-            if (!availableIndexes.contains(Integer.valueOf(i))) {
-                continue;
-            }
-            if (nodesMatch(searchFor, searchIn.get(i), e)) {
-                return new Match(searchIn.get(i), i);
-            }
-        }
-        return null;
+        return matches;
     }
 
     private boolean nodesMatch(final Node n1, final Node n2,
@@ -164,6 +132,33 @@ private boolean nodesMatch(final Node n1, final Node n2,
                                              n2.getNodeType());
     }
 
+    /**
+     * A matched pair of nodes that knows the positions of both nodes
+     * inside the iterables passed to {@link #match}.
+     *
+     * <p>package private so {@link DOMDifferenceEngine} doesn't have
+     * to look up the nodes again.</p>
+     */
+    static final class IndexedMatch extends AbstractMap.SimpleImmutableEntry<Node, Node> {
+        private static final long serialVersionUID = 1L;
+        private final int controlIndex;
+        private final int testIndex;
+
+        IndexedMatch(Node control, int controlIndex, Node test, int testIndex) {
+            super(control, test);
+            this.controlIndex = controlIndex;
+            this.testIndex = testIndex;
+        }
+
+        int getControlIndex() {
+            return controlIndex;
+        }
+
+        int getTestIndex() {
+            return testIndex;
+        }
+    }
+
     private static class Match {
         private final Node node;
         private final int index;
@@ -173,6 +168,169 @@ private Match(Node match, int index) {
         }
     }
 
+    /**
+     * Buckets the test nodes by node type - and elements by the key
+     * of the current {@link ElementSelector} if it is a {@link
+     * KeyedElementSelector} - so only test nodes that may match a
+     * given control node need to be looked at.
+     */
+    private final class TestNodeIndex {
+        private final List<Node> testList;
+        private final BitSet matchedTestIndexes;
+        private final Map<Short, Bucket> byType = new LinkedHashMap<Short, Bucket>();
+        private final Map<Short, List<Bucket>> compatibleBuckets =
+            new HashMap<Short, List<Bucket>>();
+        private Map<Object, Bucket> elementsByKey;
+        private KeyedElementSelector keyedSelector;
+
+        private TestNodeIndex(List<Node> testList) {
+            this.testList = testList;
+            matchedTestIndexes = new BitSet(testList.size());
+            final int testSize = testList.size();
+            for (int i = 0; i < testSize; i++) {
+                Short type = Short.valueOf(testList.get(i).getNodeType());
+                Bucket b = byType.get(type);
+                if (b == null) {
+                    b = new Bucket(type.shortValue() == Node.ELEMENT_NODE);
+                    byType.put(type, b);
+                }
+                b.add(i);
+            }
+        }
+
+        private void useSelector(ElementSelector e) {
+            elementsByKey = null;
+            keyedSelector = null;
+            Bucket elements = byType.get(Short.valueOf(Node.ELEMENT_NODE));
+            if (e instanceof KeyedElementSelector && elements != null) {
+                keyedSelector = (KeyedElementSelector) e;
+                elementsByKey = new HashMap<Object, Bucket>();
+                for (int i = 0; i < elements.size; i++) {
+                    int index = elements.indexes[i];
+                    if (!matchedTestIndexes.get(index)) {
+                        Object key = keyedSelector.getKey((Element) testList.get(index));
+                        Bucket b = elementsByKey.get(key);
+                        if (b == null) {
+                            b = new Bucket(true);
+                            elementsByKey.put(key, b);
+                        }
+                        b.add(index);
+                    }
+                }
+            }
+        }
+
+        private void markMatched(int index) {
+            matchedTestIndexes.set(index);
+        }
+
+        /**
+         * Finds the first available test node that matches searchFor
+         * starting right after the index of the last match and
+         * wrapping around at the end of the list of test nodes.
+         */
+        private Match findMatchingNode(final Node searchFor, final int indexOfLastMatch,
+                                       final ElementSelector e) {
+            List<Bucket> buckets = candidates(searchFor);
+            int found = -1;
+            for (Bucket b : buckets) {
+                found = min(found, b.search(searchFor, indexOfLastMatch + 1,
+                                            found < 0 ? Integer.MAX_VALUE : found, e));
+            }
+            if (found < 0) {
+                for (Bucket b : buckets) {
+                    found = min(found, b.search(searchFor, 0,
+                                                found < 0 ? indexOfLastMatch : found, e));
+                }
+            }
+            return found < 0 ? null : new Match(testList.get(found), found);
+        }
+
+        private List<Bucket> candidates(Node searchFor) {
+            Short type = Short.valueOf(searchFor.getNodeType());
+            List<Bucket> buckets = compatibleBuckets.get(type);
+            if (buckets == null) {
+                buckets = new ArrayList<Bucket>();
+                for (Map.Entry<Short, Bucket> entry : byType.entrySet()) {
+                    short testType = entry.getKey().shortValue();
+                    if (type.shortValue() == Node.ELEMENT_NODE && testType == Node.ELEMENT_NODE
+                        || nodeTypeMatcher.canBeCompared(type.shortValue(), testType)) {
+                        buckets.add(entry.getValue());
+                    }
+                }
+                compatibleBuckets.put(type, buckets);
+            }
+            if (elementsByKey == null || type.shortValue() != Node.ELEMENT_NODE) {
+                return buckets;
+            }
+            List<Bucket> keyed = new ArrayList<Bucket>(buckets.size());
+            Object key = keyedSelector.getKey((Element) searchFor);
+            for (Bucket b : buckets) {
+                if (b.elements) {
+                    Bucket sameKey = elementsByKey.get(key);
+                    if (sameKey != null) {
+                        keyed.add(sameKey);
+                    }
+                } else {
+                    keyed.add(b);
+                }
+            }
+            return keyed;
+        }
+
+        /**
+         * Sorted indexes of test nodes that share node type or key.
+         */
+        private final class Bucket {
+            private final boolean elements;
+            private int[] indexes = new int[4];
+            private int size;
+            // all indexes before this position have been matched
+            private int firstAvailable;
+
+            private Bucket(boolean elements) {
+                this.elements = elements;
+            }
+
+            private void add(int index) {
+                if (size == indexes.length) {
+                    indexes = Arrays.copyOf(indexes, 2 * size);
+                }
+                indexes[size++] = index;
+            }
+
+            private int search(Node searchFor, int fromInclusive, int toExclusive,
+                               ElementSelector e) {
+                while (firstAvailable < size
+                       && matchedTestIndexes.get(indexes[firstAvailable])) {
+                    firstAvailable++;
+                }
+                int pos = Arrays.binarySearch(indexes, 0, size, fromInclusive);
+                if (pos < 0) {
+                    pos = -pos - 1;
+                }
+                for (int i = Math.max(pos, firstAvailable); i < size; i++) {
+                    int index = indexes[i];
+                    if (index >= toExclusive) {
+                        break;
+                    }
+                    if (!matchedTestIndexes.get(index)
+                        && nodesMatch(searchFor, testList.get(index), e)) {
+                        return index;
+                    }
+                }
+                return -1;
+            }
+        }
+    }
+
+    private static int min(int found, int candidate) {
+        if (candidate < 0) {
+            return found;
+        }
+        return found < 0 ? candidate : Math.min(found, candidate);
+    }
+
     /**
      * Determines whether two Nodes are eligible for comparison based
      * on their node type.
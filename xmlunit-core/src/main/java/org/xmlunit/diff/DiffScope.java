@@ -0,0 +1,102 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds state that is only valid while a difference engine compares
+ * two documents, like results memoized by {@link ElementSelector}s.
+ *
+ * <p>The scope is bound to the thread running the comparison - and
+ * the threads of a {@link java.util.concurrent.ForkJoinPool} working
+ * on parts of the same comparison - and is dropped once the
+ * comparison is finished.</p>
+ *
+ * <p>package private to support {@link DOMDifferenceEngine}, {@link
+ * ElementSelectors#byXPath} and {@link FingerprintNodeMatcher}.</p>
+ */
+final class DiffScope {
+    private static final ThreadLocal<DiffScope> CURRENT = new ThreadLocal<DiffScope>();
+
+    private final ConcurrentMap<Object, Object> values = new ConcurrentHashMap<Object, Object>();
+
+    private DiffScope() { }
+
+    /**
+     * The scope of the comparison running on the current thread.
+     * @return the scope or null if no comparison is running
+     */
+    static DiffScope current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes sure a scope is active on the current thread, starting a
+     * new one unless a comparison is running already.
+     * @return the scope to pass to {@link #restore}
+     */
+    static DiffScope enter() {
+        DiffScope previous = CURRENT.get();
+        if (previous == null) {
+            CURRENT.set(new DiffScope());
+        }
+        return previous;
+    }
+
+    /**
+     * Activates the scope of a comparison started on a different
+     * thread.
+     * @param scope the scope to activate, may be null
+     * @return the scope to pass to {@link #restore}
+     */
+    static DiffScope enter(DiffScope scope) {
+        DiffScope previous = CURRENT.get();
+        restore(scope);
+        return previous;
+    }
+
+    /**
+     * Reactivates the scope that has been active before {@link
+     * #enter} has been called.
+     * @param previous the value returned by {@link #enter}
+     */
+    static void restore(DiffScope previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Returns the value stored for the given key.
+     * @return the value or null if none has been stored
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(Object key) {
+        return (T) values.get(key);
+    }
+
+    /**
+     * Returns the value stored for the given key, storing the given
+     * value if there hasn't been one.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T getOrStore(Object key, T value) {
+        Object existing = values.putIfAbsent(key, value);
+        return existing != null ? (T) existing : value;
+    }
+}
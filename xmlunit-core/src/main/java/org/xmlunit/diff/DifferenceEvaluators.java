@@ -52,36 +52,48 @@ public ComparisonResult evaluate(Comparison comparison,
             public ComparisonResult evaluate(Comparison comparison,
                                              ComparisonResult outcome) {
                 if (outcome == ComparisonResult.DIFFERENT) {
-                    switch (comparison.getType()) {
-                    case NODE_TYPE:
-                        Short control = (Short) comparison
-                            .getControlDetails().getValue();
-                        Short test = (Short) comparison
-                            .getTestDetails().getValue();
-                        if ((control.equals(TEXT) && test.equals(CDATA))
-                            ||
-                            (control.equals(CDATA) && test.equals(TEXT))) {
-                            outcome = ComparisonResult.SIMILAR;
-                        }
-                        break;
-                    case HAS_DOCTYPE_DECLARATION:
-                    case DOCTYPE_SYSTEM_ID:
-                    case SCHEMA_LOCATION:
-                    case NO_NAMESPACE_SCHEMA_LOCATION:
-                    case NAMESPACE_PREFIX:
-                    case ATTR_VALUE_EXPLICITLY_SPECIFIED:
-                    case CHILD_NODELIST_SEQUENCE:
-                    case XML_ENCODING:
-                        outcome = ComparisonResult.SIMILAR;
-                        break;
-                    default:
-                        break;
-                    }
+                    return evaluateDifference(comparison.getType(),
+                                              comparison.getControlDetails().getValue(),
+                                              comparison.getTestDetails().getValue());
                 }
                 return outcome;
             }
         };
 
+    /**
+     * The outcome {@link #Default} assigns to a comparison with
+     * outcome {@link ComparisonResult#DIFFERENT}.
+     *
+     * <p>package private so {@link DOMDifferenceEngine} can evaluate
+     * comparisons without creating {@link Comparison} objects.</p>
+     */
+    static ComparisonResult evaluateDifference(ComparisonType type, Object controlValue,
+                                               Object testValue) {
+        switch (type) {
+        case NODE_TYPE:
+            Short control = (Short) controlValue;
+            Short test = (Short) testValue;
+            if ((control.equals(TEXT) && test.equals(CDATA))
+                ||
+                (control.equals(CDATA) && test.equals(TEXT))) {
+                return ComparisonResult.SIMILAR;
+            }
+            break;
+        case HAS_DOCTYPE_DECLARATION:
+        case DOCTYPE_SYSTEM_ID:
+        case SCHEMA_LOCATION:
+        case NO_NAMESPACE_SCHEMA_LOCATION:
+        case NAMESPACE_PREFIX:
+        case ATTR_VALUE_EXPLICITLY_SPECIFIED:
+        case CHILD_NODELIST_SEQUENCE:
+        case XML_ENCODING:
+            return ComparisonResult.SIMILAR;
+        default:
+            break;
+        }
+        return ComparisonResult.DIFFERENT;
+    }
+
     private DifferenceEvaluators() {}
 
     /**
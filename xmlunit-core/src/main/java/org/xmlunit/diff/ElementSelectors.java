@@ -16,10 +16,14 @@
 import static org.xmlunit.util.Linqy.all;
 import static org.xmlunit.util.Linqy.any;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import javax.xml.namespace.QName;
 import org.xmlunit.util.IsNullPredicate;
@@ -45,19 +49,23 @@ public final class ElementSelectors {
      * <p>Generally this means elements will be compared in document
      * order.</p>
      */
-    public static final ElementSelector Default = new ElementSelector() {
+    public static final ElementSelector Default = new KeyedElementSelector() {
             @Override
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
                 return true;
             }
+            @Override
+            public Object getKey(Element element) {
+                return Boolean.TRUE;
+            }
         };
 
     /**
      * Elements with the same local name (and namespace URI - if any)
      * can be compared.
      */
-    public static final ElementSelector byName = new ElementSelector() {
+    public static final ElementSelector byName = new KeyedElementSelector() {
             @Override
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
@@ -66,13 +74,17 @@ public boolean canBeCompared(Element controlElement,
                     && bothNullOrEqual(Nodes.getQName(controlElement),
                                        Nodes.getQName(testElement));
             }
+            @Override
+            public Object getKey(Element element) {
+                return Nodes.getQName(element);
+            }
         };
 
     /**
      * Elements with the same local name (and namespace URI - if any)
      * and nested text (if any) can be compared.
      */
-    public static final ElementSelector byNameAndText = new ElementSelector() {
+    public static final ElementSelector byNameAndText = new KeyedElementSelector() {
             @Override
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
@@ -80,6 +92,11 @@ public boolean canBeCompared(Element controlElement,
                     && bothNullOrEqual(Nodes.getMergedNestedText(controlElement),
                                        Nodes.getMergedNestedText(testElement));
             }
+            @Override
+            public Object getKey(Element element) {
+                return Arrays.asList(Nodes.getQName(element),
+                                     Nodes.getMergedNestedText(element));
+            }
         };
 
     /**
@@ -109,7 +126,7 @@ public boolean test(Attr a) {
      * @return an ElementSelector
      */
     public static final ElementSelector byNameAndAllAttributes(final Predicate<Attr> attributeFilter) {
-        return new ElementSelector() {
+        return new ByNameSelector() {
             @Override
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
@@ -194,7 +211,7 @@ public static ElementSelector byNameAndAttributes(String... attribs) {
             throw new IllegalArgumentException(ATTRIBUTES_MUST_NOT_CONTAIN_NULL_VALUES);
         }
         final HashSet<String> as = new HashSet<String>(qs);
-        return new ElementSelector() {
+        return new ByNameSelector() {
             @Override
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
@@ -239,7 +256,7 @@ public static ElementSelector byNameAndAttributes(final QName... attribs) {
         if (any(qs, new IsNullPredicate())) {
             throw new IllegalArgumentException(ATTRIBUTES_MUST_NOT_CONTAIN_NULL_VALUES);
         }
-        return new ElementSelector() {
+        return new KeyedElementSelector() {
             @Override
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
@@ -250,9 +267,139 @@ public boolean canBeCompared(Element controlElement,
                                         Nodes.getAttributes(testElement),
                                         qs);
             }
+            @Override
+            public Object getKey(Element element) {
+                Map<QName, String> attributes = Nodes.getAttributes(element);
+                List<Object> key = new ArrayList<Object>(qs.size() + 1);
+                key.add(Nodes.getQName(element));
+                for (QName q : qs) {
+                    key.add(attributes.get(q));
+                }
+                return key;
+            }
+        };
+    }
+
+    /**
+     * Elements with the same local name (and namespace URI - if any)
+     * and the same value for the given attribute can be compared.
+     *
+     * <p>Elements that don't have the attribute at all can be
+     * compared to each other. Unlike {@link
+     * #byNameAndAttributes(QName...)} the attribute is read directly
+     * and {@link DefaultNodeMatcher} looks up matching elements by
+     * name and attribute value in a hash table, so matching large
+     * lists of records identified by a key attribute takes linear
+     * time.</p>
+     *
+     * @param attribute the qualified name of the key attribute
+     * @return the ElementSelector
+     * @since XMLUnit 2.11.0
+     */
+    public static ElementSelector byKey(final QName attribute) {
+        if (attribute == null) {
+            throw new IllegalArgumentException("attribute must not be null");
+        }
+        return byKey(new Mapper<Element, String>() {
+                @Override
+                public String apply(Element e) {
+                    String ns = attribute.getNamespaceURI();
+                    boolean noNamespace = ns == null || ns.length() == 0;
+                    Attr a = e.getAttributeNodeNS(noNamespace ? null : ns,
+                                                  attribute.getLocalPart());
+                    if (a == null && noNamespace) {
+                        // element may have been created by a non-namespace aware parser
+                        a = e.getAttributeNode(attribute.getLocalPart());
+                        if (a != null && a.getNamespaceURI() != null) {
+                            a = null;
+                        }
+                    }
+                    return a == null ? null : a.getValue();
+                }
+            });
+    }
+
+    /**
+     * Elements with the same local name (and namespace URI - if any)
+     * and the same key can be compared.
+     *
+     * <p>{@link DefaultNodeMatcher} looks up matching elements by name
+     * and key in a hash table, the key of each element is only
+     * computed once per list of siblings.</p>
+     *
+     * @param keyExtractor extracts the key from an element. The keys
+     * returned must implement {@code equals} and {@code hashCode}
+     * consistently and may be null.
+     * @return the ElementSelector
+     * @since XMLUnit 2.11.0
+     */
+    public static ElementSelector byKey(final Mapper<? super Element, ?> keyExtractor) {
+        if (keyExtractor == null) {
+            throw new IllegalArgumentException("key extractor must not be null");
+        }
+        return new KeyedElementSelector() {
+            @Override
+            public boolean canBeCompared(Element controlElement,
+                                         Element testElement) {
+                return byName.canBeCompared(controlElement, testElement)
+                    && bothNullOrEqual(keyExtractor.apply(controlElement),
+                                       keyExtractor.apply(testElement));
+            }
+            @Override
+            public Object getKey(Element element) {
+                return Arrays.asList(Nodes.getQName(element), keyExtractor.apply(element));
+            }
         };
     }
 
+    /**
+     * Elements with the same local name (and namespace URI - if any)
+     * and the same string value of the given XPath expression can be
+     * compared.
+     *
+     * @param xpath XPath expression evaluated in the context of the
+     * elements to compare, like {@code "@id"} or {@code "./key"}.
+     * @return the ElementSelector
+     * @see #byKey(Mapper)
+     * @since XMLUnit 2.11.0
+     */
+    public static ElementSelector byKeyXPath(String xpath) {
+        return byKeyXPath(xpath, null, null);
+    }
+
+    /**
+     * Elements with the same local name (and namespace URI - if any)
+     * and the same string value of the given XPath expression can be
+     * compared.
+     *
+     * @param xpath XPath expression evaluated in the context of the
+     * elements to compare, like {@code "@id"} or {@code "./key"}.
+     * @param xpathEngine XPathEngine to use. If {@code null} a {@link
+     * JAXPXPathEngine} with default configuration will be used.
+     * @param prefix2Uri maps from prefix to namespace URI.
+     * @return the ElementSelector
+     * @see #byKey(Mapper)
+     * @since XMLUnit 2.11.0
+     */
+    public static ElementSelector byKeyXPath(final String xpath,
+                                             XPathEngine xpathEngine,
+                                             Map<String, String> prefix2Uri) {
+        if (xpath == null) {
+            throw new IllegalArgumentException("xpath must not be null");
+        }
+        final XPathEngine engine =
+            xpathEngine != null ? xpathEngine : new JAXPXPathEngine();
+        if (prefix2Uri != null) {
+            engine.setNamespaceContext(prefix2Uri);
+        }
+        return byKey(new Mapper<Element, String>() {
+                @Override
+                public String apply(Element e) {
+                    return engine.evaluate(xpath, e);
+                }
+            });
+    }
+
     /**
      * Negates another ElementSelector.
      *
@@ -489,6 +636,13 @@ public static ElementSelector byXPath(final String xpath,
      * match if a DefaultNodeMatcher applied to the selected children
      * finds matching pairs for all children.</p>
      *
+     * <p>While a difference engine compares two documents the
+     * children selected for each element are remembered, so the
+     * expression is only evaluated once per element rather than once
+     * per pair of elements to chose from. When using the default
+     * {@link JAXPXPathEngine} the expression is compiled only once as
+     * well.</p>
+     *
      * @param xpath XPath expression applied in the context of the
      * elements to chose from that selects the children to compare.
      * @param xpathEngine XPathEngine to use. If {@code null} a {@link
@@ -513,12 +667,38 @@ public static ElementSelector byXPath(final String xpath,
             @Override
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
-                Iterable<Node> controlChildren = engine.selectNodes(xpath, controlElement);
-                int expected = Linqy.count(controlChildren);
+                Map<Element, List<Node>> selections = getSelections();
+                List<Node> controlChildren = select(controlElement, selections);
                 int matched =
                     Linqy.count(nm.match(controlChildren,
-                                         engine.selectNodes(xpath, testElement)));
-                return expected == matched;
+                                         select(testElement, selections)));
+                return controlChildren.size() == matched;
+            }
+
+            /**
+             * Children selected so far during the comparison running
+             * on the current thread, null if no comparison is running.
+             */
+            private Map<Element, List<Node>> getSelections() {
+                DiffScope scope = DiffScope.current();
+                if (scope == null) {
+                    return null;
+                }
+                Map<Element, List<Node>> selections = scope.get(this);
+                return selections != null ? selections
+                    : scope.getOrStore(this, Collections.synchronizedMap(
+                        new IdentityHashMap<Element, List<Node>>()));
+            }
+
+            private List<Node> select(Element e, Map<Element, List<Node>> selections) {
+                List<Node> selected = selections == null ? null : selections.get(e);
+                if (selected == null) {
+                    selected = Linqy.asList(engine.selectNodes(xpath, e));
+                    if (selections != null) {
+                        selections.put(e, selected);
+                    }
+                }
+                return selected;
             }
         };
     }
@@ -630,6 +810,17 @@ public boolean test(Element e) {
         };
     }
 
+    /**
+     * Base class for selectors that only ever match elements of the
+     * same name and thus can use the name as key.
+     */
+    private abstract static class ByNameSelector implements KeyedElementSelector {
+        @Override
+        public Object getKey(Element element) {
+            return Nodes.getQName(element);
+        }
+    }
+
     private static class CanBeComparedPredicate implements Predicate<ElementSelector> {
         private final Element e1;
         private final Element e2;
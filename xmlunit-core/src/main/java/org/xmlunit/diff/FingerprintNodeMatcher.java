@@ -0,0 +1,286 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.xmlunit.util.Linqy;
+import org.xmlunit.util.Predicate;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Node;
+
+/**
+ * {@link NodeMatcher} for unordered lists of siblings that first
+ * pairs up control and test nodes with identical subtrees and only
+ * passes the remaining nodes on to a different {@link NodeMatcher}.
+ *
+ * <p>A fingerprint is computed for the subtree of each node and
+ * nodes are paired by looking up the fingerprints in a hash table.
+ * Nodes with equal fingerprints are verified to really be identical
+ * before they are paired, in document order if there are several
+ * identical nodes. This takes time linear in the size of the
+ * subtrees, so large bags of elements with only a few changed
+ * members can be matched a lot faster than by a {@link
+ * DefaultNodeMatcher} using {@link ElementSelectors#byNameAndText} or
+ * similar {@link ElementSelector}s on its own.</p>
+ *
+ * <p>Identical subtrees are paired regardless of the {@link
+ * ElementSelector}s used by the other matcher, so this should only be
+ * used with {@link ElementSelector}s that would accept any pair of
+ * identical elements - this is true for all {@link ElementSelector}s
+ * provided by {@link ElementSelectors} except for those using XPath
+ * expressions that look outside of the element. Identical means
+ * identical in the document, node and attribute filters of the
+ * difference engine are not applied.</p>
+ *
+ * <p><b>Example Usage:</b></p>
+ *
+ * <pre>
+ * Diff myDiff = DiffBuilder.compare(controlXml).withTest(testXml)
+ *     .withNodeMatcher(new FingerprintNodeMatcher(ElementSelectors.byNameAndText))
+ *     .checkForSimilar()
+ *     .build();
+ * </pre>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public class FingerprintNodeMatcher implements NodeMatcher {
+    private static final Predicate<Node> ALL_NODES = new Predicate<Node>() {
+            @Override
+            public boolean test(Node n) {
+                return true;
+            }
+        };
+    private static final Predicate<Attr> ALL_ATTRIBUTES = new Predicate<Attr>() {
+            @Override
+            public boolean test(Attr a) {
+                return true;
+            }
+        };
+    private static final Comparator<Map.Entry<Node, Node>> BY_CONTROL_INDEX =
+        new Comparator<Map.Entry<Node, Node>>() {
+            @Override
+            public int compare(Map.Entry<Node, Node> m1, Map.Entry<Node, Node> m2) {
+                int i1 = ((DefaultNodeMatcher.IndexedMatch) m1).getControlIndex();
+                int i2 = ((DefaultNodeMatcher.IndexedMatch) m2).getControlIndex();
+                return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+            }
+        };
+
+    private final NodeMatcher leftoverMatcher;
+
+    /**
+     * Creates a matcher that uses a {@link DefaultNodeMatcher} with
+     * {@link ElementSelectors#Default} for all nodes without an
+     * identical partner.
+     */
+    public FingerprintNodeMatcher() {
+        this(new DefaultNodeMatcher());
+    }
+
+    /**
+     * Creates a matcher that uses a {@link DefaultNodeMatcher} with
+     * the given {@link ElementSelector}s for all nodes without an
+     * identical partner.
+     * @param es the ElementSelectors to use
+     */
+    public FingerprintNodeMatcher(ElementSelector... es) {
+        this(new DefaultNodeMatcher(es));
+    }
+
+    /**
+     * Creates a matcher that uses the given {@link NodeMatcher} for
+     * all nodes without an identical partner.
+     * @param leftoverMatcher the NodeMatcher to use
+     */
+    public FingerprintNodeMatcher(NodeMatcher leftoverMatcher) {
+        if (leftoverMatcher == null) {
+            throw new IllegalArgumentException("leftover matcher must not be null");
+        }
+        this.leftoverMatcher = leftoverMatcher;
+    }
+
+    @Override
+    public Iterable<Map.Entry<Node, Node>> match(Iterable<Node> controlNodes,
+                                                 Iterable<Node> testNodes) {
+        List<Node> controlList = Linqy.randomAccessList(controlNodes);
+        List<Node> testList = Linqy.randomAccessList(testNodes);
+        SubtreeHasher hasher = hasher();
+
+        final int testSize = testList.size();
+        Map<Long, Deque<Integer>> testIndexesByHash = new HashMap<Long, Deque<Integer>>();
+        for (int i = 0; i < testSize; i++) {
+            Long h = Long.valueOf(hasher.hash(testList.get(i)));
+            Deque<Integer> indexes = testIndexesByHash.get(h);
+            if (indexes == null) {
+                indexes = new ArrayDeque<Integer>();
+                testIndexesByHash.put(h, indexes);
+            }
+            indexes.add(Integer.valueOf(i));
+        }
+
+        final int controlSize = controlList.size();
+        List<Map.Entry<Node, Node>> matches =
+            new ArrayList<Map.Entry<Node, Node>>(Math.min(controlSize, testSize));
+        boolean[] matchedTest = new boolean[testSize];
+        List<Node> leftoverControl = new ArrayList<Node>();
+        List<Integer> leftoverControlIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < controlSize; i++) {
+            Node control = controlList.get(i);
+            int testIndex = findIdentical(hasher, control, testList,
+                testIndexesByHash.get(Long.valueOf(hasher.hash(control))));
+            if (testIndex >= 0) {
+                matchedTest[testIndex] = true;
+                matches.add(new DefaultNodeMatcher.IndexedMatch(control, i,
+                                                                testList.get(testIndex),
+                                                                testIndex));
+            } else {
+                leftoverControl.add(control);
+                leftoverControlIndexes.add(Integer.valueOf(i));
+            }
+        }
+
+        if (!leftoverControl.isEmpty() && matches.size() < testSize) {
+            List<Node> leftoverTest = new ArrayList<Node>();
+            List<Integer> leftoverTestIndexes = new ArrayList<Integer>();
+            for (int i = 0; i < testSize; i++) {
+                if (!matchedTest[i]) {
+                    leftoverTest.add(testList.get(i));
+                    leftoverTestIndexes.add(Integer.valueOf(i));
+                }
+            }
+            addLeftoverMatches(matches, leftoverControl, leftoverControlIndexes,
+                               leftoverTest, leftoverTestIndexes);
+            Collections.sort(matches, BY_CONTROL_INDEX);
+        }
+        return matches;
+    }
+
+    /**
+     * The hasher to use for the comparison running on the current
+     * thread.
+     *
+     * <p>The hasher remembers the hashes of all nodes it has seen,
+     * so sharing it between the invocations of {@link #match} made
+     * while comparing two documents computes the hash of each node
+     * only once rather than once per ancestor. It is not
+     * thread-safe, threads of a parallel comparison use hashers of
+     * their own.</p>
+     *
+     * <p>package private to support tests.</p>
+     */
+    SubtreeHasher hasher() {
+        DiffScope scope = DiffScope.current();
+        if (scope == null) {
+            return new SubtreeHasher(ALL_NODES, ALL_ATTRIBUTES);
+        }
+        HasherKey key = new HasherKey(this, Thread.currentThread());
+        SubtreeHasher hasher = scope.get(key);
+        return hasher != null ? hasher
+            : scope.getOrStore(key, new SubtreeHasher(ALL_NODES, ALL_ATTRIBUTES));
+    }
+
+    /**
+     * Finds and removes the index of the first test node in the
+     * bucket that is identical to the control node.
+     */
+    private static int findIdentical(SubtreeHasher hasher, Node control, List<Node> testList,
+                                     Deque<Integer> candidates) {
+        if (candidates == null) {
+            return -1;
+        }
+        for (Iterator<Integer> it = candidates.iterator(); it.hasNext(); ) {
+            int index = it.next().intValue();
+            if (hasher.identical(control, testList.get(index))) {
+                it.remove();
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void addLeftoverMatches(List<Map.Entry<Node, Node>> matches,
+                                    List<Node> leftoverControl,
+                                    List<Integer> leftoverControlIndexes,
+                                    List<Node> leftoverTest,
+                                    List<Integer> leftoverTestIndexes) {
+        Map<Node, Integer> controlLookup = null;
+        Map<Node, Integer> testLookup = null;
+        for (Map.Entry<Node, Node> pair
+                 : leftoverMatcher.match(leftoverControl, leftoverTest)) {
+            int controlIndex;
+            int testIndex;
+            if (pair instanceof DefaultNodeMatcher.IndexedMatch) {
+                DefaultNodeMatcher.IndexedMatch im = (DefaultNodeMatcher.IndexedMatch) pair;
+                controlIndex = im.getControlIndex();
+                testIndex = im.getTestIndex();
+            } else {
+                if (controlLookup == null) {
+                    controlLookup = indexLookup(leftoverControl);
+                    testLookup = indexLookup(leftoverTest);
+                }
+                controlIndex = controlLookup.get(pair.getKey()).intValue();
+                testIndex = testLookup.get(pair.getValue()).intValue();
+            }
+            matches.add(new DefaultNodeMatcher.IndexedMatch(pair.getKey(),
+                                                            leftoverControlIndexes.get(controlIndex),
+                                                            pair.getValue(),
+                                                            leftoverTestIndexes.get(testIndex)));
+        }
+    }
+
+    private static Map<Node, Integer> indexLookup(List<Node> nodes) {
+        Map<Node, Integer> lookup = new IdentityHashMap<Node, Integer>();
+        final int size = nodes.size();
+        for (int i = 0; i < size; i++) {
+            lookup.put(nodes.get(i), Integer.valueOf(i));
+        }
+        return lookup;
+    }
+
+    /**
+     * Key of a hasher inside of the {@link DiffScope}.
+     */
+    private static final class HasherKey {
+        private final FingerprintNodeMatcher matcher;
+        private final Thread thread;
+
+        private HasherKey(FingerprintNodeMatcher matcher, Thread thread) {
+            this.matcher = matcher;
+            this.thread = thread;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof HasherKey)) {
+                return false;
+            }
+            HasherKey other = (HasherKey) o;
+            return matcher == other.matcher && thread == other.thread;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(matcher) + System.identityHashCode(thread);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import org.w3c.dom.Element;
+
+/**
+ * An {@link ElementSelector} that can provide a key for each element
+ * so {@link DefaultNodeMatcher} can look up candidate test elements
+ * in a hash table rather than asking the selector about every single
+ * pair of elements.
+ *
+ * <p>Implementations must guarantee that {@link #getKey} returns
+ * equal keys for a pair of elements whenever {@link #canBeCompared}
+ * returns true for them. Equal keys don't need to imply the elements
+ * can be compared, {@link DefaultNodeMatcher} still invokes {@link
+ * #canBeCompared} for elements with equal keys.</p>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public interface KeyedElementSelector extends ElementSelector {
+    /**
+     * Provides the key of an element.
+     * @param element the element, never null
+     * @return the element's key, must implement {@code equals} and
+     * {@code hashCode} consistently. May be null.
+     */
+    Object getKey(Element element);
+}
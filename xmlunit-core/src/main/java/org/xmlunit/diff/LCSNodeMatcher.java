@@ -0,0 +1,272 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.xmlunit.util.Linqy;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * {@link NodeMatcher} that matches control and test nodes in order
+ * using a longest common subsequence.
+ *
+ * <p>Two nodes are considered equal if they are both elements and
+ * the {@link ElementSelector} says they can be compared or if at
+ * least one of them is not an element and the {@link
+ * DefaultNodeMatcher.NodeTypeMatcher} says they can be compared.
+ * The matcher finds the maximum number of pairs of equal nodes that
+ * can be matched without any two pairs crossing each other, using
+ * the linear space variant of the algorithm described in Eugene
+ * W. Myers' paper "An O(ND) Difference Algorithm and Its Variations".
+ * It needs O((N+M)D) time and O(N+M) memory where N and M are the
+ * sizes of the node lists and D is the number of nodes that only
+ * appear in one of them.</p>
+ *
+ * <p>Unlike {@link DefaultNodeMatcher} this never matches nodes out
+ * of order, so a small number of inserted or removed nodes in long
+ * lists leads to a small number of unmatched nodes and is fast to
+ * detect. Nodes are never matched if their order has been changed,
+ * though.</p>
+ *
+ * <p>{@link DOMDifferenceEngine} compares the absolute positions of
+ * matched nodes, so every node following an inserted or removed node
+ * still causes a {@link ComparisonType#CHILD_NODELIST_SEQUENCE}
+ * difference. As the pairs never cross, these differences carry no
+ * extra information in this case. {@link
+ * org.xmlunit.builder.DiffBuilder#withLCSNodeMatcher} configures the
+ * matcher and ignores these differences in one go, when using the
+ * engine directly they can be ignored using {@code
+ * DifferenceEvaluators.chain(DifferenceEvaluators.Default,
+ * DifferenceEvaluators.downgradeDifferencesToEqual(ComparisonType.CHILD_NODELIST_SEQUENCE))}.</p>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public class LCSNodeMatcher implements NodeMatcher {
+    private final ElementSelector elementSelector;
+    private final DefaultNodeMatcher.NodeTypeMatcher nodeTypeMatcher;
+
+    /**
+     * Creates a matcher using {@link ElementSelectors#byName} and
+     * {@link DefaultNodeMatcher.DefaultNodeTypeMatcher}.
+     *
+     * <p>Unlike {@link DefaultNodeMatcher} this doesn't default to
+     * {@link ElementSelectors#Default} which would consider all
+     * elements equal.</p>
+     */
+    public LCSNodeMatcher() {
+        this(ElementSelectors.byName);
+    }
+
+    /**
+     * Creates a matcher using the given {@link ElementSelector} and
+     * {@link DefaultNodeMatcher.DefaultNodeTypeMatcher}.
+     * @param es the ElementSelector to use
+     */
+    public LCSNodeMatcher(ElementSelector es) {
+        this(new DefaultNodeMatcher.DefaultNodeTypeMatcher(), es);
+    }
+
+    /**
+     * Creates a matcher using the given {@link ElementSelector} and
+     * {@link DefaultNodeMatcher.NodeTypeMatcher}.
+     * @param ntm the NodeTypeMatcher to use
+     * @param es the ElementSelector to use
+     */
+    public LCSNodeMatcher(DefaultNodeMatcher.NodeTypeMatcher ntm, ElementSelector es) {
+        if (ntm == null) {
+            throw new IllegalArgumentException("node type matcher must not be null");
+        }
+        if (es == null) {
+            throw new IllegalArgumentException("element selector must not be null");
+        }
+        nodeTypeMatcher = ntm;
+        elementSelector = es;
+    }
+
+    @Override
+    public Iterable<Map.Entry<Node, Node>> match(Iterable<Node> controlNodes,
+                                                 Iterable<Node> testNodes) {
+        return new Lcs(Linqy.randomAccessList(controlNodes),
+                       Linqy.randomAccessList(testNodes)).run();
+    }
+
+    private boolean nodesMatch(final Node n1, final Node n2) {
+        if (n1 instanceof Element && n2 instanceof Element) {
+            return elementSelector.canBeCompared((Element) n1, (Element) n2);
+        }
+        return nodeTypeMatcher.canBeCompared(n1.getNodeType(),
+                                             n2.getNodeType());
+    }
+
+    /**
+     * State of a single invocation of {@link #match}.
+     */
+    private final class Lcs {
+        private final List<Node> control;
+        private final List<Node> test;
+        private final List<Map.Entry<Node, Node>> matches;
+        // furthest reaching forward and reverse paths indexed by
+        // diagonal, shared by all steps of the recursion
+        private final int[] forward;
+        private final int[] reverse;
+
+        private Lcs(List<Node> control, List<Node> test) {
+            this.control = control;
+            this.test = test;
+            matches = new ArrayList<Map.Entry<Node, Node>>(Math.min(control.size(),
+                                                                     test.size()));
+            int maxD = (control.size() + test.size() + 1) / 2;
+            forward = new int[2 * maxD + 2];
+            reverse = new int[2 * maxD + 2];
+        }
+
+        private List<Map.Entry<Node, Node>> run() {
+            lcs(0, control.size(), 0, test.size());
+            return matches;
+        }
+
+        private boolean equal(int controlIndex, int testIndex) {
+            return nodesMatch(control.get(controlIndex), test.get(testIndex));
+        }
+
+        private void addMatch(int controlIndex, int testIndex) {
+            matches.add(new DefaultNodeMatcher.IndexedMatch(control.get(controlIndex),
+                                                            controlIndex,
+                                                            test.get(testIndex),
+                                                            testIndex));
+        }
+
+        /**
+         * Adds the matches of a longest common subsequence of
+         * control[controlStart, controlEnd) and test[testStart,
+         * testEnd) in order.
+         */
+        private void lcs(int controlStart, int controlEnd, int testStart, int testEnd) {
+            while (controlStart < controlEnd && testStart < testEnd
+                   && equal(controlStart, testStart)) {
+                addMatch(controlStart++, testStart++);
+            }
+            int commonSuffix = 0;
+            while (controlStart < controlEnd - commonSuffix
+                   && testStart < testEnd - commonSuffix
+                   && equal(controlEnd - commonSuffix - 1, testEnd - commonSuffix - 1)) {
+                commonSuffix++;
+            }
+            final int controlMiddleEnd = controlEnd - commonSuffix;
+            final int testMiddleEnd = testEnd - commonSuffix;
+            if (controlStart < controlMiddleEnd && testStart < testMiddleEnd) {
+                int[] split = split(controlStart, controlMiddleEnd, testStart, testMiddleEnd);
+                if (split != null) {
+                    lcs(controlStart, split[0], testStart, split[1]);
+                    lcs(split[0], controlMiddleEnd, split[1], testMiddleEnd);
+                }
+            }
+            for (int i = 0; i < commonSuffix; i++) {
+                addMatch(controlMiddleEnd + i, testMiddleEnd + i);
+            }
+        }
+
+        /**
+         * Finds a point on an optimal path through the edit graph of
+         * the given ranges where the forward and reverse searches
+         * meet, splitting the problem into two smaller ones.
+         *
+         * <p>The ranges must neither be empty nor start or end with
+         * equal nodes.</p>
+         *
+         * @return absolute control and test indexes of the point or
+         * null if the ranges don't have any nodes in common
+         */
+        private int[] split(int controlStart, int controlEnd, int testStart, int testEnd) {
+            final int n = controlEnd - controlStart;
+            final int m = testEnd - testStart;
+            final int maxD = (n + m + 1) / 2;
+            final int offset = maxD;
+            Arrays.fill(forward, 0, 2 * maxD + 2, -1);
+            Arrays.fill(reverse, 0, 2 * maxD + 2, -1);
+            forward[offset + 1] = 0;
+            reverse[offset + 1] = 0;
+            final int delta = n - m;
+            // the forward path checks for overlaps if delta is odd,
+            // the reverse path if it is even
+            final boolean front = (delta & 1) != 0;
+            // diagonals at the start and end that have left the
+            // graph, measured in steps of two
+            int forwardStart = 0;
+            int forwardEnd = 0;
+            int reverseStart = 0;
+            int reverseEnd = 0;
+            for (int d = 0; d < maxD; d++) {
+                for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                    final int kOffset = offset + k;
+                    int x = k == -d || k != d && forward[kOffset - 1] < forward[kOffset + 1]
+                        ? forward[kOffset + 1] : forward[kOffset - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && equal(controlStart + x, testStart + y)) {
+                        x++;
+                        y++;
+                    }
+                    forward[kOffset] = x;
+                    if (x > n) {
+                        forwardEnd += 2;
+                    } else if (y > m) {
+                        forwardStart += 2;
+                    } else if (front) {
+                        final int reverseOffset = offset + delta - k;
+                        if (reverseOffset >= 0 && reverseOffset < 2 * maxD
+                            && reverse[reverseOffset] != -1
+                            && x >= n - reverse[reverseOffset]) {
+                            return new int[] { controlStart + x, testStart + y };
+                        }
+                    }
+                }
+                for (int k = -d + reverseStart; k <= d - reverseEnd; k += 2) {
+                    final int kOffset = offset + k;
+                    // x and y are measured from the ends of the ranges
+                    int x = k == -d || k != d && reverse[kOffset - 1] < reverse[kOffset + 1]
+                        ? reverse[kOffset + 1] : reverse[kOffset - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m
+                           && equal(controlEnd - x - 1, testEnd - y - 1)) {
+                        x++;
+                        y++;
+                    }
+                    reverse[kOffset] = x;
+                    if (x > n) {
+                        reverseEnd += 2;
+                    } else if (y > m) {
+                        reverseStart += 2;
+                    } else if (!front) {
+                        final int forwardOffset = offset + delta - k;
+                        if (forwardOffset >= 0 && forwardOffset < 2 * maxD
+                            && forward[forwardOffset] != -1) {
+                            final int forwardX = forward[forwardOffset];
+                            final int forwardY = forwardX - (forwardOffset - offset);
+                            if (forwardX >= n - x) {
+                                return new int[] {
+                                    controlStart + forwardX, testStart + forwardY
+                                };
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import org.xmlunit.input.CombinedNormalizedSource.Normalization;
+import org.xmlunit.util.Nodes;
+
+/**
+ * Applies the normalizations of {@link
+ * org.xmlunit.input.CombinedNormalizedSource} to a stream of StAX
+ * events.
+ *
+ * <p>Text, CDATA and - if comments are stripped - comment events
+ * between two other events are read ahead, normalized and replaced
+ * by the text and CDATA events the normalized DOM tree would
+ * contain. Attribute values, comments and processing instructions
+ * are normalized when they are read. Nothing but a single run of
+ * text is ever held in memory.</p>
+ *
+ * <p>package private to support {@link StreamingDifferenceEngine}.</p>
+ */
+final class NormalizingStreamReader extends StreamReaderDelegate {
+
+    private final boolean trim;
+    private final boolean normalize;
+    private final boolean stripComments;
+    private final boolean stripECW;
+
+    // events to report before the parent is advanced again, an
+    // event without text stands for the current event of the parent
+    private final Deque<TextEvent> pending = new ArrayDeque<TextEvent>();
+    private TextEvent current;
+
+    NormalizingStreamReader(XMLStreamReader reader, Set<Normalization> normalizations) {
+        super(reader);
+        normalize = normalizations.contains(Normalization.NORMALIZE_WHITESPACE);
+        trim = normalize || normalizations.contains(Normalization.STRIP_WHITESPACE);
+        stripComments = normalizations.contains(Normalization.STRIP_COMMENTS);
+        stripECW = normalizations.contains(Normalization.STRIP_ELEMENT_CONTENT_WHITESPACE);
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        while (true) {
+            if (!pending.isEmpty()) {
+                current = pending.removeFirst();
+                if (current.text != null) {
+                    return current.type;
+                }
+                current = null;
+            } else {
+                current = null;
+                super.next();
+            }
+            int event = super.getEventType();
+            if (isPartOfText(event)) {
+                readText();
+            } else if (event != XMLStreamConstants.DTD || !stripComments) {
+                return event;
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() throws XMLStreamException {
+        return !pending.isEmpty() || super.hasNext();
+    }
+
+    @Override
+    public int nextTag() throws XMLStreamException {
+        int event = next();
+        while (event == XMLStreamConstants.CHARACTERS && isWhiteSpace()
+               || event == XMLStreamConstants.CDATA && isWhiteSpace()
+               || event == XMLStreamConstants.SPACE
+               || event == XMLStreamConstants.COMMENT
+               || event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+            event = next();
+        }
+        if (event != XMLStreamConstants.START_ELEMENT
+            && event != XMLStreamConstants.END_ELEMENT) {
+            throw new XMLStreamException("expected start or end tag", getLocation());
+        }
+        return event;
+    }
+
+    @Override
+    public String getElementText() throws XMLStreamException {
+        StringBuilder sb = new StringBuilder();
+        int event = next();
+        while (event != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                || event == XMLStreamConstants.SPACE) {
+                sb.append(getText());
+            } else if (event != XMLStreamConstants.COMMENT
+                       && event != XMLStreamConstants.PROCESSING_INSTRUCTION) {
+                throw new XMLStreamException("element text content may not contain"
+                                             + " child elements", getLocation());
+            }
+            event = next();
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int getEventType() {
+        return current != null ? current.type : super.getEventType();
+    }
+
+    @Override
+    public boolean isStartElement() {
+        return current == null && super.isStartElement();
+    }
+
+    @Override
+    public boolean isEndElement() {
+        return current == null && super.isEndElement();
+    }
+
+    @Override
+    public boolean isCharacters() {
+        return current != null ? current.type == XMLStreamConstants.CHARACTERS
+            : super.isCharacters();
+    }
+
+    @Override
+    public boolean isWhiteSpace() {
+        return current != null ? current.text.trim().length() == 0 : super.isWhiteSpace();
+    }
+
+    @Override
+    public boolean hasText() {
+        return current != null || super.hasText();
+    }
+
+    @Override
+    public boolean hasName() {
+        return current == null && super.hasName();
+    }
+
+    @Override
+    public String getText() {
+        if (current != null) {
+            return current.text;
+        }
+        String text = super.getText();
+        return trim && super.getEventType() == XMLStreamConstants.COMMENT
+            ? handleWs(text) : text;
+    }
+
+    @Override
+    public char[] getTextCharacters() {
+        return getText().toCharArray();
+    }
+
+    @Override
+    public int getTextCharacters(int sourceStart, char[] target, int targetStart, int length) {
+        String text = getText();
+        int count = Math.max(0, Math.min(length, text.length() - sourceStart));
+        text.getChars(sourceStart, sourceStart + count, target, targetStart);
+        return count;
+    }
+
+    @Override
+    public int getTextStart() {
+        return 0;
+    }
+
+    @Override
+    public int getTextLength() {
+        return getText().length();
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        String value = super.getAttributeValue(index);
+        return trim ? handleWs(value) : value;
+    }
+
+    @Override
+    public String getAttributeValue(String namespaceURI, String localName) {
+        String value = super.getAttributeValue(namespaceURI, localName);
+        return trim && value != null ? handleWs(value) : value;
+    }
+
+    @Override
+    public String getPIData() {
+        String data = super.getPIData();
+        return trim && data != null ? handleWs(data) : data;
+    }
+
+    private boolean isPartOfText(int event) {
+        return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE
+            || event == XMLStreamConstants.CDATA
+            || event == XMLStreamConstants.COMMENT && stripComments;
+    }
+
+    /**
+     * Reads all text, CDATA and stripped comment events up to the
+     * next other event and queues the events the normalized DOM tree
+     * would contain, followed by the other event.
+     *
+     * <p>Works like CombinedNormalizedSource: adjacent text is
+     * merged, text and CDATA sections are trimmed separately and
+     * dropped if they become empty, stripping comments turns CDATA
+     * sections into text and merges everything that remains, finally
+     * whitespace-only text is dropped.</p>
+     */
+    private void readText() throws XMLStreamException {
+        List<TextEvent> texts = new ArrayList<TextEvent>();
+        StringBuilder run = null;
+        int event = super.getEventType();
+        while (isPartOfText(event)) {
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+                if (run == null) {
+                    run = new StringBuilder();
+                }
+                run.append(super.getText());
+            } else {
+                if (run != null) {
+                    add(texts, XMLStreamConstants.CHARACTERS, run.toString());
+                    run = null;
+                }
+                if (event == XMLStreamConstants.CDATA) {
+                    add(texts, XMLStreamConstants.CDATA, super.getText());
+                }
+            }
+            event = super.next();
+        }
+        if (run != null) {
+            add(texts, XMLStreamConstants.CHARACTERS, run.toString());
+        }
+        if (stripComments && !texts.isEmpty()) {
+            StringBuilder merged = new StringBuilder();
+            for (TextEvent t : texts) {
+                merged.append(t.text);
+            }
+            texts.clear();
+            if (merged.length() > 0) {
+                texts.add(new TextEvent(XMLStreamConstants.CHARACTERS, merged.toString()));
+            }
+        }
+        for (TextEvent t : texts) {
+            if (!stripECW || t.text.trim().length() > 0) {
+                pending.addLast(t);
+            }
+        }
+        pending.addLast(new TextEvent(event, null));
+    }
+
+    private void add(List<TextEvent> texts, int type, String text) {
+        String s = trim ? handleWs(text) : text;
+        if (!trim || s.length() > 0) {
+            texts.add(new TextEvent(type, s));
+        }
+    }
+
+    private String handleWs(String s) {
+        String trimmed = s.trim();
+        return normalize ? Nodes.normalize(trimmed) : trimmed;
+    }
+
+    private static final class TextEvent {
+        private final int type;
+        private final String text;
+
+        private TextEvent(int type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+}
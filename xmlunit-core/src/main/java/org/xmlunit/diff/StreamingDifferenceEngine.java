@@ -0,0 +1,942 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package org.xmlunit.diff;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+import org.xmlunit.ConfigurationException;
+import org.xmlunit.XMLUnitException;
+import org.xmlunit.input.CombinedNormalizedSource;
+import org.xmlunit.util.Convert;
+import org.xmlunit.util.FactoryRegistry;
+import org.xmlunit.util.Nodes;
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+import org.xml.sax.InputSource;
+
+/**
+ * Difference engine based on StAX that compares two documents while
+ * reading them and never builds a DOM tree for either of them.
+ *
+ * <p>Control and test are read in lockstep. Apart from the pair of
+ * nodes currently being compared only the chain of their ancestors
+ * is kept in memory, so the memory required depends on the depth of
+ * the documents rather than their size.</p>
+ *
+ * <p>Siblings are always matched in document order, i.e. the n-th
+ * child of a control node is compared to the n-th child of the
+ * corresponding test node. For documents where siblings appear in
+ * the same order this is what {@link DOMDifferenceEngine} does with
+ * its default {@link NodeMatcher}. Configuring a different {@link
+ * NodeMatcher} is not supported.</p>
+ *
+ * <p>The engine performs the same kinds of comparisons as {@link
+ * DOMDifferenceEngine} with a few deviations caused by its streaming
+ * nature:</p>
+ *
+ * <ul>
+ *   <li>{@link ComparisonType#CHILD_NODELIST_LENGTH} is performed
+ *   after all children of a node have been compared rather than
+ *   before.</li>
+ *   <li>The targets of the {@link Comparison.Detail}s are stand-in
+ *   nodes that only know about their attributes and their ancestors,
+ *   they neither have siblings nor children.</li>
+ *   <li>Adjacent CDATA sections are merged into a single node.</li>
+ * </ul>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public final class StreamingDifferenceEngine extends AbstractDifferenceEngine {
+
+    private static final String JDK_REPORT_CDATA =
+        "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private static final Pattern DOCTYPE = Pattern
+        .compile("<!DOCTYPE\\s+([^\\s\\[>]+)"
+                 + "(?:\\s+(?:SYSTEM\\s+(\"[^\"]*\"|'[^']*')"
+                 + "|PUBLIC\\s+(\"[^\"]*\"|'[^']*')\\s+(\"[^\"]*\"|'[^']*')))?");
+
+    private static final String COMMENT = "comment()";
+    private static final String PI = "processing-instruction()";
+    private static final String TEXT = "text()";
+    private static final String SEP = "/";
+    private static final String EMPTY = "";
+
+    private final XMLInputFactory inputFactory;
+    private Set<CombinedNormalizedSource.Normalization> normalizations =
+        EnumSet.noneOf(CombinedNormalizedSource.Normalization.class);
+
+    /**
+     * Creates a new StreamingDifferenceEngine using the default
+     * {@link XMLInputFactory}.
+     *
+     * <p>The factory is configured to be namespace aware, to report
+     * CDATA sections and not to load any external entities or
+     * DTDs.</p>
+     */
+    public StreamingDifferenceEngine() {
+        this(defaultInputFactory());
+    }
+
+    /**
+     * Creates a new StreamingDifferenceEngine.
+     *
+     * @param f {@code XMLInputFactory} to use when reading the
+     * {@link Source}s to compare. It should be namespace aware and
+     * must not coalesce text and CDATA sections if you want to see
+     * differences between the two.
+     */
+    public StreamingDifferenceEngine(XMLInputFactory f) {
+        if (f == null) {
+            throw new IllegalArgumentException("factory must not be null");
+        }
+        inputFactory = f;
+    }
+
+    /**
+     * Not supported as siblings are always matched in document order.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setNodeMatcher(NodeMatcher n) {
+        throw new UnsupportedOperationException("the streaming engine always"
+                                                + " matches nodes in document order");
+    }
+
+    /**
+     * Normalizes both documents while reading them.
+     *
+     * <p>The engine sees the same nodes it would see when comparing
+     * {@link CombinedNormalizedSource}s created with the same
+     * normalizations, but no DOM tree is built - text and attribute
+     * values are normalized one event at a time.</p>
+     *
+     * @param normalizations the normalizations to apply, an empty
+     * set disables normalization
+     * @since XMLUnit 2.11.0
+     */
+    public void setNormalizations(Set<CombinedNormalizedSource.Normalization> normalizations) {
+        if (normalizations == null) {
+            throw new IllegalArgumentException("normalizations must not be null");
+        }
+        this.normalizations = normalizations.isEmpty()
+            ? EnumSet.noneOf(CombinedNormalizedSource.Normalization.class)
+            : EnumSet.copyOf(normalizations);
+    }
+
+    @Override
+    public void compare(Source control, Source test) {
+        if (control == null) {
+            throw new IllegalArgumentException("control must not be null");
+        }
+        if (test == null) {
+            throw new IllegalArgumentException("test must not be null");
+        }
+        Side controlSide = null;
+        Side testSide = null;
+        try {
+            DocumentBuilder builder =
+                Convert.newDocumentBuilder(FactoryRegistry.getDocumentBuilderFactory());
+            Map<String, String> uri2Prefix = invert(getNamespaceContext());
+            controlSide = new Side(createReader(control), builder.newDocument(), uri2Prefix);
+            testSide = new Side(createReader(test), builder.newDocument(), uri2Prefix);
+            compareDocuments(controlSide, testSide);
+        } catch (Exception ex) {
+            throw new XMLUnitException("Caught exception during comparison",
+                                       ex);
+        } finally {
+            close(controlSide);
+            close(testSide);
+        }
+    }
+
+    private XMLStreamReader createReader(Source s) throws XMLStreamException {
+        XMLStreamReader r = openReader(s);
+        return normalizations.isEmpty() ? r : new NormalizingStreamReader(r, normalizations);
+    }
+
+    private XMLStreamReader openReader(Source s) throws XMLStreamException {
+        if (s instanceof StAXSource && ((StAXSource) s).getXMLStreamReader() != null) {
+            return ((StAXSource) s).getXMLStreamReader();
+        }
+        if (s instanceof StreamSource) {
+            StreamSource ss = (StreamSource) s;
+            if (ss.getInputStream() != null) {
+                return inputFactory.createXMLStreamReader(ss.getSystemId(), ss.getInputStream());
+            }
+            if (ss.getReader() != null) {
+                return inputFactory.createXMLStreamReader(ss.getSystemId(), ss.getReader());
+            }
+        }
+        InputSource is = Convert.toInputSource(s);
+        if (is.getCharacterStream() != null) {
+            return inputFactory.createXMLStreamReader(is.getSystemId(), is.getCharacterStream());
+        }
+        if (is.getByteStream() != null) {
+            return inputFactory.createXMLStreamReader(is.getSystemId(), is.getByteStream());
+        }
+        return inputFactory.createXMLStreamReader(new StreamSource(is.getSystemId()));
+    }
+
+    private static void close(Side s) {
+        if (s != null) {
+            try {
+                s.reader.close();
+            } catch (XMLStreamException ex) {
+                // nothing we could do about it
+            }
+        }
+    }
+
+    /**
+     * Compares the document nodes, their prologs and finally the
+     * children of the documents.
+     */
+    private ComparisonState compareDocuments(final Side control, final Side test)
+        throws XMLStreamException {
+        final Item controlDoc = control.document();
+        final Item testDoc = test.document();
+        final Item controlDt = filterItem(control.readProlog());
+        final Item testDt = filterItem(test.readProlog());
+        final Document cd = (Document) controlDoc.node;
+        final Document td = (Document) testDoc.node;
+
+        return compare(comparison(ComparisonType.NODE_TYPE,
+                                  controlDoc, cd.getNodeType(), testDoc, td.getNodeType()))
+            .andThen(comparison(ComparisonType.NAMESPACE_URI,
+                                controlDoc, cd.getNamespaceURI(), testDoc, td.getNamespaceURI()))
+            .andThen(comparison(ComparisonType.NAMESPACE_PREFIX,
+                                controlDoc, cd.getPrefix(), testDoc, td.getPrefix()))
+            .andThen(comparison(ComparisonType.HAS_DOCTYPE_DECLARATION,
+                                controlDoc, Boolean.valueOf(controlDt != null),
+                                testDoc, Boolean.valueOf(testDt != null)))
+            .andIfTrueThen(controlDt != null && testDt != null,
+                           new DeferredComparison() {
+                               @Override
+                               public ComparisonState apply() {
+                                   return compareDocTypes(controlDt, testDt);
+                               }
+                           })
+            .andThen(comparison(ComparisonType.XML_VERSION,
+                                controlDoc, control.version, testDoc, test.version))
+            .andThen(comparison(ComparisonType.XML_STANDALONE,
+                                controlDoc, control.standalone, testDoc, test.standalone))
+            .andThen(comparison(ComparisonType.XML_ENCODING,
+                                controlDoc, control.encoding, testDoc, test.encoding))
+            .andThen(new ChildComparer(control, controlDoc, test, testDoc));
+    }
+
+    private Item filterItem(Item i) {
+        return i != null && getNodeFilter().test(i.node) ? i : null;
+    }
+
+    /**
+     * Compares two nodes read from control and test but not their
+     * children.
+     */
+    private ComparisonState compareItemProperties(final Item controlItem,
+                                                  final Item testItem) {
+        final Node c = controlItem.node;
+        final Node t = testItem.node;
+        return compare(comparison(ComparisonType.NODE_TYPE,
+                                  controlItem, c.getNodeType(), testItem, t.getNodeType()))
+            .andThen(comparison(ComparisonType.NAMESPACE_URI,
+                                controlItem, c.getNamespaceURI(), testItem, t.getNamespaceURI()))
+            .andThen(comparison(ComparisonType.NAMESPACE_PREFIX,
+                                controlItem, c.getPrefix(), testItem, t.getPrefix()))
+            .andThen(new DeferredComparison() {
+                    @Override
+                    public ComparisonState apply() {
+                        return nodeTypeSpecificComparison(controlItem, testItem);
+                    }
+                });
+    }
+
+    private ComparisonState nodeTypeSpecificComparison(Item control, Item test) {
+        Node c = control.node;
+        Node t = test.node;
+        switch (c.getNodeType()) {
+        case Node.CDATA_SECTION_NODE:
+        case Node.COMMENT_NODE:
+        case Node.TEXT_NODE:
+            if (t instanceof CharacterData) {
+                return compare(comparison(ComparisonType.TEXT_VALUE,
+                                          control, ((CharacterData) c).getData(),
+                                          test, ((CharacterData) t).getData()));
+            }
+            break;
+        case Node.ELEMENT_NODE:
+            if (t instanceof Element) {
+                return compareElements(control, test);
+            }
+            break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            if (t instanceof ProcessingInstruction) {
+                ProcessingInstruction cpi = (ProcessingInstruction) c;
+                ProcessingInstruction tpi = (ProcessingInstruction) t;
+                return compare(comparison(ComparisonType.PROCESSING_INSTRUCTION_TARGET,
+                                          control, cpi.getTarget(), test, tpi.getTarget()))
+                    .andThen(comparison(ComparisonType.PROCESSING_INSTRUCTION_DATA,
+                                        control, cpi.getData(), test, tpi.getData()));
+            }
+            break;
+        case Node.DOCUMENT_TYPE_NODE:
+            if (t instanceof DocumentType) {
+                return compareDocTypes(control, test);
+            }
+            break;
+        default:
+            break;
+        }
+        return new OngoingComparisonState();
+    }
+
+    private ComparisonState compareDocTypes(Item control, Item test) {
+        DocumentType c = (DocumentType) control.node;
+        DocumentType t = (DocumentType) test.node;
+        return compare(comparison(ComparisonType.DOCTYPE_NAME,
+                                  control, c.getName(), test, t.getName()))
+            .andThen(comparison(ComparisonType.DOCTYPE_PUBLIC_ID,
+                                control, c.getPublicId(), test, t.getPublicId()))
+            .andThen(new Comparison(ComparisonType.DOCTYPE_SYSTEM_ID,
+                                    c, null, c.getSystemId(), null,
+                                    t, null, t.getSystemId(), null));
+    }
+
+    private ComparisonState compareElements(final Item control, final Item test) {
+        final Element c = (Element) control.node;
+        final Element t = (Element) test.node;
+        final DOMDifferenceEngine.Attributes controlAttributes =
+            DOMDifferenceEngine.splitAttributes(c.getAttributes(), getAttributeFilter());
+        final DOMDifferenceEngine.Attributes testAttributes =
+            DOMDifferenceEngine.splitAttributes(t.getAttributes(), getAttributeFilter());
+
+        return compare(comparison(ComparisonType.ELEMENT_TAG_NAME,
+                                  control, Nodes.getQName(c).getLocalPart(),
+                                  test, Nodes.getQName(t).getLocalPart()))
+            .andThen(comparison(ComparisonType.ELEMENT_NUM_ATTRIBUTES,
+                                control, controlAttributes.remainingAttributes.size(),
+                                test, testAttributes.remainingAttributes.size()))
+            .andThen(new DeferredComparison() {
+                    @Override
+                    public ComparisonState apply() {
+                        return compareXsiType(control, controlAttributes.type,
+                                              test, testAttributes.type);
+                    }
+                })
+            .andThen(comparison(ComparisonType.SCHEMA_LOCATION,
+                                control, valueOf(controlAttributes.schemaLocation),
+                                test, valueOf(testAttributes.schemaLocation)))
+            .andThen(comparison(ComparisonType.NO_NAMESPACE_SCHEMA_LOCATION,
+                                control, valueOf(controlAttributes.noNamespaceSchemaLocation),
+                                test, valueOf(testAttributes.noNamespaceSchemaLocation)))
+            .andThen(new DeferredComparison() {
+                    @Override
+                    public ComparisonState apply() {
+                        return compareNormalAttributes(control, controlAttributes,
+                                                       test, testAttributes);
+                    }
+                });
+    }
+
+    private ComparisonState compareXsiType(Item control, Attr controlAttr,
+                                           Item test, Attr testAttr) {
+        if (controlAttr == null && testAttr == null) {
+            return new OngoingComparisonState();
+        }
+        boolean attributePresentOnBothSides = controlAttr != null && testAttr != null;
+        Item c = controlAttr != null ? control.attribute(controlAttr) : control;
+        Item t = testAttr != null ? test.attribute(testAttr) : test;
+        return compare(new Comparison(ComparisonType.ATTR_NAME_LOOKUP,
+                                      controlAttr, c.xpath,
+                                      controlAttr != null ? Nodes.getQName(controlAttr) : null,
+                                      c.parentXPath,
+                                      testAttr, t.xpath,
+                                      testAttr != null ? Nodes.getQName(testAttr) : null,
+                                      t.parentXPath))
+            .andIfTrueThen(attributePresentOnBothSides,
+                           comparison(ComparisonType.ATTR_VALUE_EXPLICITLY_SPECIFIED,
+                                      c, control.isSpecified(controlAttr),
+                                      t, test.isSpecified(testAttr)))
+            .andIfTrueThen(attributePresentOnBothSides,
+                           comparison(ComparisonType.ATTR_VALUE,
+                                      c, DOMDifferenceEngine.valueAsQName(controlAttr),
+                                      t, DOMDifferenceEngine.valueAsQName(testAttr)));
+    }
+
+    private ComparisonState compareNormalAttributes(Item control,
+                                                    DOMDifferenceEngine.Attributes controlAttributes,
+                                                    Item test,
+                                                    DOMDifferenceEngine.Attributes testAttributes) {
+        ComparisonState chain = new OngoingComparisonState();
+        Set<Attr> foundTestAttributes = new HashSet<Attr>();
+        for (Attr controlAttr : controlAttributes.remainingAttributes) {
+            final Item c = control.attribute(controlAttr);
+            Attr testAttr =
+                DOMDifferenceEngine.findMatchingAttr(testAttributes.remainingAttributes,
+                                                     controlAttr);
+            chain = chain.andThen(new Comparison(ComparisonType.ATTR_NAME_LOOKUP,
+                                                 controlAttr, c.xpath,
+                                                 Nodes.getQName(controlAttr), c.parentXPath,
+                                                 test.node, test.xpath,
+                                                 testAttr != null ? Nodes.getQName(testAttr) : null,
+                                                 test.parentXPath));
+            if (testAttr != null) {
+                final Item t = test.attribute(testAttr);
+                chain = chain.andThen(new DeferredComparison() {
+                        @Override
+                        public ComparisonState apply() {
+                            return compareAttributes(c, t);
+                        }
+                    });
+                foundTestAttributes.add(testAttr);
+            }
+        }
+        for (Attr testAttr : testAttributes.remainingAttributes) {
+            if (!foundTestAttributes.contains(testAttr)) {
+                Item t = test.attribute(testAttr);
+                chain = chain.andThen(new Comparison(ComparisonType.ATTR_NAME_LOOKUP,
+                                                     control.node, control.xpath, null,
+                                                     control.parentXPath,
+                                                     testAttr, t.xpath,
+                                                     Nodes.getQName(testAttr), t.parentXPath));
+            }
+        }
+        return chain;
+    }
+
+    private ComparisonState compareAttributes(Item control, Item test) {
+        Attr c = (Attr) control.node;
+        Attr t = (Attr) test.node;
+        return compare(comparison(ComparisonType.NODE_TYPE,
+                                  control, c.getNodeType(), test, t.getNodeType()))
+            .andThen(comparison(ComparisonType.NAMESPACE_URI,
+                                control, c.getNamespaceURI(), test, t.getNamespaceURI()))
+            .andThen(comparison(ComparisonType.NAMESPACE_PREFIX,
+                                control, c.getPrefix(), test, t.getPrefix()))
+            .andThen(comparison(ComparisonType.ATTR_VALUE_EXPLICITLY_SPECIFIED,
+                                control, control.isSpecified(c),
+                                test, test.isSpecified(t)))
+            .andThen(comparison(ComparisonType.ATTR_VALUE,
+                                control, c.getValue(), test, t.getValue()));
+    }
+
+    private static String valueOf(Attr a) {
+        return a != null ? a.getValue() : null;
+    }
+
+    private static Comparison comparison(ComparisonType type,
+                                         Item control, Object controlValue,
+                                         Item test, Object testValue) {
+        return new Comparison(type,
+                              control.node, control.xpath, controlValue, control.parentXPath,
+                              test.node, test.xpath, testValue, test.parentXPath);
+    }
+
+    /**
+     * Reads the children of two nodes in lockstep and compares them
+     * pairwise in document order, descending into the children of
+     * the children and so on.
+     *
+     * <p>Children present on only one side result in {@link
+     * ComparisonType#CHILD_LOOKUP} differences, the number of
+     * children is compared once all of them have been read.</p>
+     *
+     * <p>The nodes whose children are currently being read are kept
+     * on an explicit stack rather than the Java stack so documents of
+     * arbitrary depth can be compared.</p>
+     */
+    private class ChildComparer implements DeferredComparison {
+        private final Side control, test;
+        private final Item controlParent, testParent;
+
+        private ChildComparer(Side control, Item controlParent,
+                              Side test, Item testParent) {
+            this.control = control;
+            this.controlParent = controlParent;
+            this.test = test;
+            this.testParent = testParent;
+        }
+
+        @Override
+        public ComparisonState apply() {
+            Deque<ChildFrame> stack = new ArrayDeque<ChildFrame>();
+            try {
+                enter(stack, controlParent, testParent);
+                return compareChildren(stack);
+            } catch (XMLStreamException ex) {
+                throw new XMLUnitException(ex);
+            } finally {
+                while (!stack.isEmpty()) {
+                    leave(stack);
+                }
+            }
+        }
+
+        private ComparisonState compareChildren(Deque<ChildFrame> stack)
+            throws XMLStreamException {
+            ComparisonState chain = new OngoingComparisonState();
+            while (!chain.isFinished() && !stack.isEmpty()) {
+                ChildFrame frame = stack.peek();
+                final Item c = frame.controlDone ? null
+                    : control.nextAcceptedChild(getNodeFilter());
+                final Item t = frame.testDone ? null : test.nextAcceptedChild(getNodeFilter());
+                frame.controlDone = c == null;
+                frame.testDone = t == null;
+                if (c == null && t == null) {
+                    chain = chain.andThen(comparison(ComparisonType.CHILD_NODELIST_LENGTH,
+                                                     frame.controlParent,
+                                                     frame.controlIndex,
+                                                     frame.testParent,
+                                                     frame.testIndex));
+                    leave(stack);
+                    continue;
+                }
+                if (c != null && t != null) {
+                    chain = chain
+                        .andThen(comparison(ComparisonType.CHILD_NODELIST_SEQUENCE,
+                                            c, Integer.valueOf(frame.controlIndex++),
+                                            t, Integer.valueOf(frame.testIndex++)))
+                        .andThen(new DeferredComparison() {
+                                @Override
+                                public ComparisonState apply() {
+                                    return compareItemProperties(c, t);
+                                }
+                            });
+                    if (!chain.isFinished()) {
+                        // c and t are released once their children have been compared
+                        enter(stack, c, t);
+                        continue;
+                    }
+                } else if (c != null) {
+                    frame.controlIndex++;
+                    chain = chain.andThen(new Comparison(ComparisonType.CHILD_LOOKUP,
+                                                         c.node, c.xpath,
+                                                         Nodes.getQName(c.node), c.parentXPath,
+                                                         null, null, null,
+                                                         frame.testParent.xpath));
+                    control.skip(c);
+                } else {
+                    frame.testIndex++;
+                    chain = chain.andThen(new Comparison(ComparisonType.CHILD_LOOKUP,
+                                                         null, null, null,
+                                                         frame.controlParent.xpath,
+                                                         t.node, t.xpath,
+                                                         Nodes.getQName(t.node), t.parentXPath));
+                    test.skip(t);
+                }
+                control.release(c);
+                test.release(t);
+            }
+            return chain;
+        }
+
+        private void enter(Deque<ChildFrame> stack, Item c, Item t) {
+            control.enter(c);
+            test.enter(t);
+            stack.push(new ChildFrame(c, t));
+        }
+
+        private void leave(Deque<ChildFrame> stack) {
+            ChildFrame frame = stack.pop();
+            control.leave();
+            test.leave();
+            if (!stack.isEmpty()) {
+                control.release(frame.controlParent);
+                test.release(frame.testParent);
+            }
+        }
+    }
+
+    /**
+     * A pair of nodes whose children are currently being read and
+     * the number of children read so far.
+     */
+    private static final class ChildFrame {
+        private final Item controlParent, testParent;
+        private int controlIndex, testIndex;
+        private boolean controlDone, testDone;
+
+        private ChildFrame(Item controlParent, Item testParent) {
+            this.controlParent = controlParent;
+            this.testParent = testParent;
+        }
+    }
+
+    /**
+     * A node read from one of the sources together with its XPath.
+     */
+    private static final class Item {
+        private final Side owner;
+        private final Node node;
+        private final String xpath;
+        private final String parentXPath;
+        private final Set<Attr> defaultedAttributes;
+
+        private Item(Side owner, Node node, String xpath, String parentXPath,
+                     Set<Attr> defaultedAttributes) {
+            this.owner = owner;
+            this.node = node;
+            this.xpath = xpath;
+            this.parentXPath = parentXPath;
+            this.defaultedAttributes = defaultedAttributes;
+        }
+
+        private Item attribute(Attr a) {
+            return new Item(owner, a, xpath + SEP + "@" + owner.getName(Nodes.getQName(a)),
+                            xpath, defaultedAttributes);
+        }
+
+        private Boolean isSpecified(Attr a) {
+            return Boolean.valueOf(!defaultedAttributes.contains(a));
+        }
+    }
+
+    /**
+     * The XPath related state of a node whose children are currently
+     * being read.
+     */
+    private static final class Level {
+        private final Item item;
+        private final boolean hasChildren;
+        private final Map<String, int[]> elements = new HashMap<String, int[]>();
+        private int comments, pis, texts;
+        private boolean done;
+
+        private Level(Item item, boolean hasChildren) {
+            this.item = item;
+            this.hasChildren = hasChildren;
+            done = !hasChildren;
+        }
+
+        private String childXPath(String expression) {
+            String prefix = item.xpath;
+            if (!SEP.equals(prefix)) {
+                prefix += SEP;
+            }
+            return prefix + expression;
+        }
+    }
+
+    /**
+     * Wraps the reader of one of the sources and the stand-in nodes
+     * created for it.
+     */
+    private static final class Side {
+        private final XMLStreamReader reader;
+        private final Document doc;
+        private final Map<String, String> uri2Prefix;
+        private final Deque<Level> path = new ArrayDeque<Level>();
+        private final LinkedList<Item> prolog = new LinkedList<Item>();
+        private final String version, encoding;
+        private final Boolean standalone;
+        private Node parent;
+        private Level documentLevel;
+        private boolean positioned;
+
+        private Side(XMLStreamReader reader, Document doc, Map<String, String> uri2Prefix) {
+            this.reader = reader;
+            this.doc = doc;
+            this.uri2Prefix = uri2Prefix;
+            String v = reader.getVersion();
+            version = v == null ? "1.0" : v;
+            standalone = Boolean.valueOf(reader.standaloneSet() && reader.isStandalone());
+            encoding = reader.getCharacterEncodingScheme();
+            parent = doc;
+        }
+
+        private Item document() {
+            return new Item(this, doc, SEP, SEP, Collections.<Attr>emptySet());
+        }
+
+        /**
+         * Reads all nodes up to and including the root element so the
+         * doctype declaration is known before the document's children
+         * are compared.
+         *
+         * @return the doctype declaration if there is one
+         */
+        private Item readProlog() throws XMLStreamException {
+            Level level = new Level(document(), true);
+            path.addLast(level);
+            Item doctype = null;
+            try {
+                Item i;
+                while ((i = nextChild()) != null) {
+                    prolog.addLast(i);
+                    if (i.node instanceof DocumentType) {
+                        doctype = i;
+                    } else if (i.node instanceof Element) {
+                        break;
+                    }
+                }
+            } finally {
+                path.removeLast();
+            }
+            documentLevel = level;
+            return doctype;
+        }
+
+        private void enter(Item item) {
+            boolean hasChildren = item.node instanceof Element || item.node instanceof Document;
+            // the document's counters must continue where readProlog has left them
+            Level level = item.node instanceof Document && documentLevel != null
+                ? documentLevel : new Level(item, hasChildren);
+            path.addLast(level);
+            if (hasChildren) {
+                parent = item.node;
+            }
+        }
+
+        private void leave() {
+            path.removeLast();
+            if (!path.isEmpty()) {
+                parent = path.getLast().item.node;
+            }
+        }
+
+        private Item nextAcceptedChild(org.xmlunit.util.Predicate<Node> filter)
+            throws XMLStreamException {
+            Item i;
+            while ((i = nextChild()) != null && !filter.test(i.node)) {
+                skip(i);
+                release(i);
+            }
+            return i;
+        }
+
+        private Item nextChild() throws XMLStreamException {
+            Level level = path.getLast();
+            if (level.done) {
+                return null;
+            }
+            if (level == documentLevel && !prolog.isEmpty()) {
+                return prolog.removeFirst();
+            }
+            while (true) {
+                int event = nextEvent();
+                switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return element(level);
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if (level.item.node instanceof Document) {
+                        continue;
+                    }
+                    return text(level, false);
+                case XMLStreamConstants.CDATA:
+                    if (level.item.node instanceof Document) {
+                        continue;
+                    }
+                    return text(level, true);
+                case XMLStreamConstants.COMMENT:
+                    return attach(doc.createComment(reader.getText()),
+                                  level.childXPath(COMMENT + "[" + (++level.comments) + "]"),
+                                  level);
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    String data = reader.getPIData();
+                    return attach(doc.createProcessingInstruction(reader.getPITarget(),
+                                                                  data == null ? EMPTY : data),
+                                  level.childXPath(PI + "[" + (++level.pis) + "]"),
+                                  level);
+                case XMLStreamConstants.DTD:
+                    return doctype(level);
+                case XMLStreamConstants.END_ELEMENT:
+                case XMLStreamConstants.END_DOCUMENT:
+                    level.done = true;
+                    return null;
+                default:
+                    break;
+                }
+            }
+        }
+
+        private int nextEvent() throws XMLStreamException {
+            if (positioned) {
+                positioned = false;
+                return reader.getEventType();
+            }
+            return reader.next();
+        }
+
+        private Item element(Level level) {
+            String uri = emptyToNull(reader.getNamespaceURI());
+            String prefix = emptyToNull(reader.getPrefix());
+            String local = reader.getLocalName();
+            Element e = doc.createElementNS(uri, prefix == null ? local : prefix + ":" + local);
+            final int nsCount = reader.getNamespaceCount();
+            for (int i = 0; i < nsCount; i++) {
+                String p = emptyToNull(reader.getNamespacePrefix(i));
+                String u = reader.getNamespaceURI(i);
+                e.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                 p == null ? XMLConstants.XMLNS_ATTRIBUTE
+                                 : XMLConstants.XMLNS_ATTRIBUTE + ":" + p,
+                                 u == null ? EMPTY : u);
+            }
+            Set<Attr> defaulted = Collections.emptySet();
+            final int attrCount = reader.getAttributeCount();
+            for (int i = 0; i < attrCount; i++) {
+                String aUri = emptyToNull(reader.getAttributeNamespace(i));
+                String aPrefix = emptyToNull(reader.getAttributePrefix(i));
+                String aLocal = reader.getAttributeLocalName(i);
+                e.setAttributeNS(aUri, aPrefix == null ? aLocal : aPrefix + ":" + aLocal,
+                                 reader.getAttributeValue(i));
+                if (!reader.isAttributeSpecified(i)) {
+                    if (defaulted.isEmpty()) {
+                        defaulted = new HashSet<Attr>();
+                    }
+                    defaulted.add(e.getAttributeNodeNS(aUri, aLocal));
+                }
+            }
+            String name = getName(Nodes.getQName(e));
+            int[] count = level.elements.get(name);
+            if (count == null) {
+                count = new int[1];
+                level.elements.put(name, count);
+            }
+            String xpath = level.childXPath(name + "[" + (++count[0]) + "]");
+            parent.appendChild(e);
+            return new Item(this, e, xpath, level.item.xpath, defaulted);
+        }
+
+        private Item text(Level level, boolean cdata) throws XMLStreamException {
+            StringBuilder sb = new StringBuilder(reader.getText());
+            int next;
+            while ((next = reader.next()) == XMLStreamConstants.CDATA && cdata
+                   || !cdata && (next == XMLStreamConstants.CHARACTERS
+                                 || next == XMLStreamConstants.SPACE)) {
+                sb.append(reader.getText());
+            }
+            positioned = true;
+            String s = sb.toString();
+            return attach(cdata ? doc.createCDATASection(s) : doc.createTextNode(s),
+                          level.childXPath(TEXT + "[" + (++level.texts) + "]"),
+                          level);
+        }
+
+        private Item doctype(Level level) {
+            Matcher m = DOCTYPE.matcher(reader.getText());
+            DocumentType dt;
+            if (m.lookingAt()) {
+                String systemId = unquote(m.group(2) != null ? m.group(2) : m.group(4));
+                dt = doc.getImplementation().createDocumentType(m.group(1), unquote(m.group(3)),
+                                                                systemId);
+            } else {
+                dt = doc.getImplementation().createDocumentType("unknown", null, null);
+            }
+            return new Item(this, dt, level.childXPath(EMPTY), level.item.xpath,
+                            Collections.<Attr>emptySet());
+        }
+
+        private Item attach(Node n, String xpath, Level level) {
+            parent.appendChild(n);
+            return new Item(this, n, xpath, level.item.xpath, Collections.<Attr>emptySet());
+        }
+
+        /**
+         * Consumes the remaining children of an element that is not
+         * going to be compared.
+         */
+        private void skip(Item i) throws XMLStreamException {
+            if (!(i.node instanceof Element)) {
+                return;
+            }
+            int depth = 1;
+            while (depth > 0) {
+                int event = nextEvent();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        }
+
+        private void release(Item i) {
+            if (i != null && i.node.getParentNode() != null) {
+                i.node.getParentNode().removeChild(i.node);
+            }
+        }
+
+        private String getName(QName name) {
+            String ns = name.getNamespaceURI();
+            String p = null;
+            if (ns != null) {
+                p = uri2Prefix.get(ns);
+            }
+            return (p == null ? EMPTY : p + ":") + name.getLocalPart();
+        }
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.length() == 0 ? null : s;
+    }
+
+    private static String unquote(String s) {
+        return s == null ? null : s.substring(1, s.length() - 1);
+    }
+
+    private static Map<String, String> invert(Map<String, String> m) {
+        Map<String, String> inverted = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : m.entrySet()) {
+            inverted.put(entry.getValue(), entry.getKey());
+        }
+        return inverted;
+    }
+
+    private static XMLInputFactory defaultInputFactory() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        try {
+            f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+            f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+            f.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+            f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        } catch (IllegalArgumentException ex) {
+            throw new ConfigurationException(ex);
+        }
+        try {
+            f.setProperty(JDK_REPORT_CDATA, Boolean.TRUE);
+        } catch (IllegalArgumentException ex) {
+            // not the JDK's StAX implementation, CDATA sections may be reported as text
+        }
+        return f;
+    }
+}
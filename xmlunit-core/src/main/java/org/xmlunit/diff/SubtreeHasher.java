@@ -0,0 +1,288 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.xmlunit.util.IterableNodeList;
+import org.xmlunit.util.Nodes;
+import org.xmlunit.util.Predicate;
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Computes structural hashes of DOM subtrees in the spirit of a
+ * Merkle tree: the hash of a node combines the properties {@link
+ * DOMDifferenceEngine} compares with the hashes of its children.
+ *
+ * <p>Only children accepted by the node filter and attributes
+ * accepted by the attribute filter contribute to the hash. The
+ * order of attributes doesn't matter while the order of children
+ * does.</p>
+ *
+ * <p>Hashes are remembered per node identity. Once all hashes have
+ * been computed the instance may be shared between threads.</p>
+ */
+final class SubtreeHasher {
+    private static final long SEED = 1125899906842597L;
+    private static final long NULL_HASH = 0x9e3779b97f4a7c15L;
+
+    private final Predicate<Node> nodeFilter;
+    private final Predicate<Attr> attributeFilter;
+    private final Map<Node, Long> hashes = new IdentityHashMap<Node, Long>();
+
+    SubtreeHasher(Predicate<Node> nodeFilter, Predicate<Attr> attributeFilter) {
+        this.nodeFilter = nodeFilter;
+        this.attributeFilter = attributeFilter;
+    }
+
+    /**
+     * Returns the hash of the subtree rooted at the given node,
+     * computing and remembering the hashes of all its descendants if
+     * necessary.
+     *
+     * <p>Walks the subtree using an explicit stack so arbitrarily
+     * deep documents can be hashed.</p>
+     */
+    long hash(Node n) {
+        Long cached = hashes.get(n);
+        if (cached != null) {
+            return cached.longValue();
+        }
+        Deque<HashFrame> stack = new ArrayDeque<HashFrame>();
+        stack.push(new HashFrame(n));
+        long h = 0;
+        while (!stack.isEmpty()) {
+            HashFrame frame = stack.peek();
+            if (frame.next < frame.children.size()) {
+                Node child = frame.children.get(frame.next++);
+                Long childHash = hashes.get(child);
+                if (childHash == null) {
+                    stack.push(new HashFrame(child));
+                } else {
+                    frame.hash = mix(frame.hash, childHash.longValue());
+                }
+            } else {
+                stack.pop();
+                hashes.put(frame.node, Long.valueOf(frame.hash));
+                HashFrame parent = stack.peek();
+                if (parent == null) {
+                    h = frame.hash;
+                } else {
+                    parent.hash = mix(parent.hash, frame.hash);
+                }
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Whether the subtrees rooted at control and test are
+     * structurally identical as far as the comparisons of {@link
+     * DOMDifferenceEngine} are concerned.
+     *
+     * <p>Starts by comparing the hashes and verifies nodes with equal
+     * hashes, so a collision never makes two different subtrees look
+     * identical.</p>
+     */
+    boolean identical(Node control, Node test) {
+        if (hash(control) != hash(test)) {
+            return false;
+        }
+        Deque<Node[]> pending = new ArrayDeque<Node[]>();
+        pending.push(new Node[] { control, test });
+        while (!pending.isEmpty()) {
+            Node[] pair = pending.pop();
+            if (hash(pair[0]) != hash(pair[1]) || !sameNode(pair[0], pair[1])) {
+                return false;
+            }
+            List<Node> controlChildren = children(pair[0]);
+            List<Node> testChildren = children(pair[1]);
+            final int size = controlChildren.size();
+            if (size != testChildren.size()) {
+                return false;
+            }
+            for (int i = size - 1; i >= 0; i--) {
+                pending.push(new Node[] { controlChildren.get(i), testChildren.get(i) });
+            }
+        }
+        return true;
+    }
+
+    private List<Node> children(Node n) {
+        List<Node> children = new ArrayList<Node>();
+        if (n.getNodeType() != Node.ATTRIBUTE_NODE) {
+            for (Node child : new IterableNodeList(Nodes.getChildNodes(n))) {
+                if (nodeFilter.test(child)) {
+                    children.add(child);
+                }
+            }
+        }
+        return children;
+    }
+
+    private long hashOfNode(Node n) {
+        long h = mix(SEED, n.getNodeType());
+        h = mix(h, n.getNamespaceURI());
+        h = mix(h, n.getPrefix());
+        switch (n.getNodeType()) {
+        case Node.CDATA_SECTION_NODE:
+        case Node.COMMENT_NODE:
+        case Node.TEXT_NODE:
+            return mix(h, ((CharacterData) n).getData());
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            ProcessingInstruction pi = (ProcessingInstruction) n;
+            return mix(mix(h, pi.getTarget()), pi.getData());
+        case Node.DOCUMENT_TYPE_NODE:
+            DocumentType dt = (DocumentType) n;
+            return mix(mix(mix(h, dt.getName()), dt.getPublicId()), dt.getSystemId());
+        case Node.ELEMENT_NODE:
+            h = mix(h, Nodes.getQName(n).getLocalPart());
+            long attributes = 0;
+            for (Attr a : relevantAttributes((Element) n)) {
+                // order of attributes is irrelevant
+                attributes += hashOfAttribute(a);
+            }
+            return mix(h, attributes);
+        default:
+            return h;
+        }
+    }
+
+    private static long hashOfAttribute(Attr a) {
+        long h = mix(SEED, a.getNamespaceURI());
+        h = mix(h, Nodes.getQName(a).getLocalPart());
+        h = mix(h, a.getPrefix());
+        h = mix(h, a.getSpecified() ? 1 : 0);
+        return mix(h, a.getValue());
+    }
+
+    private boolean sameNode(Node control, Node test) {
+        if (control.getNodeType() != test.getNodeType()
+            || !equal(control.getNamespaceURI(), test.getNamespaceURI())
+            || !equal(control.getPrefix(), test.getPrefix())) {
+            return false;
+        }
+        switch (control.getNodeType()) {
+        case Node.CDATA_SECTION_NODE:
+        case Node.COMMENT_NODE:
+        case Node.TEXT_NODE:
+            return equal(((CharacterData) control).getData(),
+                         ((CharacterData) test).getData());
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            ProcessingInstruction cpi = (ProcessingInstruction) control;
+            ProcessingInstruction tpi = (ProcessingInstruction) test;
+            return equal(cpi.getTarget(), tpi.getTarget())
+                && equal(cpi.getData(), tpi.getData());
+        case Node.DOCUMENT_TYPE_NODE:
+            DocumentType cdt = (DocumentType) control;
+            DocumentType tdt = (DocumentType) test;
+            return equal(cdt.getName(), tdt.getName())
+                && equal(cdt.getPublicId(), tdt.getPublicId())
+                && equal(cdt.getSystemId(), tdt.getSystemId());
+        case Node.ELEMENT_NODE:
+            return equal(Nodes.getQName(control).getLocalPart(),
+                         Nodes.getQName(test).getLocalPart())
+                && sameAttributes((Element) control, (Element) test);
+        default:
+            return true;
+        }
+    }
+
+    private boolean sameAttributes(Element control, Element test) {
+        DOMDifferenceEngine.Attributes controlAttributes =
+            DOMDifferenceEngine.splitAttributes(control.getAttributes(), attributeFilter);
+        DOMDifferenceEngine.Attributes testAttributes =
+            DOMDifferenceEngine.splitAttributes(test.getAttributes(), attributeFilter);
+        if (!sameAttribute(controlAttributes.schemaLocation, testAttributes.schemaLocation)
+            || !sameAttribute(controlAttributes.noNamespaceSchemaLocation,
+                              testAttributes.noNamespaceSchemaLocation)
+            || !sameAttribute(controlAttributes.type, testAttributes.type)
+            || !equal(DOMDifferenceEngine.valueAsQName(controlAttributes.type),
+                      DOMDifferenceEngine.valueAsQName(testAttributes.type))
+            || controlAttributes.remainingAttributes.size()
+               != testAttributes.remainingAttributes.size()) {
+            return false;
+        }
+        for (Attr controlAttr : controlAttributes.remainingAttributes) {
+            if (!sameAttribute(controlAttr,
+                               DOMDifferenceEngine.findMatchingAttr(testAttributes
+                                                                    .remainingAttributes,
+                                                                    controlAttr))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameAttribute(Attr control, Attr test) {
+        if (control == null || test == null) {
+            return control == test;
+        }
+        return equal(control.getNamespaceURI(), test.getNamespaceURI())
+            && equal(Nodes.getQName(control).getLocalPart(), Nodes.getQName(test).getLocalPart())
+            && equal(control.getPrefix(), test.getPrefix())
+            && control.getSpecified() == test.getSpecified()
+            && equal(control.getValue(), test.getValue());
+    }
+
+    private List<Attr> relevantAttributes(Element e) {
+        DOMDifferenceEngine.Attributes attributes =
+            DOMDifferenceEngine.splitAttributes(e.getAttributes(), attributeFilter);
+        List<Attr> relevant = new ArrayList<Attr>(attributes.remainingAttributes);
+        if (attributes.schemaLocation != null) {
+            relevant.add(attributes.schemaLocation);
+        }
+        if (attributes.noNamespaceSchemaLocation != null) {
+            relevant.add(attributes.noNamespaceSchemaLocation);
+        }
+        if (attributes.type != null) {
+            relevant.add(attributes.type);
+        }
+        return relevant;
+    }
+
+    private final class HashFrame {
+        private final Node node;
+        private final List<Node> children;
+        private int next;
+        private long hash;
+
+        private HashFrame(Node node) {
+            this.node = node;
+            children = children(node);
+            hash = mix(hashOfNode(node), children.size());
+        }
+    }
+
+    private static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    private static long mix(long h, long value) {
+        return 31 * h + (value ^ (value >>> 29));
+    }
+
+    private static long mix(long h, String s) {
+        return mix(h, s == null ? NULL_HASH : s.hashCode());
+    }
+}
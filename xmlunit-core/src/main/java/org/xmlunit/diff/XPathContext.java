@@ -13,13 +13,12 @@
 */
 package org.xmlunit.diff;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 import javax.xml.namespace.QName;
@@ -34,7 +33,7 @@
  * comparison.
  */
 public class XPathContext implements Cloneable {
-    private Deque<Level> path = new LinkedList<Level>();
+    private Level current;
     private final Map<String, String> uri2Prefix;
 
     private static final String COMMENT = "comment()";
@@ -81,7 +80,7 @@ public XPathContext(Map<String, String> prefix2uri, Node root) {
         } else {
             this.uri2Prefix = Collections.unmodifiableMap(invert(prefix2uri));
         }
-        path.addLast(new Level(EMPTY));
+        current = new Level(null, EMPTY, 0);
         if (root != null) {
             setChildren(Linqy.singleton(new DOMNodeInfo(root)));
             navigateToChild(0);
@@ -93,22 +92,27 @@ public XPathContext(Map<String, String> prefix2uri, Node root) {
      * @param index index of child to navigate to
      */
     public void navigateToChild(int index) {
-        path.addLast(path.getLast().children.get(index));
+        current = current.child(index);
     }
 
     /**
      * Moves from the current node to the given attribute.
+     *
+     * <p>If the attribute has not been added before, the XPath of
+     * the attribute remains unknown until the context has navigated
+     * back to the parent.</p>
+     *
      * @param attribute name of attribute to navigate to
      */
     public void navigateToAttribute(QName attribute) {
-        path.addLast(path.getLast().attributes.get(attribute));
+        current = current.attribute(attribute, ATTR + getName(attribute));
     }
 
     /**
      * Moves back to the parent.
      */
     public void navigateToParent() {
-        path.removeLast();
+        current = current.parent;
     }
 
     /**
@@ -116,10 +120,8 @@ public void navigateToParent() {
      * @param attributes attributes to add
      */
     public void addAttributes(Iterable<? extends QName> attributes) {
-        Level current = path.getLast();
         for (QName attribute : attributes) {
-            current.attributes.put(attribute,
-                                   new Level(ATTR + getName(attribute)));
+            addAttribute(attribute);
         }
     }
 
@@ -128,9 +130,10 @@ public void addAttributes(Iterable<? extends QName> attributes) {
      * @param attribute attribute to add
      */
     public void addAttribute(QName attribute) {
-        Level current = path.getLast();
-        current.attributes.put(attribute,
-                               new Level(ATTR + getName(attribute)));
+        if (current.attributes == null) {
+            current.attributes = new HashMap<QName, Level>();
+        }
+        current.attributes.put(attribute, null);
     }
 
     /**
@@ -139,8 +142,7 @@ public void addAttribute(QName attribute) {
      * @param children children to add
      */
     public void setChildren(Iterable<? extends NodeInfo> children) {
-        Level current = path.getLast();
-        current.children.clear();
+        current.children = null;
         appendChildren(children);
     }
 
@@ -150,50 +152,28 @@ public void setChildren(Iterable<? extends NodeInfo> children) {
      * @param children children to add
      */
     public void appendChildren(Iterable<? extends NodeInfo> children) {
-        Level current = path.getLast();
-        int comments, pis, texts;
-        comments = pis = texts = 0;
-        Map<String, Integer> elements = new HashMap<String, Integer>();
-
-        for (Level l : current.children) {
-            String childName = l.expression;
-            if (childName.startsWith(COMMENT)) {
-                comments++;
-            } else if (childName.startsWith(PI)) {
-                pis++;
-            } else if (childName.startsWith(TEXT)) {
-                texts++;
-            } else {
-                childName = childName.substring(0, childName.indexOf(OPEN));
-                add1OrIncrement(childName, elements);
-            }
+        Children known = current.children();
+        for (NodeInfo child : children) {
+            short type = child.getType();
+            known.add(type, type == Node.ELEMENT_NODE ? getName(child.getName()) : null);
         }
+    }
 
-        for (NodeInfo child : children) {
-            Level l;
-            switch (child.getType()) {
-            case Node.COMMENT_NODE:
-                l = new Level(COMMENT + OPEN + (++comments) + CLOSE);
-                break;
-            case Node.PROCESSING_INSTRUCTION_NODE:
-                l = new Level(PI + OPEN + (++pis) + CLOSE);
-                break;
-            case Node.CDATA_SECTION_NODE:
-            case Node.TEXT_NODE:
-                l = new Level(TEXT + OPEN + (++texts) + CLOSE);
-                break;
-            case Node.ELEMENT_NODE:
-                String name = getName(child.getName());
-                l = new Level(name + OPEN + add1OrIncrement(name, elements)
-                              + CLOSE);
-                break;
-            default:
-                // more or less ignore
-                // FIXME: is this a good thing?
-                l = new Level(EMPTY);
-                break;
-            }
-            current.children.add(l);
+    /**
+     * Adds knowledge about the current node's children replacing
+     * existing knowledge.
+     *
+     * <p>Works like {@link #setChildren} but avoids creating a
+     * {@link NodeInfo} for each child.</p>
+     *
+     * <p>package private to support {@link DOMDifferenceEngine}.</p>
+     */
+    void setChildNodes(Iterable<Node> children) {
+        current.children = null;
+        Children known = current.children();
+        for (Node child : children) {
+            short type = child.getNodeType();
+            known.add(type, type == Node.ELEMENT_NODE ? getName(Nodes.getQName(child)) : null);
         }
     }
 
@@ -202,7 +182,7 @@ public void appendChildren(Iterable<? extends NodeInfo> children) {
      * @return current XPath
      */
     public String getXPath() {
-        return getXPath(path.descendingIterator());
+        return getCurrentPath().getXPath();
     }
 
     /**
@@ -210,11 +190,27 @@ public String getXPath() {
      * @return parent's XPath
      */
     public String getParentXPath() {
-        Iterator<Level> levelIterator = path.descendingIterator();
-        if (levelIterator.hasNext()) {
-            levelIterator.next();
+        if (current != null && current.path == null) {
+            return current.parent.path.getXPath();
+        }
+        return getCurrentPath().getParent().getXPath();
+    }
+
+    /**
+     * Snapshot of the XPath of the current node.
+     *
+     * <p>package private to support {@link Comparison}'s lazy
+     * XPaths.</p>
+     */
+    Path getCurrentPath() {
+        if (current == null) {
+            return Path.NONE;
+        }
+        if (current.path == null) {
+            throw new IllegalStateException("current node is an attribute that has not been added"
+                                            + " to the context, its XPath is unknown");
         }
-        return getXPath(levelIterator);
+        return current.path;
     }
 
     /**
@@ -224,9 +220,14 @@ public String getParentXPath() {
     public XPathContext clone() {
         try {
             XPathContext c = (XPathContext) super.clone();
-            c.path = new LinkedList<Level>();
-            for (Level l: path) {
-                c.path.addLast(l.clone());
+            if (current != null) {
+                Level root = current;
+                while (root.parent != null) {
+                    root = root.parent;
+                }
+                Map<Level, Level> copies = new IdentityHashMap<Level, Level>();
+                root.copy(null, copies);
+                c.current = copies.get(current);
             }
             return c;
         } catch (CloneNotSupportedException e) {
@@ -235,21 +236,40 @@ public XPathContext clone() {
         }
     }
 
-    private String getXPath(Iterator<Level> dIterator) {
-        if (!dIterator.hasNext()) {
-            return EMPTY;
-        }
-        Level l = dIterator.next();
-        if (null == l.xpath) {
-            String previous = getXPath(dIterator);
-            if (!SEP.equals(previous)) {
-                previous += SEP;
-            }
-            l.xpath = previous + l.expression;
+    /**
+     * Creates a copy of this XPathContext that only knows about the
+     * current node and its ancestors but neither about their
+     * siblings nor about the children or attributes of the current
+     * node.
+     *
+     * <p>Unlike {@link #clone} this only needs time proportional to
+     * the depth of the current node.</p>
+     *
+     * <p>package private to support {@link DOMDifferenceEngine}'s
+     * parallel mode.</p>
+     */
+    XPathContext copyOfCurrentPath() {
+        try {
+            XPathContext c = (XPathContext) super.clone();
+            c.current = copyOfPath(current);
+            return c;
+        } catch (CloneNotSupportedException e) {
+            // impossible
+            throw new RuntimeException("XPathContext cannot be cloned?", e);
         }
-        return l.xpath;
     }
 
+    private static Level copyOfPath(Level l) {
+        Deque<Level> ancestors = new ArrayDeque<Level>();
+        for (; l != null; l = l.parent) {
+            ancestors.push(l);
+        }
+        Level copy = null;
+        while (!ancestors.isEmpty()) {
+            copy = new Level(copy, ancestors.pop().path);
+        }
+        return copy;
+    }
 
     private String getName(QName name) {
         String ns = name.getNamespaceURI();
@@ -261,43 +281,244 @@ private String getName(QName name) {
     }
 
     /**
-     * Increments the value name maps to or adds 1 as value if name
-     * isn't present inside the map.
+     * A node on the path from the root to the current node.
      *
-     * @return the new mapping for name
+     * <p>Levels are only created for nodes that have been navigated
+     * to, knowledge about children is kept in a {@link Children}
+     * instance and knowledge about attributes in a map whose values
+     * remain null until the attribute is navigated to. The path of a
+     * level created for an attribute that has never been added is
+     * null.</p>
      */
-    private static int add1OrIncrement(String name, Map<String, Integer> map) {
-        Integer old = map.get(name);
-        int index = old == null ? 1 : old.intValue() + 1;
-        map.put(name, Integer.valueOf(index));
-        return index;
+    private static final class Level {
+        private final Level parent;
+        private final Path path;
+        private Children children;
+        private Map<QName, Level> attributes;
+
+        private Level(Level parent, String name, int position) {
+            this(parent, new Path(parent == null ? Path.NONE : parent.path, name, position));
+        }
+
+        private Level(Level parent, Path path) {
+            this.parent = parent;
+            this.path = path;
+        }
+
+        private Children children() {
+            if (children == null) {
+                children = new Children();
+            }
+            return children;
+        }
+
+        private Level child(int index) {
+            Children c = children();
+            if (index < 0 || index >= c.size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + c.size);
+            }
+            if (c.levels == null) {
+                c.levels = new Level[c.names.length];
+            }
+            Level l = c.levels[index];
+            if (l == null) {
+                l = new Level(this, c.names[index], c.positions[index]);
+                c.levels[index] = l;
+            }
+            return l;
+        }
+
+        private Level attribute(QName attribute, String name) {
+            if (attributes == null || !attributes.containsKey(attribute)) {
+                // unknown attribute, only remembers the way back
+                return new Level(this, (Path) null);
+            }
+            Level l = attributes.get(attribute);
+            if (l == null) {
+                l = new Level(this, name, 0);
+                attributes.put(attribute, l);
+            }
+            return l;
+        }
+
+        private Level copy(Level newParent, Map<Level, Level> copies) {
+            Level l = new Level(newParent, path);
+            copies.put(this, l);
+            if (children != null) {
+                l.children = children.copy(l, copies);
+            }
+            if (attributes != null) {
+                l.attributes = new HashMap<QName, Level>(attributes.size());
+                for (Map.Entry<QName, Level> e : attributes.entrySet()) {
+                    Level a = e.getValue();
+                    l.attributes.put(e.getKey(), a == null ? null : a.copy(l, copies));
+                }
+            }
+            return l;
+        }
     }
 
-    private static class Level implements Cloneable {
-        private final String expression;
-        private List<Level> children = new ArrayList<Level>();
-        private Map<QName, Level> attributes = new HashMap<QName, Level>();
+    /**
+     * Immutable snapshot of the XPath of a node.
+     *
+     * <p>The string representation is only built when it is asked
+     * for and then remembered together with the string of the parent,
+     * so siblings and descendants can reuse it.</p>
+     *
+     * <p>package private so {@link Comparison.Detail} can resolve
+     * XPaths lazily.</p>
+     */
+    static final class Path {
+        /**
+         * Parent of the root, its XPath is the empty string.
+         */
+        static final Path NONE = new Path(null, EMPTY, 0);
+        static {
+            NONE.xpath = EMPTY;
+        }
+
+        private final Path parent;
+        private final String name;
+        // one based position among the siblings of the same name, 0 if
+        // the expression doesn't contain a position at all
+        private final int position;
+        // computed lazily, racing threads compute the same value
         private String xpath;
-        private Level(String expression) {
-            this.expression = expression;
+
+        private Path(Path parent, String name, int position) {
+            this.parent = parent;
+            this.name = name;
+            this.position = position;
         }
-        @Override
-        public Level clone() {
-            try {
-                Level l = (Level) super.clone();
-                l.children = new ArrayList<Level>(children.size());
-                for (Level c : children) {
-                    l.children.add(c.clone());
+
+        /**
+         * The XPath of the parent node.
+         */
+        Path getParent() {
+            return parent == null ? NONE : parent;
+        }
+
+        /**
+         * Stringifies the XPath.
+         */
+        String getXPath() {
+            String x = xpath;
+            if (x != null) {
+                return x;
+            }
+            int uncached = 0;
+            for (Path p = this; p.xpath == null; p = p.parent) {
+                uncached++;
+            }
+            Path[] paths = new Path[uncached];
+            Path p = this;
+            for (int i = uncached - 1; i >= 0; i--, p = p.parent) {
+                paths[i] = p;
+            }
+            // only this path and its parent remember their strings,
+            // remembering all ancestors would require memory
+            // quadratic in the depth of the document
+            StringBuilder sb = new StringBuilder(p.xpath);
+            int parentLength = 0;
+            for (Path path : paths) {
+                parentLength = sb.length();
+                if (!SEP.contentEquals(sb)) {
+                    sb.append(SEP);
                 }
-                l.attributes = new HashMap<QName, Level>(attributes.size());
-                for (Map.Entry<QName, Level> e : attributes.entrySet()) {
-                    l.attributes.put(e.getKey(), e.getValue().clone());
+                sb.append(path.name);
+                if (path.position != 0) {
+                    sb.append(OPEN).append(path.position).append(CLOSE);
                 }
-                return l;
-            } catch (CloneNotSupportedException e) {
-                // impossible
-                throw new RuntimeException("Level cannot be cloned?", e);
             }
+            x = sb.toString();
+            if (uncached > 1) {
+                paths[uncached - 2].xpath = x.substring(0, parentLength);
+            }
+            xpath = x;
+            return x;
+        }
+    }
+
+    /**
+     * Knowledge about the children of a node kept in arrays.
+     */
+    private static final class Children {
+        private String[] names = new String[4];
+        private int[] positions = new int[4];
+        // created when the first child is navigated to
+        private Level[] levels;
+        private int size;
+        private int comments, pis, texts;
+        // the value arrays hold a single counter for each element name
+        private Map<String, int[]> elements;
+
+        private void add(short type, String elementName) {
+            switch (type) {
+            case Node.COMMENT_NODE:
+                add(COMMENT, ++comments);
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                add(PI, ++pis);
+                break;
+            case Node.CDATA_SECTION_NODE:
+            case Node.TEXT_NODE:
+                add(TEXT, ++texts);
+                break;
+            case Node.ELEMENT_NODE:
+                if (elements == null) {
+                    elements = new HashMap<String, int[]>();
+                }
+                int[] count = elements.get(elementName);
+                if (count == null) {
+                    count = new int[1];
+                    elements.put(elementName, count);
+                }
+                add(elementName, ++count[0]);
+                break;
+            default:
+                // more or less ignore
+                // FIXME: is this a good thing?
+                add(EMPTY, 0);
+                break;
+            }
+        }
+
+        private void add(String name, int position) {
+            if (size == names.length) {
+                int newLength = 2 * size;
+                names = Arrays.copyOf(names, newLength);
+                positions = Arrays.copyOf(positions, newLength);
+                if (levels != null) {
+                    levels = Arrays.copyOf(levels, newLength);
+                }
+            }
+            names[size] = name;
+            positions[size++] = position;
+        }
+
+        private Children copy(Level newParent, Map<Level, Level> copies) {
+            Children c = new Children();
+            c.names = names.clone();
+            c.positions = positions.clone();
+            c.size = size;
+            c.comments = comments;
+            c.pis = pis;
+            c.texts = texts;
+            if (elements != null) {
+                c.elements = new HashMap<String, int[]>(elements.size());
+                for (Map.Entry<String, int[]> e : elements.entrySet()) {
+                    c.elements.put(e.getKey(), e.getValue().clone());
+                }
+            }
+            if (levels != null) {
+                c.levels = new Level[levels.length];
+                for (int i = 0; i < size; i++) {
+                    if (levels[i] != null) {
+                        c.levels[i] = levels[i].copy(newParent, copies);
+                    }
+                }
+            }
+            return c;
         }
     }
 
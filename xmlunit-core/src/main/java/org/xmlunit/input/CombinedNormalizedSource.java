@@ -0,0 +1,302 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.input;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Set;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import org.xmlunit.util.Convert;
+import org.xmlunit.util.DocumentBuilderFactoryConfigurer;
+import org.xmlunit.util.FactoryRegistry;
+import org.xmlunit.util.Nodes;
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+/**
+ * A source that is obtained from a different source by applying
+ * several of the normalizations of {@link WhitespaceStrippedSource},
+ * {@link WhitespaceNormalizedSource}, {@link CommentLessSource} and
+ * {@link ElementContentWhitespaceStrippedSource} at once.
+ *
+ * <p>Chaining those sources creates a complete copy of the document
+ * for each of them. This source creates a single DOM Document - or a
+ * single copy if the original source already holds a Document - and
+ * applies all normalizations while walking the tree once. The result
+ * is the same as if the sources had been chained in the order the
+ * normalizations are listed in {@link Normalization}, except that
+ * comments are not removed by an XSLT transformation. Like the
+ * identity transformation used by {@link CommentLessSource}, stripping
+ * comments also replaces CDATA sections by text nodes, expands entity
+ * references and removes the document type declaration.</p>
+ *
+ * <p>If comments are to be stripped and no {@link
+ * DocumentBuilderFactory} has been specified, the document is parsed
+ * by a factory that differs from the default one by expanding entity
+ * references while parsing. Otherwise the text of entity references
+ * would be lost. If you specify a factory yourself make sure it
+ * expands entity references.</p>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public class CombinedNormalizedSource extends DOMSource {
+
+    /**
+     * The normalizations that can be applied.
+     */
+    public enum Normalization {
+        /**
+         * Trim all textual content and remove empty text nodes, like
+         * {@link WhitespaceStrippedSource}.
+         */
+        STRIP_WHITESPACE,
+        /**
+         * Trim and normalize all textual content and remove empty
+         * text nodes, like {@link WhitespaceNormalizedSource}.
+         */
+        NORMALIZE_WHITESPACE,
+        /**
+         * Remove all comments, like {@link CommentLessSource}.
+         */
+        STRIP_COMMENTS,
+        /**
+         * Remove all text nodes that only contain whitespace, like
+         * {@link ElementContentWhitespaceStrippedSource}.
+         */
+        STRIP_ELEMENT_CONTENT_WHITESPACE
+    }
+
+    private static final DocumentBuilderFactoryConfigurer EXPANDING_ENTITY_REFERENCES =
+        DocumentBuilderFactoryConfigurer.builder()
+        .withDTDParsingDisabled()
+        .withDTDLoadingDisabled()
+        .withXIncludeAware(false)
+        .withExpandEntityReferences(true)
+        .build();
+
+    private final boolean trim;
+    private final boolean normalize;
+    private final boolean stripComments;
+    private final boolean stripECW;
+
+    /**
+     * Creates a new source that consists of the given source with
+     * the given normalizations applied.
+     *
+     * @param originalSource the original source
+     * @param normalizations the normalizations to apply
+     */
+    public CombinedNormalizedSource(Source originalSource, Set<Normalization> normalizations) {
+        this(originalSource, normalizations, null);
+    }
+
+    /**
+     * Creates a new source that consists of the given source with
+     * the given normalizations applied.
+     *
+     * @param originalSource the original source
+     * @param normalizations the normalizations to apply
+     * @param dbf DocumentBuilderFactory to use when creating a DOM
+     * Document - may be null in which case the default factory is
+     * used
+     */
+    public CombinedNormalizedSource(Source originalSource, Set<Normalization> normalizations,
+                                    DocumentBuilderFactory dbf) {
+        super();
+        if (originalSource == null) {
+            throw new IllegalArgumentException("source must not be null");
+        }
+        if (normalizations == null) {
+            throw new IllegalArgumentException("normalizations must not be null");
+        }
+        Set<Normalization> n = normalizations.isEmpty()
+            ? EnumSet.noneOf(Normalization.class) : EnumSet.copyOf(normalizations);
+        normalize = n.contains(Normalization.NORMALIZE_WHITESPACE);
+        trim = normalize || n.contains(Normalization.STRIP_WHITESPACE);
+        stripComments = n.contains(Normalization.STRIP_COMMENTS);
+        stripECW = n.contains(Normalization.STRIP_ELEMENT_CONTENT_WHITESPACE);
+
+        if (dbf == null && stripComments) {
+            // stripping comments removes entity references, their
+            // replacement text must be part of the tree
+            dbf = FactoryRegistry.getDocumentBuilderFactory(EXPANDING_ENTITY_REFERENCES);
+        }
+        Document doc = dbf == null ? Convert.toDocument(originalSource)
+            : Convert.toDocument(originalSource, dbf);
+        if (originalSource instanceof DOMSource
+            && ((DOMSource) originalSource).getNode() == doc) {
+            // don't modify the caller's document
+            doc = (Document) doc.cloneNode(true);
+        }
+        handle(doc);
+        setNode(doc);
+        setSystemId(originalSource.getSystemId());
+    }
+
+    /**
+     * Applies all normalizations to the attributes and children of
+     * the given node and all its descendant elements.
+     *
+     * <p>Uses an explicit stack rather than recursion so deeply
+     * nested documents don't overflow the call stack.</p>
+     */
+    private void handle(Node root) {
+        Deque<Node> pending = new ArrayDeque<Node>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node n = pending.pop();
+            handleLevel(n);
+            for (Node child = n.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    pending.push(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies all normalizations to the attributes and children of
+     * the given node.
+     */
+    private void handleLevel(Node n) {
+        if (trim) {
+            NamedNodeMap attrs = n.getAttributes();
+            if (attrs != null) {
+                final int len = attrs.getLength();
+                for (int i = 0; i < len; i++) {
+                    Attr a = (Attr) attrs.item(i);
+                    a.setValue(handleWs(a.getValue()));
+                }
+            }
+        }
+        mergeTexts(n);
+        if (trim) {
+            trimChildren(n);
+        }
+        if (stripComments) {
+            stripComments(n);
+            mergeTexts(n);
+        }
+        if (stripECW) {
+            stripECW(n);
+        }
+    }
+
+    /**
+     * Merges adjacent text nodes and removes empty ones, just like
+     * {@link Node#normalize} does for a single level of the tree.
+     */
+    private static void mergeTexts(Node n) {
+        Node child = n.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.TEXT_NODE) {
+                Text t = (Text) child;
+                while (next != null && next.getNodeType() == Node.TEXT_NODE) {
+                    t.appendData(next.getNodeValue());
+                    Node following = next.getNextSibling();
+                    n.removeChild(next);
+                    next = following;
+                }
+                if (t.getLength() == 0) {
+                    n.removeChild(t);
+                }
+            }
+            child = next;
+        }
+    }
+
+    /**
+     * Trims textual content of all children and removes empty text
+     * and CDATA children.
+     */
+    private void trimChildren(Node n) {
+        Node child = n.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            short type = child.getNodeType();
+            if (child instanceof CharacterData || type == Node.PROCESSING_INSTRUCTION_NODE) {
+                String s = handleWs(child.getNodeValue());
+                if (s.length() == 0 && child instanceof Text) {
+                    n.removeChild(child);
+                } else {
+                    child.setNodeValue(s);
+                }
+            }
+            child = next;
+        }
+    }
+
+    /**
+     * Removes comments and the document type declaration, replaces
+     * CDATA sections by text nodes and expands entity references.
+     */
+    private static void stripComments(Node n) {
+        Document doc = n.getNodeType() == Node.DOCUMENT_NODE
+            ? (Document) n : n.getOwnerDocument();
+        Node child = n.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            switch (child.getNodeType()) {
+            case Node.COMMENT_NODE:
+            case Node.DOCUMENT_TYPE_NODE:
+                n.removeChild(child);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                n.replaceChild(doc.createTextNode(child.getNodeValue()), child);
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                Node first = null;
+                for (Node c = child.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    Node copy = n.insertBefore(c.cloneNode(true), child);
+                    if (first == null) {
+                        first = copy;
+                    }
+                }
+                n.removeChild(child);
+                if (first != null) {
+                    // the expansion may contain comments or CDATA sections itself
+                    next = first;
+                }
+                break;
+            default:
+                break;
+            }
+            child = next;
+        }
+    }
+
+    private static void stripECW(Node n) {
+        Node child = n.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child instanceof Text && child.getNodeValue().trim().length() == 0) {
+                n.removeChild(child);
+            }
+            child = next;
+        }
+    }
+
+    private String handleWs(String s) {
+        String trimmed = s.trim();
+        return normalize ? Nodes.normalize(trimmed) : trimmed;
+    }
+}
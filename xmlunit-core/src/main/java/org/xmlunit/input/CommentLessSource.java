@@ -13,11 +13,25 @@
 */
 package org.xmlunit.input;
 
+import java.io.IOException;
+import java.util.EnumSet;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.Source;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
+import org.xmlunit.XMLUnitException;
 import org.xmlunit.transform.Transformation;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
  * A source that is obtained from a different source by stripping all
@@ -27,6 +41,16 @@
  * use for the stylesheet. The default now is 2.0, it used to be 1.0
  * and you may need to change the value if your transformer doesn't
  * support XSLT 2.0.</p>
+ *
+ * <p>As of XMLUnit 2.11.0 the constructor without an XSLT version
+ * doesn't use a stylesheet at all. Sources that can be parsed are
+ * parsed through a SAX filter that drops comments and a copy of DOM
+ * sources is stripped in place. The result is the same as the one of
+ * the stylesheet, in particular CDATA sections are turned into text
+ * nodes, entity references are expanded and the document type
+ * declaration is removed. Like XMLUnit's default parser
+ * configuration the SAX parser doesn't load any external DTDs or
+ * entities.</p>
  */
 public final class CommentLessSource extends DOMSource {
 
@@ -39,6 +63,18 @@ public final class CommentLessSource extends DOMSource {
             + "</copy></template>"
             + "</stylesheet>";
 
+    private static final String[] EXTERNAL_LOAD_FEATURES = new String[] {
+        "http://xml.org/sax/features/external-general-entities",
+        "http://xml.org/sax/features/external-parameter-entities",
+        "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+    };
+
+    // XMLConstants.ACCESS_EXTERNAL_* are not available in Java 6
+    private static final String[] EXTERNAL_ACCESS_PROPERTIES = new String[] {
+        "http://javax.xml.XMLConstants/property/accessExternalDTD",
+        "http://javax.xml.XMLConstants/property/accessExternalSchema",
+    };
+
     /**
      * Stylesheet used to strip all comments from an XML document.
      */
@@ -46,17 +82,24 @@ public final class CommentLessSource extends DOMSource {
 
     /**
      * Creates a new source that consists of the given source with all
-     * comments removed using an XSLT stylesheet of version 2.0.
+     * comments removed.
      *
      * @param originalSource the original source
      */
     public CommentLessSource(Source originalSource) {
-        this(originalSource, DEFAULT_VERSION);
+        super();
+        if (originalSource == null) {
+            throw new IllegalArgumentException("source must not be null");
+        }
+        InputSource is = originalSource instanceof DOMSource ? null
+            : SAXSource.sourceToInputSource(originalSource);
+        setNode(is != null ? parseWithoutComments(originalSource, is)
+                : stripCopy(originalSource));
     }
 
     /**
      * Creates a new source that consists of the given source with all
-     * comments removed.
+     * comments removed using an XSLT stylesheet.
      *
      * @param originalSource the original source
      * @param xsltVersion use this version for the stylesheet
@@ -75,6 +118,60 @@ public CommentLessSource(Source originalSource, String xsltVersion) {
         setNode(t.transformToDocument());
     }
 
+    private static Node parseWithoutComments(Source originalSource, InputSource is) {
+        XMLReader reader = originalSource instanceof SAXSource
+            ? ((SAXSource) originalSource).getXMLReader() : null;
+        if (reader == null) {
+            reader = newSecureReader();
+        }
+        return new Transformation(new SAXSource(new CommentFilter(reader), is))
+            .transformToDocument();
+    }
+
+    /**
+     * Creates a namespace aware XMLReader that doesn't load external
+     * DTDs or entities - like the factories configured by {@link
+     * org.xmlunit.util.DocumentBuilderFactoryConfigurer#Default} and
+     * {@link org.xmlunit.util.TransformerFactoryConfigurer#Default}.
+     */
+    private static XMLReader newSecureReader() {
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setXIncludeAware(false);
+            XMLReader reader = factory.newSAXParser().getXMLReader();
+            for (String feature : EXTERNAL_LOAD_FEATURES) {
+                try {
+                    reader.setFeature(feature, false);
+                } catch (SAXNotRecognizedException ex) {
+                    // not supported by this parser
+                } catch (SAXNotSupportedException ex) {
+                    // not supported by this parser
+                }
+            }
+            for (String property : EXTERNAL_ACCESS_PROPERTIES) {
+                try {
+                    reader.setProperty(property, "");
+                } catch (SAXNotRecognizedException ex) {
+                    // not supported by this parser
+                } catch (SAXNotSupportedException ex) {
+                    // not supported by this parser
+                }
+            }
+            return reader;
+        } catch (ParserConfigurationException e) {
+            throw new XMLUnitException(e);
+        } catch (SAXException e) {
+            throw new XMLUnitException(e);
+        }
+    }
+
+    private static Node stripCopy(Source originalSource) {
+        return new CombinedNormalizedSource(originalSource,
+            EnumSet.of(CombinedNormalizedSource.Normalization.STRIP_COMMENTS))
+            .getNode();
+    }
+
     private static Source getStylesheet(String xsltVersion) {
         return new StreamSource(new java.io.StringReader(getStylesheetContentCached(xsltVersion)));
     }
@@ -86,4 +183,63 @@ private static String getStylesheetContentCached(String xsltVersion) {
     private static String getStylesheetContent(String xsltVersion) {
         return String.format(STYLE_TEMPLATE, xsltVersion);
     }
+
+    /**
+     * Swallows all events of the LexicalHandler, which includes
+     * comments, CDATA section boundaries and entity boundaries.
+     */
+    private static final class CommentFilter extends XMLFilterImpl implements LexicalHandler {
+        private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+        private CommentFilter(XMLReader parent) {
+            super(parent);
+        }
+
+        @Override
+        public void parse(InputSource input) throws SAXException, IOException {
+            try {
+                getParent().setProperty(LEXICAL_HANDLER, this);
+            } catch (SAXNotRecognizedException ex) {
+                // parser doesn't report comments at all
+            } catch (SAXNotSupportedException ex) {
+                // parser doesn't report comments at all
+            }
+            super.parse(input);
+        }
+
+        @Override
+        public void setProperty(String name, Object value)
+            throws SAXNotRecognizedException, SAXNotSupportedException {
+            if (!LEXICAL_HANDLER.equals(name)) {
+                super.setProperty(name, value);
+            }
+        }
+
+        @Override
+        public Object getProperty(String name)
+            throws SAXNotRecognizedException, SAXNotSupportedException {
+            return LEXICAL_HANDLER.equals(name) ? null : super.getProperty(name);
+        }
+
+        @Override
+        public void startDTD(String name, String publicId, String systemId) { }
+
+        @Override
+        public void endDTD() { }
+
+        @Override
+        public void startEntity(String name) { }
+
+        @Override
+        public void endEntity(String name) { }
+
+        @Override
+        public void startCDATA() { }
+
+        @Override
+        public void endCDATA() { }
+
+        @Override
+        public void comment(char[] ch, int start, int length) { }
+    }
 }
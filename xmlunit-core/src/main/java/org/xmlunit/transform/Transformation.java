@@ -27,7 +27,7 @@
 import javax.xml.transform.stream.StreamResult;
 import org.xmlunit.ConfigurationException;
 import org.xmlunit.XMLUnitException;
-import org.xmlunit.util.TransformerFactoryConfigurer;
+import org.xmlunit.util.FactoryRegistry;
 import org.w3c.dom.Document;
 
 /**
@@ -180,7 +180,7 @@ public void transformTo(Result r) {
         try {
             TransformerFactory fac = factory;
             if (fac == null) {
-                fac = TransformerFactoryConfigurer.Default.configure(TransformerFactory.newInstance());
+                fac = FactoryRegistry.getTransformerFactory();
             }
             Transformer t;
             if (styleSheet != null) {
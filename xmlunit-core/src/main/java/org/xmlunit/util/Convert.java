@@ -27,8 +27,10 @@
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stax.StAXSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import org.xmlunit.ConfigurationException;
@@ -46,8 +48,10 @@ private Convert() { }
     /**
      * Creates a SAX InputSource from a TraX Source.
      *
-     * <p>May use an XSLT identity transformation if SAXSource cannot
-     * convert it directly.</p>
+     * <p>A {@link StAXSource} is serialized event by event while the
+     * InputSource is read. Other sources SAXSource cannot convert
+     * directly are copied into an in-memory buffer using an XSLT
+     * identity transformation.</p>
      *
      * @param s the source to convert
      * @return the created InputSource
@@ -59,8 +63,10 @@ public static InputSource toInputSource(Source s) {
     /**
      * Creates a SAX InputSource from a TraX Source.
      *
-     * <p>May use an XSLT identity transformation if SAXSource cannot
-     * convert it directly.</p>
+     * <p>A {@link StAXSource} is serialized event by event while the
+     * InputSource is read. Other sources SAXSource cannot convert
+     * directly are copied into an in-memory buffer using an XSLT
+     * identity transformation.</p>
      *
      * @param s the source to convert
      * @param fac the TransformerFactory to use, will use the default
@@ -70,16 +76,18 @@ public static InputSource toInputSource(Source s) {
     public static InputSource toInputSource(Source s, TransformerFactory fac) {
         try {
             InputSource is = SAXSource.sourceToInputSource(s);
-            if (is == null) {
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if (is == null && s instanceof StAXSource) {
+                is = new InputSource(new StAXSourceReader((StAXSource) s));
+                is.setSystemId(s.getSystemId());
+            } else if (is == null) {
+                Buffer bos = new Buffer();
                 StreamResult r = new StreamResult(bos);
                 if (fac == null) {
-                    fac = TransformerFactoryConfigurer.NoExternalAccess.configure(TransformerFactory.newInstance());
+                    fac = FactoryRegistry.getTransformerFactory(TransformerFactoryConfigurer.NoExternalAccess);
                 }
                 Transformer t = fac.newTransformer();
                 t.transform(s, r);
-                s = new StreamSource(new ByteArrayInputStream(bos
-                                                              .toByteArray()));
+                s = new StreamSource(bos.toInputStream());
                 is = SAXSource.sourceToInputSource(s);
             }
             return is;
@@ -94,30 +102,40 @@ public static InputSource toInputSource(Source s, TransformerFactory fac) {
      * Creates a DOM Document from a TraX Source.
      *
      * <p>If the source is a {@link DOMSource} holding a Document
-     * Node, this one will be returned.  Otherwise {@link
-     * #toInputSource} and a namespace aware DocumentBuilder (created
-     * by the default DocumentBuilderFactory) will be used to read the
-     * source.  This may involve an XSLT identity transform in
-     * toInputSource.</p>
+     * Node, this one will be returned.  DOMSources holding other
+     * nodes are copied into a new Document by an XSLT identity
+     * transform.  Otherwise {@link #toInputSource} and a namespace
+     * aware DocumentBuilder (created by the default
+     * DocumentBuilderFactory) will be used to read the source.  This
+     * may involve an XSLT identity transform in toInputSource.</p>
+     *
+     * <p>The default DocumentBuilderFactory and the DocumentBuilder
+     * are reused by later invocations on the same thread.</p>
      *
      * @param s the source to convert
      * @return the created Document
      */
     public static Document toDocument(Source s) {
         Document d = tryExtractDocFromDOMSource(s);
-        return d != null ? d
-            : toDocument(s, DocumentBuilderFactoryConfigurer.Default.configure(DocumentBuilderFactory.newInstance()));
+        return d != null ? d : toDocument(s, DocumentBuilderPool.defaultFactory());
     }
 
     /**
      * Creates a DOM Document from a TraX Source.
      *
      * <p>If the source is a {@link DOMSource} holding a Document
-     * Node, this one will be returned.  Otherwise {@link
-     * #toInputSource} and a namespace aware DocumentBuilder (created
-     * by given DocumentBuilderFactory) will be used to read the
-     * source.  This may involve an XSLT identity transform in
-     * toInputSource.</p>
+     * Node, this one will be returned.  DOMSources holding other
+     * nodes are copied into a new Document by an XSLT identity
+     * transform, the nodes have already been parsed, so the parser
+     * settings of the factory - like coalescing or ignoring comments
+     * - are not applied to them.  Otherwise {@link #toInputSource} and
+     * a namespace aware DocumentBuilder (created by given
+     * DocumentBuilderFactory) will be used to read the source.  This
+     * may involve an XSLT identity transform in toInputSource.</p>
+     *
+     * <p>DocumentBuilders are only reused for factories handed out
+     * by {@link FactoryRegistry}, other factories create a new
+     * builder for each document.</p>
      *
      * @param s the source to convert
      * @param factory factory to use
@@ -126,18 +144,93 @@ public static Document toDocument(Source s) {
     public static Document toDocument(Source s,
                                       DocumentBuilderFactory factory) {
         Document d = tryExtractDocFromDOMSource(s);
+        if (d != null) {
+            return d;
+        }
+        return s instanceof DOMSource
+            ? transformToDocument(s, DocumentBuilderPool.newDocument(factory))
+            : DocumentBuilderPool.parse(toInputSource(s), factory);
+    }
+
+    /**
+     * Creates a DOM Document from a TraX Source using a given
+     * DocumentBuilder.
+     *
+     * <p>If the source is a {@link DOMSource} holding a Document
+     * Node, this one will be returned.  DOMSources holding other
+     * nodes are copied into a new Document by an XSLT identity
+     * transform without applying the parser settings of the builder.
+     * Otherwise {@link #toInputSource} and the given DocumentBuilder
+     * will be used to read the source.</p>
+     *
+     * <p>Unlike a DocumentBuilderFactory the DocumentBuilder is only
+     * used by the current thread which allows sources to be parsed
+     * concurrently using different DocumentBuilders.</p>
+     *
+     * @param s the source to convert
+     * @param builder the builder to use, it should be namespace
+     * aware, see {@link #newDocumentBuilder}
+     * @return the created Document
+     *
+     * @since XMLUnit 2.11.0
+     */
+    public static Document toDocument(Source s, DocumentBuilder builder) {
+        Document d = tryExtractDocFromDOMSource(s);
         if (d == null) {
-            InputSource is = toInputSource(s);
-            DocumentBuilder b = null;
+            if (s instanceof DOMSource) {
+                return transformToDocument(s, builder.newDocument());
+            }
+            try {
+                d = builder.parse(toInputSource(s));
+            } catch (org.xml.sax.SAXException e) {
+                throw new XMLUnitException(e);
+            } catch (java.io.IOException e) {
+                throw new XMLUnitException(e);
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Copies the source into the given empty Document without
+     * serializing and parsing it again.
+     */
+    private static Document transformToDocument(Source s, Document d) {
+        try {
+            FactoryRegistry.getTransformerFactory(TransformerFactoryConfigurer.NoExternalAccess)
+                .newTransformer()
+                .transform(s, new DOMResult(d));
+            return d;
+        } catch (javax.xml.transform.TransformerConfigurationException e) {
+            throw new ConfigurationException(e);
+        } catch (javax.xml.transform.TransformerException e) {
+            throw new XMLUnitException(e);
+        }
+    }
 
-            // yes, there is a race condition but it is so unlikely to
-            // happen that I currently don't care enough
+    /**
+     * Creates a namespace aware DocumentBuilder using the given
+     * factory.
+     *
+     * <p>The factory is made namespace aware temporarily if it
+     * isn't. This happens while holding the lock of the factory, so
+     * a factory may be shared between threads that create builders
+     * using this method - as all of XMLUnit does - as long as it is
+     * not reconfigured by other means at the same time.</p>
+     *
+     * @param factory factory to use
+     * @return the created DocumentBuilder
+     *
+     * @since XMLUnit 2.11.0
+     */
+    public static DocumentBuilder newDocumentBuilder(DocumentBuilderFactory factory) {
+        synchronized (factory) {
             boolean oldNsAware = factory.isNamespaceAware();
             try {
                 if (!oldNsAware) {
                     factory.setNamespaceAware(true);
                 }
-                b = factory.newDocumentBuilder();
+                return factory.newDocumentBuilder();
             } catch (javax.xml.parsers.ParserConfigurationException e) {
                 throw new ConfigurationException(e);
             } finally {
@@ -145,16 +238,7 @@ public static Document toDocument(Source s,
                     factory.setNamespaceAware(false);
                 }
             }
-
-            try {
-                d = b.parse(is);
-            } catch (org.xml.sax.SAXException e) {
-                throw new XMLUnitException(e);
-            } catch (java.io.IOException e) {
-                throw new XMLUnitException(e);
-            }
         }
-        return d;
     }
 
     private static Document tryExtractDocFromDOMSource(Source s) {
@@ -176,8 +260,7 @@ private static Document tryExtractDocFromDOMSource(Source s) {
      */
     public static Node toNode(Source s) {
         Node n = tryExtractNodeFromDOMSource(s);
-        return n != null ? n
-            : toDocument(s, DocumentBuilderFactoryConfigurer.Default.configure(DocumentBuilderFactory.newInstance()));
+        return n != null ? n : toDocument(s, DocumentBuilderPool.defaultFactory());
     }
 
     /**
@@ -261,4 +344,14 @@ public Iterator getPrefixes(String uri) {
             }
         };
     }
+
+    /**
+     * ByteArrayOutputStream that can be read without copying its
+     * contents.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+        private ByteArrayInputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.xmlunit.XMLUnitException;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Keeps a namespace aware {@link DocumentBuilder} per thread for the
+ * {@link DocumentBuilderFactory DocumentBuilderFactories} handed out
+ * by {@link FactoryRegistry} so parsing many small documents doesn't
+ * pay for creating a new builder each time.
+ *
+ * <p>Builders are {@link DocumentBuilder#reset reset} after each use.
+ * Factories of the registry must not be reconfigured, so their
+ * builders remain valid. Factories created by callers may be
+ * reconfigured at any time - and features and attributes can't be
+ * queried - so each document parsed with such a factory uses a new
+ * builder and neither the factory nor the builder is kept.</p>
+ *
+ * <p>package private to support {@link Convert}.</p>
+ */
+final class DocumentBuilderPool {
+    private static final int MAX_BUILDERS_PER_THREAD = 8;
+
+    private static final ThreadLocal<Map<DocumentBuilderFactory, PooledBuilder>> BUILDERS =
+        new ThreadLocal<Map<DocumentBuilderFactory, PooledBuilder>>() {
+            @Override
+            protected Map<DocumentBuilderFactory, PooledBuilder> initialValue() {
+                // DocumentBuilderFactory doesn't override equals, so
+                // this is keyed by identity
+                return new LinkedHashMap<DocumentBuilderFactory, PooledBuilder>(16, 0.75f,
+                                                                                 true) {
+                    private static final long serialVersionUID = 1L;
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<DocumentBuilderFactory,
+                                                        PooledBuilder> eldest) {
+                        return size() > MAX_BUILDERS_PER_THREAD;
+                    }
+                };
+            }
+        };
+
+    private DocumentBuilderPool() { }
+
+    /**
+     * The default factory of the current thread as provided by
+     * {@link FactoryRegistry}.
+     */
+    static DocumentBuilderFactory defaultFactory() {
+        return FactoryRegistry.getDocumentBuilderFactory();
+    }
+
+    /**
+     * Parses the input using a builder created by the given factory.
+     */
+    static Document parse(InputSource is, DocumentBuilderFactory factory) {
+        if (!FactoryRegistry.isDocumentBuilderFactoryOfCurrentThread(factory)) {
+            return parse(is, Convert.newDocumentBuilder(factory));
+        }
+        Map<DocumentBuilderFactory, PooledBuilder> builders = BUILDERS.get();
+        PooledBuilder pooled = pooledBuilder(builders, factory);
+        if (pooled.inUse) {
+            // parse has been re-entered, for example by an entity
+            // resolver, use a builder that is not pooled
+            return parse(is, Convert.newDocumentBuilder(factory));
+        }
+        pooled.inUse = true;
+        try {
+            return parse(is, pooled.builder);
+        } finally {
+            pooled.inUse = false;
+            try {
+                pooled.builder.reset();
+            } catch (UnsupportedOperationException ex) {
+                builders.remove(factory);
+            }
+        }
+    }
+
+    /**
+     * Creates an empty Document using a builder created by the given
+     * factory.
+     */
+    static Document newDocument(DocumentBuilderFactory factory) {
+        DocumentBuilder builder =
+            FactoryRegistry.isDocumentBuilderFactoryOfCurrentThread(factory)
+            ? pooledBuilder(BUILDERS.get(), factory).builder
+            : Convert.newDocumentBuilder(factory);
+        return builder.newDocument();
+    }
+
+    private static PooledBuilder pooledBuilder(Map<DocumentBuilderFactory, PooledBuilder> builders,
+                                               DocumentBuilderFactory factory) {
+        PooledBuilder pooled = builders.get(factory);
+        if (pooled == null) {
+            pooled = new PooledBuilder(factory);
+            builders.put(factory, pooled);
+        }
+        return pooled;
+    }
+
+    private static Document parse(InputSource is, DocumentBuilder builder) {
+        try {
+            return builder.parse(is);
+        } catch (org.xml.sax.SAXException e) {
+            throw new XMLUnitException(e);
+        } catch (java.io.IOException e) {
+            throw new XMLUnitException(e);
+        }
+    }
+
+    private static final class PooledBuilder {
+        private final DocumentBuilder builder;
+        private boolean inUse;
+
+        private PooledBuilder(DocumentBuilderFactory factory) {
+            builder = Convert.newDocumentBuilder(factory);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * Hands out configured JAXP factories that are created once per
+ * thread and configuration rather than each time one is needed.
+ *
+ * <p>Locating the implementation of a JAXP factory may involve a
+ * scan of the classpath, which is a noticeable part of comparing or
+ * transforming small documents. The factories returned by this class
+ * are created on the first request of a thread and returned again to
+ * later requests of the same thread using the same configurer - or
+ * schema language for {@link SchemaFactory}.</p>
+ *
+ * <p>JAXP factories are not thread-safe, so a factory returned by
+ * this class must only be used by the thread that requested it.
+ * Factories are shared by all code running on the same thread and
+ * must not be reconfigured. If you need to change settings use a
+ * different configurer or create a factory of your own.</p>
+ *
+ * <p>Each thread keeps a small number of factories per kind of
+ * factory only, the least recently used one is forgotten if more
+ * configurers are used.</p>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public final class FactoryRegistry {
+    private static final int MAX_FACTORIES_PER_THREAD = 8;
+
+    private static final PerThread<DocumentBuilderFactoryConfigurer, DocumentBuilderFactory>
+        DOCUMENT_BUILDER_FACTORIES =
+        new PerThread<DocumentBuilderFactoryConfigurer, DocumentBuilderFactory>() {
+            @Override
+            DocumentBuilderFactory create(DocumentBuilderFactoryConfigurer configurer) {
+                return configurer.configure(DocumentBuilderFactory.newInstance());
+            }
+        };
+
+    private static final PerThread<TransformerFactoryConfigurer, TransformerFactory>
+        TRANSFORMER_FACTORIES =
+        new PerThread<TransformerFactoryConfigurer, TransformerFactory>() {
+            @Override
+            TransformerFactory create(TransformerFactoryConfigurer configurer) {
+                return configurer.configure(TransformerFactory.newInstance());
+            }
+        };
+
+    private static final PerThread<XPathFactoryConfigurer, XPathFactory> XPATH_FACTORIES =
+        new PerThread<XPathFactoryConfigurer, XPathFactory>() {
+            @Override
+            XPathFactory create(XPathFactoryConfigurer configurer) {
+                return configurer.configure(XPathFactory.newInstance());
+            }
+        };
+
+    private static final PerThread<String, SchemaFactory> SCHEMA_FACTORIES =
+        new PerThread<String, SchemaFactory>() {
+            @Override
+            SchemaFactory create(String language) {
+                return SchemaFactory.newInstance(language);
+            }
+        };
+
+    private FactoryRegistry() { }
+
+    /**
+     * The DocumentBuilderFactory of the current thread configured by
+     * {@link DocumentBuilderFactoryConfigurer#Default}.
+     * @return the factory
+     */
+    public static DocumentBuilderFactory getDocumentBuilderFactory() {
+        return getDocumentBuilderFactory(DocumentBuilderFactoryConfigurer.Default);
+    }
+
+    /**
+     * The DocumentBuilderFactory of the current thread configured by
+     * the given configurer.
+     * @param configurer the configurer to apply to a new factory
+     * @return the factory
+     */
+    public static DocumentBuilderFactory getDocumentBuilderFactory(DocumentBuilderFactoryConfigurer configurer) {
+        return DOCUMENT_BUILDER_FACTORIES.get(configurer, "configurer");
+    }
+
+    /**
+     * Whether the given factory has been handed out by this class to
+     * the current thread.
+     *
+     * <p>package private to support {@link DocumentBuilderPool}.</p>
+     */
+    static boolean isDocumentBuilderFactoryOfCurrentThread(DocumentBuilderFactory factory) {
+        return DOCUMENT_BUILDER_FACTORIES.get().containsValue(factory);
+    }
+
+    /**
+     * The TransformerFactory of the current thread configured by
+     * {@link TransformerFactoryConfigurer#Default}.
+     * @return the factory
+     */
+    public static TransformerFactory getTransformerFactory() {
+        return getTransformerFactory(TransformerFactoryConfigurer.Default);
+    }
+
+    /**
+     * The TransformerFactory of the current thread configured by the
+     * given configurer.
+     * @param configurer the configurer to apply to a new factory
+     * @return the factory
+     */
+    public static TransformerFactory getTransformerFactory(TransformerFactoryConfigurer configurer) {
+        return TRANSFORMER_FACTORIES.get(configurer, "configurer");
+    }
+
+    /**
+     * The XPathFactory of the current thread configured by {@link
+     * XPathFactoryConfigurer#Default}.
+     * @return the factory
+     */
+    public static XPathFactory getXPathFactory() {
+        return getXPathFactory(XPathFactoryConfigurer.Default);
+    }
+
+    /**
+     * The XPathFactory of the current thread configured by the given
+     * configurer.
+     * @param configurer the configurer to apply to a new factory
+     * @return the factory
+     */
+    public static XPathFactory getXPathFactory(XPathFactoryConfigurer configurer) {
+        return XPATH_FACTORIES.get(configurer, "configurer");
+    }
+
+    /**
+     * The SchemaFactory of the current thread for the given schema
+     * language.
+     * @param language the schema language as passed to {@link
+     * SchemaFactory#newInstance}
+     * @return the factory
+     * @throws IllegalArgumentException if no implementation for the
+     * schema language is available
+     */
+    public static SchemaFactory getSchemaFactory(String language) {
+        return SCHEMA_FACTORIES.get(language, "language");
+    }
+
+    /**
+     * Factories of the current thread keyed by their configuration.
+     */
+    private abstract static class PerThread<K, F> extends ThreadLocal<Map<K, F>> {
+        @Override
+        protected Map<K, F> initialValue() {
+            return new LinkedHashMap<K, F>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, F> eldest) {
+                    return size() > MAX_FACTORIES_PER_THREAD;
+                }
+            };
+        }
+
+        F get(K key, String keyName) {
+            if (key == null) {
+                throw new IllegalArgumentException(keyName + " must not be null");
+            }
+            Map<K, F> factories = get();
+            F factory = factories.get(key);
+            if (factory == null) {
+                factory = create(key);
+                factories.put(key, factory);
+            }
+            return factory;
+        }
+
+        abstract F create(K key);
+    }
+}
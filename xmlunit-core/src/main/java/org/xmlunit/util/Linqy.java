@@ -18,6 +18,7 @@
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 
 /**
  * A couple of (functional) sequence processing constructs.
@@ -43,6 +44,26 @@ public static <E> List<E> asList(Iterable<E> i) {
         return a;
     }
 
+    /**
+     * Turns the iterable into a list that supports fast random
+     * access.
+     *
+     * <p>Unlike {@link #asList} this returns the iterable itself if
+     * it already is a {@link List} implementing {@link
+     * RandomAccess} rather than copying it.</p>
+     *
+     * @param i the iterable
+     * @param <E> element type
+     * @return a list containing all elements of the Iterable passed in
+     * @since XMLUnit 2.11.0
+     */
+    public static <E> List<E> randomAccessList(Iterable<E> i) {
+        if (i instanceof List && i instanceof RandomAccess) {
+            return (List<E>) i;
+        }
+        return asList(i);
+    }
+
     /**
      * Turns an iterable into its type-safe cousin.
      * @param i the iterable
@@ -227,8 +227,12 @@ private static void handleWsRec(Node n, boolean normalize) {
      * <p>"normalized" in this context means all whitespace characters
      * are replaced by space characters and consecutive whitespace
      * characaters are collapsed.</p>
+     *
+     * @param s the string to normalize
+     * @return the normalized string
+     * @since XMLUnit 2.11.0
      */
-    static String normalize(String s) {
+    public static String normalize(String s) {
         StringBuilder sb = new StringBuilder();
         boolean changed = false;
         boolean lastCharWasWS = false;
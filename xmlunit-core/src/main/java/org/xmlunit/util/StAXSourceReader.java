@@ -0,0 +1,117 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.stax.StAXSource;
+import org.xmlunit.XMLUnitException;
+
+/**
+ * A Reader that serializes the events of a {@link StAXSource} on
+ * demand.
+ *
+ * <p>Only the serialized form of the event that has been pulled last
+ * is held in memory, so the document is never buffered as a
+ * whole. If the StAX reader is positioned on a start element only
+ * this element and its children are serialized, declaring the
+ * namespaces they use.</p>
+ *
+ * <p>The StAX reader is consumed but not closed as it belongs to the
+ * creator of the source.</p>
+ *
+ * <p>package private to support {@link Convert}.</p>
+ */
+final class StAXSourceReader extends Reader {
+    private final XMLEventReader events;
+    private final StringWriter out = new StringWriter();
+    private XMLEventWriter writer;
+    private int position;
+    private int depth;
+    private boolean subtree;
+    private boolean started;
+    private boolean done;
+
+    StAXSourceReader(StAXSource s) {
+        try {
+            events = s.getXMLEventReader() != null ? s.getXMLEventReader()
+                : XMLInputFactory.newInstance().createXMLEventReader(s.getXMLStreamReader());
+        } catch (XMLStreamException e) {
+            throw new XMLUnitException(e);
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        StringBuffer buffer = out.getBuffer();
+        while (position == buffer.length()) {
+            if (done) {
+                return -1;
+            }
+            buffer.setLength(0);
+            position = 0;
+            pull();
+        }
+        int count = Math.min(len, buffer.length() - position);
+        buffer.getChars(position, position + count, cbuf, off);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+        done = true;
+        out.getBuffer().setLength(0);
+        position = 0;
+    }
+
+    private void pull() throws IOException {
+        try {
+            if (!events.hasNext()) {
+                done = true;
+                return;
+            }
+            XMLEvent e = events.nextEvent();
+            if (!started) {
+                started = true;
+                subtree = e.isStartElement();
+                XMLOutputFactory f = XMLOutputFactory.newInstance();
+                // namespaces declared by ancestors of the subtree
+                // must be declared by the serialized elements
+                f.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, subtree);
+                writer = f.createXMLEventWriter(out);
+            }
+            if (e.isStartElement()) {
+                depth++;
+            } else if (e.isEndElement()) {
+                depth--;
+            }
+            writer.add(e);
+            writer.flush();
+            done = e.isEndDocument() || subtree && depth == 0;
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import org.xmlunit.XMLUnitException;
+import org.xmlunit.util.FactoryRegistry;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
@@ -64,12 +65,13 @@ public final void setSchema(Schema s) {
     }
 
     private SchemaFactory getFactory() {
-        return factory == null ? SchemaFactory.newInstance(language) : factory;
+        return factory == null ? FactoryRegistry.getSchemaFactory(language) : factory;
     }
 
     @Override public ValidationResult validateSchema() {
         ValidationHandler v = new ValidationHandler();
-        SchemaFactory f = getFactory();
+        // the factories of FactoryRegistry must not be reconfigured
+        SchemaFactory f = factory == null ? SchemaFactory.newInstance(language) : factory;
         f.setErrorHandler(v);
         try {
             f.newSchema(getSchemaSources());
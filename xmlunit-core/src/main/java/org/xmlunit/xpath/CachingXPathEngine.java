@@ -0,0 +1,201 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.xpath;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import org.xmlunit.util.Convert;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * {@link XPathEngine} that parses each {@link Source} only once and
+ * applies all expressions evaluated against the same source to the
+ * resulting DOM Document.
+ *
+ * <p>Sources are identified by identity, evaluating several
+ * expressions against the same {@code Source} instance only parses
+ * it once - this also allows {@code Source}s that can only be read
+ * once, like a {@code StreamSource} wrapping an {@code InputStream},
+ * to be used more than once. Once the engine holds its maximum
+ * number of documents the least recently used one is evicted.
+ * {@code DOMSource}s are passed to the wrapped engine directly and
+ * never cached.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * <p><b>Example Usage:</b></p>
+ *
+ * <pre>
+ * XPathEngine engine = new CachingXPathEngine();
+ * Source response = Input.fromFile("response.xml").build();
+ * String id = engine.evaluate("/response/@id", response);
+ * Iterable&lt;Node&gt; items = engine.selectNodes("//item", response);
+ * </pre>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public class CachingXPathEngine implements XPathEngine {
+
+    /**
+     * Maximum number of documents kept by engines that don't specify
+     * a limit explicitly.
+     */
+    public static final int DEFAULT_MAX_DOCUMENTS = 16;
+
+    private final XPathEngine delegate;
+    private final Map<SourceKey, Document> documents;
+
+    /**
+     * Creates an engine using a {@link JAXPXPathEngine} that keeps at
+     * most {@link #DEFAULT_MAX_DOCUMENTS} documents.
+     */
+    public CachingXPathEngine() {
+        this(new JAXPXPathEngine());
+    }
+
+    /**
+     * Creates an engine using the given engine that keeps at most
+     * {@link #DEFAULT_MAX_DOCUMENTS} documents.
+     * @param delegate the engine to evaluate expressions with
+     */
+    public CachingXPathEngine(XPathEngine delegate) {
+        this(delegate, DEFAULT_MAX_DOCUMENTS);
+    }
+
+    /**
+     * Creates an engine using the given engine.
+     * @param delegate the engine to evaluate expressions with
+     * @param maxDocuments the maximum number of documents to keep
+     */
+    public CachingXPathEngine(XPathEngine delegate, final int maxDocuments) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate must not be null");
+        }
+        if (maxDocuments < 1) {
+            throw new IllegalArgumentException("maxDocuments must be positive");
+        }
+        this.delegate = delegate;
+        documents = new LinkedHashMap<SourceKey, Document>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SourceKey, Document> eldest) {
+                return size() > maxDocuments;
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterable<Node> selectNodes(String xPath, Source s) {
+        return s instanceof DOMSource ? delegate.selectNodes(xPath, s)
+            : delegate.selectNodes(xPath, getDocument(s));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String evaluate(String xPath, Source s) {
+        return s instanceof DOMSource ? delegate.evaluate(xPath, s)
+            : delegate.evaluate(xPath, getDocument(s));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterable<Node> selectNodes(String xPath, Node n) {
+        return delegate.selectNodes(xPath, n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String evaluate(String xPath, Node n) {
+        return delegate.evaluate(xPath, n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNamespaceContext(Map<String, String> prefix2Uri) {
+        delegate.setNamespaceContext(prefix2Uri);
+    }
+
+    /**
+     * Removes the document parsed from the given source from the
+     * cache.
+     * @param s the source
+     */
+    public void evict(Source s) {
+        documents.remove(new SourceKey(s));
+    }
+
+    /**
+     * Removes all documents from the cache.
+     */
+    public void clear() {
+        documents.clear();
+    }
+
+    /**
+     * Number of documents currently held by the cache.
+     * @return number of cached documents
+     */
+    public int size() {
+        return documents.size();
+    }
+
+    private Document getDocument(Source s) {
+        if (s == null) {
+            throw new IllegalArgumentException("source must not be null");
+        }
+        SourceKey key = new SourceKey(s);
+        Document d = documents.get(key);
+        if (d == null) {
+            d = Convert.toDocument(s);
+            documents.put(key, d);
+        }
+        return d;
+    }
+
+    /**
+     * Sources don't override equals, this makes sure they are
+     * compared by identity even if a subclass does.
+     */
+    private static final class SourceKey {
+        private final Source source;
+
+        private SourceKey(Source source) {
+            this.source = source;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SourceKey && ((SourceKey) o).source == source;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(source);
+        }
+    }
+}
@@ -13,31 +13,52 @@
 */
 package org.xmlunit.xpath;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import org.xmlunit.ConfigurationException;
 import org.xmlunit.XMLUnitException;
 import org.xmlunit.util.Convert;
+import org.xmlunit.util.FactoryRegistry;
 import org.xmlunit.util.IterableNodeList;
 import org.xmlunit.util.XPathFactoryConfigurer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
  * Simplified access to JAXP's XPath API.
+ *
+ * <p>Compiled expressions are kept in an {@link XPathExpressionCache}
+ * so evaluating the same expression several times only compiles it
+ * once. By default engines use the {@link
+ * XPathExpressionCache#forCurrentThread cache of the current thread}
+ * for their XPathFactory, so engines created one after the other -
+ * like the ones created for each assertion - share their compiled
+ * expressions. Use {@link #setExpressionCache} to pick a different
+ * cache.</p>
  */
 public class JAXPXPathEngine implements XPathEngine {
+    private final XPathFactory factory;
     private final XPath xpath;
+    private boolean perThreadCache = true;
+    private XPathExpressionCache expressionCache;
+    private Map<String, String> prefix2Uri;
 
     /**
      * Create an XPathEngine that uses a custom XPathFactory.
      * @param fac the factory to use
      */
     public JAXPXPathEngine(XPathFactory fac) {
+        factory = fac;
         try {
             xpath = fac.newXPath();
         } catch (Exception e) {
@@ -50,7 +71,7 @@ public JAXPXPathEngine(XPathFactory fac) {
      * under the covers.
      */
     public JAXPXPathEngine() {
-        this(XPathFactoryConfigurer.Default.configure(XPathFactory.newInstance()));
+        this(FactoryRegistry.getXPathFactory());
     }
 
     /**
@@ -58,10 +79,14 @@ public JAXPXPathEngine() {
      */
     @Override
     public Iterable<Node> selectNodes(String xPath, Source s) {
+        Node n = toNode(s);
+        if (n != null) {
+            return selectNodes(xPath, n);
+        }
         try {
             return new IterableNodeList(
-                (NodeList) xpath.evaluate(xPath, Convert.toInputSource(s),
-                                          XPathConstants.NODESET)
+                (NodeList) compile(xPath).evaluate(Convert.toInputSource(s),
+                                                   XPathConstants.NODESET)
                                         );
         } catch (XPathExpressionException ex) {
             throw new XMLUnitException(ex);
@@ -73,8 +98,12 @@ public Iterable<Node> selectNodes(String xPath, Source s) {
      */
     @Override
     public String evaluate(String xPath, Source s) {
+        Node n = toNode(s);
+        if (n != null) {
+            return evaluate(xPath, n);
+        }
         try {
-            return xpath.evaluate(xPath, Convert.toInputSource(s));
+            return compile(xPath).evaluate(Convert.toInputSource(s));
         } catch (XPathExpressionException ex) {
             throw new XMLUnitException(ex);
         }
@@ -87,7 +116,7 @@ public String evaluate(String xPath, Source s) {
     public Iterable<Node> selectNodes(String xPath, Node n) {
         try {
             return new IterableNodeList(
-                (NodeList) xpath.evaluate(xPath, n, XPathConstants.NODESET));
+                (NodeList) compile(xPath).evaluate(n, XPathConstants.NODESET));
         } catch (XPathExpressionException ex) {
             throw new XMLUnitException(ex);
         }
@@ -99,18 +128,68 @@ public Iterable<Node> selectNodes(String xPath, Node n) {
     @Override
     public String evaluate(String xPath, Node n) {
         try {
-            return xpath.evaluate(xPath, n);
+            return compile(xPath).evaluate(n);
         } catch (XPathExpressionException ex) {
             throw new XMLUnitException(ex);
         }
     }
 
+    /**
+     * Returns the DOM node to apply XPath expressions to if the
+     * source would have to be serialized in order to create an
+     * InputSource, null otherwise.
+     *
+     * <p>Namespace aware DOM Documents are used directly, other
+     * sources that can't be read as InputSource are copied into a new
+     * Document.</p>
+     */
+    private static Node toNode(Source s) {
+        if (s instanceof DOMSource) {
+            Node n = ((DOMSource) s).getNode();
+            Node e = n instanceof Document ? ((Document) n).getDocumentElement() : n;
+            if (e == null || e instanceof Element && e.getLocalName() == null) {
+                // nodes created by DOM Level 1 methods don't support
+                // namespaces, have them parsed again
+                return null;
+            }
+            if (n instanceof Document) {
+                return n;
+            }
+        }
+        return SAXSource.sourceToInputSource(s) == null ? Convert.toDocument(s) : null;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void setNamespaceContext(Map<String, String> prefix2Uri) {
-        xpath.setNamespaceContext(Convert.toNamespaceContext(prefix2Uri));
+        this.prefix2Uri = new LinkedHashMap<String, String>(prefix2Uri);
+        xpath.setNamespaceContext(Convert.toNamespaceContext(this.prefix2Uri));
+    }
+
+    /**
+     * Sets the cache to use for compiled expressions.
+     *
+     * <p>The cache must only be shared with engines using equally
+     * configured XPathFactories and only if all engines are used by
+     * the same thread.</p>
+     *
+     * @param cache the cache to use - may be null in which case
+     * expressions are compiled each time they are evaluated
+     * @since XMLUnit 2.11.0
+     */
+    public void setExpressionCache(XPathExpressionCache cache) {
+        perThreadCache = false;
+        expressionCache = cache;
+    }
+
+    private XPathExpression compile(String xPath) throws XPathExpressionException {
+        // looked up on each use as the engine may be handed to a different thread
+        XPathExpressionCache cache = perThreadCache
+            ? XPathExpressionCache.forCurrentThread(factory) : expressionCache;
+        return cache == null ? xpath.compile(xPath)
+            : cache.get(xpath, xPath, prefix2Uri);
     }
 
 }
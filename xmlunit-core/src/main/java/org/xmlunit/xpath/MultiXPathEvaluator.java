@@ -0,0 +1,155 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.xpath;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import org.xmlunit.util.Convert;
+import org.w3c.dom.Node;
+
+/**
+ * Evaluates several XPath expressions against the same {@link
+ * Source} reading the source only once.
+ *
+ * <p>If all expressions belong to a simple subset of XPath they are
+ * evaluated in a single pass over a StAX stream without building a
+ * DOM tree. The subset consists of absolute location paths using the
+ * child axis only - like {@code /root/header/@version} or {@code
+ * /feed/entry[2]/title/text()} - where each step may have a single
+ * predicate that is either a position or tests the existence or
+ * value of an attribute - like {@code [@type]} or {@code
+ * [@type='book']}. Paths may be wrapped into {@code count()} or
+ * {@code string()}.</p>
+ *
+ * <p>If any of the expressions is not part of this subset or the
+ * source already is a DOM source, all expressions are evaluated
+ * using an {@link XPathEngine} - by default a {@link
+ * JAXPXPathEngine} - against a DOM Document created from the source
+ * once.</p>
+ *
+ * <p>The XMLStreamReader of a {@link
+ * javax.xml.transform.stax.StAXSource StAXSource} is read directly,
+ * so its own settings - like whether entities are expanded - apply.
+ * If it is positioned on a start element, this element is treated as
+ * the document element. Other sources are read using {@link
+ * org.xmlunit.util.Convert#toInputSource}, which streams
+ * StreamSources, SAXSources and StAXSources but copies sources like
+ * a JAXBSource into an in-memory buffer first.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public class MultiXPathEvaluator {
+
+    private final XPathEngine engine;
+    private XMLInputFactory inputFactory;
+    private Map<String, String> prefix2Uri;
+
+    /**
+     * Creates an evaluator using a {@link JAXPXPathEngine} for
+     * expressions that can not be evaluated while streaming.
+     */
+    public MultiXPathEvaluator() {
+        this(new JAXPXPathEngine());
+    }
+
+    /**
+     * Creates an evaluator using the given engine for expressions
+     * that can not be evaluated while streaming.
+     * @param engine the engine to use
+     */
+    public MultiXPathEvaluator(XPathEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine must not be null");
+        }
+        this.engine = engine;
+    }
+
+    /**
+     * Establish a namespace context.
+     *
+     * @param prefix2Uri maps from prefix to namespace URI.
+     */
+    public void setNamespaceContext(Map<String, String> prefix2Uri) {
+        this.prefix2Uri = new LinkedHashMap<String, String>(prefix2Uri);
+        engine.setNamespaceContext(this.prefix2Uri);
+    }
+
+    /**
+     * Evaluates all expressions and stringifies their results.
+     *
+     * @param expressions maps from an arbitrary name to the XPath
+     * expression to evaluate
+     * @param s the XML source to apply the expressions to
+     * @return maps from the names of {@code expressions} to the
+     * stringified results, in the same order as {@code expressions}
+     */
+    public Map<String, String> evaluateAll(Map<String, String> expressions, Source s) {
+        if (expressions == null) {
+            throw new IllegalArgumentException("expressions must not be null");
+        }
+        if (s == null) {
+            throw new IllegalArgumentException("source must not be null");
+        }
+        Map<String, StreamableXPath.Evaluation> evaluations =
+            s instanceof DOMSource ? null : compile(expressions);
+        Map<String, String> results = new LinkedHashMap<String, String>();
+        if (evaluations == null) {
+            Node n = s instanceof DOMSource ? null : Convert.toDocument(s);
+            for (Map.Entry<String, String> e : expressions.entrySet()) {
+                results.put(e.getKey(), n == null ? engine.evaluate(e.getValue(), s)
+                            : engine.evaluate(e.getValue(), n));
+            }
+            return results;
+        }
+        if (!evaluations.isEmpty()) {
+            evaluate(s, new ArrayList<StreamableXPath.Evaluation>(evaluations.values()));
+        }
+        for (Map.Entry<String, StreamableXPath.Evaluation> e : evaluations.entrySet()) {
+            results.put(e.getKey(), e.getValue().getResult());
+        }
+        return results;
+    }
+
+    /**
+     * Compiles all expressions for streaming, returns null if any of
+     * them is not part of the supported subset.
+     */
+    private Map<String, StreamableXPath.Evaluation> compile(Map<String, String> expressions) {
+        Map<String, StreamableXPath.Evaluation> evaluations =
+            new LinkedHashMap<String, StreamableXPath.Evaluation>();
+        for (Map.Entry<String, String> e : expressions.entrySet()) {
+            try {
+                evaluations.put(e.getKey(),
+                                StreamableXPath.compile(e.getValue(), prefix2Uri).newEvaluation());
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+        return evaluations;
+    }
+
+    private void evaluate(Source s, List<StreamableXPath.Evaluation> evaluations) {
+        if (inputFactory == null) {
+            inputFactory = StreamableXPath.newInputFactory();
+        }
+        StreamableXPath.evaluate(s, inputFactory, evaluations);
+    }
+}
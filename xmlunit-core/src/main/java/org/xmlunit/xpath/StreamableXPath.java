@@ -0,0 +1,732 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.xpath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+import org.xmlunit.ConfigurationException;
+import org.xmlunit.XMLUnitException;
+import org.xmlunit.util.Convert;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.InputSource;
+
+/**
+ * An XPath expression of the subset of XPath that can be evaluated
+ * in a single forward-only pass over a StAX stream.
+ *
+ * <p>The subset consists of absolute location paths using the child
+ * axis only, each step may use a name test or {@code *} and at most
+ * one predicate which is either a position or a test for the
+ * existence or value of an attribute. The last step may select an
+ * attribute or text nodes. The path may be wrapped into {@code
+ * count()} or {@code string()}:</p>
+ *
+ * <pre>
+ * count(/feed/entry)
+ * /root/header/@version
+ * /root/item[2]/name/text()
+ * string(/root/item[@type='book']/title)
+ * </pre>
+ *
+ * <p>package private to support {@link MultiXPathEvaluator} and
+ * {@link StreamingXPathEngine}.</p>
+ */
+final class StreamableXPath {
+
+    // XMLConstants.ACCESS_EXTERNAL_DTD is not available in Java 6
+    private static final String ACCESS_EXTERNAL_DTD =
+        "http://javax.xml.XMLConstants/property/accessExternalDTD";
+    // specific to the StAX implementation of the JDK
+    private static final String IGNORE_EXTERNAL_DTD =
+        "http://java.sun.com/xml/stream/properties/ignore-external-dtd";
+
+    /**
+     * Function wrapping the path, null for a plain path.
+     */
+    private enum Function { STRING, COUNT }
+
+    private enum Target { ELEMENT, ATTRIBUTE, TEXT }
+
+    private final Function function;
+    private final Step[] steps;
+    private final Target target;
+    private final Name attribute;
+
+    private StreamableXPath(Function function, List<Step> steps, Target target, Name attribute) {
+        this.function = function;
+        this.steps = steps.toArray(new Step[steps.size()]);
+        this.target = target;
+        this.attribute = attribute;
+    }
+
+    /**
+     * Compiles an expression.
+     * @param xPath the expression
+     * @param prefix2Uri the namespace context, may be null
+     * @throws IllegalArgumentException if the expression is not part
+     * of the supported subset
+     */
+    static StreamableXPath compile(String xPath, Map<String, String> prefix2Uri) {
+        if (xPath == null) {
+            throw new IllegalArgumentException("xPath must not be null");
+        }
+        return new Parser(xPath, prefix2Uri).parse();
+    }
+
+    /**
+     * Creates the state needed to evaluate the expression during a
+     * single pass.
+     */
+    Evaluation newEvaluation() {
+        return new Evaluation(null);
+    }
+
+    /**
+     * Creates the state needed to collect copies of the selected
+     * nodes during a single pass.
+     * @param owner the document to create the copies with
+     * @throws IllegalArgumentException if the expression doesn't
+     * select nodes
+     */
+    Evaluation newNodeSelection(Document owner) {
+        checkSelectsNodes();
+        return new Evaluation(owner);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression doesn't
+     * select nodes
+     */
+    void checkSelectsNodes() {
+        if (function != null) {
+            throw new IllegalArgumentException("XPath expression uses a function and doesn't"
+                                               + " select any nodes");
+        }
+    }
+
+    /**
+     * Creates a namespace aware and coalescing factory that expands
+     * entities declared in the internal DTD subset but doesn't load
+     * any external DTDs or entities.
+     */
+    static XMLInputFactory newInputFactory() {
+        try {
+            XMLInputFactory f = XMLInputFactory.newInstance();
+            f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+            f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.TRUE);
+            f.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+            f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            setIfSupported(f, ACCESS_EXTERNAL_DTD, "");
+            setIfSupported(f, IGNORE_EXTERNAL_DTD, Boolean.TRUE);
+            return f;
+        } catch (RuntimeException ex) {
+            throw new ConfigurationException(ex);
+        }
+    }
+
+    private static void setIfSupported(XMLInputFactory f, String property, Object value) {
+        try {
+            f.setProperty(property, value);
+        } catch (IllegalArgumentException ex) {
+            // not supported by this implementation
+        }
+    }
+
+    /**
+     * Evaluates all expressions in a single pass over the source.
+     */
+    static void evaluate(Source s, XMLInputFactory factory, List<Evaluation> evaluations) {
+        XMLStreamReader reader = null;
+        try {
+            reader = createReader(s, factory);
+            evaluate(reader, evaluations);
+        } catch (XMLStreamException ex) {
+            throw new XMLUnitException(ex);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Uses the XMLStreamReader of a StAXSource directly, all other
+     * sources are read via {@link Convert#toInputSource} which
+     * streams StreamSources, SAXSources and StAXSources but buffers
+     * sources like JAXBSource in memory.
+     */
+    private static XMLStreamReader createReader(Source s, XMLInputFactory factory)
+        throws XMLStreamException {
+        if (s instanceof StAXSource && ((StAXSource) s).getXMLStreamReader() != null) {
+            return ((StAXSource) s).getXMLStreamReader();
+        }
+        InputSource is = Convert.toInputSource(s);
+        StreamSource stream = is.getCharacterStream() != null
+            ? new StreamSource(is.getCharacterStream(), is.getSystemId())
+            : is.getByteStream() != null ? new StreamSource(is.getByteStream(), is.getSystemId())
+            : new StreamSource(is.getSystemId());
+        return factory.createXMLStreamReader(stream);
+    }
+
+    /**
+     * Evaluates all expressions in a single pass over the stream,
+     * stops reading as soon as all evaluations have got their result.
+     *
+     * <p>If the reader is positioned on a start element - which is
+     * allowed for the reader of a StAXSource - the element is treated
+     * as document element and reading stops at its end.</p>
+     */
+    private static void evaluate(XMLStreamReader reader, List<Evaluation> evaluations)
+        throws XMLStreamException {
+        int depth = 0;
+        int event = reader.getEventType();
+        final boolean subtree = event == XMLStreamConstants.START_ELEMENT;
+        while (true) {
+            switch (event) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                for (Evaluation e : evaluations) {
+                    e.startElement(reader, depth);
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                for (Evaluation e : evaluations) {
+                    e.endElement(depth);
+                }
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                for (Evaluation e : evaluations) {
+                    e.characters(reader, depth);
+                }
+                break;
+            case XMLStreamConstants.COMMENT:
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                for (Evaluation e : evaluations) {
+                    e.otherNode(reader);
+                }
+                break;
+            default:
+                break;
+            }
+            if (allDone(evaluations) || subtree && depth == 0 || !reader.hasNext()) {
+                return;
+            }
+            event = reader.next();
+        }
+    }
+
+    private static boolean allDone(List<Evaluation> evaluations) {
+        for (Evaluation e : evaluations) {
+            if (!e.done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The state of one expression during a pass over a stream.
+     *
+     * <p>Either stringifies the result of the expression or - if a
+     * document has been given - collects copies of all selected
+     * nodes.</p>
+     */
+    final class Evaluation {
+        private final Document owner;
+        private final List<Node> nodes;
+        private int matchedDepth;
+        private final int[] positions = new int[steps.length];
+        private long count;
+        private StringBuilder value;
+        private Node current;
+        private Text currentText;
+        private int captureDepth = -1;
+        private boolean inTextRun;
+        private boolean capturingText;
+        private boolean done;
+
+        private Evaluation(Document owner) {
+            this.owner = owner;
+            nodes = owner == null ? null : new ArrayList<Node>();
+        }
+
+        /**
+         * The string value of the expression once the pass has
+         * finished.
+         */
+        String getResult() {
+            if (function == Function.COUNT) {
+                return Long.toString(count);
+            }
+            return value == null ? "" : value.toString();
+        }
+
+        /**
+         * Copies of the selected nodes once the pass has finished.
+         */
+        List<Node> getNodes() {
+            return nodes;
+        }
+
+        private void startElement(XMLStreamReader reader, int depth) {
+            endTextRun();
+            if (nodes != null && captureDepth >= 0) {
+                Element e = createElement(reader);
+                current.appendChild(e);
+                current = e;
+                return;
+            }
+            if (done || matchedDepth != depth - 1 || depth > steps.length) {
+                return;
+            }
+            Step step = steps[depth - 1];
+            if (!step.name.matches(reader.getNamespaceURI(), reader.getLocalName())) {
+                return;
+            }
+            if (!step.matchesPredicate(reader, ++positions[depth - 1])) {
+                return;
+            }
+            matchedDepth = depth;
+            if (depth < steps.length) {
+                positions[depth] = 0;
+                return;
+            }
+            if (target == Target.ELEMENT) {
+                if (nodes != null) {
+                    current = createElement(reader);
+                    nodes.add(current);
+                    captureDepth = depth;
+                } else if (function == Function.COUNT) {
+                    count++;
+                } else {
+                    value = new StringBuilder();
+                    captureDepth = depth;
+                }
+            } else if (target == Target.ATTRIBUTE) {
+                final int len = reader.getAttributeCount();
+                for (int i = 0; i < len; i++) {
+                    if (attribute.matches(reader.getAttributeNamespace(i),
+                                          reader.getAttributeLocalName(i))) {
+                        if (nodes != null) {
+                            nodes.add(createAttribute(reader, i));
+                        } else if (function == Function.COUNT) {
+                            count++;
+                        } else {
+                            value = new StringBuilder(reader.getAttributeValue(i));
+                            done = true;
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void characters(XMLStreamReader reader, int depth) {
+            if (done) {
+                return;
+            }
+            if (captureDepth >= 0) {
+                if (nodes == null) {
+                    append(reader);
+                } else if (current.getLastChild() instanceof Text) {
+                    ((Text) current.getLastChild()).appendData(reader.getText());
+                } else {
+                    current.appendChild(owner.createTextNode(reader.getText()));
+                }
+            } else if (target == Target.TEXT && matchedDepth == steps.length
+                       && depth == matchedDepth) {
+                if (!inTextRun) {
+                    // adjacent text and CDATA form a single text node
+                    inTextRun = true;
+                    if (nodes != null) {
+                        currentText = owner.createTextNode("");
+                        nodes.add(currentText);
+                    } else if (function == Function.COUNT) {
+                        count++;
+                    } else {
+                        value = new StringBuilder();
+                        capturingText = true;
+                    }
+                }
+                if (currentText != null) {
+                    currentText.appendData(reader.getText());
+                } else if (capturingText) {
+                    append(reader);
+                }
+            }
+        }
+
+        private void otherNode(XMLStreamReader reader) {
+            endTextRun();
+            if (nodes != null && captureDepth >= 0) {
+                current.appendChild(reader.getEventType() == XMLStreamConstants.COMMENT
+                                    ? owner.createComment(reader.getText())
+                                    : owner.createProcessingInstruction(reader.getPITarget(),
+                                                                        reader.getPIData()));
+            }
+        }
+
+        private void endElement(int depth) {
+            endTextRun();
+            if (done) {
+                return;
+            }
+            if (nodes != null && captureDepth >= 0) {
+                if (captureDepth < depth) {
+                    current = current.getParentNode();
+                    return;
+                }
+                captureDepth = -1;
+                current = null;
+            } else if (captureDepth == depth) {
+                done = true;
+                return;
+            }
+            if (matchedDepth == depth) {
+                matchedDepth--;
+            }
+        }
+
+        private void endTextRun() {
+            inTextRun = false;
+            currentText = null;
+            if (capturingText) {
+                capturingText = false;
+                done = true;
+            }
+        }
+
+        private void append(XMLStreamReader reader) {
+            value.append(reader.getTextCharacters(), reader.getTextStart(),
+                         reader.getTextLength());
+        }
+
+        private Element createElement(XMLStreamReader reader) {
+            Element e = owner.createElementNS(emptyToNull(reader.getNamespaceURI()),
+                                              qualifiedName(reader.getPrefix(),
+                                                            reader.getLocalName()));
+            final int nsCount = reader.getNamespaceCount();
+            for (int i = 0; i < nsCount; i++) {
+                String prefix = reader.getNamespacePrefix(i);
+                String uri = reader.getNamespaceURI(i);
+                e.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                 qualifiedName(XMLConstants.XMLNS_ATTRIBUTE,
+                                               emptyToNull(prefix)),
+                                 uri == null ? "" : uri);
+            }
+            final int attrCount = reader.getAttributeCount();
+            for (int i = 0; i < attrCount; i++) {
+                e.setAttributeNodeNS(createAttribute(reader, i));
+            }
+            return e;
+        }
+
+        private Attr createAttribute(XMLStreamReader reader, int index) {
+            Attr a =
+                owner.createAttributeNS(emptyToNull(reader.getAttributeNamespace(index)),
+                                        qualifiedName(reader.getAttributePrefix(index),
+                                                      reader.getAttributeLocalName(index)));
+            a.setValue(reader.getAttributeValue(index));
+            return a;
+        }
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        if (localName == null) {
+            return prefix;
+        }
+        return prefix == null || prefix.length() == 0 ? localName : prefix + ":" + localName;
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.length() == 0 ? null : s;
+    }
+
+    private static final class Step {
+        private final Name name;
+        private final int position;
+        private final Name attributeName;
+        private final String attributeValue;
+
+        private Step(Name name, int position, Name attributeName, String attributeValue) {
+            this.name = name;
+            this.position = position;
+            this.attributeName = attributeName;
+            this.attributeValue = attributeValue;
+        }
+
+        private boolean matchesPredicate(XMLStreamReader reader, int actualPosition) {
+            if (position > 0) {
+                return position == actualPosition;
+            }
+            if (attributeName == null) {
+                return true;
+            }
+            final int len = reader.getAttributeCount();
+            for (int i = 0; i < len; i++) {
+                if (attributeName.matches(reader.getAttributeNamespace(i),
+                                          reader.getAttributeLocalName(i))
+                    && (attributeValue == null
+                        || attributeValue.equals(reader.getAttributeValue(i)))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A name test, a null local name matches any name.
+     */
+    private static final class Name {
+        private final String namespaceUri;
+        private final String localName;
+
+        private Name(String namespaceUri, String localName) {
+            this.namespaceUri = namespaceUri;
+            this.localName = localName;
+        }
+
+        private boolean matches(String actualNamespaceUri, String actualLocalName) {
+            if (localName == null) {
+                return true;
+            }
+            String uri = actualNamespaceUri == null ? XMLConstants.NULL_NS_URI
+                : actualNamespaceUri;
+            return localName.equals(actualLocalName) && namespaceUri.equals(uri);
+        }
+    }
+
+    private static final class Parser {
+        private final String expression;
+        private final Map<String, String> prefix2Uri;
+        private int pos;
+
+        private Parser(String expression, Map<String, String> prefix2Uri) {
+            this.expression = expression;
+            this.prefix2Uri = prefix2Uri;
+        }
+
+        private StreamableXPath parse() {
+            skipWhitespace();
+            Function function = null;
+            if (!at('/')) {
+                String name = ncName();
+                if ("count".equals(name)) {
+                    function = Function.COUNT;
+                } else if ("string".equals(name)) {
+                    function = Function.STRING;
+                } else {
+                    throw unsupported("only count() and string() are supported");
+                }
+                skipWhitespace();
+                expect('(');
+                skipWhitespace();
+            }
+            List<Step> steps = new ArrayList<Step>();
+            Target target = Target.ELEMENT;
+            Name attribute = null;
+            while (at('/')) {
+                pos++;
+                if (at('/')) {
+                    throw unsupported("only the child and attribute axes are supported");
+                }
+                if (at('@')) {
+                    pos++;
+                    target = Target.ATTRIBUTE;
+                    attribute = nameTest(true);
+                    break;
+                }
+                if (expression.startsWith("text()", pos)) {
+                    pos += "text()".length();
+                    target = Target.TEXT;
+                    break;
+                }
+                steps.add(step());
+            }
+            if (steps.isEmpty()) {
+                throw unsupported("expression must select at least one element");
+            }
+            if (function != null) {
+                skipWhitespace();
+                expect(')');
+            }
+            skipWhitespace();
+            if (pos < expression.length()) {
+                throw unsupported("unexpected '" + expression.charAt(pos) + "'");
+            }
+            if (function != Function.COUNT && attribute != null && attribute.localName == null) {
+                throw unsupported("the value of @* depends on the order of attributes");
+            }
+            return new StreamableXPath(function, steps, target, attribute);
+        }
+
+        private Step step() {
+            Name name = nameTest(false);
+            if (!at('[')) {
+                return new Step(name, 0, null, null);
+            }
+            pos++;
+            skipWhitespace();
+            Step step;
+            if (pos < expression.length() && Character.isDigit(expression.charAt(pos))) {
+                int start = pos;
+                while (pos < expression.length() && Character.isDigit(expression.charAt(pos))) {
+                    pos++;
+                }
+                int position;
+                try {
+                    position = Integer.parseInt(expression.substring(start, pos));
+                } catch (NumberFormatException ex) {
+                    throw unsupported("position is too big");
+                }
+                if (position < 1) {
+                    throw unsupported("positions start at 1");
+                }
+                step = new Step(name, position, null, null);
+            } else if (at('@')) {
+                pos++;
+                Name attributeName = nameTest(true);
+                if (attributeName.localName == null) {
+                    throw unsupported("@* is not supported inside of predicates");
+                }
+                skipWhitespace();
+                String attributeValue = null;
+                if (at('=')) {
+                    pos++;
+                    skipWhitespace();
+                    attributeValue = literal();
+                }
+                step = new Step(name, 0, attributeName, attributeValue);
+            } else {
+                throw unsupported("only positions and attribute tests are supported as predicates");
+            }
+            skipWhitespace();
+            expect(']');
+            if (at('[')) {
+                throw unsupported("only a single predicate per step is supported");
+            }
+            return step;
+        }
+
+        private Name nameTest(boolean isAttribute) {
+            if (at('*')) {
+                pos++;
+                return new Name(null, null);
+            }
+            String first = ncName();
+            if (at(':') && !expression.startsWith("::", pos)) {
+                pos++;
+                String local = ncName();
+                return new Name(resolve(first), local);
+            }
+            if (expression.startsWith("::", pos)) {
+                throw unsupported("only the child and attribute axes are supported");
+            }
+            if (!isAttribute && at('(')) {
+                throw unsupported("node tests other than text() are not supported");
+            }
+            return new Name(XMLConstants.NULL_NS_URI, first);
+        }
+
+        private String resolve(String prefix) {
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                return XMLConstants.XML_NS_URI;
+            }
+            String uri = prefix2Uri == null ? null : prefix2Uri.get(prefix);
+            if (uri == null) {
+                throw unsupported("prefix " + prefix + " is not bound");
+            }
+            return uri;
+        }
+
+        private String literal() {
+            if (!at('\'') && !at('"')) {
+                throw unsupported("only string literals can be compared to attributes");
+            }
+            char quote = expression.charAt(pos++);
+            int end = expression.indexOf(quote, pos);
+            if (end < 0) {
+                throw unsupported("unterminated string literal");
+            }
+            String s = expression.substring(pos, end);
+            pos = end + 1;
+            return s;
+        }
+
+        private String ncName() {
+            int start = pos;
+            if (pos < expression.length()
+                && (Character.isLetter(expression.charAt(pos)) || expression.charAt(pos) == '_')) {
+                pos++;
+                while (pos < expression.length() && isNameChar(expression.charAt(pos))) {
+                    pos++;
+                }
+            }
+            if (start == pos) {
+                throw unsupported(pos < expression.length()
+                    ? "unexpected '" + expression.charAt(pos) + "'" : "unexpected end");
+            }
+            return expression.substring(start, pos);
+        }
+
+        private static boolean isNameChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+        }
+
+        private void skipWhitespace() {
+            while (pos < expression.length() && Character.isWhitespace(expression.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean at(char c) {
+            return pos < expression.length() && expression.charAt(pos) == c;
+        }
+
+        private void expect(char c) {
+            if (!at(c)) {
+                throw unsupported("expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private IllegalArgumentException unsupported(String reason) {
+            return new IllegalArgumentException("XPath expression " + expression
+                                                + " can not be evaluated while streaming: "
+                                                + reason + " at position " + pos);
+        }
+    }
+}
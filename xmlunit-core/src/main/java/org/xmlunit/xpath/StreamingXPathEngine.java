@@ -0,0 +1,148 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.xpath;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import org.xmlunit.util.Convert;
+import org.xmlunit.util.FactoryRegistry;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * {@link XPathEngine} that evaluates a forward-only subset of XPath
+ * while reading the source with a StAX parser, without building a
+ * DOM tree of the whole document.
+ *
+ * <p>The supported subset consists of absolute location paths using
+ * the child axis only where the last step may select an attribute or
+ * text nodes. Each step may use a name test or {@code *} and at most
+ * one predicate which is either a position or tests the existence or
+ * value of an attribute. The path may be wrapped into {@code count()}
+ * or {@code string()}. Examples are:</p>
+ *
+ * <pre>
+ * count(/feed/entry)
+ * /root/header/@version
+ * /root/item[2]/name/text()
+ * string(/root/item[@type='book']/title)
+ * </pre>
+ *
+ * <p>All methods throw an {@link IllegalArgumentException} explaining
+ * the reason for expressions outside of this subset. Expressions
+ * using {@code count()} or {@code string()} can only be passed to the
+ * {@code evaluate} methods.</p>
+ *
+ * <p>Memory usage doesn't depend on the size of the document, but on
+ * the size of the result: {@code selectNodes} returns copies of the
+ * selected nodes - including the subtrees of selected elements -
+ * owned by a new Document and {@code evaluate} needs the string value
+ * of the first selected node. The evaluation stops reading the
+ * source as soon as the result of {@code evaluate} is known.</p>
+ *
+ * <p>Entities declared in the internal subset of a document type
+ * declaration are expanded, external DTDs and entities are never
+ * loaded.</p>
+ *
+ * <p>A {@link javax.xml.transform.stax.StAXSource StAXSource}
+ * holding an XMLStreamReader is evaluated using that reader and its
+ * settings, starting at the element it is positioned on if any.
+ * Sources that can't be read as a SAX InputSource - like a
+ * JAXBSource - are buffered in memory before they are read.</p>
+ *
+ * <p>Nodes and {@link DOMSource}s already are in memory, expressions
+ * applied to them are evaluated by a {@link JAXPXPathEngine}.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public class StreamingXPathEngine implements XPathEngine {
+
+    private final JAXPXPathEngine domEngine = new JAXPXPathEngine();
+    private XMLInputFactory inputFactory;
+    private Map<String, String> prefix2Uri;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterable<Node> selectNodes(String xPath, Source s) {
+        StreamableXPath compiled = StreamableXPath.compile(xPath, prefix2Uri);
+        compiled.checkSelectsNodes();
+        if (s instanceof DOMSource) {
+            return domEngine.selectNodes(xPath, s);
+        }
+        Document owner = Convert.newDocumentBuilder(FactoryRegistry.getDocumentBuilderFactory())
+            .newDocument();
+        StreamableXPath.Evaluation e = compiled.newNodeSelection(owner);
+        evaluate(s, e);
+        return Collections.unmodifiableList(e.getNodes());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String evaluate(String xPath, Source s) {
+        StreamableXPath compiled = StreamableXPath.compile(xPath, prefix2Uri);
+        if (s instanceof DOMSource) {
+            return domEngine.evaluate(xPath, s);
+        }
+        StreamableXPath.Evaluation e = compiled.newEvaluation();
+        evaluate(s, e);
+        return e.getResult();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterable<Node> selectNodes(String xPath, Node n) {
+        StreamableXPath.compile(xPath, prefix2Uri).checkSelectsNodes();
+        return domEngine.selectNodes(xPath, n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String evaluate(String xPath, Node n) {
+        StreamableXPath.compile(xPath, prefix2Uri);
+        return domEngine.evaluate(xPath, n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNamespaceContext(Map<String, String> prefix2Uri) {
+        this.prefix2Uri = new LinkedHashMap<String, String>(prefix2Uri);
+        domEngine.setNamespaceContext(this.prefix2Uri);
+    }
+
+    private void evaluate(Source s, StreamableXPath.Evaluation e) {
+        if (s == null) {
+            throw new IllegalArgumentException("source must not be null");
+        }
+        if (inputFactory == null) {
+            inputFactory = StreamableXPath.newInputFactory();
+        }
+        StreamableXPath.evaluate(s, inputFactory, Collections.singletonList(e));
+    }
+}
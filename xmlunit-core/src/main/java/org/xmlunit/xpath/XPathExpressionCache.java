@@ -0,0 +1,206 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.xpath;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * A bounded cache of compiled {@link XPathExpression}s keyed by the
+ * expression and the namespace context it has been compiled with.
+ *
+ * <p>Once the cache holds its maximum number of expressions the
+ * least recently used expression is evicted.</p>
+ *
+ * <p>A cache may be shared between several {@link XPathEngine}s as
+ * long as they all compile expressions with equally configured
+ * {@link javax.xml.xpath.XPathFactory XPathFactories}.</p>
+ *
+ * <p>This class is not thread-safe. {@link XPathExpression}s are
+ * neither thread-safe nor reentrant, so a cache must not be shared
+ * between engines used by different threads. {@link
+ * #forCurrentThread} provides a cache per thread and factory that is
+ * used by {@link JAXPXPathEngine} by default.</p>
+ *
+ * @since XMLUnit 2.11.0
+ */
+public class XPathExpressionCache {
+
+    /**
+     * Maximum number of expressions kept by caches created using the
+     * no-arg constructor.
+     */
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    private static final ThreadLocal<Map<XPathFactory, XPathExpressionCache>> PER_THREAD =
+        new ThreadLocal<Map<XPathFactory, XPathExpressionCache>>() {
+            @Override
+            protected Map<XPathFactory, XPathExpressionCache> initialValue() {
+                return new WeakHashMap<XPathFactory, XPathExpressionCache>();
+            }
+        };
+
+    private final Map<Key, XPathExpression> expressions;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a cache that holds at most {@link #DEFAULT_MAX_SIZE}
+     * expressions.
+     */
+    public XPathExpressionCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a cache.
+     * @param maxSize the maximum number of expressions to keep
+     */
+    public XPathExpressionCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        expressions = new LinkedHashMap<Key, XPathExpression>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, XPathExpression> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * The cache of the current thread for expressions compiled by
+     * XPaths of the given factory.
+     *
+     * <p>The factory must not be reconfigured once it has been used
+     * to compile expressions held by the cache.</p>
+     *
+     * @param factory the factory the expressions are compiled with
+     * @return the cache, created with {@link #DEFAULT_MAX_SIZE} on
+     * first access
+     */
+    public static XPathExpressionCache forCurrentThread(XPathFactory factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("factory must not be null");
+        }
+        Map<XPathFactory, XPathExpressionCache> caches = PER_THREAD.get();
+        XPathExpressionCache cache = caches.get(factory);
+        if (cache == null) {
+            cache = new XPathExpressionCache();
+            caches.put(factory, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the compiled expression from the cache or compiles it
+     * using the given XPath and adds it to the cache.
+     *
+     * @param xpath the XPath to compile the expression with if it
+     * isn't part of the cache, yet
+     * @param expression the XPath expression
+     * @param prefix2Uri the namespace context the XPath uses - may be
+     * null if no namespace context has been set. Must not be modified
+     * afterwards.
+     * @return the compiled expression
+     * @throws XPathExpressionException if the expression cannot be
+     * compiled
+     */
+    public XPathExpression get(XPath xpath, String expression, Map<String, String> prefix2Uri)
+        throws XPathExpressionException {
+        if (xpath == null) {
+            throw new IllegalArgumentException("xpath must not be null");
+        }
+        if (expression == null) {
+            throw new IllegalArgumentException("expression must not be null");
+        }
+        Key key = new Key(expression, prefix2Uri);
+        XPathExpression compiled = expressions.get(key);
+        if (compiled != null) {
+            hits++;
+        } else {
+            misses++;
+            compiled = xpath.compile(expression);
+            expressions.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Number of expressions that have been found in the cache.
+     * @return number of cache hits
+     */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Number of expressions that have not been found in the cache.
+     * @return number of cache misses
+     */
+    public long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Number of expressions currently held by the cache.
+     * @return number of cached expressions
+     */
+    public int size() {
+        return expressions.size();
+    }
+
+    /**
+     * Removes all expressions from the cache and resets the
+     * statistics.
+     */
+    public void clear() {
+        expressions.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    private static final class Key {
+        private final String expression;
+        private final Map<String, String> prefix2Uri;
+
+        private Key(String expression, Map<String, String> prefix2Uri) {
+            this.expression = expression;
+            this.prefix2Uri = prefix2Uri;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return expression.equals(other.expression)
+                && (prefix2Uri == null ? other.prefix2Uri == null
+                    : prefix2Uri.equals(other.prefix2Uri));
+        }
+
+        @Override
+        public int hashCode() {
+            return expression.hashCode() * 31
+                + (prefix2Uri == null ? 0 : prefix2Uri.hashCode());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.xmlunit.builder;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlunit.XMLUnitException;
+import org.xmlunit.diff.Comparison;
+import org.xmlunit.diff.ComparisonResult;
+import org.xmlunit.diff.Diff;
+import org.xmlunit.diff.DifferenceEvaluator;
+
+public class BatchDiffTest {
+
+    private static final DiffConfig CONFIG = DiffBuilder.config().ignoreWhitespace().compile();
+
+    @Test
+    public void comparesAllPairsOnCallingThread() {
+        List<Map.Entry<String, String>> pairs = new ArrayList<Map.Entry<String, String>>();
+        pairs.add(pair("<a><b/></a>", "<a>\n  <b/>\n</a>"));
+        pairs.add(pair("<a><b/></a>", "<a><c/></a>"));
+        pairs.add(pair("<a><b/></a>", "<a><b></a>"));
+        final List<String> results = new ArrayList<String>();
+        BatchDiff.Summary summary = BatchDiff.using(CONFIG)
+            .compare(pairs, new BatchDiff.Listener<Map.Entry<String, String>>() {
+                    @Override
+                    public void compared(Map.Entry<String, String> pair, Diff diff) {
+                        results.add(pair.getValue() + " " + diff.hasDifferences());
+                    }
+                    @Override
+                    public void failed(Map.Entry<String, String> pair, RuntimeException ex) {
+                        results.add(pair.getValue() + " failed");
+                    }
+                });
+        Assert.assertEquals(3, summary.getPairs());
+        Assert.assertEquals(1, summary.getPairsWithDifferences());
+        Assert.assertEquals(1, summary.getPairsWithoutDifferences());
+        Assert.assertEquals(1, summary.getFailures());
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals("<a>\n  <b/>\n</a> false", results.get(0));
+        Assert.assertEquals("<a><c/></a> true", results.get(1));
+        Assert.assertEquals("<a><b></a> failed", results.get(2));
+    }
+
+    @Test
+    public void boundsNumberOfPairsInFlight() {
+        List<Map.Entry<String, String>> pairs = new ArrayList<Map.Entry<String, String>>();
+        for (int i = 0; i < 200; i++) {
+            pairs.add(pair("<a>" + i + "</a>", "<a>" + (i % 3 == 0 ? "x" : i) + "</a>"));
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        // pairs handed to the executor whose results have not been
+        // reported, yet
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        Executor executor = new Executor() {
+                @Override
+                public void execute(final Runnable r) {
+                    int n = inFlight.incrementAndGet();
+                    if (n > maxInFlight.get()) {
+                        maxInFlight.set(n);
+                    }
+                    pool.execute(r);
+                }
+            };
+        final Set<String> seen = new HashSet<String>();
+        try {
+            BatchDiff.Summary summary = BatchDiff.using(CONFIG)
+                .withExecutor(executor)
+                .withMaxInFlight(3)
+                .compare(pairs, new BatchDiff.Listener<Map.Entry<String, String>>() {
+                        @Override
+                        public void compared(Map.Entry<String, String> pair, Diff diff) {
+                            inFlight.decrementAndGet();
+                            seen.add(pair.getKey());
+                        }
+                        @Override
+                        public void failed(Map.Entry<String, String> pair, RuntimeException ex) {
+                            Assert.fail(ex.toString());
+                        }
+                    });
+            Assert.assertEquals(200, summary.getPairs());
+            Assert.assertEquals(67, summary.getPairsWithDifferences());
+            Assert.assertEquals(133, summary.getPairsWithoutDifferences());
+            Assert.assertEquals(0, summary.getFailures());
+            Assert.assertEquals(200, seen.size());
+            Assert.assertTrue(String.valueOf(maxInFlight.get()), maxInFlight.get() <= 3);
+            Assert.assertEquals(0, inFlight.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void reportsErrorsThrownOnExecutorThreads() {
+        DiffConfig failing = DiffBuilder.config()
+            .withDifferenceEvaluator(new DifferenceEvaluator() {
+                    @Override
+                    public ComparisonResult evaluate(Comparison comparison, ComparisonResult outcome) {
+                        throw new StackOverflowError("boom");
+                    }
+                })
+            .compile();
+        List<Map.Entry<String, String>> pairs = new ArrayList<Map.Entry<String, String>>();
+        for (int i = 0; i < 5; i++) {
+            pairs.add(pair("<a/>", "<b/>"));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        try {
+            BatchDiff.Summary summary = BatchDiff.using(failing)
+                .withExecutor(pool)
+                .compare(pairs, new BatchDiff.Listener<Map.Entry<String, String>>() {
+                        @Override
+                        public void compared(Map.Entry<String, String> pair, Diff diff) {
+                            Assert.fail("expected comparison to fail");
+                        }
+                        @Override
+                        public void failed(Map.Entry<String, String> pair, RuntimeException ex) {
+                            failures.add(ex.getCause());
+                        }
+                    });
+            Assert.assertEquals(5, summary.getPairs());
+            Assert.assertEquals(5, summary.getFailures());
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(5, failures.size());
+        for (Throwable t : failures) {
+            Assert.assertTrue(String.valueOf(t), t instanceof StackOverflowError);
+        }
+    }
+
+    @Test
+    public void stopsWhenListenerFails() {
+        List<Map.Entry<String, String>> pairs = new ArrayList<Map.Entry<String, String>>();
+        for (int i = 0; i < 10; i++) {
+            pairs.add(pair("<a/>", "<a/>"));
+        }
+        final AtomicInteger invocations = new AtomicInteger();
+        try {
+            BatchDiff.using(CONFIG)
+                .compare(pairs, new BatchDiff.Listener<Map.Entry<String, String>>() {
+                        @Override
+                        public void compared(Map.Entry<String, String> pair, Diff diff) {
+                            invocations.incrementAndGet();
+                            throw new IllegalStateException("boom");
+                        }
+                        @Override
+                        public void failed(Map.Entry<String, String> pair, RuntimeException ex) {
+                        }
+                    });
+            Assert.fail("expected an exception");
+        } catch (XMLUnitException ex) {
+            Assert.assertEquals("boom", ex.getCause().getMessage());
+        }
+        Assert.assertEquals(1, invocations.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxInFlightMustBePositive() {
+        BatchDiff.using(CONFIG).withMaxInFlight(0);
+    }
+
+    private static Map.Entry<String, String> pair(String control, String test) {
+        return new AbstractMap.SimpleImmutableEntry<String, String>(control, test);
+    }
+}
@@ -31,6 +31,8 @@
 import org.xmlunit.diff.Difference;
 import org.xmlunit.diff.DifferenceEvaluator;
 import org.xmlunit.diff.DifferenceEvaluators;
+import org.xmlunit.diff.ElementSelectors;
+import org.xmlunit.diff.LCSNodeMatcher;
 import org.xmlunit.util.Predicate;
 
 import org.junit.Assert;
@@ -44,6 +46,8 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
@@ -696,4 +700,102 @@ public String getDetails(Comparison.Detail details, ComparisonType type,
             return "bar";
         }
     }
+
+    @Test
+    public void isIdenticalAndIsSimilar() {
+        Assert.assertTrue(DiffBuilder.compare("<a>x</a>").withTest("<a>x</a>").isIdentical());
+        Assert.assertFalse(DiffBuilder.compare("<a>x</a>").withTest("<a><![CDATA[x]]></a>")
+                           .isIdentical());
+        Assert.assertTrue(DiffBuilder.compare("<a>x</a>").withTest("<a><![CDATA[x]]></a>")
+                          .isSimilar());
+        Assert.assertFalse(DiffBuilder.compare("<a>x</a>").withTest("<a>y</a>").isSimilar());
+        Assert.assertTrue(DiffBuilder.compare("<a>x</a>").withTest("<a>\n  x </a>")
+                          .ignoreWhitespace().isIdentical());
+    }
+
+    @Test
+    public void isSimilarUsesCustomDifferenceEvaluator() {
+        Assert.assertTrue(DiffBuilder.compare("<a>x</a>").withTest("<a>y</a>")
+                          .withDifferenceEvaluator(DifferenceEvaluators
+                                                   .downgradeDifferencesToEqual(ComparisonType
+                                                                                .TEXT_VALUE))
+                          .isSimilar());
+    }
+
+    @Test
+    public void isIdenticalNotifiesListenersUpToFirstDifference() {
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        boolean identical = DiffBuilder.compare("<a><b>1</b><c>1</c></a>")
+            .withTest("<a><b>2</b><c>2</c></a>")
+            .withDifferenceListeners(new ComparisonListener() {
+                    @Override
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        differences.add(comparison);
+                    }
+                })
+            .isIdentical();
+        Assert.assertFalse(identical);
+        assertThat(differences.size(), is(1));
+    }
+
+    @Test
+    public void isSimilarWorksWithStreamingEngine() {
+        Assert.assertTrue(DiffBuilder.compare("<a>x</a>").withTest("<a><![CDATA[x]]></a>")
+                          .withStreamingEngine().isSimilar());
+        Assert.assertFalse(DiffBuilder.compare("<a>x</a>").withTest("<a><![CDATA[x]]></a>")
+                           .withStreamingEngine().isIdentical());
+    }
+
+    @Test
+    public void withLCSNodeMatcherIgnoresSequenceOfSiblingsAfterInsertedNode() {
+        String control = "<a><b>1</b><b>2</b><b>3</b></a>";
+        String test = "<a><c/><b>1</b><b>2</b><b>3</b></a>";
+        Diff d = DiffBuilder.compare(control).withTest(test)
+            .withLCSNodeMatcher(ElementSelectors.byNameAndText)
+            .build();
+        List<ComparisonType> types = new ArrayList<ComparisonType>();
+        for (Difference difference : d.getDifferences()) {
+            types.add(difference.getComparison().getType());
+        }
+        Assert.assertFalse(types.contains(ComparisonType.CHILD_NODELIST_SEQUENCE));
+        Assert.assertTrue(types.contains(ComparisonType.CHILD_LOOKUP));
+
+        d = DiffBuilder.compare(control).withTest(test)
+            .withLCSNodeMatcher(ElementSelectors.byNameAndText)
+            .withNodeMatcher(new LCSNodeMatcher(ElementSelectors.byNameAndText))
+            .build();
+        types.clear();
+        for (Difference difference : d.getDifferences()) {
+            types.add(difference.getComparison().getType());
+        }
+        Assert.assertTrue(types.contains(ComparisonType.CHILD_NODELIST_SEQUENCE));
+    }
+
+    @Test
+    public void withIterativeTraversalFindsSameDifferences() {
+        String control = "<a><b><c>1</c></b><d x='1'/></a>";
+        String test = "<a><b><c>2</c></b><d x='2'/><e/></a>";
+        Diff recursive = DiffBuilder.compare(control).withTest(test).build();
+        Diff iterative = DiffBuilder.compare(control).withTest(test)
+            .withIterativeTraversal().build();
+        Assert.assertEquals(recursive.toString(), iterative.toString());
+        Assert.assertTrue(DiffBuilder.compare(control).withTest(control)
+                          .withIterativeTraversal().isIdentical());
+    }
+
+    @Test
+    public void withConcurrentParsingFindsSameDifferences() {
+        String control = "<a><b><c>1</c></b><d x='1'/></a>";
+        String test = "<a><b><c>2</c></b><d x='2'/><e/></a>";
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Diff sequential = DiffBuilder.compare(control).withTest(test).build();
+            Diff concurrent = DiffBuilder.compare(control).withTest(test)
+                .withConcurrentParsing(executor).build();
+            Assert.assertEquals(sequential.toString(), concurrent.toString());
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -0,0 +1,227 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.xmlunit.builder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlunit.diff.DefaultNodeMatcher;
+import org.xmlunit.diff.Diff;
+import org.xmlunit.diff.ElementSelectors;
+
+public class DiffConfigTest {
+
+    private static final String CONTROL = "<a>\n  <b x='1'>foo</b>\n  <c/>\n</a>";
+    private static final String TEST = "<a><b x='2'><![CDATA[foo]]></b><c/></a>";
+
+    @Test
+    public void compareFindsSameDifferencesAsBuild() {
+        Diff built = DiffBuilder.compare(CONTROL).withTest(TEST)
+            .ignoreWhitespace().checkForSimilar().build();
+        Diff compared = DiffBuilder.config()
+            .ignoreWhitespace().checkForSimilar().compile()
+            .compare(CONTROL, TEST);
+        Assert.assertTrue(compared.hasDifferences());
+        Assert.assertEquals(built.toString(), compared.toString());
+    }
+
+    @Test
+    public void isIdenticalAndIsSimilar() {
+        DiffConfig config = DiffBuilder.config().ignoreWhitespace().compile();
+        Assert.assertTrue(config.isIdentical(CONTROL, "<a><b x='1'>foo</b><c/></a>"));
+        Assert.assertFalse(config.isIdentical(CONTROL, "<a><b x='1'><![CDATA[foo]]></b><c/></a>"));
+        Assert.assertTrue(config.isSimilar(CONTROL, "<a><b x='1'><![CDATA[foo]]></b><c/></a>"));
+        Assert.assertFalse(config.isSimilar(CONTROL, TEST));
+    }
+
+    @Test
+    public void laterChangesOfTheBuilderDontAffectTheConfig() {
+        DiffBuilder builder = DiffBuilder.config();
+        DiffConfig config = builder.compile();
+        builder.ignoreWhitespace();
+        Assert.assertFalse(config.isIdentical(CONTROL, "<a><b x='1'>foo</b><c/></a>"));
+        Assert.assertTrue(builder.compile().isIdentical(CONTROL, "<a><b x='1'>foo</b><c/></a>"));
+    }
+
+    @Test
+    public void canBeSharedBetweenThreads() throws Exception {
+        final DiffConfig config = DiffBuilder.config()
+            .ignoreWhitespace()
+            .withNodeMatcher(new DefaultNodeMatcher(ElementSelectors.byName))
+            .compile();
+        final String expected = config.compare(CONTROL, TEST).toString();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 100; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return config.compare(CONTROL, TEST).toString();
+                        }
+                    }));
+            }
+            for (Future<String> result : results) {
+                Assert.assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sharedDocumentBuilderFactoryCreatesBuildersOneAtATime() throws Exception {
+        final RecordingFactory factory = new RecordingFactory();
+        final DiffConfig config = DiffBuilder.config()
+            .withDocumentBuilderFactory(factory)
+            .compile();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 40; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return config.isIdentical(CONTROL, CONTROL);
+                        }
+                    }));
+            }
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, factory.maxConcurrentCreations.get());
+        Assert.assertFalse(factory.createdWithoutNamespaces);
+        Assert.assertFalse(factory.isNamespaceAware());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void compileFailsForInconsistentConfiguration() {
+        DiffBuilder.config()
+            .withStreamingEngine()
+            .withNodeMatcher(new DefaultNodeMatcher())
+            .compile();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void streamingEngineCantCompareInParallel() {
+        DiffBuilder.config()
+            .withStreamingEngine()
+            .withParallelComparison(new ForkJoinPool(1))
+            .compile();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void streamingEngineCantSkipIdenticalSubtrees() {
+        DiffBuilder.config()
+            .withStreamingEngine()
+            .skipIdenticalSubtrees()
+            .compile();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void streamingEngineCantTraverseIteratively() {
+        DiffBuilder.config()
+            .withStreamingEngine()
+            .withIterativeTraversal()
+            .compile();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void streamingEngineCantParseConcurrently() {
+        DiffBuilder.config()
+            .withStreamingEngine()
+            .withConcurrentParsing(Executors.newSingleThreadExecutor())
+            .compile();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void buildFailsForInconsistentConfiguration() {
+        DiffBuilder.compare(CONTROL).withTest(TEST)
+            .withStreamingEngine()
+            .skipIdenticalSubtrees()
+            .build();
+    }
+
+    @Test
+    public void streamingEngineAppliesNormalizations() {
+        Diff d = DiffBuilder.config()
+            .withStreamingEngine()
+            .ignoreWhitespace()
+            .ignoreCommentsUsingXSLTVersion("1.0")
+            .compile()
+            .compare("<a>\n  <b> foo <!-- c --></b>\n</a>", "<a><b>foo</b></a>");
+        Assert.assertFalse(d.toString(), d.hasDifferences());
+    }
+
+    private static class RecordingFactory extends DocumentBuilderFactory {
+        private final DocumentBuilderFactory delegate = DocumentBuilderFactory.newInstance();
+        private final AtomicInteger concurrentCreations = new AtomicInteger();
+        private final AtomicInteger maxConcurrentCreations = new AtomicInteger();
+        private volatile boolean createdWithoutNamespaces;
+
+        @Override
+        public DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+            int concurrent = concurrentCreations.incrementAndGet();
+            try {
+                if (concurrent > maxConcurrentCreations.get()) {
+                    maxConcurrentCreations.set(concurrent);
+                }
+                if (!isNamespaceAware()) {
+                    createdWithoutNamespaces = true;
+                }
+                Thread.sleep(1);
+                delegate.setNamespaceAware(isNamespaceAware());
+                return delegate.newDocumentBuilder();
+            } catch (InterruptedException ex) {
+                throw new ParserConfigurationException(ex.getMessage());
+            } finally {
+                concurrentCreations.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            delegate.setAttribute(name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return delegate.getAttribute(name);
+        }
+
+        @Override
+        public void setFeature(String name, boolean value) throws ParserConfigurationException {
+            delegate.setFeature(name, value);
+        }
+
+        @Override
+        public boolean getFeature(String name) throws ParserConfigurationException {
+            return delegate.getFeature(name);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.dom.DOMSource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xmlunit.util.IterableNodeList;
+import org.xmlunit.util.Linqy;
+import org.xmlunit.util.Predicate;
+
+/**
+ * Measures the memory allocated by the bookkeeping {@link
+ * DOMDifferenceEngine} performs for each list of child nodes.
+ *
+ * <p>Walks two identical documents once using the HashSet and
+ * HashMap based bookkeeping of XMLUnit 2.10 and once using the array
+ * and BitSet based bookkeeping of the current engine. Both variants
+ * filter the children, match them using a {@link DefaultNodeMatcher},
+ * look up the indexes of matched nodes, record unmatched nodes and
+ * recurse into matched pairs - but perform no comparisons. A full run
+ * of the engine is measured as well for reference.</p>
+ *
+ * <p>This is not a unit test. Run its main method on a JVM that
+ * supports {@code com.sun.management.ThreadMXBean}, optionally
+ * passing the number of children per element and the depth of the
+ * documents.</p>
+ */
+public class ChildListBookkeepingAllocationBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int ITERATIONS = 200;
+
+    private static final Predicate<Node> FILTER = NodeFilters.Default;
+    private static final NodeMatcher MATCHER = new DefaultNodeMatcher();
+
+    private static volatile int sink;
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        final Document control = createDocument(width, depth);
+        final Document test = createDocument(width, depth);
+        final int nodes = countNodes(control);
+        final DOMDifferenceEngine engine = new DOMDifferenceEngine();
+
+        System.out.println(nodes + " nodes, " + width + " children per element, depth "
+                           + depth);
+        report("HashSet/HashMap bookkeeping", nodes, new Runnable() {
+                @Override
+                public void run() {
+                    sink += hashBased(control.getDocumentElement(),
+                                      test.getDocumentElement());
+                }
+            });
+        report("array/BitSet bookkeeping", nodes, new Runnable() {
+                @Override
+                public void run() {
+                    sink += arrayBased(control.getDocumentElement(),
+                                       test.getDocumentElement());
+                }
+            });
+        report("DOMDifferenceEngine", nodes, new Runnable() {
+                @Override
+                public void run() {
+                    engine.compare(new DOMSource(control), new DOMSource(test));
+                }
+            });
+    }
+
+    private static void report(String name, int nodes, Runnable r) {
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            r.run();
+        }
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            r.run();
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+        System.out.println(String.format("%-30s %10.1f bytes per node", name,
+                                         allocated / (double) ITERATIONS / nodes));
+    }
+
+    /**
+     * Bookkeeping of XMLUnit 2.10's compareNodeLists.
+     */
+    private static int hashBased(Node control, Node test) {
+        Iterable<Node> allControlChildren = new IterableNodeList(control.getChildNodes());
+        Iterable<Node> controlSeq = Linqy.filter(allControlChildren, FILTER);
+        Iterable<Node> allTestChildren = new IterableNodeList(test.getChildNodes());
+        Iterable<Node> testSeq = Linqy.filter(allTestChildren, FILTER);
+        int visited = 1 + Linqy.count(controlSeq) - Linqy.count(testSeq);
+
+        Iterable<Map.Entry<Node, Node>> matches = MATCHER.match(controlSeq, testSeq);
+        List<Node> controlList = Linqy.asList(controlSeq);
+        List<Node> testList = Linqy.asList(testSeq);
+
+        Map<Node, Integer> controlListForXpathIndex = index(allControlChildren);
+        Map<Node, Integer> testListForXpathIndex = index(allTestChildren);
+        Map<Node, Integer> controlListIndex = index(controlList);
+        Map<Node, Integer> testListIndex = index(testList);
+
+        Set<Node> seen = new HashSet<Node>();
+        List<Object[]> pairs = new ArrayList<Object[]>();
+        for (Map.Entry<Node, Node> pair : matches) {
+            Node c = pair.getKey();
+            seen.add(c);
+            Node t = pair.getValue();
+            seen.add(t);
+            pairs.add(new Object[] {
+                    c, controlListForXpathIndex.get(c), controlListIndex.get(c),
+                    t, testListForXpathIndex.get(t), testListIndex.get(t)
+                });
+        }
+        for (Object[] pair : pairs) {
+            visited += hashBased((Node) pair[0], (Node) pair[3]);
+        }
+        for (Node c : controlList) {
+            if (!seen.contains(c)) {
+                visited += controlListForXpathIndex.get(c);
+            }
+        }
+        for (Node t : testList) {
+            if (!seen.contains(t)) {
+                visited += testListForXpathIndex.get(t);
+            }
+        }
+        return visited;
+    }
+
+    private static Map<Node, Integer> index(Iterable<Node> nodes) {
+        Map<Node, Integer> indices = new HashMap<Node, Integer>();
+        int idx = 0;
+        for (Node n : nodes) {
+            indices.put(n, idx++);
+        }
+        return Collections.unmodifiableMap(indices);
+    }
+
+    /**
+     * Bookkeeping of the current compareNodeLists.
+     */
+    private static int arrayBased(Node control, Node test) {
+        Children controlChildren = new Children(control);
+        Children testChildren = new Children(test);
+        int visited = 1 + controlChildren.size - testChildren.size;
+
+        Iterable<Map.Entry<Node, Node>> matches =
+            MATCHER.match(controlChildren.asList(), testChildren.asList());
+        BitSet controlSeen = new BitSet(controlChildren.size);
+        BitSet testSeen = new BitSet(testChildren.size);
+        int[] controlIndexes = new int[Math.min(controlChildren.size, testChildren.size)];
+        int[] testIndexes = new int[controlIndexes.length];
+        int matched = 0;
+        for (Map.Entry<Node, Node> pair : matches) {
+            DefaultNodeMatcher.IndexedMatch m = (DefaultNodeMatcher.IndexedMatch) pair;
+            controlSeen.set(m.getControlIndex());
+            testSeen.set(m.getTestIndex());
+            if (matched == controlIndexes.length) {
+                controlIndexes = Arrays.copyOf(controlIndexes, 2 * matched + 1);
+                testIndexes = Arrays.copyOf(testIndexes, 2 * matched + 1);
+            }
+            controlIndexes[matched] = m.getControlIndex();
+            testIndexes[matched++] = m.getTestIndex();
+        }
+        for (int i = 0; i < matched; i++) {
+            visited += arrayBased(controlChildren.filtered[controlIndexes[i]],
+                                  testChildren.filtered[testIndexes[i]]);
+        }
+        for (int i = controlSeen.nextClearBit(0); i < controlChildren.size;
+             i = controlSeen.nextClearBit(i + 1)) {
+            visited += controlChildren.xpathIndexes[i];
+        }
+        for (int i = testSeen.nextClearBit(0); i < testChildren.size;
+             i = testSeen.nextClearBit(i + 1)) {
+            visited += testChildren.xpathIndexes[i];
+        }
+        return visited;
+    }
+
+    private static final class Children {
+        private final Node[] filtered;
+        private final int[] xpathIndexes;
+        private final int size;
+
+        private Children(Node parent) {
+            NodeList children = parent.getChildNodes();
+            int length = children.getLength();
+            Node[] accepted = new Node[length];
+            int[] indexes = new int[length];
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                Node n = children.item(i);
+                if (FILTER.test(n)) {
+                    accepted[count] = n;
+                    indexes[count++] = i;
+                }
+            }
+            filtered = count == length ? accepted : Arrays.copyOf(accepted, count);
+            xpathIndexes = indexes;
+            size = count;
+        }
+
+        private List<Node> asList() {
+            return Arrays.asList(filtered);
+        }
+    }
+
+    private static Document createDocument(int width, int depth) {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document d;
+        try {
+            d = dbf.newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException ex) {
+            throw new RuntimeException(ex);
+        }
+        Element root = d.createElementNS(null, "root");
+        d.appendChild(root);
+        addChildren(root, width, depth);
+        return d;
+    }
+
+    private static void addChildren(Element parent, int width, int depth) {
+        Document d = parent.getOwnerDocument();
+        for (int i = 0; i < width; i++) {
+            Element child = d.createElementNS(null, "e" + i);
+            parent.appendChild(child);
+            if (depth > 1) {
+                addChildren(child, width, depth - 1);
+            } else {
+                child.appendChild(d.createTextNode("text " + i));
+            }
+        }
+    }
+
+    private static int countNodes(Node n) {
+        int count = 1;
+        for (Node child = n.getFirstChild(); child != null; child = child.getNextSibling()) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+}
@@ -13,12 +13,17 @@
 */
 package org.xmlunit.diff;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.dom.DOMSource;
 import org.xmlunit.NullNode;
 import org.xmlunit.TestResources;
+import org.xmlunit.XMLUnitException;
 import org.xmlunit.builder.DiffBuilder;
 import org.xmlunit.builder.Input;
 import org.xmlunit.util.Convert;
@@ -1248,6 +1253,410 @@ public void properlyHandlesNullAttributes() {
                                     e4, new XPathContext()));
     }
 
+    @Test
+    public void parallelModeReportsComparisonsInDocumentOrder() {
+        StringBuilder control = new StringBuilder("<root>");
+        StringBuilder test = new StringBuilder("<root>");
+        for (int i = 0; i < 50; i++) {
+            control.append("<record id='").append(i).append("'><a>").append(i)
+                .append("</a><b/></record>");
+            test.append("<record id='").append(i % 7 == 0 ? -i : i).append("'><a>")
+                .append(i % 5 == 0 ? "x" : String.valueOf(i)).append("</a><b/></record>");
+        }
+        control.append("</root>");
+        test.append("</root>");
+
+        List<String> sequential = allComparisons(new DOMDifferenceEngine(),
+                                                 control.toString(), test.toString());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            DOMDifferenceEngine d = new DOMDifferenceEngine();
+            d.setForkJoinPool(pool);
+            d.setParallelThreshold(2);
+            assertEquals(sequential,
+                         allComparisons(d, control.toString(), test.toString()));
+
+            d = new DOMDifferenceEngine();
+            d.setForkJoinPool(pool);
+            d.setParallelThreshold(2);
+            d.setIterativeTraversal(true);
+            assertEquals(sequential,
+                         allComparisons(d, control.toString(), test.toString()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelModeExpandsLazilyCreatedDocuments() throws Exception {
+        StringBuilder control = new StringBuilder("<root>");
+        StringBuilder test = new StringBuilder("<root>");
+        for (int i = 0; i < 200; i++) {
+            control.append("<record id='").append(i).append("'><a><b>").append(i)
+                .append("</b></a><c x='y'/></record>");
+            test.append("<record id='").append(i).append("'><a><b>")
+                .append(i % 9 == 0 ? "x" : String.valueOf(i))
+                .append("</b></a><c x='y'/></record>");
+        }
+        control.append("</root>");
+        test.append("</root>");
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(true);
+        try {
+            f.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", true);
+        } catch (ParserConfigurationException ex) {
+            // not Xerces, nodes won't be created lazily
+        }
+
+        List<String> sequential = allComparisons(new DOMDifferenceEngine(),
+                                                 control.toString(), test.toString());
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            for (int i = 0; i < 10; i++) {
+                DOMDifferenceEngine d = new DOMDifferenceEngine(f);
+                d.setForkJoinPool(pool);
+                d.setParallelThreshold(2);
+                assertEquals(sequential,
+                             allComparisons(d, control.toString(), test.toString()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelModeStopsWhenControllerSaysSo() {
+        StringBuilder control = new StringBuilder("<root>");
+        StringBuilder test = new StringBuilder("<root>");
+        for (int i = 0; i < 50; i++) {
+            control.append("<a>").append(i).append("</a>");
+            test.append("<a>").append(i % 10 == 9 ? "x" : String.valueOf(i)).append("</a>");
+        }
+        control.append("</root>");
+        test.append("</root>");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            DOMDifferenceEngine d = new DOMDifferenceEngine();
+            d.setForkJoinPool(pool);
+            d.setParallelThreshold(2);
+            d.setComparisonController(ComparisonControllers.StopWhenDifferent);
+            DiffExpecter ex = new DiffExpecter(ComparisonType.TEXT_VALUE,
+                                               "/root[1]/a[10]/text()[1]",
+                                               "/root[1]/a[10]/text()[1]");
+            d.addDifferenceListener(ex);
+            d.compare(Input.fromString(control.toString()).build(),
+                      Input.fromString(test.toString()).build());
+            assertEquals(1, ex.invoked);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void skipsIdenticalSubtrees() {
+        String control = "<root><a><b>1</b><b>2</b></a><c x='1'>foo</c></root>";
+        String test = "<root><a><b>1</b><b>2</b></a><c x='2'>foo</c></root>";
+        final int[] evaluated = new int[2];
+        final List<String> skippingDiffs = new ArrayList<String>();
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setSkipIdenticalSubtrees(true);
+        d.setDifferenceEvaluator(new DifferenceEvaluator() {
+                @Override
+                public ComparisonResult evaluate(Comparison comparison, ComparisonResult outcome) {
+                    evaluated[0]++;
+                    return outcome;
+                }
+            });
+        d.addDifferenceListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    skippingDiffs.add(comparison.getType() + " "
+                                      + comparison.getControlDetails().getXPath());
+                }
+            });
+        d.compare(Input.fromString(control).build(), Input.fromString(test).build());
+
+        final List<String> diffs = new ArrayList<String>();
+        d = new DOMDifferenceEngine();
+        d.setDifferenceEvaluator(new DifferenceEvaluator() {
+                @Override
+                public ComparisonResult evaluate(Comparison comparison, ComparisonResult outcome) {
+                    evaluated[1]++;
+                    return outcome;
+                }
+            });
+        d.addDifferenceListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    diffs.add(comparison.getType() + " "
+                              + comparison.getControlDetails().getXPath());
+                }
+            });
+        d.compare(Input.fromString(control).build(), Input.fromString(test).build());
+
+        assertEquals(diffs, skippingDiffs);
+        assertEquals(Arrays.asList("ATTR_VALUE /root[1]/c[1]/@x"), diffs);
+        assertTrue(evaluated[0] + " >= " + evaluated[1], evaluated[0] < evaluated[1]);
+    }
+
+    @Test
+    public void doesntSkipIdenticalSubtreesWhenComparisonListenerIsPresent() {
+        String xml = "<root><a><b>1</b></a></root>";
+        final int[] comparisons = new int[1];
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setSkipIdenticalSubtrees(true);
+        d.addComparisonListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    if (comparison.getType() == ComparisonType.TEXT_VALUE) {
+                        comparisons[0]++;
+                    }
+                }
+            });
+        d.compare(Input.fromString(xml).build(), Input.fromString(xml).build());
+        assertEquals(1, comparisons[0]);
+    }
+
+    @Test
+    public void hasDifferencesGivesSameAnswerAsCompare() {
+        String[][] pairs = new String[][] {
+            { "<a/>", "<a/>" },
+            { "<a>x</a>", "<a><![CDATA[x]]></a>" },
+            { "<a>x</a>", "<a>y</a>" },
+            { "<a><b/><c/></a>", "<a><c/><b/></a>" },
+            { "<a><b/><c/></a>", "<a><b/></a>" },
+            { "<a x='1' y='2'/>", "<a y='2' x='1'/>" },
+            { "<a x='1'/>", "<a x='2'/>" },
+            { "<a x='1'/>", "<a y='1'/>" },
+            { "<a xmlns='urn:x'/>", "<p:a xmlns:p='urn:x'/>" },
+            { "<a xmlns='urn:x'/>", "<a xmlns='urn:y'/>" },
+            { "<a xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'"
+              + " xsi:schemaLocation='urn:x x.xsd'/>",
+              "<a xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'"
+              + " xsi:schemaLocation='urn:x y.xsd'/>" },
+            { "<a xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' xsi:type='b'/>",
+              "<a xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' xsi:type='c'/>" },
+            { "<?xml version='1.0' encoding='UTF-8'?><a/>",
+              "<?xml version='1.0' encoding='ISO-8859-1'?><a/>" },
+            { "<!DOCTYPE a SYSTEM 'a.dtd'><a/>", "<!DOCTYPE a SYSTEM 'b.dtd'><a/>" },
+            { "<a><?pi x?><!-- c --></a>", "<a><?pi y?><!-- c --></a>" },
+            { "<a><!-- c --></a>", "<a><!-- d --></a>" },
+        };
+        ComparisonResult[][] outcomes = new ComparisonResult[][] {
+            { ComparisonResult.DIFFERENT },
+            { ComparisonResult.SIMILAR, ComparisonResult.DIFFERENT },
+        };
+        DifferenceEvaluator[] evaluators = new DifferenceEvaluator[] {
+            DifferenceEvaluators.Default, DifferenceEvaluators.Accept
+        };
+        for (String[] pair : pairs) {
+            for (final ComparisonResult[] o : outcomes) {
+                for (DifferenceEvaluator ev : evaluators) {
+                    DOMDifferenceEngine d = new DOMDifferenceEngine();
+                    d.setDifferenceEvaluator(ev);
+                    final boolean[] found = new boolean[1];
+                    d.addDifferenceListener(new ComparisonListener() {
+                            @Override
+                            public void comparisonPerformed(Comparison comparison,
+                                                            ComparisonResult outcome) {
+                                found[0] |= Arrays.asList(o).contains(outcome);
+                            }
+                        });
+                    d.compare(Input.fromString(pair[0]).build(),
+                              Input.fromString(pair[1]).build());
+
+                    DOMDifferenceEngine fast = new DOMDifferenceEngine();
+                    fast.setDifferenceEvaluator(ev);
+                    assertEquals(pair[0] + " vs " + pair[1] + " " + Arrays.asList(o),
+                                 found[0],
+                                 fast.hasDifferences(Input.fromString(pair[0]).build(),
+                                                     Input.fromString(pair[1]).build(), o));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void hasDifferencesStopsAtFirstDifference() {
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        final int[] differences = new int[1];
+        d.addDifferenceListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    differences[0]++;
+                }
+            });
+        assertTrue(d.hasDifferences(Input.fromString("<a><b>1</b><c>1</c></a>").build(),
+                                    Input.fromString("<a><b>2</b><c>2</c></a>").build(),
+                                    ComparisonResult.DIFFERENT));
+        assertEquals(1, differences[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hasDifferencesNeedsOutcomes() {
+        new DOMDifferenceEngine().hasDifferences(Input.fromString("<a/>").build(),
+                                                 Input.fromString("<a/>").build());
+    }
+
+    @Test
+    public void iterativeTraversalPerformsSameComparisons() {
+        String[][] pairs = new String[][] {
+            { "<a><b><c>1</c><d x='1'/></b><e/></a>", "<a><b><c>2</c><d x='2'/></b><e/></a>" },
+            { "<a><b/><c/></a>", "<a><c/><b/></a>" },
+            { "<a><b><c/></b><d/></a>", "<a><b/><e><f/></e></a>" },
+            { "<a>x<!-- c --><?pi y?><![CDATA[z]]></a>", "<a>y<!-- d --><?pi z?>z</a>" },
+            { "<!DOCTYPE a SYSTEM 'a.dtd'><a><b/></a>", "<!DOCTYPE a SYSTEM 'b.dtd'><a><c/></a>" },
+            { "<a xmlns='urn:x'><b><c/></b></a>", "<p:a xmlns:p='urn:x'><p:b>t</p:b></p:a>" },
+        };
+        for (String[] pair : pairs) {
+            for (ComparisonController c : new ComparisonController[] {
+                    ComparisonControllers.Default, ComparisonControllers.StopWhenDifferent
+                }) {
+                DOMDifferenceEngine recursive = new DOMDifferenceEngine();
+                recursive.setComparisonController(c);
+                DOMDifferenceEngine iterative = new DOMDifferenceEngine();
+                iterative.setComparisonController(c);
+                iterative.setIterativeTraversal(true);
+                assertEquals(pair[0] + " vs " + pair[1],
+                             allComparisons(recursive, pair[0], pair[1]),
+                             allComparisons(iterative, pair[0], pair[1]));
+            }
+        }
+    }
+
+    @Test
+    public void iterativeTraversalReturnsSameState() {
+        Document d1 = documentForString("<a><b><c/></b><d/></a>");
+        Document d2 = documentForString("<a><b><c/></b><e/></a>");
+        DOMDifferenceEngine recursive = new DOMDifferenceEngine();
+        DOMDifferenceEngine iterative = new DOMDifferenceEngine();
+        iterative.setIterativeTraversal(true);
+        assertEquals(recursive.compareNodes(d1, new XPathContext(), d1, new XPathContext()),
+                     iterative.compareNodes(d1, new XPathContext(), d1, new XPathContext()));
+        assertEquals(recursive.compareNodes(d1, new XPathContext(), d2, new XPathContext()),
+                     iterative.compareNodes(d1, new XPathContext(), d2, new XPathContext()));
+        recursive.setComparisonController(ComparisonControllers.StopWhenDifferent);
+        iterative.setComparisonController(ComparisonControllers.StopWhenDifferent);
+        assertEquals(wrapAndStop(ComparisonResult.DIFFERENT),
+                     iterative.compareNodes(d1, new XPathContext(), d2, new XPathContext()));
+    }
+
+    @Test
+    public void iterativeTraversalComparesVeryDeepDocuments() {
+        final int depth = 20000;
+        Document control = deepDocument(depth, "x");
+        Document test = deepDocument(depth, "y");
+
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setIterativeTraversal(true);
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        d.addDifferenceListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    differences.add(comparison);
+                }
+            });
+        d.compare(Input.fromNode(control).build(), Input.fromNode(test).build());
+        assertEquals(1, differences.size());
+        assertEquals(ComparisonType.TEXT_VALUE, differences.get(0).getType());
+        String xpath = differences.get(0).getControlDetails().getXPath();
+        assertTrue(xpath, xpath.startsWith("/e[1]/e[1]/"));
+        assertTrue(xpath, xpath.endsWith("/e[1]/text()[1]"));
+        assertEquals(depth * "/e[1]".length() + "/text()[1]".length(), xpath.length());
+
+        d = new DOMDifferenceEngine();
+        d.setIterativeTraversal(true);
+        d.setSkipIdenticalSubtrees(true);
+        assertFalse(d.hasDifferences(Input.fromNode(control).build(),
+                                     Input.fromNode(control).build(),
+                                     ComparisonResult.DIFFERENT));
+        assertTrue(d.hasDifferences(Input.fromNode(control).build(),
+                                    Input.fromNode(test).build(),
+                                    ComparisonResult.DIFFERENT));
+    }
+
+    private static Document deepDocument(int depth, String text) {
+        Document doc = Convert.toDocument(Input.fromString("<e/>").build());
+        Node current = doc.getDocumentElement();
+        for (int i = 1; i < depth; i++) {
+            current = current.appendChild(doc.createElement("e"));
+        }
+        current.appendChild(doc.createTextNode(text));
+        return doc;
+    }
+
+    @Test
+    public void parsingExecutorParsesControlDocument() {
+        String control = "<a><b x='1'>foo</b><c/></a>";
+        String test = "<a><b x='2'>bar</b><d/></a>";
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setParsingExecutor(new Executor() {
+                @Override
+                public void execute(Runnable r) {
+                    tasks.add(r);
+                    Thread t = new Thread(r);
+                    t.start();
+                }
+            });
+        assertEquals(allComparisons(new DOMDifferenceEngine(), control, test),
+                     allComparisons(d, control, test));
+        assertEquals(1, tasks.size());
+
+        // nothing to parse for DOM sources
+        d.compare(Input.fromDocument(documentForString(control)).build(),
+                  Input.fromString(test).build());
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void parsingExecutorReportsSideThatFailed() {
+        Executor sameThread = new Executor() {
+                @Override
+                public void execute(Runnable r) {
+                    r.run();
+                }
+            };
+        String[][] pairs = new String[][] {
+            { "<a>", "<a/>", "control" },
+            { "<a/>", "<a>", "test" },
+            { "<a>", "<a>", "control" },
+        };
+        for (String[] pair : pairs) {
+            DOMDifferenceEngine d = new DOMDifferenceEngine();
+            d.setParsingExecutor(sameThread);
+            try {
+                d.compare(Input.fromString(pair[0]).build(), Input.fromString(pair[1]).build());
+                fail("expected an exception for " + pair[0] + " vs " + pair[1]);
+            } catch (XMLUnitException ex) {
+                assertEquals("Failed to parse " + pair[2] + " document",
+                             ex.getCause().getMessage());
+            }
+        }
+    }
+
+    private static List<String> allComparisons(DOMDifferenceEngine d, String control,
+                                               String test) {
+        final List<String> comparisons = new ArrayList<String>();
+        d.addComparisonListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    comparisons.add(comparison.getType() + " " + outcome + " "
+                                    + comparison.getControlDetails().getXPath() + " "
+                                    + comparison.getTestDetails().getXPath());
+                }
+            });
+        d.compare(Input.fromString(control).build(), Input.fromString(test).build());
+        return comparisons;
+    }
+
     private Document documentForString(String s) {
         return Convert.toDocument(Input.fromString(s).build());
     }
@@ -13,6 +13,7 @@
 */
 package org.xmlunit.diff;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -124,4 +125,88 @@ public void elementSelectorsAreQueriedInSequenceWithControlNodesSwapped() {
         assertSame(test2, result.get(1).getValue());
     }
 
+    @Test
+    public void keyedSelectorsMatchLikeUnkeyedOnes() {
+        List<Node> control = new ArrayList<Node>();
+        List<Node> test = new ArrayList<Node>();
+        String[] names = new String[] { "a", "b", "c" };
+        for (int i = 0; i < 30; i++) {
+            Element c = doc.createElement(names[i % 3]);
+            c.appendChild(doc.createTextNode(String.valueOf(i % 4)));
+            control.add(c);
+            if (i % 5 == 0) {
+                control.add(doc.createTextNode("t" + i));
+            }
+            Element t = doc.createElement(names[(i * 7) % 3]);
+            t.appendChild(doc.createTextNode(String.valueOf(i % 6)));
+            test.add(t);
+            if (i % 4 == 0) {
+                test.add(doc.createCDATASection("t" + i));
+            }
+        }
+        for (ElementSelector e : new ElementSelector[] {
+                ElementSelectors.Default, ElementSelectors.byName,
+                ElementSelectors.byNameAndText }) {
+            final ElementSelector keyed = e;
+            ElementSelector unkeyed = new ElementSelector() {
+                    @Override
+                    public boolean canBeCompared(Element controlElement, Element testElement) {
+                        return keyed.canBeCompared(controlElement, testElement);
+                    }
+                };
+            assertEquals(Linqy.asList(new DefaultNodeMatcher(unkeyed, ElementSelectors.byName)
+                                      .match(control, test)),
+                         Linqy.asList(new DefaultNodeMatcher(keyed, ElementSelectors.byName)
+                                      .match(control, test)));
+        }
+    }
+
+    @Test
+    public void keyedSelectorOnlyComparesElementsWithSameKey() {
+        List<Node> control = new ArrayList<Node>();
+        List<Node> test = new ArrayList<Node>();
+        for (int i = 0; i < 1000; i++) {
+            control.add(doc.createElement("e" + i));
+            test.add(doc.createElement("e" + (999 - i)));
+        }
+        final int[] invocations = new int[1];
+        KeyedElementSelector s = new KeyedElementSelector() {
+                @Override
+                public boolean canBeCompared(Element controlElement, Element testElement) {
+                    invocations[0]++;
+                    return controlElement.getTagName().equals(testElement.getTagName());
+                }
+                @Override
+                public Object getKey(Element element) {
+                    return element.getTagName();
+                }
+            };
+        List<Map.Entry<Node, Node>> result =
+            Linqy.asList(new DefaultNodeMatcher(s).match(control, test));
+        assertEquals(1000, result.size());
+        assertSame(test.get(999), result.get(0).getValue());
+        assertEquals(1000, invocations[0]);
+    }
+
+    @Test
+    public void matchesKnowTheIndexesOfTheirNodes() {
+        Element control1 = doc.createElement("a");
+        Element control2 = doc.createElement("b");
+        Element test1 = doc.createElement("b");
+        Element test2 = doc.createElement("c");
+        Element test3 = doc.createElement("a");
+        List<Map.Entry<Node, Node>> result =
+            Linqy.asList(new DefaultNodeMatcher(ElementSelectors.byName)
+                         .match(Arrays.<Node>asList(control1, control2),
+                                Arrays.<Node>asList(test1, test2, test3)));
+        assertEquals(2, result.size());
+        DefaultNodeMatcher.IndexedMatch m = (DefaultNodeMatcher.IndexedMatch) result.get(0);
+        assertSame(control1, m.getKey());
+        assertSame(test3, m.getValue());
+        assertEquals(0, m.getControlIndex());
+        assertEquals(2, m.getTestIndex());
+        m = (DefaultNodeMatcher.IndexedMatch) result.get(1);
+        assertEquals(1, m.getControlIndex());
+        assertEquals(0, m.getTestIndex());
+    }
 }
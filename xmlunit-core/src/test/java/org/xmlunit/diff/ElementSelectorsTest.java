@@ -13,9 +13,14 @@
 */
 package org.xmlunit.diff;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -29,7 +34,9 @@
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.xmlunit.builder.Input;
 import org.xmlunit.util.IsNullPredicate;
+import org.xmlunit.util.Linqy;
 import org.xmlunit.util.Predicate;
 import org.xmlunit.xpath.JAXPXPathEngine;
 import org.xmlunit.xpath.XPathEngine;
@@ -169,6 +176,84 @@ public boolean test(Attr a) {
                                                                   BAR)));
     }
 
+    @Test public void byNameAndAttributes_KeyIncludesValues() {
+        KeyedElementSelector s = (KeyedElementSelector)
+            ElementSelectors.byNameAndAttributes(BAR);
+        Element control = doc.createElement(FOO);
+        control.setAttribute(BAR, BAR);
+        Element equal = doc.createElement(FOO);
+        equal.setAttribute(BAR, BAR);
+        equal.setAttribute(FOO, FOO);
+        Element differentValue = doc.createElement(FOO);
+        differentValue.setAttribute(BAR, FOO);
+        assertEquals(s.getKey(control), s.getKey(equal));
+        assertFalse(s.getKey(control).equals(s.getKey(differentValue)));
+    }
+
+    @Test public void byKey_NamePart() {
+        pureElementNameComparisons(ElementSelectors.byKey(new QName(BAR)));
+        pureElementNameComparisons(ElementSelectors.byKeyXPath("@" + BAR));
+    }
+
+    @Test public void byKey() {
+        ElementSelector s = ElementSelectors.byKey(new QName(BAR));
+        Element control = doc.createElement(FOO);
+        control.setAttribute(BAR, BAR);
+        Element equal = doc.createElement(FOO);
+        equal.setAttribute(BAR, BAR);
+        equal.setAttribute(FOO, FOO);
+        Element noAttributes = doc.createElement(FOO);
+        Element differentValue = doc.createElement(FOO);
+        differentValue.setAttribute(BAR, FOO);
+        Element differentNS = doc.createElementNS(null, FOO);
+        differentNS.setAttributeNS(SOME_URI, BAR, BAR);
+
+        assertTrue(s.canBeCompared(control, equal));
+        assertFalse(s.canBeCompared(control, noAttributes));
+        assertFalse(s.canBeCompared(control, differentValue));
+        assertFalse(s.canBeCompared(control, differentNS));
+        assertTrue(s.canBeCompared(noAttributes, doc.createElement(FOO)));
+    }
+
+    @Test public void byKeyXPath() {
+        ElementSelector s = ElementSelectors.byKeyXPath("./" + BAR);
+        Element control = doc.createElement(FOO);
+        Element key = doc.createElement(BAR);
+        key.appendChild(doc.createTextNode("1"));
+        control.appendChild(key);
+        Element equal = doc.createElement(FOO);
+        key = doc.createElement(BAR);
+        key.appendChild(doc.createTextNode("1"));
+        equal.appendChild(key);
+        Element different = doc.createElement(FOO);
+        key = doc.createElement(BAR);
+        key.appendChild(doc.createTextNode("2"));
+        different.appendChild(key);
+
+        assertTrue(s.canBeCompared(control, equal));
+        assertFalse(s.canBeCompared(control, different));
+    }
+
+    @Test public void defaultNodeMatcherUsesKeys() {
+        List<Node> control = new ArrayList<Node>();
+        List<Node> test = new ArrayList<Node>();
+        for (int i = 0; i < 100; i++) {
+            Element c = doc.createElement(FOO);
+            c.setAttribute("id", String.valueOf(i));
+            control.add(c);
+            Element t = doc.createElement(FOO);
+            t.setAttribute("id", String.valueOf(99 - i));
+            test.add(t);
+        }
+        List<Map.Entry<Node, Node>> matches = Linqy.asList(new DefaultNodeMatcher(
+            ElementSelectors.byKey(new QName("id"))).match(control, test));
+        assertEquals(100, matches.size());
+        for (Map.Entry<Node, Node> e : matches) {
+            assertEquals(((Element) e.getKey()).getAttribute("id"),
+                         ((Element) e.getValue()).getAttribute("id"));
+        }
+    }
+
     @Test public void byNameAndAttributes_String() {
         Element control = doc.createElement(FOO);
         control.setAttribute(BAR, BAR);
@@ -459,6 +544,50 @@ public Iterable<Node> answer(InvocationOnMock invocation) {
             .selectNodes(Mockito.anyString(), Mockito.any(Node.class));
     }
 
+    @Test
+    public void xpathSelectsChildrenOncePerElementDuringComparison() throws Exception {
+        final JAXPXPathEngine real = new JAXPXPathEngine();
+        final List<Node> contexts = new ArrayList<Node>();
+        XPathEngine mock = Mockito.mock(XPathEngine.class);
+        Mockito.when(mock.selectNodes(Mockito.anyString(), Mockito.any(Node.class)))
+            .thenAnswer(new Answer<Iterable<Node>>() {
+                public Iterable<Node> answer(InvocationOnMock invocation) {
+                    contexts.add((Node) invocation.getArgument(1));
+                    return real.selectNodes((String) invocation.getArgument(0),
+                                            (Node) invocation.getArgument(1));
+                }
+            });
+        ElementSelector s = ElementSelectors.byXPath("./k", mock, ElementSelectors.byNameAndText);
+
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setNodeMatcher(new DefaultNodeMatcher(s));
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        d.addDifferenceListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    differences.add(comparison);
+                }
+            });
+        d.compare(Input.fromString("<r><a><k>1</k></a><a><k>2</k></a><a><k>3</k></a></r>").build(),
+                  Input.fromString("<r><a><k>3</k></a><a><k>2</k></a><a><k>1</k></a></r>").build());
+
+        Map<Node, Boolean> distinct = new IdentityHashMap<Node, Boolean>();
+        for (Node n : contexts) {
+            distinct.put(n, Boolean.TRUE);
+        }
+        assertEquals(distinct.size(), contexts.size());
+        for (Comparison c : differences) {
+            assertEquals(ComparisonType.CHILD_NODELIST_SEQUENCE, c.getType());
+        }
+
+        // nothing is remembered outside of a comparison
+        contexts.clear();
+        Element control = doc.createElement("foo");
+        s.canBeCompared(control, control);
+        s.canBeCompared(control, control);
+        assertEquals(4, contexts.size());
+    }
+
     @Test
     public void conditionalBuilder() {
         Element control = doc.createElement(FOO);
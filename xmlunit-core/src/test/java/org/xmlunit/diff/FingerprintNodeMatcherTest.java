@@ -0,0 +1,212 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xmlunit.util.Linqy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FingerprintNodeMatcherTest {
+
+    private Document doc;
+
+    @Before
+    public void createDoc() throws Exception {
+        doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+    }
+
+    @Test
+    public void pairsIdenticalSubtreesRegardlessOfOrder() {
+        List<Node> control = new ArrayList<Node>();
+        control.add(element("a", "1"));
+        control.add(element("a", "2"));
+        control.add(element("a", "3"));
+        List<Node> test = new ArrayList<Node>();
+        test.add(element("a", "3"));
+        test.add(element("a", "1"));
+        test.add(element("a", "2"));
+        List<Map.Entry<Node, Node>> result = match(new FingerprintNodeMatcher(), control, test);
+        assertEquals(3, result.size());
+        assertSame(control.get(0), result.get(0).getKey());
+        assertSame(test.get(1), result.get(0).getValue());
+        assertSame(control.get(1), result.get(1).getKey());
+        assertSame(test.get(2), result.get(1).getValue());
+        assertSame(control.get(2), result.get(2).getKey());
+        assertSame(test.get(0), result.get(2).getValue());
+    }
+
+    @Test
+    public void pairsDuplicatesInDocumentOrder() {
+        List<Node> control = new ArrayList<Node>();
+        control.add(element("a", "1"));
+        control.add(element("a", "1"));
+        List<Node> test = new ArrayList<Node>();
+        test.add(element("a", "1"));
+        test.add(element("a", "1"));
+        List<Map.Entry<Node, Node>> result = match(new FingerprintNodeMatcher(), control, test);
+        assertEquals(2, result.size());
+        assertSame(test.get(0), result.get(0).getValue());
+        assertSame(test.get(1), result.get(1).getValue());
+    }
+
+    @Test
+    public void passesLeftoversToOtherMatcherAndMapsIndexes() {
+        List<Node> control = new ArrayList<Node>();
+        control.add(element("a", "1"));
+        control.add(element("b", "2"));
+        control.add(element("c", "3"));
+        List<Node> test = new ArrayList<Node>();
+        test.add(element("c", "x"));
+        test.add(element("a", "1"));
+        test.add(element("b", "y"));
+        final List<Integer> leftoverSizes = new ArrayList<Integer>();
+        NodeMatcher byName = new NodeMatcher() {
+                @Override
+                public Iterable<Map.Entry<Node, Node>> match(Iterable<Node> controlNodes,
+                                                             Iterable<Node> testNodes) {
+                    List<Node> c = Linqy.asList(controlNodes);
+                    List<Node> t = Linqy.asList(testNodes);
+                    leftoverSizes.add(c.size());
+                    leftoverSizes.add(t.size());
+                    List<Map.Entry<Node, Node>> m = new ArrayList<Map.Entry<Node, Node>>();
+                    for (Node cn : c) {
+                        for (Node tn : t) {
+                            if (cn.getNodeName().equals(tn.getNodeName())) {
+                                m.add(new AbstractMap.SimpleImmutableEntry<Node, Node>(cn, tn));
+                            }
+                        }
+                    }
+                    return m;
+                }
+            };
+        List<Map.Entry<Node, Node>> result =
+            match(new FingerprintNodeMatcher(byName), control, test);
+        assertEquals(2, leftoverSizes.get(0).intValue());
+        assertEquals(2, leftoverSizes.get(1).intValue());
+        assertEquals(3, result.size());
+        DefaultNodeMatcher.IndexedMatch m = (DefaultNodeMatcher.IndexedMatch) result.get(1);
+        assertSame(control.get(1), m.getKey());
+        assertEquals(1, m.getControlIndex());
+        assertSame(test.get(2), m.getValue());
+        assertEquals(2, m.getTestIndex());
+        m = (DefaultNodeMatcher.IndexedMatch) result.get(2);
+        assertEquals(2, m.getControlIndex());
+        assertEquals(0, m.getTestIndex());
+    }
+
+    @Test
+    public void findsChangedMembersOfLargeBag() {
+        Element control = doc.createElement("root");
+        Element test = doc.createElement("root");
+        List<Element> testChildren = new ArrayList<Element>();
+        for (int i = 0; i < 20000; i++) {
+            control.appendChild(element("e", String.valueOf(i)));
+            testChildren.add(element("e", i == 4711 ? "changed" : String.valueOf(i)));
+        }
+        Collections.reverse(testChildren);
+        for (Element e : testChildren) {
+            test.appendChild(e);
+        }
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setNodeMatcher(new FingerprintNodeMatcher(ElementSelectors.byName));
+        d.setDifferenceEvaluator(DifferenceEvaluators.chain(DifferenceEvaluators.Default,
+            DifferenceEvaluators.downgradeDifferencesToEqual(ComparisonType.CHILD_NODELIST_SEQUENCE)));
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        d.addDifferenceListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison, ComparisonResult outcome) {
+                    differences.add(comparison);
+                }
+            });
+        d.compare(new DOMSource(control), new DOMSource(test));
+        assertEquals(1, differences.size());
+        assertEquals(ComparisonType.TEXT_VALUE, differences.get(0).getType());
+        assertEquals("4711", differences.get(0).getControlDetails().getValue());
+        assertEquals("changed", differences.get(0).getTestDetails().getValue());
+    }
+
+    @Test
+    public void matchesChildrenOfDeeplyNestedDocuments() {
+        final int depth = 3000;
+        Element control = doc.createElement("root");
+        Element test = doc.createElement("root");
+        Element c = control;
+        Element t = test;
+        for (int i = 0; i < depth; i++) {
+            c.appendChild(element("x", String.valueOf(i)));
+            t.appendChild(element("x", i == depth - 1 ? "changed" : String.valueOf(i)));
+            c = (Element) c.appendChild(doc.createElement("n"));
+            t = (Element) t.appendChild(doc.createElement("n"));
+        }
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setIterativeTraversal(true);
+        d.setNodeMatcher(new FingerprintNodeMatcher(ElementSelectors.byName));
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        d.addDifferenceListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison, ComparisonResult outcome) {
+                    differences.add(comparison);
+                }
+            });
+        d.compare(new DOMSource(control), new DOMSource(test));
+        assertEquals(1, differences.size());
+        assertEquals(ComparisonType.TEXT_VALUE, differences.get(0).getType());
+        assertEquals("changed", differences.get(0).getTestDetails().getValue());
+    }
+
+    @Test
+    public void sharesHasherWhileComparing() {
+        FingerprintNodeMatcher m = new FingerprintNodeMatcher();
+        assertNotSame(m.hasher(), m.hasher());
+        DiffScope previous = DiffScope.enter();
+        try {
+            assertSame(m.hasher(), m.hasher());
+            assertNotSame(m.hasher(), new FingerprintNodeMatcher().hasher());
+        } finally {
+            DiffScope.restore(previous);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void leftoverMatcherMustNotBeNull() {
+        new FingerprintNodeMatcher((NodeMatcher) null);
+    }
+
+    private Element element(String name, String text) {
+        Element e = doc.createElement(name);
+        e.appendChild(doc.createTextNode(text));
+        return e;
+    }
+
+    private static List<Map.Entry<Node, Node>> match(NodeMatcher m, List<Node> control,
+                                                     List<Node> test) {
+        return Linqy.asList(m.match(control, test));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xmlunit.util.Linqy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LCSNodeMatcherTest {
+
+    private Document doc;
+
+    @Before
+    public void createDoc() throws Exception {
+        doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+    }
+
+    @Test
+    public void matchesEverythingButAnInsertedNodeInOrder() {
+        List<Node> control = elements("b", "c", "d", "e");
+        List<Node> test = elements("a", "b", "c", "d", "e");
+        List<Map.Entry<Node, Node>> result = match(control, test);
+        assertEquals(4, result.size());
+        for (int i = 0; i < 4; i++) {
+            assertSame(control.get(i), result.get(i).getKey());
+            assertSame(test.get(i + 1), result.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void skipsRemovedAndReplacedNodes() {
+        List<Node> control = elements("a", "b", "c", "d", "e");
+        List<Node> test = elements("a", "x", "d", "e");
+        List<Map.Entry<Node, Node>> result = match(control, test);
+        assertEquals(3, result.size());
+        assertSame(control.get(0), result.get(0).getKey());
+        assertSame(test.get(0), result.get(0).getValue());
+        assertSame(control.get(3), result.get(1).getKey());
+        assertSame(test.get(2), result.get(1).getValue());
+        assertSame(control.get(4), result.get(2).getKey());
+        assertSame(test.get(3), result.get(2).getValue());
+    }
+
+    @Test
+    public void providesIndexesOfMatchedNodes() {
+        List<Map.Entry<Node, Node>> result =
+            match(elements("a", "b"), elements("x", "a", "b"));
+        assertEquals(2, result.size());
+        DefaultNodeMatcher.IndexedMatch m = (DefaultNodeMatcher.IndexedMatch) result.get(1);
+        assertEquals(1, m.getControlIndex());
+        assertEquals(2, m.getTestIndex());
+    }
+
+    @Test
+    public void emptyLists() {
+        assertEquals(0, match(elements(), elements("a")).size());
+        assertEquals(0, match(elements("a"), elements()).size());
+        assertEquals(0, match(elements("a"), elements("b")).size());
+    }
+
+    @Test
+    public void findsLongestCommonSubsequence() {
+        Random r = new Random(42);
+        for (int run = 0; run < 500; run++) {
+            List<Node> control = randomElements(r);
+            List<Node> test = randomElements(r);
+            List<Map.Entry<Node, Node>> result = match(control, test);
+            assertEquals(lcsLength(control, test), result.size());
+            int lastControl = -1;
+            int lastTest = -1;
+            for (Map.Entry<Node, Node> e : result) {
+                DefaultNodeMatcher.IndexedMatch m = (DefaultNodeMatcher.IndexedMatch) e;
+                assertTrue(m.getControlIndex() > lastControl);
+                assertTrue(m.getTestIndex() > lastTest);
+                assertEquals(((Element) m.getKey()).getTagName(),
+                             ((Element) m.getValue()).getTagName());
+                lastControl = m.getControlIndex();
+                lastTest = m.getTestIndex();
+            }
+        }
+    }
+
+    @Test
+    public void onlyInsertedNodeIsReportedWhenSequenceIsIgnored() {
+        Element control = doc.createElement("root");
+        Element test = doc.createElement("root");
+        test.appendChild(doc.createElement("inserted"));
+        for (int i = 0; i < 10000; i++) {
+            Element c = doc.createElement("e");
+            c.setAttribute("id", String.valueOf(i));
+            control.appendChild(c);
+            test.appendChild(c.cloneNode(true));
+        }
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setNodeMatcher(new LCSNodeMatcher(ElementSelectors.byNameAndAllAttributes));
+        d.setDifferenceEvaluator(DifferenceEvaluators.chain(DifferenceEvaluators.Default,
+            DifferenceEvaluators.downgradeDifferencesToEqual(ComparisonType.CHILD_NODELIST_SEQUENCE)));
+        final List<ComparisonType> differences = new ArrayList<ComparisonType>();
+        d.addDifferenceListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison, ComparisonResult outcome) {
+                    differences.add(comparison.getType());
+                }
+            });
+        d.compare(new DOMSource(control), new DOMSource(test));
+        assertEquals(2, differences.size());
+        assertEquals(ComparisonType.CHILD_NODELIST_LENGTH, differences.get(0));
+        assertEquals(ComparisonType.CHILD_LOOKUP, differences.get(1));
+    }
+
+    private List<Map.Entry<Node, Node>> match(List<Node> control, List<Node> test) {
+        return Linqy.asList(new LCSNodeMatcher().match(control, test));
+    }
+
+    private List<Node> elements(String... names) {
+        List<Node> l = new ArrayList<Node>();
+        for (String name : names) {
+            l.add(doc.createElement(name));
+        }
+        return l;
+    }
+
+    private List<Node> randomElements(Random r) {
+        List<Node> l = new ArrayList<Node>();
+        int length = r.nextInt(20);
+        for (int i = 0; i < length; i++) {
+            l.add(doc.createElement(String.valueOf((char) ('a' + r.nextInt(4)))));
+        }
+        return l;
+    }
+
+    private static int lcsLength(List<Node> control, List<Node> test) {
+        int[][] lengths = new int[control.size() + 1][test.size() + 1];
+        for (int i = control.size() - 1; i >= 0; i--) {
+            for (int j = test.size() - 1; j >= 0; j--) {
+                lengths[i][j] = ((Element) control.get(i)).getTagName()
+                    .equals(((Element) test.get(j)).getTagName())
+                    ? lengths[i + 1][j + 1] + 1
+                    : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+            }
+        }
+        return lengths[0][0];
+    }
+}
@@ -0,0 +1,190 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.transform.Source;
+import org.xmlunit.builder.DiffBuilder;
+import org.xmlunit.builder.Input;
+import org.xmlunit.input.CombinedNormalizedSource;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StreamingDifferenceEngineTest {
+
+    @Test
+    public void identicalDocumentsHaveNoDifferences() {
+        List<String> diffs = differences(new StreamingDifferenceEngine(),
+                                         "<a x='1'><b>foo</b><!-- c --><?pi data?></a>",
+                                         "<a x='1'><b>foo</b><!-- c --><?pi data?></a>");
+        assertEquals(Collections.<String>emptyList(), diffs);
+    }
+
+    @Test
+    public void detectsTextDifference() {
+        List<String> diffs = differences(new StreamingDifferenceEngine(),
+                                         "<a><b>foo</b></a>", "<a><b>bar</b></a>");
+        assertEquals(Collections.singletonList("TEXT_VALUE /a[1]/b[1]/text()[1]"
+                                               + " /a[1]/b[1]/text()[1]"),
+                     diffs);
+    }
+
+    @Test
+    public void detectsAttributeValueDifference() {
+        List<String> diffs = differences(new StreamingDifferenceEngine(),
+                                         "<a><b x='1'/></a>", "<a><b x='2'/></a>");
+        assertEquals(Collections.singletonList("ATTR_VALUE /a[1]/b[1]/@x /a[1]/b[1]/@x"),
+                     diffs);
+    }
+
+    @Test
+    public void detectsMissingChildren() {
+        List<String> diffs = differences(new StreamingDifferenceEngine(),
+                                         "<a><b/><c><d/></c></a>", "<a><b/></a>");
+        assertEquals(2, diffs.size());
+        assertEquals("CHILD_LOOKUP /a[1]/c[1] null", diffs.get(0));
+        assertEquals("CHILD_NODELIST_LENGTH /a[1] /a[1]", diffs.get(1));
+    }
+
+    @Test
+    public void mergesTextWithEntityReferences() {
+        List<String> diffs = differences(new StreamingDifferenceEngine(),
+                                         "<a>foo &amp; bar</a>", "<a>foo &amp; bar</a>");
+        assertEquals(Collections.<String>emptyList(), diffs);
+    }
+
+    @Test
+    public void findsSameDifferencesAsDOMDifferenceEngine() {
+        String control = "<?xml version='1.0'?>"
+            + "<r xmlns='urn:x' xmlns:p='urn:p'>"
+            + "<a p:x='1' y='2'>text<b/><![CDATA[cdata]]></a>"
+            + "<c><d>1</d><d>2</d><e/></c><?pi foo?>"
+            + "</r>";
+        String test = "<?xml version='1.0' standalone='yes'?>"
+            + "<r xmlns='urn:x' xmlns:q='urn:p'>"
+            + "<a q:x='1' z='2'>other<b/>cdata</a>"
+            + "<c><d>1</d><f>2</f></c><?pi bar?>"
+            + "</r>";
+        List<String> dom = differences(new DOMDifferenceEngine(), control, test);
+        List<String> streaming = differences(new StreamingDifferenceEngine(), control, test);
+        Collections.sort(dom);
+        Collections.sort(streaming);
+        assertEquals(dom, streaming);
+    }
+
+    @Test
+    public void stopsWhenControllerSaysSo() {
+        StreamingDifferenceEngine d = new StreamingDifferenceEngine();
+        d.setComparisonController(ComparisonControllers.StopWhenDifferent);
+        List<String> diffs = differences(d, "<a><b>1</b><c>1</c></a>",
+                                         "<a><b>2</b><c>2</c></a>");
+        assertEquals(1, diffs.size());
+    }
+
+    @Test
+    public void worksWithDiffBuilder() {
+        Diff d = DiffBuilder.compare(Input.fromString("<a><b>foo</b></a>"))
+            .withTest(Input.fromString("<a>\n  <b>foo</b>\n</a>"))
+            .ignoreWhitespace()
+            .withStreamingEngine()
+            .build();
+        assertFalse(d.toString(), d.hasDifferences());
+    }
+
+    @Test
+    public void normalizesLikeCombinedNormalizedSource() {
+        String control = "<!DOCTYPE r><r a=' x  y '>\n  <a>  foo <![CDATA[ bar ]]>"
+            + "<!-- c --> baz  qux </a>\n  <b> <![CDATA[  ]]> </b><?pi  data ?>"
+            + "<c>x<!-- c -->y</c>\n</r>";
+        String test = "<r a='x y'><a>foo<![CDATA[bar]]>baz qux</a>"
+            + "<b/><?pi data?><c>xy</c></r>";
+        List<Set<CombinedNormalizedSource.Normalization>> sets =
+            new ArrayList<Set<CombinedNormalizedSource.Normalization>>();
+        for (CombinedNormalizedSource.Normalization n
+                 : CombinedNormalizedSource.Normalization.values()) {
+            sets.add(EnumSet.of(n));
+        }
+        sets.add(EnumSet.allOf(CombinedNormalizedSource.Normalization.class));
+        sets.add(EnumSet.of(CombinedNormalizedSource.Normalization.STRIP_WHITESPACE,
+                            CombinedNormalizedSource.Normalization.STRIP_COMMENTS));
+        sets.add(EnumSet.of(CombinedNormalizedSource.Normalization.STRIP_COMMENTS,
+                            CombinedNormalizedSource.Normalization.STRIP_ELEMENT_CONTENT_WHITESPACE));
+        for (Set<CombinedNormalizedSource.Normalization> normalizations : sets) {
+            List<String> expected = differences(new StreamingDifferenceEngine(),
+                new CombinedNormalizedSource(Input.fromString(control).build(), normalizations),
+                new CombinedNormalizedSource(Input.fromString(test).build(), normalizations),
+                true);
+            StreamingDifferenceEngine s = new StreamingDifferenceEngine();
+            s.setNormalizations(normalizations);
+            List<String> actual = differences(s, Input.fromString(control).build(),
+                                              Input.fromString(test).build(), true);
+            assertEquals(normalizations.toString(), expected, actual);
+        }
+    }
+
+    @Test
+    public void comparesVeryDeepDocuments() {
+        final int depth = 5000;
+        StringBuilder control = new StringBuilder();
+        StringBuilder test = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            control.append("<e>");
+            test.append("<e>");
+        }
+        control.append("x");
+        test.append("y");
+        for (int i = 0; i < depth; i++) {
+            control.append("</e>");
+            test.append("</e>");
+        }
+        List<String> diffs = differences(new StreamingDifferenceEngine(),
+                                         control.toString(), test.toString());
+        assertEquals(1, diffs.size());
+        assertTrue(diffs.get(0), diffs.get(0).startsWith("TEXT_VALUE /e[1]/e[1]/"));
+        assertTrue(diffs.get(0), diffs.get(0).endsWith("/e[1]/text()[1]"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cantSetNodeMatcher() {
+        new StreamingDifferenceEngine().setNodeMatcher(new DefaultNodeMatcher());
+    }
+
+    private static List<String> differences(DifferenceEngine engine, String control,
+                                            String test) {
+        return differences(engine, Input.fromString(control).build(),
+                           Input.fromString(test).build(), false);
+    }
+
+    private static List<String> differences(DifferenceEngine engine, Source control,
+                                            Source test, final boolean withValues) {
+        final List<String> diffs = new ArrayList<String>();
+        engine.addDifferenceListener(new ComparisonListener() {
+                @Override
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    diffs.add(comparison.getType() + " "
+                              + comparison.getControlDetails().getXPath() + " "
+                              + comparison.getTestDetails().getXPath()
+                              + (withValues ? " " + comparison.getControlDetails().getValue()
+                                 + " " + comparison.getTestDetails().getValue() : ""));
+                }
+            });
+        engine.compare(control, test);
+        return diffs;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.diff;
+
+import org.xmlunit.builder.Input;
+import org.xmlunit.util.Convert;
+import org.xmlunit.util.Predicate;
+import org.junit.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import static org.junit.Assert.*;
+
+public class SubtreeHasherTest {
+
+    private static final Predicate<Attr> ALL_ATTRIBUTES = new Predicate<Attr>() {
+            @Override
+            public boolean test(Attr a) {
+                return true;
+            }
+        };
+
+    @Test
+    public void identicalTreesHaveSameHash() {
+        SubtreeHasher h = new SubtreeHasher(NodeFilters.Default, ALL_ATTRIBUTES);
+        Node c = root("<a x='1' y='2'><b>foo</b><!-- c --></a>");
+        Node t = root("<a y='2' x='1'><b>foo</b><!-- c --></a>");
+        assertEquals(h.hash(c), h.hash(t));
+        assertTrue(h.identical(c, t));
+    }
+
+    @Test
+    public void differentTextIsDetected() {
+        SubtreeHasher h = new SubtreeHasher(NodeFilters.Default, ALL_ATTRIBUTES);
+        Node c = root("<a><b>foo</b></a>");
+        Node t = root("<a><b>bar</b></a>");
+        assertNotEquals(h.hash(c), h.hash(t));
+        assertFalse(h.identical(c, t));
+    }
+
+    @Test
+    public void childOrderMatters() {
+        SubtreeHasher h = new SubtreeHasher(NodeFilters.Default, ALL_ATTRIBUTES);
+        assertFalse(h.identical(root("<a><b/><c/></a>"), root("<a><c/><b/></a>")));
+    }
+
+    @Test
+    public void namespacePrefixMatters() {
+        SubtreeHasher h = new SubtreeHasher(NodeFilters.Default, ALL_ATTRIBUTES);
+        assertFalse(h.identical(root("<p:a xmlns:p='urn:x'/>"),
+                                root("<q:a xmlns:q='urn:x'/>")));
+    }
+
+    @Test
+    public void respectsNodeFilter() {
+        SubtreeHasher h = new SubtreeHasher(new Predicate<Node>() {
+                @Override
+                public boolean test(Node n) {
+                    return n.getNodeType() != Node.COMMENT_NODE;
+                }
+            }, ALL_ATTRIBUTES);
+        Node c = root("<a><b>foo</b><!-- c --></a>");
+        Node t = root("<a><!-- d --><b>foo</b></a>");
+        assertEquals(h.hash(c), h.hash(t));
+        assertTrue(h.identical(c, t));
+    }
+
+    @Test
+    public void respectsAttributeFilter() {
+        SubtreeHasher h = new SubtreeHasher(NodeFilters.Default, new Predicate<Attr>() {
+                @Override
+                public boolean test(Attr a) {
+                    return !"x".equals(a.getName());
+                }
+            });
+        assertTrue(h.identical(root("<a x='1' y='2'/>"), root("<a x='2' y='2'/>")));
+        assertFalse(h.identical(root("<a x='1' y='2'/>"), root("<a x='1' y='3'/>")));
+    }
+
+    private static Node root(String s) {
+        Document d = Convert.toDocument(Input.fromString(s).build());
+        return d.getDocumentElement();
+    }
+}
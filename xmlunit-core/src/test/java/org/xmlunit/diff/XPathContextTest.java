@@ -178,6 +178,44 @@ public class XPathContextTest {
         assertEquals("/", ctx.getParentXPath());
     }
 
+    @Test public void childrenAreRememberedWhenNavigatingBack() {
+        ArrayList<Element> l = new ArrayList<Element>();
+        l.add(new Element("foo"));
+        l.add(new Element("bar"));
+        XPathContext ctx = new XPathContext();
+        ctx.setChildren(l);
+        ctx.navigateToChild(0);
+        ctx.setChildren(l);
+        ctx.navigateToParent();
+        ctx.navigateToChild(1);
+        ctx.navigateToParent();
+        ctx.navigateToChild(0);
+        ctx.appendChildren(Linqy.singleton(new Element("bar")));
+        ctx.navigateToChild(2);
+        assertEquals("/foo[1]/bar[2]", ctx.getXPath());
+        XPathContext clone = ctx.clone();
+        clone.navigateToParent();
+        clone.navigateToChild(1);
+        assertEquals("/foo[1]/bar[1]", clone.getXPath());
+        assertEquals("/foo[1]/bar[2]", ctx.getXPath());
+    }
+
+    @Test public void comparisonsKeepTheXPathOfTheirCreationTime() {
+        ArrayList<Element> l = new ArrayList<Element>();
+        l.add(new Element("foo"));
+        l.add(new Element("bar"));
+        XPathContext ctx = new XPathContext();
+        ctx.setChildren(l);
+        ctx.navigateToChild(1);
+        Comparison c = new Comparison(ComparisonType.NODE_TYPE, ctx, null, null, null, null, null);
+        ctx.navigateToParent();
+        ctx.navigateToChild(0);
+        assertEquals("/bar[1]", c.getControlDetails().getXPath());
+        assertEquals("/", c.getControlDetails().getParentXPath());
+        assertNull(c.getTestDetails().getXPath());
+        assertNull(c.getTestDetails().getParentXPath());
+    }
+
     @Test public void attributes() {
         XPathContext ctx = new XPathContext();
         ctx.setChildren(Linqy.singleton(new Element("foo")));
@@ -200,6 +238,22 @@ public class XPathContextTest {
         assertEquals("/foo[1]", ctx.getParentXPath());
     }
 
+    @Test public void unknownAttribute() {
+        XPathContext ctx = new XPathContext();
+        ctx.setChildren(Linqy.singleton(new Element("foo")));
+        ctx.navigateToChild(0);
+        ctx.navigateToAttribute(new QName("bar"));
+        assertEquals("/foo[1]", ctx.getParentXPath());
+        try {
+            ctx.getXPath();
+            fail("expected an exception");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        ctx.navigateToParent();
+        assertEquals("/foo[1]", ctx.getXPath());
+    }
+
     @Test public void mixed() {
         ArrayList<XPathContext.NodeInfo> l = new ArrayList<XPathContext.NodeInfo>();
         l.add(new Text());
@@ -293,6 +347,21 @@ public void parentXPathEdgeCases() {
         assertEquals("", ctx.getParentXPath());
     }
 
+    @Test
+    public void copyOfCurrentPathOfVeryDeepContext() {
+        final int depth = 20000;
+        XPathContext ctx = new XPathContext();
+        for (int i = 0; i < depth; i++) {
+            ctx.setChildren(Linqy.singleton(new Element("e")));
+            ctx.navigateToChild(0);
+        }
+        XPathContext copy = ctx.copyOfCurrentPath();
+        assertEquals(ctx.getXPath(), copy.getXPath());
+        assertEquals(depth * "/e[1]".length(), copy.getXPath().length());
+        copy.navigateToParent();
+        assertEquals(ctx.getParentXPath(), copy.getXPath());
+    }
+
     private static class Element implements XPathContext.NodeInfo {
         private final QName name;
         private Element(String name) {
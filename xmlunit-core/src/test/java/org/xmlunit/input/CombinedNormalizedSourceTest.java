@@ -0,0 +1,139 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.input;
+
+import java.util.EnumSet;
+import java.util.Set;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xmlunit.builder.DiffBuilder;
+import org.xmlunit.builder.Input;
+import org.xmlunit.diff.Diff;
+import org.xmlunit.input.CombinedNormalizedSource.Normalization;
+import org.xmlunit.util.Convert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class CombinedNormalizedSourceTest {
+
+    private static final String[] DOCUMENTS = new String[] {
+        "<?xml version='1.0'?><!-- c1 --><a>  <b> x  \n y </b>\n<!-- c2 -->\n<c/>  </a>",
+        "<a attr='  some \t value '>  text <!-- c --> more text  <?pi  data  ?></a>",
+        "<a><![CDATA[  cdata ]]>text<![CDATA[ ]]>  <b/> <![CDATA[\n]]></a>",
+        "<!DOCTYPE a [<!ELEMENT a ANY>]><a>x<!--c-->  <!--c-->y</a>",
+        "<a xmlns='urn:x'>\n  <b xmlns:p='urn:p' p:attr=' v '>\n    <!-- c -->\n  </b>\n</a>",
+    };
+
+    @Test
+    public void hasSameResultAsChainedSources() {
+        Normalization[] all = Normalization.values();
+        for (String doc : DOCUMENTS) {
+            for (int mask = 0; mask < 1 << all.length; mask++) {
+                Set<Normalization> normalizations = EnumSet.noneOf(Normalization.class);
+                for (int i = 0; i < all.length; i++) {
+                    if ((mask & 1 << i) != 0) {
+                        normalizations.add(all[i]);
+                    }
+                }
+                Diff d = DiffBuilder.compare(chained(doc, normalizations))
+                    .withTest(new CombinedNormalizedSource(Input.fromString(doc).build(),
+                                                           normalizations))
+                    .build();
+                assertFalse(doc + " " + normalizations + " " + d, d.hasDifferences());
+            }
+        }
+    }
+
+    @Test
+    public void doesntModifyOriginalDocument() {
+        Document original = Convert.toDocument(Input.fromString("<a> <!-- c --> </a>").build());
+        Node result = new CombinedNormalizedSource(new DOMSource(original),
+                                                   EnumSet.allOf(Normalization.class))
+            .getNode();
+        assertNotSame(original, result);
+        assertEquals(3, original.getDocumentElement().getChildNodes().getLength());
+        assertEquals(0, ((Document) result).getDocumentElement().getChildNodes().getLength());
+    }
+
+    @Test
+    public void normalizesVeryDeepDocuments() {
+        final int depth = 20000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append("<e> ");
+        }
+        sb.append(" x <!-- c --> ");
+        for (int i = 0; i < depth; i++) {
+            sb.append("</e>");
+        }
+        Node n = new CombinedNormalizedSource(Input.fromString(sb.toString()).build(),
+                                              EnumSet.allOf(Normalization.class))
+            .getNode();
+        for (int i = 0; i < depth; i++) {
+            n = n.getFirstChild();
+            assertEquals(1, n.getChildNodes().getLength());
+        }
+        assertEquals("x", n.getFirstChild().getNodeValue());
+    }
+
+    @Test
+    public void keepsTextOfEntityReferencesWhenStrippingComments() {
+        Node n = new CombinedNormalizedSource(
+            Input.fromString("<!DOCTYPE r [<!ENTITY e 'A'>]><r>&e;<!--x--></r>").build(),
+            EnumSet.of(Normalization.STRIP_COMMENTS))
+            .getNode();
+        Node r = ((Document) n).getDocumentElement();
+        assertEquals(1, r.getChildNodes().getLength());
+        assertEquals("A", r.getFirstChild().getNodeValue());
+
+        Diff d = DiffBuilder.compare("<!DOCTYPE r [<!ENTITY e 'A'>]><r>&e;<!--x--></r>")
+            .withTest("<!DOCTYPE r [<!ENTITY e 'B'>]><r>&e;</r>")
+            .ignoreComments()
+            .build();
+        assertTrue(d.toString(), d.hasDifferences());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cantWrapNullSource() {
+        new CombinedNormalizedSource(null, EnumSet.allOf(Normalization.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cantUseNullNormalizations() {
+        new CombinedNormalizedSource(Input.fromString("<a/>").build(), null);
+    }
+
+    private static Source chained(String doc, Set<Normalization> normalizations) {
+        Source s = Input.fromString(doc).build();
+        if (normalizations.contains(Normalization.STRIP_WHITESPACE)) {
+            s = new WhitespaceStrippedSource(s);
+        }
+        if (normalizations.contains(Normalization.NORMALIZE_WHITESPACE)) {
+            s = new WhitespaceNormalizedSource(s);
+        }
+        if (normalizations.contains(Normalization.STRIP_COMMENTS)) {
+            s = new CommentLessSource(s);
+        }
+        if (normalizations.contains(Normalization.STRIP_ELEMENT_CONTENT_WHITESPACE)) {
+            s = new ElementContentWhitespaceStrippedSource(s);
+        }
+        return s;
+    }
+}
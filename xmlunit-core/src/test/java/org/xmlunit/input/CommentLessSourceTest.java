@@ -13,10 +13,20 @@
 */
 package org.xmlunit.input;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamSource;
+import org.xmlunit.XMLUnitException;
+import org.xmlunit.builder.DiffBuilder;
+import org.xmlunit.diff.Diff;
 import org.xmlunit.util.Convert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -56,6 +66,52 @@ public void stripCommentsAtDifferentLevels() {
         assertEquals(0, d.getChildNodes().item(0).getChildNodes().getLength());
     }
 
+    @Test
+    public void hasSameResultAsStylesheet() {
+        String[] docs = new String[] {
+            "<!DOCTYPE a [<!ENTITY e 'x<!--c-->y'>]><a>&e;</a>",
+            "<a>text<!-- c --><![CDATA[ cdata ]]>more<?pi data?></a>",
+            "<a xmlns='urn:x'> <b xmlns:p='urn:p' p:c='d'/> <!-- c --> </a>",
+        };
+        // the stylesheet doesn't see the content of unexpanded entity references
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        for (String doc : docs) {
+            Source expected = new CommentLessSource(new StreamSource(new StringReader(doc)), "1.0");
+            Diff d = DiffBuilder.compare(expected).withTest(getSource(doc)).build();
+            assertFalse(doc + " " + d, d.hasDifferences());
+            d = DiffBuilder.compare(expected)
+                .withTest(getSource(new DOMSource(Convert.toDocument(new StreamSource(new StringReader(doc)),
+                                                                     dbf))))
+                .build();
+            assertFalse(doc + " " + d, d.hasDifferences());
+        }
+    }
+
+    @Test
+    public void doesntResolveExternalEntities() throws Exception {
+        File secret = File.createTempFile("secret", ".txt");
+        try {
+            OutputStream os = new FileOutputStream(secret);
+            try {
+                os.write("top secret".getBytes(StandardCharsets.UTF_8));
+            } finally {
+                os.close();
+            }
+            String doc = "<!DOCTYPE r [<!ENTITY x SYSTEM '" + secret.toURI() + "'>]><r>&x;</r>";
+            Document d;
+            try {
+                d = Convert.toDocument(getSource(doc));
+            } catch (XMLUnitException ex) {
+                // refusing to load the entity is fine as well
+                return;
+            }
+            assertFalse(d.getDocumentElement().getTextContent().contains("top secret"));
+        } finally {
+            secret.delete();
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void cantWrapNullSource() {
         new CommentLessSource(null);
@@ -67,7 +123,10 @@ public void cantUseNullVersion() {
     }
 
     private CommentLessSource getSource(String s) {
-        StreamSource src = s == null ? null : new StreamSource(new StringReader(s));
+        return getSource(s == null ? null : new StreamSource(new StringReader(s)));
+    }
+
+    private CommentLessSource getSource(Source src) {
         return xsltVersion == null ? new CommentLessSource(src)
             : new CommentLessSource(src, xsltVersion);
     }
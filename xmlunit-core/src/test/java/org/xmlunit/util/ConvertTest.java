@@ -16,6 +16,7 @@
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -26,6 +27,9 @@
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
@@ -34,6 +38,7 @@
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stax.StAXSource;
 import javax.xml.transform.stream.StreamSource;
 
 import org.hamcrest.core.IsNull;
@@ -42,6 +47,7 @@
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -55,6 +61,7 @@
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doThrow;
@@ -108,6 +115,57 @@ private static void documentAsserts(Document d) {
         convertToInputSourceAndAssert(new SAXSource(s));
     }
 
+    @Test public void staxSourceToInputSource() throws Exception {
+        XMLStreamReader r = XMLInputFactory.newInstance()
+            .createXMLStreamReader(new StringReader("<x:a xmlns:x='urn:x' b='c'>"
+                                                    + "<!--d--><![CDATA[<e>]]>&amp;</x:a>"));
+        Document d = parseNamespaceAware(Convert.toInputSource(new StAXSource(r)));
+        Element a = d.getDocumentElement();
+        assertEquals("urn:x", a.getNamespaceURI());
+        assertEquals("x", a.getPrefix());
+        assertEquals("c", a.getAttribute("b"));
+        assertEquals(Node.COMMENT_NODE, a.getFirstChild().getNodeType());
+        assertEquals("<e>&", a.getTextContent());
+    }
+
+    @Test public void staxEventSourceToInputSource() throws Exception {
+        XMLEventReader r = XMLInputFactory.newInstance()
+            .createXMLEventReader(new StringReader("<a xmlns='urn:x'><b/></a>"));
+        Document d = parseNamespaceAware(Convert.toInputSource(new StAXSource(r)));
+        assertEquals("urn:x", d.getDocumentElement().getNamespaceURI());
+        assertEquals("b", d.getDocumentElement().getFirstChild().getLocalName());
+    }
+
+    @Test public void staxSourceOnElementToInputSourceOnlyContainsElement() throws Exception {
+        XMLStreamReader r = XMLInputFactory.newInstance()
+            .createXMLStreamReader(new StringReader("<a xmlns='urn:x'><b><c/></b><d/></a>"));
+        r.nextTag();
+        r.nextTag();
+        Document d = parseNamespaceAware(Convert.toInputSource(new StAXSource(r)));
+        assertEquals("b", d.getDocumentElement().getLocalName());
+        assertEquals("urn:x", d.getDocumentElement().getNamespaceURI());
+        assertEquals(1, d.getDocumentElement().getChildNodes().getLength());
+    }
+
+    @Test public void staxSourceIsSerializedWhileInputSourceIsRead() throws Exception {
+        StringBuilder sb = new StringBuilder("<a>");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("<b>").append(i).append("</b>");
+        }
+        XMLStreamReader r = XMLInputFactory.newInstance()
+            .createXMLStreamReader(new StringReader(sb.append("</a>").toString()));
+        InputSource is = Convert.toInputSource(new StAXSource(r));
+        char[] start = new char[10];
+        assertEquals(10, is.getCharacterStream().read(start));
+        assertTrue(r.getLocation().getCharacterOffset() < 100);
+    }
+
+    private static Document parseNamespaceAware(InputSource is) throws Exception {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(true);
+        return f.newDocumentBuilder().parse(is);
+    }
+
     private static void convertToDocumentAndAssert(Source s) {
         documentAsserts(Convert.toDocument(s));
     }
@@ -134,6 +192,18 @@ private static void convertToDocumentAndAssert(Source s) {
                       Convert.toDocument(new DOMSource(d.getDocumentElement())));
     }
 
+    @Test public void domElementToDocumentCopiesNamespaces() throws Exception {
+        Document d = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element e = d.createElementNS("urn:test", "t:a");
+        d.appendChild(e);
+        e.appendChild(d.createElementNS("urn:test", "t:b"));
+        Document copy = Convert.toDocument(new DOMSource(e));
+        assertNotSame(d, copy);
+        assertEquals("urn:test", copy.getDocumentElement().getNamespaceURI());
+        assertEquals("a", copy.getDocumentElement().getLocalName());
+        assertEquals("urn:test", copy.getDocumentElement().getFirstChild().getNamespaceURI());
+    }
+
     private static void convertToNodeAndAssert(Source s) {
         Node n = Convert.toNode(s);
         Document d = n instanceof Document ? (Document) n : n.getOwnerDocument();
@@ -166,6 +236,29 @@ private static void convertToNodeWithDocBuilderFactoryAndAssert(Source s) {
         assertSame(d, Convert.toNode(new DOMSource(d)));
     }
 
+    @Test public void streamSourceToDocumentWithDocumentBuilder() throws Exception {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(false);
+        DocumentBuilder b = Convert.newDocumentBuilder(f);
+        assertEquals(false, f.isNamespaceAware());
+        assertEquals(true, b.isNamespaceAware());
+        documentAsserts(Convert.toDocument(new StreamSource(new File(TestResources.ANIMAL_FILE)),
+                                           b));
+    }
+
+    @Test public void domSourceToDocumentWithDocumentBuilder() throws Exception {
+        Document d = animalDocument();
+        assertSame(d, Convert.toDocument(new DOMSource(d), builder));
+    }
+
+    @Test public void staxSourceToDocumentUsesFactorySettings() throws Exception {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setIgnoringComments(true);
+        Document d = Convert.toDocument(new StAXSource(XMLInputFactory.newInstance()
+            .createXMLStreamReader(new StringReader("<a><!-- c --><b/></a>"))), f);
+        assertEquals(1, d.getDocumentElement().getChildNodes().getLength());
+    }
+
     @Test public void saxSourceToNode() throws Exception {
         InputSource s = new InputSource(new FileInputStream(TestResources.ANIMAL_FILE));
         convertToNodeWithDocBuilderFactoryAndAssert(new SAXSource(s));
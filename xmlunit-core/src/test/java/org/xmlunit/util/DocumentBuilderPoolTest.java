@@ -0,0 +1,107 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.util;
+
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xmlunit.XMLUnitException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DocumentBuilderPoolTest {
+
+    @Test
+    public void createsIndependentDocuments() {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        Document d1 = DocumentBuilderPool.parse(input("<a xmlns='urn:x'/>"), f);
+        Document d2 = DocumentBuilderPool.parse(input("<b/>"), f);
+        assertNotSame(d1, d2);
+        assertEquals("a", d1.getDocumentElement().getLocalName());
+        assertEquals("urn:x", d1.getDocumentElement().getNamespaceURI());
+        assertEquals("b", d2.getDocumentElement().getLocalName());
+    }
+
+    @Test
+    public void honorsChangedFactorySettings() {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        Document d = DocumentBuilderPool.parse(input("<a><!-- c --></a>"), f);
+        assertEquals(Node.COMMENT_NODE, d.getDocumentElement().getFirstChild().getNodeType());
+        f.setIgnoringComments(true);
+        d = DocumentBuilderPool.parse(input("<a><!-- c --></a>"), f);
+        assertEquals(null, d.getDocumentElement().getFirstChild());
+    }
+
+    @Test
+    public void honorsFeaturesSetAfterFirstUse() {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        String doc = "<!DOCTYPE a [<!ELEMENT a EMPTY>]><a/>";
+        DocumentBuilderPool.parse(input(doc), f);
+        try {
+            f.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        } catch (Exception ex) {
+            // feature not supported by this parser
+            return;
+        }
+        try {
+            DocumentBuilderPool.parse(input(doc), f);
+            fail("expected an exception");
+        } catch (XMLUnitException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void canBeUsedAfterParseFailure() {
+        DocumentBuilderFactory f = DocumentBuilderPool.defaultFactory();
+        try {
+            DocumentBuilderPool.parse(input("<a>"), f);
+            fail("expected an exception");
+        } catch (XMLUnitException ex) {
+            // expected
+        }
+        Document d = DocumentBuilderPool.parse(input("<a/>"), f);
+        assertEquals("a", d.getDocumentElement().getLocalName());
+    }
+
+    @Test
+    public void defaultFactoryIsCreatedPerThread() throws Exception {
+        final DocumentBuilderFactory f = DocumentBuilderPool.defaultFactory();
+        assertSame(f, DocumentBuilderPool.defaultFactory());
+        final AtomicReference<DocumentBuilderFactory> other =
+            new AtomicReference<DocumentBuilderFactory>();
+        Thread t = new Thread() {
+                @Override
+                public void run() {
+                    other.set(DocumentBuilderPool.defaultFactory());
+                }
+            };
+        t.start();
+        t.join();
+        assertTrue(other.get() != null);
+        assertNotSame(f, other.get());
+    }
+
+    private static InputSource input(String s) {
+        return new InputSource(new StringReader(s));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FactoryRegistryTest {
+
+    @Test
+    public void returnsSameFactoryForSameConfigurer() {
+        assertSame(FactoryRegistry.getDocumentBuilderFactory(),
+                   FactoryRegistry.getDocumentBuilderFactory(DocumentBuilderFactoryConfigurer.Default));
+        assertSame(FactoryRegistry.getTransformerFactory(),
+                   FactoryRegistry.getTransformerFactory(TransformerFactoryConfigurer.Default));
+        assertSame(FactoryRegistry.getXPathFactory(),
+                   FactoryRegistry.getXPathFactory(XPathFactoryConfigurer.Default));
+        assertSame(FactoryRegistry.getSchemaFactory(XMLConstants.W3C_XML_SCHEMA_NS_URI),
+                   FactoryRegistry.getSchemaFactory(XMLConstants.W3C_XML_SCHEMA_NS_URI));
+    }
+
+    @Test
+    public void appliesConfigurer() {
+        DocumentBuilderFactory f = FactoryRegistry.getDocumentBuilderFactory();
+        assertFalse(f.isExpandEntityReferences());
+        TransformerFactory secure =
+            FactoryRegistry.getTransformerFactory(TransformerFactoryConfigurer.SecureProcessing);
+        assertNotSame(FactoryRegistry.getTransformerFactory(), secure);
+        assertTrue(secure.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+    }
+
+    @Test
+    public void createsFactoriesPerThread() throws Exception {
+        final AtomicReference<DocumentBuilderFactory> other =
+            new AtomicReference<DocumentBuilderFactory>();
+        Thread t = new Thread() {
+                @Override
+                public void run() {
+                    other.set(FactoryRegistry.getDocumentBuilderFactory());
+                }
+            };
+        t.start();
+        t.join();
+        assertNotNull(other.get());
+        assertNotSame(FactoryRegistry.getDocumentBuilderFactory(), other.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void configurerMustNotBeNull() {
+        FactoryRegistry.getXPathFactory(null);
+    }
+}
@@ -17,7 +17,10 @@
 import java.util.Arrays;
 import java.util.AbstractCollection;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -31,6 +34,17 @@ public void castContract() {
         Assert.assertTrue(s.iterator().next() instanceof String);
     }
 
+    @Test
+    public void randomAccessListReturnsRandomAccessListsAsIs() {
+        ArrayList<String> al = new ArrayList<String>(Arrays.asList("a", "b"));
+        Assert.assertSame(al, Linqy.randomAccessList(al));
+        LinkedList<String> ll = new LinkedList<String>(al);
+        List<String> copy = Linqy.randomAccessList(ll);
+        Assert.assertTrue(copy instanceof RandomAccess);
+        Assert.assertEquals(al, copy);
+        Assert.assertEquals(al, Linqy.randomAccessList(Linqy.filter(al, new IsNotNullPredicate())));
+    }
+
     @Test
     public void canRemoveFromMapIterator() {
         ArrayList al = new ArrayList();
@@ -21,12 +21,15 @@
 import static org.xmlunit.TestResources.TEST_RESOURCE_DIR;
 
 import java.io.File;
+import java.io.StringReader;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
+import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.helpers.LocatorImpl;
 
 import org.junit.Before;
@@ -35,6 +38,7 @@
 import org.mockito.MockitoAnnotations;
 import org.xmlunit.TestResources;
 import org.xmlunit.XMLUnitException;
+import org.xmlunit.util.FactoryRegistry;
 
 public class JAXPValidatorTest {
     private static final File BOOK_XSD = new File(TestResources.BOOK_XSD);
@@ -100,6 +104,22 @@ public void setupMocks() throws Exception {
         assertTrue(r.getProblems().iterator().hasNext());
     }
 
+    @Test public void validateSchemaDoesntReconfigureSharedFactory() {
+        SchemaFactory shared = FactoryRegistry.getSchemaFactory(Languages.W3C_XML_SCHEMA_NS_URI);
+        ErrorHandler h = new DefaultHandler();
+        shared.setErrorHandler(h);
+        try {
+            JAXPValidator v = new JAXPValidator(Languages.W3C_XML_SCHEMA_NS_URI);
+            v.setSchemaSource(new StreamSource(new StringReader(
+                "<xsd:schema xmlns:xsd='http://www.w3.org/2001/XMLSchema'><xsd:foo/></xsd:schema>")));
+            ValidationResult r = v.validateSchema();
+            assertFalse(r.isValid());
+            assertSame(h, shared.getErrorHandler());
+        } finally {
+            shared.setErrorHandler(null);
+        }
+    }
+
     @Test public void shouldFailOnBrokenInstance() {
         JAXPValidator v = new JAXPValidator(Languages.W3C_XML_SCHEMA_NS_URI);
         v.setSchemaSource(new StreamSource(BOOK_XSD));
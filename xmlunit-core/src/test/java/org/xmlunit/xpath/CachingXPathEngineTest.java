@@ -0,0 +1,81 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.xpath;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import org.junit.Test;
+import org.w3c.dom.Node;
+import org.xmlunit.XMLUnitException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingXPathEngineTest {
+
+    @Test
+    public void parsesEachSourceOnlyOnce() {
+        CachingXPathEngine e = new CachingXPathEngine();
+        Source s = streamSource("<a><b>x</b><b>y</b></a>");
+        assertEquals("2", e.evaluate("count(/a/b)", s));
+        assertEquals("y", e.evaluate("/a/b[2]", s));
+        Iterator<Node> first = e.selectNodes("/a/b", s).iterator();
+        Iterator<Node> second = e.selectNodes("/a/b", s).iterator();
+        assertTrue(first.hasNext());
+        assertSame(first.next(), second.next());
+        assertEquals(1, e.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedDocument() {
+        CachingXPathEngine e = new CachingXPathEngine(new JAXPXPathEngine(), 1);
+        Source s1 = streamSource("<a/>");
+        Source s2 = streamSource("<b/>");
+        assertEquals("a", e.evaluate("name(/*)", s1));
+        assertEquals("b", e.evaluate("name(/*)", s2));
+        assertEquals(1, e.size());
+        try {
+            // the stream has been consumed already
+            e.evaluate("name(/*)", s1);
+            fail("expected an exception");
+        } catch (XMLUnitException ex) {
+            // expected
+        }
+        assertEquals("b", e.evaluate("name(/*)", s2));
+        e.evict(s2);
+        assertEquals(0, e.size());
+    }
+
+    @Test
+    public void usesNamespaceContext() {
+        CachingXPathEngine e = new CachingXPathEngine();
+        e.setNamespaceContext(Collections.singletonMap("x", "urn:x"));
+        assertEquals("1", e.evaluate("count(/x:a)", streamSource("<a xmlns='urn:x'/>")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void delegateMustNotBeNull() {
+        new CachingXPathEngine(null);
+    }
+
+    private static Source streamSource(String s) {
+        return new StreamSource(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -13,8 +13,17 @@
 */
 package org.xmlunit.xpath;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Iterator;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.xpath.XPathFactory;
 
 import org.junit.Before;
@@ -22,6 +31,10 @@
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.xmlunit.ConfigurationException;
+import org.xmlunit.builder.Input;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
 
 public class JAXPXPathEngineTest extends AbstractXPathEngineTest {
     @Mock
@@ -36,6 +49,41 @@ public void setupMocks() {
         return new JAXPXPathEngine();
     }
 
+    @Test
+    public void selectNodesUsesNodesOfNamespaceAwareDocument() throws Exception {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(true);
+        Document d = f.newDocumentBuilder()
+            .parse(new InputSource(new StringReader("<a><b/></a>")));
+        Iterator<Node> i = getEngine().selectNodes("/a/b", new DOMSource(d)).iterator();
+        assertTrue(i.hasNext());
+        assertSame(d.getDocumentElement().getFirstChild(), i.next());
+    }
+
+    @Test
+    public void selectNodesParsesDocumentThatIsNotNamespaceAware() throws Exception {
+        Document d = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new InputSource(new StringReader("<x:a xmlns:x='urn:x'><x:b/></x:a>")));
+        XPathEngine e = getEngine();
+        e.setNamespaceContext(Collections.singletonMap("y", "urn:x"));
+        Iterator<Node> i = e.selectNodes("/y:a/y:b", new DOMSource(d)).iterator();
+        assertTrue(i.hasNext());
+        assertNotSame(d.getDocumentElement().getFirstChild(), i.next());
+    }
+
+    @Test
+    public void enginesCanShareExpressionCache() {
+        XPathExpressionCache cache = new XPathExpressionCache();
+        for (int i = 0; i < 3; i++) {
+            JAXPXPathEngine e = new JAXPXPathEngine();
+            e.setExpressionCache(cache);
+            assertEquals("2", e.evaluate("count(/a/b)",
+                                         Input.fromString("<a><b/><b/></a>").build()));
+        }
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
     @Test(expected=ConfigurationException.class)
     public void shouldTranslateExceptionInConstructor() throws Exception {
         when(fac.newXPath()).thenThrow(new NullPointerException());
@@ -0,0 +1,194 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.xpath;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+import org.junit.Test;
+import org.xmlunit.XMLUnitException;
+import org.xmlunit.builder.Input;
+import org.xmlunit.util.Convert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MultiXPathEvaluatorTest {
+
+    private static final String DOC =
+        "<feed xmlns:p='urn:p' version=' 1 '>"
+        + "<entry type='a'><title>First</title><p:id>1</p:id></entry>"
+        + "<entry type='b'><title>Sec<!-- c -->ond</title>text<![CDATA[ cdata]]></entry>"
+        + "<other/>"
+        + "<entry><title><b>Third</b> title</title></entry>"
+        + "</feed>";
+
+    private static final String[] STREAMABLE = new String[] {
+        "count(/feed/entry)",
+        "count(/feed/*)",
+        "count(/feed/entry[@type])",
+        "count(/feed/entry/@type)",
+        "count(/feed/entry/title/text())",
+        "count(/feed/entry/p:id)",
+        "count(/nothing)",
+        "/feed/@version",
+        "/feed/entry[2]/title",
+        "/feed/entry[2]/title/text()",
+        "/feed/entry[2]/text()",
+        "/feed/entry[@type='b']/title",
+        "/feed/entry[3]",
+        "string(/feed/entry/p:id)",
+        "/feed/entry/@missing",
+        "/feed/*[4]/title",
+    };
+
+    @Test
+    public void streamingYieldsSameResultsAsDOM() {
+        Map<String, String> ns = Collections.singletonMap("p", "urn:p");
+        for (String xPath : STREAMABLE) {
+            StreamableXPath.compile(xPath, ns);
+        }
+        Map<String, String> expressions = new LinkedHashMap<String, String>();
+        for (String xPath : STREAMABLE) {
+            expressions.put(xPath, xPath);
+        }
+        MultiXPathEvaluator evaluator = new MultiXPathEvaluator();
+        evaluator.setNamespaceContext(ns);
+        Map<String, String> actual = evaluator.evaluateAll(expressions, streamSource(DOC));
+
+        JAXPXPathEngine engine = new JAXPXPathEngine();
+        engine.setNamespaceContext(ns);
+        Source dom = new DOMSource(Convert.toDocument(Input.fromString(DOC).build()));
+        for (String xPath : STREAMABLE) {
+            assertEquals(xPath, engine.evaluate(xPath, dom), actual.get(xPath));
+        }
+    }
+
+    @Test
+    public void readsXMLStreamReaderOfStAXSourceDirectly() throws Exception {
+        Map<String, String> ns = Collections.singletonMap("p", "urn:p");
+        Map<String, String> expressions = new LinkedHashMap<String, String>();
+        for (String xPath : STREAMABLE) {
+            expressions.put(xPath, xPath);
+        }
+        MultiXPathEvaluator evaluator = new MultiXPathEvaluator();
+        evaluator.setNamespaceContext(ns);
+        XMLStreamReader r = XMLInputFactory.newInstance()
+            .createXMLStreamReader(new StringReader(DOC));
+        Map<String, String> actual = evaluator.evaluateAll(expressions, new StAXSource(r));
+
+        JAXPXPathEngine engine = new JAXPXPathEngine();
+        engine.setNamespaceContext(ns);
+        Source dom = new DOMSource(Convert.toDocument(Input.fromString(DOC).build()));
+        for (String xPath : STREAMABLE) {
+            assertEquals(xPath, engine.evaluate(xPath, dom), actual.get(xPath));
+        }
+    }
+
+    @Test
+    public void stopsReadingXMLStreamReaderOfStAXSourceOnceResultsAreKnown() throws Exception {
+        XMLStreamReader r = XMLInputFactory.newInstance()
+            .createXMLStreamReader(new StringReader(DOC));
+        assertEquals(" 1 ", new MultiXPathEvaluator()
+                     .evaluateAll(Collections.singletonMap("version", "/feed/@version"),
+                                  new StAXSource(r))
+                     .get("version"));
+        assertEquals(XMLStreamConstants.START_ELEMENT, r.getEventType());
+        assertEquals("feed", r.getLocalName());
+    }
+
+    @Test
+    public void treatsElementStAXSourceIsPositionedOnAsDocumentElement() throws Exception {
+        XMLStreamReader r = XMLInputFactory.newInstance()
+            .createXMLStreamReader(new StringReader(DOC));
+        r.nextTag();
+        r.nextTag();
+        Map<String, String> expressions = new LinkedHashMap<String, String>();
+        expressions.put("entries", "count(/entry)");
+        expressions.put("title", "/entry/title");
+        expressions.put("feeds", "count(/feed)");
+        Map<String, String> actual = new MultiXPathEvaluator()
+            .evaluateAll(expressions, new StAXSource(r));
+        assertEquals("1", actual.get("entries"));
+        assertEquals("First", actual.get("title"));
+        assertEquals("0", actual.get("feeds"));
+        assertEquals(XMLStreamConstants.END_ELEMENT, r.getEventType());
+        assertEquals("entry", r.getLocalName());
+    }
+
+    @Test
+    public void streamsStAXSourceWithXMLEventReader() throws Exception {
+        XMLEventReader r = XMLInputFactory.newInstance()
+            .createXMLEventReader(new StringReader(DOC));
+        assertEquals("3", new MultiXPathEvaluator()
+                     .evaluateAll(Collections.singletonMap("entries", "count(/feed/entry)"),
+                                  new StAXSource(r))
+                     .get("entries"));
+    }
+
+    @Test
+    public void fallsBackToDOMForUnsupportedExpressions() {
+        Map<String, String> expressions = new LinkedHashMap<String, String>();
+        expressions.put("entries", "count(/feed/entry)");
+        expressions.put("titles", "count(//title)");
+        Map<String, String> actual = new MultiXPathEvaluator()
+            .evaluateAll(expressions, streamSource(DOC));
+        assertEquals("3", actual.get("entries"));
+        assertEquals("3", actual.get("titles"));
+    }
+
+    @Test
+    public void rejectsExpressionsOutsideOfSubset() {
+        String[] unsupported = new String[] {
+            "//a", "a/b", "/a/..", "/a/child::b", "/a[1][2]", "/a[b]",
+            "/a/node()", "sum(/a/b)", "/a/@*", "/a[@x=1]", "/a/b | /a/c", "/p:a",
+        };
+        for (String xPath : unsupported) {
+            try {
+                StreamableXPath.compile(xPath, null);
+                fail("expected " + xPath + " to be rejected");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = XMLUnitException.class)
+    public void unboundPrefixesAreNotIgnored() {
+        MultiXPathEvaluator evaluator = new MultiXPathEvaluator();
+        evaluator.setNamespaceContext(Collections.singletonMap("f", "urn:f"));
+        evaluator.evaluateAll(Collections.singletonMap("items", "count(/r/p:item)"),
+                              streamSource("<r><item/><item/><item/></r>"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void engineMustNotBeNull() {
+        new MultiXPathEvaluator(null);
+    }
+
+    private static Source streamSource(String s) {
+        return new StreamSource(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.xpath;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import org.junit.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xmlunit.builder.Input;
+import org.xmlunit.util.Linqy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingXPathEngineTest {
+
+    private static final String DOC =
+        "<feed xmlns='urn:f' version='2'>"
+        + "<entry id='1'><title>First</title></entry>"
+        + "<entry id='2'><title>Second <b>entry</b></title>text</entry>"
+        + "</feed>";
+
+    @Test
+    public void evaluatesLikeJAXPXPathEngine() {
+        String[] expressions = new String[] {
+            "count(/f:feed/f:entry)", "/f:feed/@version", "/f:feed/f:entry[2]/f:title",
+            "/f:feed/f:entry[@id='1']/f:title/text()", "count(/f:feed/f:entry/text())",
+            "string(/f:feed/f:missing)",
+        };
+        StreamingXPathEngine streaming = new StreamingXPathEngine();
+        streaming.setNamespaceContext(Collections.singletonMap("f", "urn:f"));
+        JAXPXPathEngine jaxp = new JAXPXPathEngine();
+        jaxp.setNamespaceContext(Collections.singletonMap("f", "urn:f"));
+        for (String xPath : expressions) {
+            assertEquals(xPath, jaxp.evaluate(xPath, Input.fromString(DOC).build()),
+                         streaming.evaluate(xPath, streamSource(DOC)));
+        }
+    }
+
+    @Test
+    public void selectNodesReturnsCopiesOfSelectedNodes() {
+        StreamingXPathEngine e = new StreamingXPathEngine();
+        e.setNamespaceContext(Collections.singletonMap("f", "urn:f"));
+        List<Node> entries = Linqy.asList(e.selectNodes("/f:feed/f:entry", streamSource(DOC)));
+        assertEquals(2, entries.size());
+        Element second = (Element) entries.get(1);
+        assertEquals("urn:f", second.getNamespaceURI());
+        assertEquals("entry", second.getLocalName());
+        assertEquals("2", second.getAttribute("id"));
+        assertEquals("Second entrytext", second.getTextContent());
+        assertEquals("b", second.getFirstChild().getLastChild().getLocalName());
+
+        Iterator<Node> ids = e.selectNodes("/f:feed/f:entry/@id", streamSource(DOC)).iterator();
+        assertEquals("1", ((Attr) ids.next()).getValue());
+        assertEquals("2", ((Attr) ids.next()).getValue());
+        assertFalse(ids.hasNext());
+
+        Iterator<Node> texts = e.selectNodes("/f:feed/f:entry/text()", streamSource(DOC)).iterator();
+        assertEquals("text", texts.next().getNodeValue());
+        assertFalse(texts.hasNext());
+    }
+
+    @Test
+    public void stopsReadingOnceResultIsKnown() {
+        assertEquals("x", new StreamingXPathEngine()
+                     .evaluate("/a/b", streamSource("<a><b>x</b><c><not well-formed")));
+    }
+
+    @Test
+    public void rejectsUnsupportedExpressions() {
+        StreamingXPathEngine e = new StreamingXPathEngine();
+        try {
+            e.evaluate("//entry", streamSource(DOC));
+            fail("expected an exception");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("child and attribute axes"));
+        }
+        try {
+            e.selectNodes("count(/feed)", streamSource(DOC));
+            fail("expected an exception");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("doesn't select any nodes"));
+        }
+    }
+
+    @Test
+    public void expandsEntitiesOfInternalSubsetLikeJAXPXPathEngine() {
+        String doc = "<!DOCTYPE r [<!ENTITY e 'value'>]><r><a>&e;</a></r>";
+        assertEquals(new JAXPXPathEngine().evaluate("/r/a", streamSource(doc)),
+                     new StreamingXPathEngine().evaluate("/r/a", streamSource(doc)));
+        assertEquals("value", new StreamingXPathEngine().evaluate("/r/a", streamSource(doc)));
+    }
+
+    @Test
+    public void doesntLoadExternalDTDsOrEntities() {
+        String doc = "<!DOCTYPE r SYSTEM 'file:///does/not/exist.dtd' ["
+            + "<!ENTITY x SYSTEM 'file:///does/not/exist.txt'>]><r><a>b&x;</a></r>";
+        assertEquals("b", new StreamingXPathEngine().evaluate("/r/a", streamSource(doc)));
+    }
+
+    @Test
+    public void rejectsUnboundPrefixes() {
+        StreamingXPathEngine e = new StreamingXPathEngine();
+        e.setNamespaceContext(Collections.singletonMap("f", "urn:f"));
+        Source s = streamSource("<r><a/><a/></r>");
+        try {
+            e.evaluate("count(/r/zz:a)", s);
+            fail("expected an exception");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("prefix zz is not bound"));
+        }
+        try {
+            e.selectNodes("/r/zz:a", s);
+            fail("expected an exception");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("prefix zz is not bound"));
+        }
+    }
+
+    private static Source streamSource(String s) {
+        return new StreamSource(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+    }
+}
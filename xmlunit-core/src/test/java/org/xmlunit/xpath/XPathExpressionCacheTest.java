@@ -0,0 +1,102 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package org.xmlunit.xpath;
+
+import java.util.Collections;
+import java.util.Map;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class XPathExpressionCacheTest {
+
+    private final XPath xpath = XPathFactory.newInstance().newXPath();
+
+    @Test
+    public void returnsCachedExpression() throws Exception {
+        XPathExpressionCache cache = new XPathExpressionCache();
+        XPathExpression e = cache.get(xpath, "/a", null);
+        assertSame(e, cache.get(xpath, "/a", null));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void keysIncludeNamespaceContext() throws Exception {
+        XPathExpressionCache cache = new XPathExpressionCache(10);
+        Map<String, String> ns1 = Collections.singletonMap("x", "urn:1");
+        Map<String, String> ns2 = Collections.singletonMap("x", "urn:2");
+        XPathExpression e1 = cache.get(xpath, "/x:a", ns1);
+        assertNotSame(e1, cache.get(xpath, "/x:a", ns2));
+        assertSame(e1, cache.get(xpath, "/x:a", Collections.singletonMap("x", "urn:1")));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedExpression() throws Exception {
+        XPathExpressionCache cache = new XPathExpressionCache(2);
+        XPathExpression a = cache.get(xpath, "/a", null);
+        cache.get(xpath, "/b", null);
+        cache.get(xpath, "/a", null);
+        cache.get(xpath, "/c", null);
+        assertEquals(2, cache.size());
+        assertSame(a, cache.get(xpath, "/a", null));
+        assertEquals(2, cache.getHitCount());
+        cache.get(xpath, "/b", null);
+        assertEquals(4, cache.getMissCount());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test(expected = XPathExpressionException.class)
+    public void propagatesCompilationErrors() throws Exception {
+        new XPathExpressionCache().get(xpath, "/[", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeMustBePositive() {
+        new XPathExpressionCache(0);
+    }
+
+    @Test
+    public void providesOneCachePerThreadAndFactory() throws Exception {
+        final XPathFactory f = XPathFactory.newInstance();
+        final XPathExpressionCache cache = XPathExpressionCache.forCurrentThread(f);
+        assertSame(cache, XPathExpressionCache.forCurrentThread(f));
+        assertNotSame(cache, XPathExpressionCache.forCurrentThread(XPathFactory.newInstance()));
+        final XPathExpressionCache[] other = new XPathExpressionCache[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                other[0] = XPathExpressionCache.forCurrentThread(f);
+            }
+        };
+        t.start();
+        t.join();
+        assertNotSame(cache, other[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void forCurrentThreadRequiresFactory() {
+        XPathExpressionCache.forCurrentThread(null);
+    }
+}
@@ -23,6 +23,8 @@
 import org.w3c.dom.Element;
 import org.xml.sax.InputSource;
 import org.xmlunit.XMLUnitException;
+import org.xmlunit.util.FactoryRegistry;
+import org.xmlunit.xpath.XPathExpressionCache;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -89,6 +91,20 @@ public void testXPathIsFoundInStringWithASingleOccurence() throws Exception {
         assertThat(xml, not(hasXPath("//feed/entry/description")));
     }
 
+    @Test
+    public void expressionsAreCompiledOnlyOnceAcrossAssertions() {
+        XPathExpressionCache cache =
+            XPathExpressionCache.forCurrentThread(FactoryRegistry.getXPathFactory());
+        cache.clear();
+
+        assertThat("<a><b/></a>", hasXPath("//a/b"));
+        assertThat("<a><c/></a>", not(hasXPath("//a/b")));
+        assertThat("<a><b/></a>", hasXPath("//a/b"));
+
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(2, cache.getHitCount());
+    }
+
     @Test
     public void testXPathIsFoundInStringWithMultipleOccurences() throws Exception {
         String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +